@@ -0,0 +1,270 @@
+package com.test.autostub.bench;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks of the processor and of the stubs, and writes their results as JSON,
+ * on the standard output or in the file given by out=.
+ *
+ * Parameters are given as key=value arguments, lists being separated with commas:
+ *
+ *  methods=10,50 genericDepth=0,2 hierarchyDepth=1,3 types=20
+ *      the synthetic interfaces compiled by the ProcessorBenchmark, every combination
+ *      being measured
+ *  warmups=3 iterations=5
+ *      how many compilations are made before measuring, and measured
+ *  calls=generated,stubs,proxy callMillis=1000
+ *      the stub implementations measured by the CallBenchmark, and how long each
+ *      iteration lasts ("calls=none" to skip them)
+ *  recording=plain,counting,capturing recordThreads=1,64
+ *      the recording stubs measured by the RecordingBenchmark, and with how many threads
+ *      calling them at once ("recording=none" to skip them)
+ *  latency=plain,injected,fixed,uniform,lognormal,percentiles
+ *      what the LatencyBenchmark measures: the cost of injecting latencies in calls, and
+ *      of drawing them from each distribution ("latency=none" to skip them)
+ *  composite=separate,composite compositeTypes=200
+ *      how the CompositeBenchmark stubs that many interfaces: one stub each, or a single
+ *      composite stub ("composite=none" to skip them)
+ *  replay=heap,primitive,string replayEntries=1000000
+ *      how the ReplayBenchmark looks up that many recorded responses: from a map on the
+ *      heap, or from a mapped file ("replay=none" to skip them)
+ *  out=results.json
+ *
+ * Any argument starting with -A is passed to the processor (-Ageneratestub.emit=class...).
+ */
+public class Benchmarks {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+    static {
+        DEFAULTS.put("methods", "10,50");
+        DEFAULTS.put("genericDepth", "0,2");
+        DEFAULTS.put("hierarchyDepth", "1,3");
+        DEFAULTS.put("types", "20");
+        DEFAULTS.put("warmups", "3");
+        DEFAULTS.put("iterations", "5");
+        DEFAULTS.put("calls", join(CallBenchmark.IMPLEMENTATIONS));
+        DEFAULTS.put("callMillis", "1000");
+        DEFAULTS.put("recording", join(RecordingBenchmark.VARIANTS));
+        DEFAULTS.put("recordThreads", "1,64");
+        DEFAULTS.put("latency", join(LatencyBenchmark.VARIANTS));
+        DEFAULTS.put("composite", join(CompositeBenchmark.VARIANTS));
+        DEFAULTS.put("compositeTypes", "200");
+        DEFAULTS.put("replay", join(ReplayBenchmark.VARIANTS));
+        DEFAULTS.put("replayEntries", "1000000");
+        DEFAULTS.put("out", "");
+        // Set in the JVMs forked for the CallBenchmark, the RecordingBenchmark, the
+        // LatencyBenchmark, the CompositeBenchmark (which also gets the directory of its
+        // classes) and the ReplayBenchmark
+        DEFAULTS.put("fork", "");
+        DEFAULTS.put("classes", "");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> parameters = new LinkedHashMap<String, String>(DEFAULTS);
+        List<String> processorOptions = new ArrayList<String>();
+
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+
+            if (arg.startsWith("-A")) {
+                processorOptions.add(arg);
+            }
+            else if (equals < 0 || !DEFAULTS.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown parameter " + arg + ", expected one of " + DEFAULTS.keySet());
+            }
+            else {
+                parameters.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+
+        int iterations = Integer.parseInt(parameters.get("iterations"));
+        long callMillis = Long.parseLong(parameters.get("callMillis"));
+
+        if (!parameters.get("fork").isEmpty()) {
+            // A forked JVM measures a single implementation, and gives its results back on
+            // the standard output: fork=calls/generated, fork=recording/counting/64...
+            String[] fork = parameters.get("fork").split("/");
+            Json json = new Json();
+
+            if ("recording".equals(fork[0])) {
+                new RecordingBenchmark(fork[1], Integer.parseInt(fork[2])).run(callMillis, callMillis, iterations, json);
+            }
+            else if ("latency".equals(fork[0])) {
+                new LatencyBenchmark(fork[1]).run(callMillis, callMillis, iterations, json);
+            }
+            else if ("composite".equals(fork[0])) {
+                new CompositeBenchmark(fork[1], Integer.parseInt(fork[2]), Paths.get(parameters.get("classes")))
+                        .run(iterations, json);
+            }
+            else if ("replay".equals(fork[0])) {
+                new ReplayBenchmark(fork[1], Integer.parseInt(fork[2])).run(callMillis, callMillis, iterations, json);
+            }
+            else {
+                new CallBenchmark(fork[1]).run(callMillis, callMillis, iterations, json);
+            }
+
+            System.out.println(json);
+            return;
+        }
+
+        Json json = new Json();
+        json.beginObject()
+                .field("java", System.getProperty("java.version"))
+                .field("vm", System.getProperty("java.vm.name"));
+
+        json.name("processor").beginArray();
+        for (String methods : split(parameters.get("methods"))) {
+            for (String genericDepth : split(parameters.get("genericDepth"))) {
+                for (String hierarchyDepth : split(parameters.get("hierarchyDepth"))) {
+                    for (String types : split(parameters.get("types"))) {
+                        new ProcessorBenchmark(Integer.parseInt(methods), Integer.parseInt(genericDepth),
+                                Integer.parseInt(hierarchyDepth), Integer.parseInt(types), processorOptions)
+                                .run(Integer.parseInt(parameters.get("warmups")), iterations, json);
+                    }
+                }
+            }
+        }
+        json.endArray();
+
+        json.name("calls").beginArray();
+        if (!"none".equals(parameters.get("calls"))) {
+            for (String implementation : split(parameters.get("calls"))) {
+                json.raw(fork("calls/" + implementation, iterations, callMillis));
+            }
+        }
+        json.endArray();
+
+        json.name("recording").beginArray();
+        if (!"none".equals(parameters.get("recording"))) {
+            for (String variant : split(parameters.get("recording"))) {
+                for (String threads : split(parameters.get("recordThreads"))) {
+                    json.raw(fork("recording/" + variant + "/" + threads, iterations, callMillis));
+                }
+            }
+        }
+        json.endArray();
+
+        json.name("latency").beginArray();
+        if (!"none".equals(parameters.get("latency"))) {
+            for (String variant : split(parameters.get("latency"))) {
+                json.raw(fork("latency/" + variant, iterations, callMillis));
+            }
+        }
+        json.endArray();
+
+        json.name("composite").beginArray();
+        if (!"none".equals(parameters.get("composite"))) {
+            String types = parameters.get("compositeTypes");
+            Path classes = CompositeBenchmark.compile(Integer.parseInt(types));
+
+            try {
+                for (String variant : split(parameters.get("composite"))) {
+                    json.raw(fork("composite/" + variant + "/" + types, iterations, callMillis, "classes=" + classes));
+                }
+            }
+            finally {
+                CompositeBenchmark.delete(classes);
+            }
+        }
+        json.endArray();
+
+        json.name("replay").beginArray();
+        if (!"none".equals(parameters.get("replay"))) {
+            for (String variant : split(parameters.get("replay"))) {
+                json.raw(fork("replay/" + variant + "/" + parameters.get("replayEntries"), iterations, callMillis));
+            }
+        }
+        json.endArray();
+
+        json.endObject();
+
+        if (parameters.get("out").isEmpty()) {
+            System.out.println(json);
+        }
+        else {
+            Files.write(Paths.get(parameters.get("out")), (json + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or 0 if the JVM does not
+     * count them (only HotSpot and its forks do)
+     */
+    static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    /**
+     * Runs a benchmark in a new JVM, with the same class path.
+     *
+     * @return the JSON results of the forked JVM
+     */
+    private static String fork(String benchmark, int iterations, long callMillis, String... parameters)
+            throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<String> command = new ArrayList<String>(Arrays.asList(java,
+                "-cp", System.getProperty("java.class.path"),
+                Benchmarks.class.getName(),
+                "fork=" + benchmark,
+                "iterations=" + iterations,
+                "callMillis=" + callMillis));
+        command.addAll(Arrays.asList(parameters));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = readFully(process.getInputStream());
+
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("The benchmark " + benchmark + " failed: " + output);
+        }
+
+        return output;
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> split(String list) {
+        return Arrays.asList(list.split(","));
+    }
+
+    private static String join(String[] values) {
+        StringBuilder builder = new StringBuilder();
+
+        for (String value : values) {
+            builder.append(builder.length() > 0 ? "," : "").append(value);
+        }
+
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.test.autostub.bench;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import com.test.autostub.Stubs;
+
+/**
+ * Measures the throughput of calls to a stub of CallTarget, and what each call allocates,
+ * for every way of getting a stub: generated by the processor, created by Stubs at runtime,
+ * or a java.lang.reflect.Proxy answering default values.
+ *
+ * Each implementation has to be measured in its own JVM: once the JIT has seen several
+ * implementations at a call site, it cannot inline any of them anymore, and the results
+ * would depend on the order of the runs.
+ *
+ * A stub answering constants is inlined by the JIT, and what is left of its calls is little
+ * more than a type check: the numbers of generated stubs and of Stubs say that they cost
+ * nothing once inlined, those of the Proxy what the handler and the boxing cost.
+ */
+class CallBenchmark {
+
+    static final String[] IMPLEMENTATIONS = { "generated", "stubs", "proxy" };
+
+    // The calls of an operation
+    private static final int CALLS_PER_OPERATION = 6;
+
+    // Read after each run, so that the JIT cannot throw the calls away
+    static volatile long sink;
+
+    private final String implementation;
+
+    CallBenchmark(String implementation) {
+        this.implementation = implementation;
+    }
+
+    void run(long warmupMillis, long measureMillis, int iterations, Json json) {
+        CallTarget target = createTarget(implementation);
+
+        runFor(target, warmupMillis);
+
+        double[] operationsPerSecond = new double[iterations];
+        long operations = 0;
+        long allocatedBytes = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long bytes = Benchmarks.getAllocatedBytes();
+            long start = System.nanoTime();
+            long count = runFor(target, measureMillis);
+            long nanos = System.nanoTime() - start;
+
+            allocatedBytes += Benchmarks.getAllocatedBytes() - bytes;
+            operations += count;
+            operationsPerSecond[i] = count * 1e9 / nanos;
+        }
+
+        Arrays.sort(operationsPerSecond);
+
+        json.beginObject()
+                .field("implementation", implementation)
+                .field("callsPerOperation", CALLS_PER_OPERATION)
+                .field("operationsPerSecond", operationsPerSecond[iterations / 2])
+                .field("minOperationsPerSecond", operationsPerSecond[0])
+                .field("maxOperationsPerSecond", operationsPerSecond[iterations - 1])
+                .field("allocatedBytesPerOperation", (double) allocatedBytes / operations)
+                .endObject();
+    }
+
+    /**
+     * @return how many operations were made in about millis milliseconds
+     */
+    private static long runFor(CallTarget target, long millis) {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long operations = 0;
+        long result = 0;
+
+        // The clock is only read every 1024 operations
+        do {
+            for (int i = 0; i < 1024; i++) {
+                result += operation(target, i);
+            }
+            operations += 1024;
+        } while (System.nanoTime() < deadline);
+
+        sink = result;
+
+        return operations;
+    }
+
+    private static long operation(CallTarget target, int i) {
+        long result = target.sum(i, 1) + target.id(i);
+
+        if (target.isEnabled()) {
+            result++;
+        }
+        if (target.name("key") != null) {
+            result++;
+        }
+        if (target.values(i) != null) {
+            result++;
+        }
+        target.touch(target);
+
+        return result;
+    }
+
+    static CallTarget createTarget(String implementation) {
+        if ("generated".equals(implementation)) {
+            return new StubCallTarget();
+        }
+
+        if ("stubs".equals(implementation)) {
+            return Stubs.create(CallTarget.class);
+        }
+
+        if ("proxy".equals(implementation)) {
+            return (CallTarget) Proxy.newProxyInstance(CallTarget.class.getClassLoader(),
+                    new Class<?>[] { CallTarget.class }, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return getDefaultValue(method.getReturnType());
+                        }
+                    });
+        }
+
+        throw new IllegalArgumentException("Unknown implementation " + implementation
+                + ", expected one of " + Arrays.toString(IMPLEMENTATIONS));
+    }
+
+    private static Object getDefaultValue(Class<?> type) {
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+
+        // Only the return types of CallTarget are needed, objects and void give null
+        return null;
+    }
+
+}
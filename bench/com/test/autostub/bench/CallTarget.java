@@ -0,0 +1,25 @@
+package com.test.autostub.bench;
+import java.util.List;
+
+import com.test.autostub.GenerateStub;
+
+/**
+ * The interface whose implementations are called by the CallBenchmark. Its stub,
+ * StubCallTarget, is generated when the benchmarks are compiled.
+ */
+@GenerateStub
+public interface CallTarget {
+
+    int sum(int a, int b);
+
+    long id(long seed);
+
+    boolean isEnabled();
+
+    String name(String key);
+
+    List<String> values(int count);
+
+    void touch(Object value);
+
+}
@@ -0,0 +1,10 @@
+package com.test.autostub.bench;
+import com.test.autostub.GenerateStub;
+
+/**
+ * CallTarget, stubbed by a stub capturing its last calls with their arguments
+ * (StubCapturedTarget), for the RecordingBenchmark.
+ */
+@GenerateStub(captureArguments = 1024)
+public interface CapturedTarget extends CallTarget {
+}
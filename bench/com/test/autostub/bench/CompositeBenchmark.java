@@ -0,0 +1,192 @@
+package com.test.autostub.bench;
+import java.io.IOException;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import com.test.autostub.GenerateStubProcessor;
+
+/**
+ * Measures what composite stubs save when a JVM starts. Synthetic interfaces are stubbed
+ * twice, compiled once to a temporary directory:
+ *  - "separate": each interface by its own stub;
+ *  - "composite": every interface by a single composite stub.
+ *
+ * Each variant runs in its own JVM, where every iteration loads and creates the stubs
+ * through a new class loader: the classes loaded, the metaspace they take, and the time it
+ * takes. The first iteration is the cold start, the others see a warm JVM.
+ */
+class CompositeBenchmark {
+
+    static final String[] VARIANTS = { "separate", "composite" };
+
+    private static final String PACKAGE = "bench.composite";
+
+    private static final String COMPOSITE_STUB = "CompositeStub";
+
+    // The methods of each interface, besides the ones every interface has
+    private static final int METHODS = 10;
+
+    private final String variant;
+
+    private final int types;
+
+    private final Path directory;
+
+    CompositeBenchmark(String variant, int types, Path directory) {
+        this.variant = variant;
+        this.types = types;
+        this.directory = directory;
+    }
+
+    /**
+     * Compiles the interfaces and both kinds of stubs.
+     *
+     * @return the directory of the classes, to be deleted once done
+     */
+    static Path compile(int types) throws IOException {
+        Path directory = Files.createTempDirectory("generatestub-composite");
+        List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+
+        for (int type = 0; type < types; type++) {
+            StringBuilder source = new StringBuilder();
+            source.append("package ").append(PACKAGE).append(";\n\n");
+            source.append("public interface Service").append(type).append(" {\n");
+            // Merged into a single method of the composite stub
+            source.append("    String name();\n");
+            source.append("    void close() throws java.io.IOException;\n");
+
+            for (int i = 0; i < METHODS; i++) {
+                source.append("    java.util.List<String> service").append(type).append('_').append(i).append("(int count);\n");
+            }
+            source.append("}\n");
+
+            sources.add(InMemoryFileManager.source(PACKAGE + ".Service" + type, source.toString()));
+        }
+
+        sources.add(InMemoryFileManager.source(PACKAGE + ".Separate", "package " + PACKAGE + ";\n\n"
+                + "@com.test.autostub.GenerateStub(toStub = \"" + PACKAGE + "\")\nclass Separate {}\n"));
+        sources.add(InMemoryFileManager.source(PACKAGE + ".Composite", "package " + PACKAGE + ";\n\n"
+                + "@com.test.autostub.GenerateStub(toStub = \"" + PACKAGE + "\", composite = \"" + COMPOSITE_STUB
+                + "\")\nclass Composite {}\n"));
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        List<String> options = Arrays.asList("-d", directory.toString(), "-classpath", System.getProperty("java.class.path"),
+                "-Xlint:-options");
+
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, sources);
+        task.setProcessors(Collections.singletonList(new GenerateStubProcessor()));
+
+        if (!task.call()) {
+            throw new IllegalStateException("Compilation failed: " + diagnostics.getDiagnostics());
+        }
+
+        return directory;
+    }
+
+    static void delete(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+    void run(int iterations, Json json) throws Exception {
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        MemoryPoolMXBean metaspace = getMetaspace();
+
+        long[] nanos = new long[iterations];
+        long loadedClasses = 0;
+        long metaspaceBytes = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long classes = classLoading.getTotalLoadedClassCount();
+            long used = metaspace != null ? metaspace.getUsage().getUsed() : 0;
+            long start = System.nanoTime();
+
+            URLClassLoader loader = new URLClassLoader(new URL[] { directory.toUri().toURL() },
+                    CompositeBenchmark.class.getClassLoader());
+
+            try {
+                createStubs(loader);
+                nanos[i] = System.nanoTime() - start;
+            }
+            finally {
+                loader.close();
+            }
+
+            // What the cold start loads
+            if (i == 0) {
+                loadedClasses = classLoading.getTotalLoadedClassCount() - classes;
+                metaspaceBytes = metaspace != null ? metaspace.getUsage().getUsed() - used : 0;
+            }
+        }
+
+        long firstNanos = nanos[0];
+        long[] warmNanos = iterations > 1 ? Arrays.copyOfRange(nanos, 1, iterations) : nanos;
+        Arrays.sort(warmNanos);
+
+        json.beginObject()
+                .field("variant", variant)
+                .field("types", types)
+                .field("loadedClasses", loadedClasses)
+                .field("metaspaceBytes", metaspaceBytes)
+                .field("coldNanos", firstNanos)
+                .field("warmNanos", warmNanos[warmNanos.length / 2])
+                .endObject();
+    }
+
+    private void createStubs(ClassLoader loader) throws Exception {
+        if ("composite".equals(variant)) {
+            Class.forName(PACKAGE + "." + COMPOSITE_STUB, true, loader).getConstructor().newInstance();
+            return;
+        }
+
+        if (!"separate".equals(variant)) {
+            throw new IllegalArgumentException("Unknown variant " + variant + ", expected one of " + Arrays.toString(VARIANTS));
+        }
+
+        for (int type = 0; type < types; type++) {
+            Class.forName(PACKAGE + ".StubService" + type, true, loader).getConstructor().newInstance();
+        }
+    }
+
+    private static MemoryPoolMXBean getMetaspace() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                return pool;
+            }
+        }
+
+        return null;
+    }
+
+}
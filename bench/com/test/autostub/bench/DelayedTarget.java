@@ -0,0 +1,10 @@
+package com.test.autostub.bench;
+import com.test.autostub.GenerateStub;
+
+/**
+ * CallTarget, stubbed by a stub with a latency of zero (StubDelayedTarget), for the
+ * LatencyBenchmark: its calls cost what the injection costs, without waiting.
+ */
+@GenerateStub(latency = "fixed:0ns")
+public interface DelayedTarget extends CallTarget {
+}
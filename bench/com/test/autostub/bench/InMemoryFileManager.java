@@ -0,0 +1,151 @@
+package com.test.autostub.bench;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * Keeps everything javac writes (generated sources and class files) in memory, so that
+ * benchmarks measure the compiler and the processor, not the disk. The checks of test/
+ * compile their inputs through it as well, and read back what was written.
+ */
+public class InMemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+    private final Map<String, ByteArrayOutputStream> outputs = new LinkedHashMap<String, ByteArrayOutputStream>();
+
+    // The kind of each output, by key: resources have no extension to tell them apart
+    private final Map<String, Kind> kinds = new LinkedHashMap<String, Kind>();
+
+    public InMemoryFileManager(StandardJavaFileManager fileManager) {
+        super(fileManager);
+    }
+
+    /**
+     * @return a source file which is never on the disk
+     */
+    public static JavaFileObject source(String className, final String content) {
+        URI uri = URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension);
+
+        return new SimpleJavaFileObject(uri, Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return content;
+            }
+        };
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, final Kind kind, FileObject sibling) {
+        final String key = getKey(location, className, kind);
+        URI uri = URI.create("mem:///" + location.getName() + "/" + className.replace('.', '/') + kind.extension);
+
+        return new SimpleJavaFileObject(uri, kind) {
+            @Override
+            public OutputStream openOutputStream() {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                outputs.put(key, out);
+                kinds.put(key, kind);
+
+                return out;
+            }
+
+            // Generated sources are read back by javac, to be compiled in the next round
+            @Override
+            public InputStream openInputStream() throws IOException {
+                ByteArrayOutputStream out = outputs.get(key);
+
+                if (out == null) {
+                    throw new FileNotFoundException(toUri().toString());
+                }
+
+                return new ByteArrayInputStream(out.toByteArray());
+            }
+
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+                return new String(openInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) {
+        String className = (packageName.isEmpty() ? "" : packageName + ".") + relativeName;
+
+        return getJavaFileForOutput(location, className, Kind.OTHER, sibling);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        return a.toUri().equals(b.toUri());
+    }
+
+    private static String getKey(Location location, String className, Kind kind) {
+        return location.getName() + ":" + className + kind.extension;
+    }
+
+    /**
+     * @return what was written in a location under a name (the binary name of a class or a
+     * source, the path of a resource), or null if nothing was
+     */
+    public byte[] getOutput(Location location, String className, Kind kind) {
+        ByteArrayOutputStream out = outputs.get(getKey(location, className, kind));
+
+        return out != null ? out.toByteArray() : null;
+    }
+
+    /**
+     * @return the names of the files of a kind written in a location, in the order they were
+     * written
+     */
+    public List<String> getOutputNames(Location location, Kind kind) {
+        List<String> names = new ArrayList<String>();
+
+        for (Map.Entry<String, Kind> output : kinds.entrySet()) {
+            if (output.getValue() == kind && output.getKey().startsWith(location.getName() + ":")) {
+                String name = output.getKey().substring(location.getName().length() + 1);
+                names.add(name.substring(0, name.length() - kind.extension.length()));
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * @return how many files were written in a location, whose simple name starts with prefix
+     */
+    int countOutputs(JavaFileManager.Location location, String prefix) {
+        int count = 0;
+
+        for (String key : outputs.keySet()) {
+            if (!key.startsWith(location.getName() + ":")) {
+                continue;
+            }
+
+            String className = key.substring(key.indexOf(':') + 1);
+
+            if (className.substring(className.lastIndexOf('.', className.lastIndexOf('.') - 1) + 1).startsWith(prefix)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.test.autostub.bench;
+import java.util.List;
+
+/**
+ * Writes the results of the benchmarks as JSON, with one value per line, so that they can
+ * be diffed between releases.
+ */
+class Json {
+
+    private final StringBuilder builder = new StringBuilder();
+
+    private int depth = 0;
+
+    // Whether the next value is the first of its object or array
+    private boolean first = true;
+
+    // Whether a name was just written, so that the value goes on the same line
+    private boolean named = false;
+
+    Json beginObject() {
+        return open('{');
+    }
+
+    Json endObject() {
+        return close('}');
+    }
+
+    Json beginArray() {
+        return open('[');
+    }
+
+    Json endArray() {
+        return close(']');
+    }
+
+    Json name(String name) {
+        newValue();
+        appendString(name);
+        builder.append(": ");
+        named = true;
+
+        return this;
+    }
+
+    Json field(String name, long value) {
+        name(name);
+        return value(value);
+    }
+
+    Json field(String name, double value) {
+        name(name);
+        return value(value);
+    }
+
+    Json field(String name, String value) {
+        name(name);
+        return value(value);
+    }
+
+    Json field(String name, List<String> values) {
+        name(name);
+        beginArray();
+
+        for (String value : values) {
+            value(value);
+        }
+
+        return endArray();
+    }
+
+    Json value(long value) {
+        newValue();
+        builder.append(value);
+
+        return this;
+    }
+
+    Json value(double value) {
+        newValue();
+        // JSON has no NaN nor infinity
+        builder.append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value));
+
+        return this;
+    }
+
+    Json value(String value) {
+        newValue();
+        appendString(value);
+
+        return this;
+    }
+
+    /**
+     * Adds a JSON document written elsewhere (by a forked JVM) as a value.
+     */
+    Json raw(String json) {
+        newValue();
+        builder.append(json.trim().replace("\n", "\n" + indentation(depth)));
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+
+    private Json open(char bracket) {
+        newValue();
+        builder.append(bracket);
+        depth++;
+        first = true;
+
+        return this;
+    }
+
+    private Json close(char bracket) {
+        depth--;
+
+        if (!first) {
+            builder.append('\n').append(indentation(depth));
+        }
+
+        builder.append(bracket);
+        first = false;
+
+        return this;
+    }
+
+    private void newValue() {
+        if (named) {
+            named = false;
+            return;
+        }
+
+        if (!first) {
+            builder.append(',');
+        }
+
+        if (depth > 0) {
+            builder.append('\n').append(indentation(depth));
+        }
+
+        first = false;
+    }
+
+    private void appendString(String value) {
+        builder.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            }
+            else if (c < ' ') {
+                builder.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                builder.append(c);
+            }
+        }
+
+        builder.append('"');
+    }
+
+    private static String indentation(int depth) {
+        StringBuilder indentation = new StringBuilder();
+
+        for (int i = 0; i < depth; i++) {
+            indentation.append("  ");
+        }
+
+        return indentation.toString();
+    }
+
+}
@@ -0,0 +1,172 @@
+package com.test.autostub.bench;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com.test.autostub.Latency;
+
+/**
+ * Measures what injecting latencies costs, besides the latencies themselves:
+ *  - "plain" and "injected": the time of a call to a stub without latency, and to a stub
+ *    whose latency is zero, which draws it and returns at once. The difference is the
+ *    cost of the injection on every call;
+ *  - "fixed", "uniform", "lognormal" and "percentiles": the time it takes to draw a
+ *    latency of about a millisecond from the distribution, and by how much the waits
+ *    overshoot what was drawn (the wake-up latency of the scheduler and the timer slack).
+ *
+ * As in the CallBenchmark, each variant runs in its own JVM.
+ */
+class LatencyBenchmark {
+
+    static final String[] VARIANTS = { "plain", "injected", "fixed", "uniform", "lognormal", "percentiles" };
+
+    private final String variant;
+
+    LatencyBenchmark(String variant) {
+        this.variant = variant;
+    }
+
+    void run(long warmupMillis, long measureMillis, int iterations, Json json) throws IOException {
+        if ("plain".equals(variant) || "injected".equals(variant)) {
+            runCalls("plain".equals(variant) ? new StubCallTarget() : new StubDelayedTarget(), warmupMillis,
+                    measureMillis, iterations, json);
+        }
+        else {
+            runDistribution(createLatency(variant), warmupMillis, measureMillis, iterations, json);
+        }
+    }
+
+    private void runCalls(CallTarget target, long warmupMillis, long measureMillis, int iterations, Json json) {
+        callFor(target, warmupMillis);
+
+        double[] nanosPerCall = new double[iterations];
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long calls = callFor(target, measureMillis);
+
+            nanosPerCall[i] = (double) (System.nanoTime() - start) / calls;
+        }
+
+        Arrays.sort(nanosPerCall);
+
+        json.beginObject()
+                .field("variant", variant)
+                .field("nanosPerCall", nanosPerCall[iterations / 2])
+                .field("minNanosPerCall", nanosPerCall[0])
+                .field("maxNanosPerCall", nanosPerCall[iterations - 1])
+                .endObject();
+    }
+
+    /**
+     * @return the calls made in about millis milliseconds
+     */
+    private static long callFor(CallTarget target, long millis) {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long count = 0;
+        long result = 0;
+
+        // The clock is only read every 1024 calls
+        do {
+            for (int i = 0; i < 1024; i++) {
+                result += target.sum(i, 1);
+            }
+            count += 1024;
+        } while (System.nanoTime() < deadline);
+
+        CallBenchmark.sink = result;
+
+        return count;
+    }
+
+    private void runDistribution(Latency latency, long warmupMillis, long measureMillis, int iterations, Json json) {
+        sampleFor(latency, warmupMillis);
+
+        double[] nanosPerSample = new double[iterations];
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            long samples = sampleFor(latency, measureMillis);
+
+            nanosPerSample[i] = (double) (System.nanoTime() - start) / samples;
+        }
+
+        Arrays.sort(nanosPerSample);
+
+        // Every wait lasts about a millisecond: the overshoots of a whole run are kept
+        long[] overshoots = new long[(int) Math.max(16, measureMillis * iterations)];
+        int waits = 0;
+        long deadline = System.nanoTime() + measureMillis * iterations * 1000000L;
+
+        while (waits < overshoots.length && System.nanoTime() < deadline) {
+            long nanos = latency.sampleNanos();
+            long start = System.nanoTime();
+
+            Latency.park(nanos);
+            overshoots[waits++] = System.nanoTime() - start - nanos;
+        }
+
+        Arrays.sort(overshoots, 0, waits);
+
+        json.beginObject()
+                .field("variant", variant)
+                .field("latency", latency.toString())
+                .field("nanosPerSample", nanosPerSample[iterations / 2])
+                .field("minNanosPerSample", nanosPerSample[0])
+                .field("maxNanosPerSample", nanosPerSample[iterations - 1])
+                .field("waits", waits)
+                .field("overshootNanos", overshoots[waits / 2])
+                .field("p99OvershootNanos", overshoots[(int) (waits * 0.99)])
+                .field("maxOvershootNanos", overshoots[waits - 1])
+                .endObject();
+    }
+
+    /**
+     * @return the latencies drawn in about millis milliseconds
+     */
+    private static long sampleFor(Latency latency, long millis) {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long count = 0;
+        long result = 0;
+
+        do {
+            for (int i = 0; i < 1024; i++) {
+                result += latency.sampleNanos();
+            }
+            count += 1024;
+        } while (System.nanoTime() < deadline);
+
+        CallBenchmark.sink = result;
+
+        return count;
+    }
+
+    private static Latency createLatency(String variant) throws IOException {
+        if ("fixed".equals(variant)) {
+            return Latency.parse("fixed:1ms", LatencyBenchmark.class);
+        }
+
+        if ("uniform".equals(variant)) {
+            return Latency.parse("uniform:500us,1500us", LatencyBenchmark.class);
+        }
+
+        if ("lognormal".equals(variant)) {
+            return Latency.parse("lognormal:1ms,3ms", LatencyBenchmark.class);
+        }
+
+        if ("percentiles".equals(variant)) {
+            // A table of the size of what is usually measured
+            File table = File.createTempFile("latency", ".txt");
+            table.deleteOnExit();
+            Files.write(table.toPath(), ("10 500us\n25 700us\n50 1ms\n75 1.3ms\n90 1.8ms\n95 2.2ms\n99 3ms\n99.9 5ms\n")
+                    .getBytes(StandardCharsets.UTF_8));
+
+            return Latency.parse("percentiles:" + table.getPath(), LatencyBenchmark.class);
+        }
+
+        throw new IllegalArgumentException("Unknown variant " + variant + ", expected one of " + Arrays.toString(VARIANTS));
+    }
+
+}
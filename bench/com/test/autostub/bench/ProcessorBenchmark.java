@@ -0,0 +1,291 @@
+package com.test.autostub.bench;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.test.autostub.GenerateStubProcessor;
+
+/**
+ * Compiles synthetic interfaces annotated with @GenerateStub in memory, and measures the
+ * GenerateStubProcessor: the time spent in each of its rounds, and the bytes it allocates
+ * per stub.
+ *
+ * The interfaces are shaped by four parameters: the number of methods of each interface,
+ * how deeply the generic types of their signatures are nested, how many interfaces they
+ * extend in a chain, and how many of them are annotated.
+ */
+class ProcessorBenchmark {
+
+    private static final String PACKAGE = "bench.synthetic";
+
+    private final int methods;
+
+    private final int genericDepth;
+
+    private final int hierarchyDepth;
+
+    private final int types;
+
+    // Passed to javac as is (-Ageneratestub.emit=class...)
+    private final List<String> processorOptions;
+
+    ProcessorBenchmark(int methods, int genericDepth, int hierarchyDepth, int types, List<String> processorOptions) {
+        this.methods = methods;
+        this.genericDepth = genericDepth;
+        this.hierarchyDepth = hierarchyDepth;
+        this.types = types;
+        this.processorOptions = processorOptions;
+    }
+
+    /**
+     * Compiles the interfaces warmups + iterations times, and writes the averages of the
+     * measured iterations.
+     */
+    void run(int warmups, int iterations, Json json) {
+        List<JavaFileObject> sources = createSources();
+
+        for (int i = 0; i < warmups; i++) {
+            compile(sources);
+        }
+
+        List<long[]> roundNanos = new ArrayList<long[]>();
+        List<long[]> roundBytes = new ArrayList<long[]>();
+        long compileNanos = 0;
+        long processorBytes = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            TimedProcessor processor = compile(sources);
+            compileNanos += System.nanoTime() - start;
+
+            for (int round = 0; round < processor.getRoundCount(); round++) {
+                if (roundNanos.size() <= round) {
+                    roundNanos.add(new long[1]);
+                    roundBytes.add(new long[1]);
+                }
+
+                roundNanos.get(round)[0] += processor.getRoundNanos(round);
+                roundBytes.get(round)[0] += processor.getRoundBytes(round);
+                processorBytes += processor.getRoundBytes(round);
+            }
+        }
+
+        json.beginObject()
+                .field("methods", methods)
+                .field("genericDepth", genericDepth)
+                .field("hierarchyDepth", hierarchyDepth)
+                .field("types", types)
+                .field("options", processorOptions)
+                .field("iterations", iterations)
+                .field("compileNanos", compileNanos / iterations);
+
+        json.name("rounds").beginArray();
+        for (int round = 0; round < roundNanos.size(); round++) {
+            json.beginObject()
+                    .field("round", round + 1)
+                    .field("nanos", roundNanos.get(round)[0] / iterations)
+                    .field("allocatedBytes", roundBytes.get(round)[0] / iterations)
+                    .endObject();
+        }
+        json.endArray();
+
+        // Allocations are only counted on the compiler thread: with generatestub.parallelism,
+        // what the pool allocates is left out.
+        json.field("allocatedBytesPerStub", processorBytes / iterations / types)
+                .endObject();
+    }
+
+    private TimedProcessor compile(List<JavaFileObject> sources) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        InMemoryFileManager fileManager = new InMemoryFileManager(compiler.getStandardFileManager(diagnostics, null, null));
+
+        List<String> options = new ArrayList<String>(processorOptions);
+        options.add("-Xlint:-options");
+
+        TimedProcessor processor = new TimedProcessor(new GenerateStubProcessor());
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, sources);
+        task.setProcessors(Collections.singletonList(processor));
+
+        if (!task.call()) {
+            throw new IllegalStateException("Compilation failed: " + diagnostics.getDiagnostics());
+        }
+
+        int stubs = fileManager.countOutputs(StandardLocation.SOURCE_OUTPUT, "Stub")
+                + fileManager.countOutputs(StandardLocation.CLASS_OUTPUT, "Stub");
+
+        // In source mode, each stub is found twice: generated, then compiled
+        if (stubs != types && stubs != 2 * types) {
+            throw new IllegalStateException(types + " stubs expected, " + stubs + " written");
+        }
+
+        return processor;
+    }
+
+    List<JavaFileObject> createSources() {
+        List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+
+        // The chain of interfaces every annotated one extends: Level0 <- Level1 <- ...
+        for (int level = 0; level < hierarchyDepth; level++) {
+            StringBuilder source = new StringBuilder();
+            source.append("package ").append(PACKAGE).append(";\n\n");
+            source.append("public interface Level").append(level);
+            if (level > 0) {
+                source.append(" extends Level").append(level - 1);
+            }
+            source.append(" {\n");
+            appendMethods(source, "level" + level + "_");
+            source.append("}\n");
+
+            sources.add(InMemoryFileManager.source(PACKAGE + ".Level" + level, source.toString()));
+        }
+
+        for (int type = 0; type < types; type++) {
+            StringBuilder source = new StringBuilder();
+            source.append("package ").append(PACKAGE).append(";\n\n");
+            source.append("@com.test.autostub.GenerateStub\n");
+            source.append("public interface Service").append(type);
+            if (hierarchyDepth > 0) {
+                source.append(" extends Level").append(hierarchyDepth - 1);
+            }
+            source.append(" {\n");
+            appendMethods(source, "service_");
+            source.append("}\n");
+
+            sources.add(InMemoryFileManager.source(PACKAGE + ".Service" + type, source.toString()));
+        }
+
+        return sources;
+    }
+
+    private void appendMethods(StringBuilder source, String namePrefix) {
+        String genericType = getGenericType(genericDepth);
+
+        for (int i = 0; i < methods; i++) {
+            source.append("    ");
+
+            // Every kind of default value, and some generic types
+            switch (i % 6) {
+                case 0:
+                    source.append("void");
+                    break;
+                case 1:
+                    source.append("int");
+                    break;
+                case 2:
+                    source.append("long");
+                    break;
+                case 3:
+                    source.append("boolean");
+                    break;
+                case 4:
+                    source.append("double");
+                    break;
+                default:
+                    source.append(genericType);
+                    break;
+            }
+
+            source.append(' ').append(namePrefix).append(i)
+                    .append("(int count, ").append(genericType).append(" values)")
+                    .append(i % 3 == 0 ? " throws java.io.IOException" : "")
+                    .append(";\n");
+        }
+    }
+
+    private static String getGenericType(int depth) {
+        if (depth == 0) {
+            return "String";
+        }
+
+        String nested = getGenericType(depth - 1);
+
+        return depth % 2 == 0
+                ? "java.util.List<" + nested + ">"
+                : "java.util.Map<String, " + nested + ">";
+    }
+
+    /**
+     * Wraps the processor to time each of its rounds.
+     */
+    private static class TimedProcessor implements Processor {
+
+        private final Processor processor;
+
+        private final List<Long> roundNanos = new ArrayList<Long>();
+
+        private final List<Long> roundBytes = new ArrayList<Long>();
+
+        TimedProcessor(Processor processor) {
+            this.processor = processor;
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            long bytes = Benchmarks.getAllocatedBytes();
+            long start = System.nanoTime();
+
+            boolean claimed = processor.process(annotations, roundEnv);
+
+            roundNanos.add(System.nanoTime() - start);
+            roundBytes.add(Benchmarks.getAllocatedBytes() - bytes);
+
+            return claimed;
+        }
+
+        int getRoundCount() {
+            return roundNanos.size();
+        }
+
+        long getRoundNanos(int round) {
+            return roundNanos.get(round);
+        }
+
+        long getRoundBytes(int round) {
+            return roundBytes.get(round);
+        }
+
+        @Override
+        public Set<String> getSupportedOptions() {
+            return processor.getSupportedOptions();
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return processor.getSupportedAnnotationTypes();
+        }
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return processor.getSupportedSourceVersion();
+        }
+
+        @Override
+        public void init(ProcessingEnvironment processingEnv) {
+            processor.init(processingEnv);
+        }
+
+        @Override
+        public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation,
+                ExecutableElement member, String userText) {
+            return processor.getCompletions(element, annotation, member, userText);
+        }
+    }
+
+}
@@ -0,0 +1,10 @@
+package com.test.autostub.bench;
+import com.test.autostub.GenerateStub;
+
+/**
+ * CallTarget, stubbed by a stub counting its calls (StubRecordedTarget), for the
+ * RecordingBenchmark.
+ */
+@GenerateStub(recordCalls = true)
+public interface RecordedTarget extends CallTarget {
+}
@@ -0,0 +1,139 @@
+package com.test.autostub.bench;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures what recording costs a stub called from many threads at once: the processor
+ * time a call takes, and what it allocates.
+ *
+ * Every thread calls sum(int, int), a method taking primitives only: counting its calls
+ * must not box anything. With "plain", the stub does not record anything, which gives the
+ * cost of the call itself. As in the CallBenchmark, each variant runs in its own JVM.
+ *
+ * With more threads than cores, threads spend most of their time waiting for a core: the
+ * time of a call is counted on the cores actually busy, not on every thread.
+ */
+class RecordingBenchmark {
+
+    static final String[] VARIANTS = { "plain", "counting", "capturing" };
+
+    private final String variant;
+
+    private final int threads;
+
+    RecordingBenchmark(String variant, int threads) {
+        this.variant = variant;
+        this.threads = threads;
+    }
+
+    void run(long warmupMillis, long measureMillis, int iterations, Json json) throws InterruptedException {
+        CallTarget target = createTarget(variant);
+
+        runFor(target, warmupMillis);
+
+        int busyCores = Math.min(threads, Runtime.getRuntime().availableProcessors());
+        double[] nanosPerCall = new double[iterations];
+        long calls = 0;
+        long allocatedBytes = 0;
+
+        for (int i = 0; i < iterations; i++) {
+            long[] result = runFor(target, measureMillis);
+
+            calls += result[0];
+            allocatedBytes += result[2];
+            nanosPerCall[i] = (double) result[1] * busyCores / result[0];
+        }
+
+        Arrays.sort(nanosPerCall);
+
+        json.beginObject()
+                .field("variant", variant)
+                .field("threads", threads)
+                .field("cores", busyCores)
+                .field("nanosPerCall", nanosPerCall[iterations / 2])
+                .field("minNanosPerCall", nanosPerCall[0])
+                .field("maxNanosPerCall", nanosPerCall[iterations - 1])
+                .field("allocatedBytesPerCall", (double) allocatedBytes / calls)
+                .endObject();
+    }
+
+    /**
+     * @return the calls made by every thread in about millis milliseconds, how long they
+     * took, and the bytes the threads allocated
+     */
+    private long[] runFor(final CallTarget target, final long millis) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] calls = new long[threads];
+        final long[] bytes = new long[threads];
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+
+                    long allocated = Benchmarks.getAllocatedBytes();
+                    long deadline = System.nanoTime() + millis * 1000000L;
+                    long count = 0;
+                    long result = 0;
+
+                    // The clock is only read every 1024 calls
+                    do {
+                        for (int i = 0; i < 1024; i++) {
+                            result += target.sum(i, worker);
+                        }
+                        count += 1024;
+                    } while (System.nanoTime() < deadline);
+
+                    CallBenchmark.sink = result;
+                    calls[worker] = count;
+                    bytes[worker] = Benchmarks.getAllocatedBytes() - allocated;
+                }
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long nanos = System.nanoTime() - begin;
+        long totalCalls = 0;
+        long totalBytes = 0;
+
+        for (int t = 0; t < threads; t++) {
+            totalCalls += calls[t];
+            totalBytes += bytes[t];
+        }
+
+        return new long[] { totalCalls, nanos, totalBytes };
+    }
+
+    private static CallTarget createTarget(String variant) {
+        if ("plain".equals(variant)) {
+            return new StubCallTarget();
+        }
+
+        if ("counting".equals(variant)) {
+            return new StubRecordedTarget();
+        }
+
+        if ("capturing".equals(variant)) {
+            return new StubCapturedTarget();
+        }
+
+        throw new IllegalArgumentException("Unknown variant " + variant + ", expected one of " + Arrays.toString(VARIANTS));
+    }
+
+}
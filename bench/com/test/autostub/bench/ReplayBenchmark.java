@@ -0,0 +1,151 @@
+package com.test.autostub.bench;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.test.autostub.ReplayRecorder;
+import com.test.autostub.ReplayStore;
+
+/**
+ * Measures what serving recorded responses costs. The responses of replayEntries calls to a
+ * ReplayTarget are recorded once, then looked up as a replaying stub does:
+ *  - "heap": from a HashMap of boxed keys and responses, as hand-written fakes keep them;
+ *  - "primitive": an int, decoded straight from the mapped file;
+ *  - "string": a String, decoded from the mapped file on its first lookup, then kept.
+ *
+ * Each variant runs in its own JVM, and gives the time and the bytes allocated per lookup,
+ * and what the responses take: on the heap for "heap", in the file for the others.
+ */
+class ReplayBenchmark {
+
+    static final String[] VARIANTS = { "heap", "primitive", "string" };
+
+    private static final long SCORE_SEED = ReplayStore.seed("score(int)");
+
+    private static final long NAME_SEED = ReplayStore.seed("name(int)");
+
+    private final String variant;
+
+    private final int entries;
+
+    ReplayBenchmark(String variant, int entries) {
+        this.variant = variant;
+        this.entries = entries;
+    }
+
+    void run(long warmupMillis, long measureMillis, int iterations, Json json) throws IOException {
+        Path file = Files.createTempFile("generatestub-replay", ".bin");
+
+        try {
+            ReplayRecorder recorder = new ReplayRecorder();
+            ReplayTarget target = recorder.record(ReplayTarget.class, new ReplayTarget() {
+
+                @Override
+                public int score(int id) {
+                    return id * 31;
+                }
+
+                @Override
+                public String name(int id) {
+                    return "user-" + id;
+                }
+
+            });
+
+            Map<Long, Object> heap = new HashMap<Long, Object>();
+            System.gc();
+            long heapBytes = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+
+            for (int id = 0; id < entries; id++) {
+                if ("heap".equals(variant)) {
+                    heap.put(ReplayStore.hash(SCORE_SEED, id), id * 31);
+                }
+                else if ("primitive".equals(variant)) {
+                    target.score(id);
+                }
+                else if ("string".equals(variant)) {
+                    target.name(id);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown variant " + variant + ", expected one of "
+                            + Arrays.toString(VARIANTS));
+                }
+            }
+
+            recorder.write(file);
+            ReplayStore store = ReplayStore.open(file.toString(), ReplayBenchmark.class);
+            System.gc();
+            heapBytes = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() - heapBytes;
+
+            lookupFor(store, heap, warmupMillis);
+
+            double[] nanosPerLookup = new double[iterations];
+            long allocatedBytes = Benchmarks.getAllocatedBytes();
+            long lookups = 0;
+
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                long count = lookupFor(store, heap, measureMillis);
+
+                nanosPerLookup[i] = (double) (System.nanoTime() - start) / count;
+                lookups += count;
+            }
+
+            allocatedBytes = Benchmarks.getAllocatedBytes() - allocatedBytes;
+            Arrays.sort(nanosPerLookup);
+
+            json.beginObject()
+                    .field("variant", variant)
+                    .field("entries", entries)
+                    .field("fileBytes", "heap".equals(variant) ? 0 : Files.size(file))
+                    .field("heapBytes", "heap".equals(variant) ? heapBytes : 0)
+                    .field("nanosPerLookup", nanosPerLookup[iterations / 2])
+                    .field("minNanosPerLookup", nanosPerLookup[0])
+                    .field("maxNanosPerLookup", nanosPerLookup[iterations - 1])
+                    .field("bytesPerLookup", (double) allocatedBytes / lookups)
+                    .endObject();
+
+            // Keeps the map reachable until heapBytes is measured
+            CallBenchmark.sink = heap.size();
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * @return the lookups made in about millis milliseconds, over every recorded id
+     */
+    private long lookupFor(ReplayStore store, Map<Long, Object> heap, long millis) {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long count = 0;
+        long result = 0;
+        int id = 0;
+
+        // The clock is only read every 1024 lookups
+        do {
+            for (int i = 0; i < 1024; i++) {
+                if ("heap".equals(variant)) {
+                    result += (Integer) heap.get(ReplayStore.hash(SCORE_SEED, id));
+                }
+                else if ("primitive".equals(variant)) {
+                    result += store.getInt(ReplayStore.hash(SCORE_SEED, id), 0);
+                }
+                else {
+                    result += store.<String>getObject(ReplayStore.hash(NAME_SEED, id), String.class, null).length();
+                }
+
+                id = id + 1 < entries ? id + 1 : 0;
+            }
+            count += 1024;
+        } while (System.nanoTime() < deadline);
+
+        CallBenchmark.sink = result;
+
+        return count;
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.test.autostub.bench;
+
+/**
+ * The interface whose responses the ReplayBenchmark records and replays.
+ */
+public interface ReplayTarget {
+
+    int score(int id);
+
+    String name(int id);
+
+}
@@ -0,0 +1,250 @@
+package com.test.autostub;
+import java.util.List;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Renders types the way class files need them: internal names (com/acme/Outer$Inner),
+ * descriptors of erased types, and generic signatures.
+ *
+ * See docs.oracle.com/javase/specs/jvms/se17/html/jvms-4.html#jvms-4.3 for the descriptors
+ * and jvms-4.7.9.1 for the signatures.
+ */
+class BinaryNames {
+
+    private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+
+    private final Elements elements;
+
+    private final Types types;
+
+    BinaryNames(Elements elements, Types types) {
+        this.elements = elements;
+        this.types = types;
+    }
+
+    String getInternalName(TypeElement element) {
+        return elements.getBinaryName(element).toString().replace('.', '/');
+    }
+
+    /**
+     * @return the descriptor of the erasure of a type (I, [Ljava/lang/String;...)
+     */
+    String getDescriptor(TypeMirror typeMirror) {
+        switch (typeMirror.getKind()) {
+            case BOOLEAN:
+                return "Z";
+            case BYTE:
+                return "B";
+            case CHAR:
+                return "C";
+            case SHORT:
+                return "S";
+            case INT:
+                return "I";
+            case LONG:
+                return "J";
+            case FLOAT:
+                return "F";
+            case DOUBLE:
+                return "D";
+            case VOID:
+                return "V";
+            case ARRAY:
+                return "[" + getDescriptor(((ArrayType) typeMirror).getComponentType());
+            case DECLARED:
+                return "L" + getInternalName((TypeElement) ((DeclaredType) typeMirror).asElement()) + ";";
+            case TYPEVAR:
+                // A type variable is erased to its leftmost bound
+                return getDescriptor(types.erasure(typeMirror));
+            default:
+                return OBJECT_DESCRIPTOR;
+        }
+    }
+
+    /**
+     * @return the descriptor of the erasure of a method type ((ILjava/lang/String;)V...)
+     */
+    String getMethodDescriptor(ExecutableType type) {
+        StringBuilder builder = new StringBuilder("(");
+
+        for (TypeMirror parameterType : type.getParameterTypes()) {
+            builder.append(getDescriptor(parameterType));
+        }
+
+        return builder.append(')').append(getDescriptor(type.getReturnType())).toString();
+    }
+
+    /**
+     * @return the internal name of the erasure of a thrown type
+     */
+    String getThrownInternalName(TypeMirror thrownType) {
+        String descriptor = getDescriptor(thrownType);
+
+        return descriptor.substring(1, descriptor.length() - 1);
+    }
+
+    /**
+     * @return the generic signature of a type (Ljava/util/List&lt;TT;&gt;;...)
+     */
+    String getSignature(TypeMirror typeMirror) {
+        StringBuilder builder = new StringBuilder();
+        appendSignature(builder, typeMirror);
+
+        return builder.toString();
+    }
+
+    /**
+     * @return the Signature attribute of a stub of a generic class or interface, or null if
+     * the target is not generic
+     */
+    String getClassSignature(TypeElement target, boolean targetInterface) {
+        if (target.getTypeParameters().isEmpty()) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        appendTypeParameters(builder, target.getTypeParameters());
+
+        // The stub passes its own type parameters to the target
+        if (targetInterface) {
+            builder.append(OBJECT_DESCRIPTOR);
+        }
+        appendSignature(builder, target.asType());
+
+        return builder.toString();
+    }
+
+    /**
+     * @return the Signature attribute of a method, or null if it does not involve generics
+     */
+    String getMethodSignature(List<? extends TypeParameterElement> typeParameters, ExecutableType type) {
+        StringBuilder builder = new StringBuilder();
+        appendTypeParameters(builder, typeParameters);
+        builder.append('(');
+
+        for (TypeMirror parameterType : type.getParameterTypes()) {
+            appendSignature(builder, parameterType);
+        }
+
+        builder.append(')');
+        appendSignature(builder, type.getReturnType());
+
+        boolean genericThrows = false;
+
+        for (TypeMirror thrownType : type.getThrownTypes()) {
+            genericThrows |= thrownType.getKind() == TypeKind.TYPEVAR;
+        }
+
+        // Thrown types are only part of the signature when one of them is a type variable
+        if (genericThrows) {
+            for (TypeMirror thrownType : type.getThrownTypes()) {
+                builder.append('^');
+                appendSignature(builder, thrownType);
+            }
+        }
+
+        String signature = builder.toString();
+
+        return signature.equals(getMethodDescriptor(type)) ? null : signature;
+    }
+
+    private void appendTypeParameters(StringBuilder builder, List<? extends TypeParameterElement> typeParameters) {
+        if (typeParameters.isEmpty()) {
+            return;
+        }
+
+        builder.append('<');
+
+        for (TypeParameterElement typeParameter : typeParameters) {
+            builder.append(typeParameter.getSimpleName());
+
+            List<? extends TypeMirror> bounds = typeParameter.getBounds();
+
+            for (int i = 0; i < bounds.size(); i++) {
+                TypeMirror bound = bounds.get(i);
+                boolean interfaceBound = bound.getKind() == TypeKind.DECLARED
+                        && ((DeclaredType) bound).asElement().getKind().isInterface();
+
+                // The class bound comes first, after a single colon, and is left empty when
+                // the bounds are all interfaces, which get two.
+                if (i == 0 && interfaceBound) {
+                    builder.append(':');
+                }
+                builder.append(':');
+                appendSignature(builder, bound);
+            }
+        }
+
+        builder.append('>');
+    }
+
+    private void appendSignature(StringBuilder builder, TypeMirror typeMirror) {
+        switch (typeMirror.getKind()) {
+            case ARRAY:
+                builder.append('[');
+                appendSignature(builder, ((ArrayType) typeMirror).getComponentType());
+                break;
+            case TYPEVAR:
+                builder.append('T').append(((TypeVariable) typeMirror).asElement().getSimpleName()).append(';');
+                break;
+            case DECLARED:
+                DeclaredType declaredType = (DeclaredType) typeMirror;
+                TypeMirror enclosingType = declaredType.getEnclosingType();
+
+                if (enclosingType.getKind() == TypeKind.DECLARED
+                        && !((DeclaredType) enclosingType).getTypeArguments().isEmpty()) {
+                    // An inner class of a parameterized type: Lcom/acme/Outer<TT;>.Inner;
+                    String outer = getSignature(enclosingType);
+                    builder.append(outer, 0, outer.length() - 1)
+                            .append('.')
+                            .append(declaredType.asElement().getSimpleName());
+                }
+                else {
+                    builder.append('L').append(getInternalName((TypeElement) declaredType.asElement()));
+                }
+
+                if (!declaredType.getTypeArguments().isEmpty()) {
+                    builder.append('<');
+
+                    for (TypeMirror typeArgument : declaredType.getTypeArguments()) {
+                        appendSignature(builder, typeArgument);
+                    }
+
+                    builder.append('>');
+                }
+
+                builder.append(';');
+                break;
+            case WILDCARD:
+                WildcardType wildcardType = (WildcardType) typeMirror;
+
+                if (wildcardType.getExtendsBound() != null) {
+                    builder.append('+');
+                    appendSignature(builder, wildcardType.getExtendsBound());
+                }
+                else if (wildcardType.getSuperBound() != null) {
+                    builder.append('-');
+                    appendSignature(builder, wildcardType.getSuperBound());
+                }
+                else {
+                    builder.append('*');
+                }
+                break;
+            default:
+                builder.append(getDescriptor(typeMirror));
+                break;
+        }
+    }
+
+}
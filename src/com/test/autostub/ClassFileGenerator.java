@@ -0,0 +1,622 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.lang.model.SourceVersion;
+import javax.lang.model.type.TypeKind;
+
+import com.test.autostub.ClassFileReader.ClassInfo;
+import com.test.autostub.ClassFileReader.MethodInfo;
+import com.test.autostub.SignatureParser.ArrayType;
+import com.test.autostub.SignatureParser.ClassSignature;
+import com.test.autostub.SignatureParser.ClassType;
+import com.test.autostub.SignatureParser.MethodSignature;
+import com.test.autostub.SignatureParser.PrimitiveType;
+import com.test.autostub.SignatureParser.Type;
+import com.test.autostub.SignatureParser.TypeParameter;
+import com.test.autostub.SignatureParser.TypeVariable;
+import com.test.autostub.StubModel.MethodModel;
+
+/**
+ * Takes the StubModel of an interface from its class file, as the processor's Generator
+ * does from javac's model: the StubRenderer and the StubClassEmitter then write it the same
+ * way.
+ *
+ * The methods of the stub are the abstract methods of the interface and of its
+ * superinterfaces, seen from the interface: the type arguments given to generic
+ * superinterfaces are substituted (a Comparator<String> has a compare(String, String)).
+ * The superinterfaces are looked up in the ClassFileIndex.
+ *
+ * A generator keeps no state between models, and can be used from several threads.
+ */
+class ClassFileGenerator {
+
+    // The public methods of java.lang.Object, which interfaces may redeclare (Comparator
+    // does with equals): the stub inherits the real ones
+    private static final Set<String> OBJECT_METHODS = new HashSet<String>(Arrays.asList(
+            "equals(Ljava/lang/Object;)Z", "hashCode()I", "toString()Ljava/lang/String;"));
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private final ClassFileIndex index;
+
+    private final String prefix;
+
+    private final String suffix;
+
+    private final StubOptions options;
+
+    // Whether the models are written as class files, which need descriptors and signatures
+    private final boolean emitClass;
+
+    ClassFileGenerator(ClassFileIndex index, String prefix, String suffix, StubOptions options, boolean emitClass) {
+        this.index = index;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.options = options;
+        this.emitClass = emitClass;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the interface cannot be stubbed, a supertype
+     * being missing for example
+     */
+    StubModel createModel(ClassInfo target) {
+        ClassSignature signature = getClassSignature(target);
+        Map<String, Type> bounds = new HashMap<String, Type>();
+
+        for (TypeParameter typeParameter : signature.getTypeParameters()) {
+            bounds.put(typeParameter.getName(), typeParameter.getErasedBound());
+        }
+
+        // The methods of the interface, by name and erased parameters
+        Map<String, MethodEntry> methodTable = new LinkedHashMap<String, MethodEntry>();
+
+        collectMethods(target, Collections.<String, Type>emptyMap(), bounds, methodTable, new HashSet<String>());
+
+        // Sorted by signature, as the processor does, so that the stub does not depend on
+        // the order of the class file
+        Map<String, MethodModel> methods = new TreeMap<String, MethodModel>();
+        EmptyValues emptyValues = new EmptyValues();
+
+        for (MethodEntry entry : methodTable.values()) {
+            if (isImplementedByDefault(entry)) {
+                continue;
+            }
+
+            MethodModel method = createMethodModel(entry, emptyValues);
+            methods.put(getSignature(method), method);
+        }
+
+        // The stub cannot both implement a method and declare a helper with its signature
+        for (MethodModel method : methods.values()) {
+            if (method.getParameterTypes().isEmpty() && emptyValues.getMethodNames().contains(method.getName())) {
+                throw new IllegalArgumentException("its method " + method.getName() + "() has the signature of a helper of the stub");
+            }
+        }
+
+        String internalName = target.getName();
+        int slash = internalName.lastIndexOf('/');
+        String packageName = slash < 0 ? "" : internalName.substring(0, slash).replace('/', '.');
+        String stubSimpleName = prefix + internalName.substring(slash + 1) + suffix;
+
+        StringBuilder typeParameters = new StringBuilder();
+        StringBuilder typeArguments = new StringBuilder();
+
+        for (TypeParameter typeParameter : signature.getTypeParameters()) {
+            typeParameters.append(typeParameters.length() == 0 ? "<" : ", ");
+            typeParameter.appendSource(typeParameters);
+            typeArguments.append(typeArguments.length() == 0 ? "<" : ", ").append(typeParameter.getName());
+        }
+
+        if (typeParameters.length() > 0) {
+            typeParameters.append('>');
+            typeArguments.append('>');
+        }
+
+        if (!emitClass) {
+            return new StubModel(internalName.replace('/', '.'), packageName, stubSimpleName,
+                    typeParameters.toString(), typeArguments.toString(), true,
+                    new ArrayList<MethodModel>(methods.values()), emptyValues.getMembers(), options);
+        }
+
+        return new StubModel(internalName.replace('/', '.'), packageName, stubSimpleName,
+                typeParameters.toString(), typeArguments.toString(), true,
+                new ArrayList<MethodModel>(methods.values()), emptyValues.getMembers(), options,
+                (slash < 0 ? "" : internalName.substring(0, slash + 1)) + stubSimpleName,
+                internalName,
+                getStubSignature(internalName, signature));
+    }
+
+    private void collectMethods(ClassInfo type, Map<String, Type> arguments, Map<String, Type> bounds,
+            Map<String, MethodEntry> methodTable, Set<String> visited) {
+        // An interface reached twice (through two superinterfaces) only counts once
+        if (!visited.add(type.getName())) {
+            return;
+        }
+
+        // The methods declared by the type come before those of its superinterfaces, which
+        // are collected afterwards
+        for (MethodInfo method : type.getMethods()) {
+            if (method.is(ClassFileReader.ACC_STATIC) || method.is(ClassFileReader.ACC_PRIVATE)
+                    || method.is(ClassFileReader.ACC_SYNTHETIC) || method.is(ClassFileReader.ACC_BRIDGE)
+                    || method.getName().startsWith("<")
+                    || OBJECT_METHODS.contains(method.getName() + method.getDescriptor())) {
+                continue;
+            }
+
+            MethodSignature signature = SignatureParser.parseMethodSignature(
+                    method.getSignature() != null ? method.getSignature() : method.getDescriptor());
+
+            // The type parameters of the method hide those of the type
+            Map<String, Type> methodArguments = arguments;
+            Map<String, Type> methodBounds = bounds;
+
+            if (!signature.getTypeParameters().isEmpty()) {
+                methodArguments = new HashMap<String, Type>(arguments);
+                methodBounds = new HashMap<String, Type>(bounds);
+
+                for (TypeParameter typeParameter : signature.getTypeParameters()) {
+                    methodArguments.remove(typeParameter.getName());
+                }
+                for (TypeParameter typeParameter : signature.getTypeParameters()) {
+                    methodBounds.put(typeParameter.getName(), typeParameter.getErasedBound().substitute(methodArguments));
+                }
+            }
+
+            MethodSignature substituted = substitute(signature, methodArguments);
+            String key = method.getName() + getParameterDescriptors(substituted, methodBounds);
+
+            MethodEntry entry = methodTable.get(key);
+
+            if (entry == null) {
+                entry = new MethodEntry(method, substituted, methodBounds);
+                methodTable.put(key, entry);
+            }
+            else {
+                if (isSubtype(substituted.getReturnType().toDescriptor(methodBounds),
+                        entry.signature.getReturnType().toDescriptor(entry.bounds))) {
+                    // Reached through another superinterface, a covariant override (a
+                    // ListenableFuture submit() rather than a Future one) is the one implemented
+                    entry.declare(method, substituted, methodBounds);
+                }
+
+                // Kotlin interfaces may declare the same erasure with different generic
+                // parameters: only the erased parameters implement both
+                entry.erased |= !getParameterSources(substituted).equals(getParameterSources(entry.signature));
+            }
+
+            // Every erasure the method is declared with must be implemented: the others
+            // become bridges
+            entry.descriptors.add(method.getDescriptor());
+
+            // Kotlin may declare the same erasure twice in an interface, with two return
+            // types: no single method implements both
+            if (entry.owners.put(type.getName(), method.is(ClassFileReader.ACC_ABSTRACT)) != null) {
+                throw new IllegalArgumentException(type.getName().replace('/', '.') + " declares " + method.getName()
+                        + " twice with the same parameters");
+            }
+        }
+
+        for (ClassType superinterface : getClassSignature(type).getInterfaces()) {
+            ClassType substituted = (ClassType) superinterface.substitute(arguments);
+            ClassInfo superinterfaceInfo = index.get(substituted.getInternalName());
+
+            if (superinterfaceInfo == null) {
+                throw new IllegalArgumentException("its superinterface " + substituted.getInternalName().replace('/', '.')
+                        + " cannot be found");
+            }
+
+            collectMethods(superinterfaceInfo, getTypeArguments(superinterfaceInfo, substituted), bounds,
+                    methodTable, visited);
+        }
+    }
+
+    /**
+     * @return true if the stub inherits the method from a default method, as javac decides:
+     * once the declarations overridden by another one are left aside, only a single default
+     * method remains. A default method of an unrelated interface does not implement an
+     * abstract one, nor does one of two unrelated default methods win.
+     */
+    private boolean isImplementedByDefault(MethodEntry entry) {
+        String inherited = null;
+
+        for (String owner : entry.owners.keySet()) {
+            boolean overridden = false;
+
+            for (String other : entry.owners.keySet()) {
+                if (!other.equals(owner) && isSubclass(other, owner, new HashSet<String>())) {
+                    overridden = true;
+                    break;
+                }
+            }
+
+            if (!overridden) {
+                if (inherited != null || entry.owners.get(owner)) {
+                    return false;
+                }
+
+                inherited = owner;
+            }
+        }
+
+        return inherited != null;
+    }
+
+    /**
+     * @return true if the type of descriptor is a strict subtype of the type of
+     * superDescriptor, as far as the ClassFileIndex knows
+     */
+    private boolean isSubtype(String descriptor, String superDescriptor) {
+        if (descriptor.equals(superDescriptor) || descriptor.charAt(0) != 'L' || superDescriptor.charAt(0) != 'L') {
+            return false;
+        }
+
+        return isSubclass(descriptor.substring(1, descriptor.length() - 1),
+                superDescriptor.substring(1, superDescriptor.length() - 1), new HashSet<String>());
+    }
+
+    private boolean isSubclass(String internalName, String superName, Set<String> visited) {
+        if (internalName.equals(superName)) {
+            return true;
+        }
+
+        ClassInfo type = index.get(internalName);
+
+        if (type == null || !visited.add(internalName)) {
+            return false;
+        }
+
+        if (type.getSuperName() != null && isSubclass(type.getSuperName(), superName, visited)) {
+            return true;
+        }
+
+        for (String anInterface : type.getInterfaces()) {
+            if (isSubclass(anInterface, superName, visited)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the type arguments given to the type parameters of type by reference
+     */
+    private Map<String, Type> getTypeArguments(ClassInfo type, ClassType reference) {
+        List<TypeParameter> typeParameters = getClassSignature(type).getTypeParameters();
+
+        if (typeParameters.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Type> typeArguments = new HashMap<String, Type>();
+
+        if (reference.getTypeArguments().size() == typeParameters.size()) {
+            for (int i = 0; i < typeParameters.size(); i++) {
+                typeArguments.put(typeParameters.get(i).getName(), reference.getTypeArguments().get(i));
+            }
+
+            return typeArguments;
+        }
+
+        // A raw supertype: its type parameters are erased
+        Map<String, Type> bounds = new HashMap<String, Type>();
+
+        for (TypeParameter typeParameter : typeParameters) {
+            bounds.put(typeParameter.getName(), typeParameter.getErasedBound());
+        }
+
+        for (TypeParameter typeParameter : typeParameters) {
+            String descriptor = typeParameter.getErasedBound().toDescriptor(bounds);
+            typeArguments.put(typeParameter.getName(), SignatureParser.classType(descriptor.substring(1, descriptor.length() - 1)));
+        }
+
+        return typeArguments;
+    }
+
+    private MethodModel createMethodModel(MethodEntry entry, EmptyValues emptyValues) {
+        MethodSignature signature = entry.signature;
+
+        if (entry.erased) {
+            List<Type> parameters = SignatureParser.parseMethodSignature(getParameterDescriptors(signature, entry.bounds) + "V").getParameters();
+            signature = new MethodSignature(signature.getTypeParameters(), parameters, signature.getReturnType(), signature.getThrownTypes());
+        }
+
+        StringBuilder typeParameters = new StringBuilder();
+
+        for (TypeParameter typeParameter : signature.getTypeParameters()) {
+            typeParameters.append(typeParameters.length() == 0 ? "<" : ", ");
+            typeParameter.appendSource(typeParameters);
+        }
+
+        if (typeParameters.length() > 0) {
+            typeParameters.append('>');
+        }
+
+        List<String> parameterTypes = new ArrayList<String>(signature.getParameters().size());
+        for (Type parameter : signature.getParameters()) {
+            parameterTypes.add(parameter.toSource());
+        }
+
+        List<String> thrownTypes = new ArrayList<String>(signature.getThrownTypes().size());
+        for (Type thrownType : signature.getThrownTypes()) {
+            thrownTypes.add(thrownType.toSource());
+        }
+
+        List<String> modifiers = Collections.singletonList("public");
+        String name = entry.method.getName();
+        String defaultValue = getDefaultValue(signature.getReturnType(), emptyValues);
+
+        if (!emitClass) {
+            // Kotlin mangles some names (getFile-dAnkW_k), which only a class file can declare
+            if (!SourceVersion.isIdentifier(name) || SourceVersion.isKeyword(name)) {
+                throw new IllegalArgumentException("its method " + name + " cannot be written in Java");
+            }
+
+            return new MethodModel(modifiers, typeParameters.toString(), signature.getReturnType().toSource(), name,
+                    parameterTypes, thrownTypes, defaultValue);
+        }
+
+        // The method is implemented with its own erasure, seen from the stub, then with
+        // the erasures of its declarations
+        Set<String> descriptors = new LinkedHashSet<String>();
+        descriptors.add(getParameterDescriptors(signature, entry.bounds) + signature.getReturnType().toDescriptor(entry.bounds));
+        descriptors.addAll(entry.descriptors);
+
+        List<String> thrownInternalNames = new ArrayList<String>(signature.getThrownTypes().size());
+        for (Type thrownType : signature.getThrownTypes()) {
+            String descriptor = thrownType.toDescriptor(entry.bounds);
+            thrownInternalNames.add(descriptor.substring(1, descriptor.length() - 1));
+        }
+
+        return new MethodModel(modifiers, typeParameters.toString(), signature.getReturnType().toSource(), name,
+                parameterTypes, thrownTypes, defaultValue,
+                new ArrayList<String>(descriptors), getMethodSignature(signature), thrownInternalNames);
+    }
+
+    private String getDefaultValue(Type returnType, EmptyValues emptyValues) {
+        if (returnType instanceof PrimitiveType) {
+            char descriptor = ((PrimitiveType) returnType).getDescriptor();
+            return descriptor == 'V' ? null : GenerateStubProcessor.getDefaultValueForTypeKind(getTypeKind(descriptor));
+        }
+
+        if (options.getDefaults() == StubDefaults.EMPTY) {
+            if (returnType instanceof ClassType) {
+                String erasure = ((ClassType) returnType).getInternalName().replace('/', '.').replace('$', '.');
+                String expression = emptyValues.getExpression(erasure);
+
+                if (expression != null) {
+                    return expression;
+                }
+            }
+            else if (returnType instanceof ArrayType) {
+                // Arrays of type variables or of generic types cannot be created, they stay null
+                Type componentType = returnType;
+
+                while (componentType instanceof ArrayType) {
+                    componentType = ((ArrayType) componentType).getComponentType();
+                }
+
+                if (componentType instanceof PrimitiveType || (componentType instanceof ClassType && !componentType.isGeneric())) {
+                    return emptyValues.getArrayConstant(returnType.toSource());
+                }
+            }
+        }
+
+        return "null";
+    }
+
+    private static TypeKind getTypeKind(char descriptor) {
+        switch (descriptor) {
+            case 'B':
+                return TypeKind.BYTE;
+            case 'C':
+                return TypeKind.CHAR;
+            case 'D':
+                return TypeKind.DOUBLE;
+            case 'F':
+                return TypeKind.FLOAT;
+            case 'I':
+                return TypeKind.INT;
+            case 'J':
+                return TypeKind.LONG;
+            case 'S':
+                return TypeKind.SHORT;
+            default:
+                return TypeKind.BOOLEAN;
+        }
+    }
+
+    /**
+     * @return the generic signature of the method, or null if its descriptor says it all
+     */
+    private static String getMethodSignature(MethodSignature signature) {
+        boolean generic = !signature.getTypeParameters().isEmpty() || signature.getReturnType().isGeneric();
+        boolean genericThrows = false;
+
+        for (Type parameter : signature.getParameters()) {
+            generic |= parameter.isGeneric();
+        }
+
+        for (Type thrownType : signature.getThrownTypes()) {
+            genericThrows |= thrownType instanceof TypeVariable;
+        }
+
+        if (!generic && !genericThrows) {
+            return null;
+        }
+
+        StringBuilder out = new StringBuilder();
+
+        if (!signature.getTypeParameters().isEmpty()) {
+            out.append('<');
+            for (TypeParameter typeParameter : signature.getTypeParameters()) {
+                typeParameter.appendSignature(out);
+            }
+            out.append('>');
+        }
+
+        out.append('(');
+        for (Type parameter : signature.getParameters()) {
+            parameter.appendSignature(out);
+        }
+        out.append(')');
+
+        signature.getReturnType().appendSignature(out);
+
+        // Thrown types are only part of the signature when one of them is a type variable
+        if (genericThrows) {
+            for (Type thrownType : signature.getThrownTypes()) {
+                out.append('^');
+                thrownType.appendSignature(out);
+            }
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * @return the generic signature of the stub of a generic interface, null otherwise
+     */
+    private static String getStubSignature(String targetInternalName, ClassSignature signature) {
+        if (signature.getTypeParameters().isEmpty()) {
+            return null;
+        }
+
+        StringBuilder out = new StringBuilder("<");
+        StringBuilder typeArguments = new StringBuilder();
+
+        for (TypeParameter typeParameter : signature.getTypeParameters()) {
+            typeParameter.appendSignature(out);
+            typeArguments.append('T').append(typeParameter.getName()).append(';');
+        }
+
+        return out.append(">L").append(OBJECT).append(";L").append(targetInternalName)
+                .append('<').append(typeArguments).append(">;").toString();
+    }
+
+    private static String getParameterDescriptors(MethodSignature signature, Map<String, Type> bounds) {
+        StringBuilder out = new StringBuilder("(");
+
+        for (Type parameter : signature.getParameters()) {
+            parameter.appendDescriptor(out, bounds);
+        }
+
+        return out.append(')').toString();
+    }
+
+    private static List<String> getParameterSources(MethodSignature signature) {
+        List<String> sources = new ArrayList<String>(signature.getParameters().size());
+
+        for (Type parameter : signature.getParameters()) {
+            sources.add(parameter.toSource());
+        }
+
+        return sources;
+    }
+
+    private static MethodSignature substitute(MethodSignature signature, Map<String, Type> arguments) {
+        if (arguments.isEmpty()) {
+            return signature;
+        }
+
+        List<TypeParameter> typeParameters = new ArrayList<TypeParameter>(signature.getTypeParameters().size());
+        for (TypeParameter typeParameter : signature.getTypeParameters()) {
+            typeParameters.add(typeParameter.substitute(arguments));
+        }
+
+        List<Type> parameters = new ArrayList<Type>(signature.getParameters().size());
+        for (Type parameter : signature.getParameters()) {
+            parameters.add(parameter.substitute(arguments));
+        }
+
+        List<Type> thrownTypes = new ArrayList<Type>(signature.getThrownTypes().size());
+        for (Type thrownType : signature.getThrownTypes()) {
+            thrownTypes.add(thrownType.substitute(arguments));
+        }
+
+        return new MethodSignature(typeParameters, parameters, signature.getReturnType().substitute(arguments), thrownTypes);
+    }
+
+    private static ClassSignature getClassSignature(ClassInfo type) {
+        if (type.getSignature() != null) {
+            return SignatureParser.parseClassSignature(type.getSignature());
+        }
+
+        List<ClassType> interfaces = new ArrayList<ClassType>();
+        for (String anInterface : type.getInterfaces()) {
+            interfaces.add(SignatureParser.classType(anInterface));
+        }
+
+        return new ClassSignature(Collections.<TypeParameter>emptyList(),
+                SignatureParser.classType(type.getSuperName() != null ? type.getSuperName() : OBJECT), interfaces);
+    }
+
+    private static String getSignature(MethodModel method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+
+        for (String parameterType : method.getParameterTypes()) {
+            signature.append(parameterType).append(',');
+        }
+
+        return signature.append(')').toString();
+    }
+
+    /**
+     * A method to implement, as seen from the stubbed interface.
+     */
+    private static class MethodEntry {
+
+        private MethodInfo method;
+
+        private MethodSignature signature;
+
+        // The first bound of every type variable the signature may hold
+        private Map<String, Type> bounds;
+
+        // The erasures of its declarations
+        private final Set<String> descriptors = new LinkedHashSet<String>();
+
+        // Whether its declarations disagree on the generic parameters
+        private boolean erased;
+
+        // The interfaces declaring it, and whether their declaration is abstract
+        private final Map<String, Boolean> owners = new LinkedHashMap<String, Boolean>();
+
+        MethodEntry(MethodInfo method, MethodSignature signature, Map<String, Type> bounds) {
+            declare(method, signature, bounds);
+        }
+
+        // The declaration the stub implements
+        void declare(MethodInfo method, MethodSignature signature, Map<String, Type> bounds) {
+            this.method = method;
+            this.signature = withThrownTypes(method, signature);
+            this.bounds = bounds;
+        }
+
+        // Methods without a generic signature only list their thrown types in the class file
+        private static MethodSignature withThrownTypes(MethodInfo method, MethodSignature signature) {
+            if (!signature.getThrownTypes().isEmpty() || method.getExceptions().length == 0) {
+                return signature;
+            }
+
+            List<Type> thrownTypes = new ArrayList<Type>();
+            for (String exception : method.getExceptions()) {
+                thrownTypes.add(SignatureParser.classType(exception));
+            }
+
+            return new MethodSignature(signature.getTypeParameters(), signature.getParameters(), signature.getReturnType(), thrownTypes);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.test.autostub;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.test.autostub.ClassFileReader.ClassInfo;
+import com.test.autostub.ClassFileReader.MethodInfo;
+
+/**
+ * The classes known to the StubCli, by internal name: the classes read from its inputs, and
+ * the supertypes they need, read on demand from the class path (jars, directories) and from
+ * the JDK running the CLI.
+ *
+ * Classes can be added and looked up from several threads.
+ */
+class ClassFileIndex {
+
+    // A class which could not be found, so that it is only looked for once
+    private static final ClassInfo MISSING = new ClassInfo(0, "", null, new String[0], null, false,
+            Collections.<MethodInfo>emptyList());
+
+    private final ConcurrentMap<String, ClassInfo> classes = new ConcurrentHashMap<String, ClassInfo>();
+
+    // The roots of the class path: directories, or the roots of jar file systems
+    private final List<Path> classPath;
+
+    ClassFileIndex(List<Path> classPath) {
+        this.classPath = new ArrayList<Path>(classPath);
+    }
+
+    void add(ClassInfo classInfo) {
+        classes.put(classInfo.getName(), classInfo);
+    }
+
+    /**
+     * @return the class with this internal name, or null if it is nowhere to be found
+     */
+    ClassInfo get(String internalName) {
+        ClassInfo classInfo = classes.get(internalName);
+
+        if (classInfo == null) {
+            // Two threads may read the same class at once, only the first one is kept
+            classInfo = load(internalName);
+
+            ClassInfo previous = classes.putIfAbsent(internalName, classInfo);
+            if (previous != null) {
+                classInfo = previous;
+            }
+        }
+
+        return classInfo == MISSING ? null : classInfo;
+    }
+
+    private ClassInfo load(String internalName) {
+        String fileName = internalName + ".class";
+
+        try {
+            for (Path root : classPath) {
+                Path path = root.resolve(fileName);
+
+                if (Files.isRegularFile(path)) {
+                    return new ClassFileReader(Files.readAllBytes(path)).read();
+                }
+            }
+
+            // The JDK classes are found through the system class loader, which reads them
+            // from the run-time image
+            InputStream in = ClassLoader.getSystemResourceAsStream(fileName);
+
+            if (in != null) {
+                try {
+                    return new ClassFileReader(readFully(in)).read();
+                }
+                finally {
+                    in.close();
+                }
+            }
+        }
+        catch (IOException | IllegalArgumentException e) {
+            // An unreadable class is as good as a missing one: the stubs needing it are skipped
+        }
+
+        return MISSING;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+}
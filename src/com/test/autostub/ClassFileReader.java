@@ -0,0 +1,399 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads what a stub needs from a class file: the names and flags of the class and of its
+ * methods, their descriptors, generic signatures and thrown exceptions. Fields and code are
+ * skipped without being looked at.
+ *
+ * The constant pool is only indexed: a string is decoded the first time it is needed, so
+ * that the many constants a stub does not need (those of the code) cost nothing. A reader
+ * parses a single class file and keeps no state once done, so class files can be read from
+ * several threads with a reader each.
+ */
+class ClassFileReader {
+
+    static final int ACC_PUBLIC = 0x0001;
+
+    static final int ACC_PRIVATE = 0x0002;
+
+    static final int ACC_STATIC = 0x0008;
+
+    static final int ACC_BRIDGE = 0x0040;
+
+    static final int ACC_INTERFACE = 0x0200;
+
+    static final int ACC_ABSTRACT = 0x0400;
+
+    static final int ACC_SYNTHETIC = 0x1000;
+
+    static final int ACC_ANNOTATION = 0x2000;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final int CONSTANT_LONG = 5;
+
+    private static final int CONSTANT_DOUBLE = 6;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    private final byte[] bytes;
+
+    // Where each constant starts (just after its tag), by index
+    private int[] constantOffsets;
+
+    private String[] strings;
+
+    private int position = 0;
+
+    ClassFileReader(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a class file
+     */
+    ClassInfo read() {
+        try {
+            return readClass();
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated class file", e);
+        }
+    }
+
+    private ClassInfo readClass() {
+        if (readInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+
+        // The minor and major versions
+        position += 4;
+
+        readConstantPool();
+
+        int access = readShort();
+        String name = readClassName();
+        String superName = readClassName();
+
+        String[] interfaces = new String[readShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = readClassName();
+        }
+
+        // Fields: their access, name and descriptor, then their attributes
+        int fieldCount = readShort();
+        for (int i = 0; i < fieldCount; i++) {
+            position += 6;
+            skipAttributes();
+        }
+
+        int methodCount = readShort();
+        List<MethodInfo> methods = new ArrayList<MethodInfo>(methodCount);
+
+        for (int i = 0; i < methodCount; i++) {
+            methods.add(readMethod());
+        }
+
+        String signature = null;
+        boolean sealed = false;
+        int attributeCount = readShort();
+
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = readUtf8();
+            int length = readInt();
+            int end = position + length;
+
+            if ("Signature".equals(attributeName)) {
+                signature = readUtf8();
+            }
+            else if ("PermittedSubclasses".equals(attributeName)) {
+                sealed = true;
+            }
+
+            position = end;
+        }
+
+        return new ClassInfo(access, name, superName, interfaces, signature, sealed, methods);
+    }
+
+    private MethodInfo readMethod() {
+        int access = readShort();
+        String name = readUtf8();
+        String descriptor = readUtf8();
+        String signature = null;
+        String[] exceptions = new String[0];
+        int attributeCount = readShort();
+
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = readUtf8();
+            int length = readInt();
+            int end = position + length;
+
+            if ("Signature".equals(attributeName)) {
+                signature = readUtf8();
+            }
+            else if ("Exceptions".equals(attributeName)) {
+                exceptions = new String[readShort()];
+
+                for (int e = 0; e < exceptions.length; e++) {
+                    exceptions[e] = readClassName();
+                }
+            }
+
+            position = end;
+        }
+
+        return new MethodInfo(access, name, descriptor, signature, exceptions);
+    }
+
+    private void readConstantPool() {
+        int count = readShort();
+        constantOffsets = new int[count];
+        strings = new String[count];
+
+        for (int i = 1; i < count; i++) {
+            int tag = bytes[position++];
+            constantOffsets[i] = position;
+
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    position += 2 + readShort(position);
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    // Eight bytes, and two entries of the pool
+                    position += 8;
+                    i++;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    position += 4;
+                    break;
+                case 15: // MethodHandle
+                    position += 3;
+                    break;
+                case CONSTANT_CLASS:
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    position += 2;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at " + (position - 1));
+            }
+        }
+    }
+
+    private void skipAttributes() {
+        int attributeCount = readShort();
+
+        for (int i = 0; i < attributeCount; i++) {
+            // The name of the attribute, then its length
+            position += 2;
+            int length = readInt();
+            position += length;
+        }
+    }
+
+    private String readClassName() {
+        int index = readShort();
+
+        if (index == 0) {
+            // java.lang.Object has no superclass
+            return null;
+        }
+
+        return getUtf8(readShort(constantOffsets[index]));
+    }
+
+    private String readUtf8() {
+        return getUtf8(readShort());
+    }
+
+    private String getUtf8(int index) {
+        String string = strings[index];
+
+        if (string == null) {
+            string = decodeUtf8(constantOffsets[index] + 2, readShort(constantOffsets[index]));
+            strings[index] = string;
+        }
+
+        return string;
+    }
+
+    /**
+     * Decodes the "modified UTF-8" of class files, which only differs from UTF-8 for NUL
+     * characters and for characters outside of the BMP, both written as their UTF-16 chars.
+     */
+    private String decodeUtf8(int start, int length) {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = start + length;
+
+        for (int i = start; i < end; ) {
+            int b = bytes[i++] & 0xFF;
+
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            }
+            else if (b < 0xE0) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[i++] & 0x3F));
+            }
+            else {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[i++] & 0x3F) << 6) | (bytes[i++] & 0x3F));
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+    private int readShort() {
+        int value = readShort(position);
+        position += 2;
+        return value;
+    }
+
+    private int readShort(int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private int readInt() {
+        int value = ((bytes[position] & 0xFF) << 24) | ((bytes[position + 1] & 0xFF) << 16)
+                | ((bytes[position + 2] & 0xFF) << 8) | (bytes[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    /**
+     * A class, as read from its class file.
+     */
+    static class ClassInfo {
+
+        private final int access;
+
+        // Internal names (com/acme/Foo$Bar), superName being null for java.lang.Object
+        private final String name;
+
+        private final String superName;
+
+        private final String[] interfaces;
+
+        // The generic signature of the class, null if it has none
+        private final String signature;
+
+        // Sealed types cannot be implemented by a stub
+        private final boolean sealed;
+
+        private final List<MethodInfo> methods;
+
+        ClassInfo(int access, String name, String superName, String[] interfaces, String signature, boolean sealed,
+                List<MethodInfo> methods) {
+            this.access = access;
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.signature = signature;
+            this.sealed = sealed;
+            this.methods = Collections.unmodifiableList(methods);
+        }
+
+        int getAccess() {
+            return access;
+        }
+
+        boolean isInterface() {
+            return (access & ACC_INTERFACE) != 0 && (access & ACC_ANNOTATION) == 0;
+        }
+
+        boolean isPublic() {
+            return (access & ACC_PUBLIC) != 0;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getSuperName() {
+            return superName;
+        }
+
+        String[] getInterfaces() {
+            return interfaces.clone();
+        }
+
+        String getSignature() {
+            return signature;
+        }
+
+        boolean isSealed() {
+            return sealed;
+        }
+
+        List<MethodInfo> getMethods() {
+            return methods;
+        }
+    }
+
+    /**
+     * A method, as read from the class file of its class.
+     */
+    static class MethodInfo {
+
+        private final int access;
+
+        private final String name;
+
+        private final String descriptor;
+
+        // The generic signature of the method, null if it has none
+        private final String signature;
+
+        // Internal names of the exceptions of the throws clause
+        private final String[] exceptions;
+
+        MethodInfo(int access, String name, String descriptor, String signature, String[] exceptions) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.signature = signature;
+            this.exceptions = exceptions;
+        }
+
+        int getAccess() {
+            return access;
+        }
+
+        boolean is(int flag) {
+            return (access & flag) != 0;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getDescriptor() {
+            return descriptor;
+        }
+
+        String getSignature() {
+            return signature;
+        }
+
+        String[] getExceptions() {
+            return exceptions.clone();
+        }
+    }
+
+}
@@ -0,0 +1,345 @@
+package com.test.autostub;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal class file writer, just enough to write stubs: a class extending another one,
+ * implementing interfaces, with a no-argument constructor and methods returning the default
+ * value of their return type.
+ *
+ * Those methods have no branch, so no StackMapTable is needed whatever the class file
+ * version. See docs.oracle.com/javase/specs/jvms/se17/html/jvms-4.html for the format.
+ */
+class ClassFileWriter {
+
+    // Java 8: the oldest version stubs need (default methods in implemented interfaces)
+    static final int JAVA_8_VERSION = 52;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+    static final int ACC_SYNCHRONIZED = 0x0020;
+    static final int ACC_BRIDGE = 0x0040;
+    static final int ACC_SYNTHETIC = 0x1000;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int LCONST_0 = 0x09;
+    private static final int FCONST_0 = 0x0b;
+    private static final int DCONST_0 = 0x0e;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int IRETURN = 0xac;
+    private static final int LRETURN = 0xad;
+    private static final int FRETURN = 0xae;
+    private static final int DRETURN = 0xaf;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKESPECIAL = 0xb7;
+
+    private final int version;
+
+    private final int access;
+
+    private final int thisClass;
+
+    private final String superName;
+
+    private final int superClass;
+
+    private final int[] interfaces;
+
+    // The constant pool: its entries, already encoded, and an index to reuse them
+    private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+    private final Map<String, Integer> constants = new HashMap<String, Integer>();
+    private int constantCount = 1;
+
+    private final List<byte[]> methods = new ArrayList<byte[]>();
+
+    // The generic signature of the class, null if it is not generic
+    private String signature = null;
+
+    /**
+     * @param internalName the name of the class, with slashes (com/acme/StubFoo)
+     * @param superName the internal name of the superclass
+     * @param interfaceNames the internal names of the implemented interfaces
+     */
+    ClassFileWriter(int version, int access, String internalName, String superName, String... interfaceNames) {
+        this.version = version;
+        this.access = access | ACC_SUPER;
+        this.thisClass = classConstant(internalName);
+        this.superName = superName;
+        this.superClass = classConstant(superName);
+        this.interfaces = new int[interfaceNames.length];
+
+        for (int i = 0; i < interfaceNames.length; i++) {
+            this.interfaces[i] = classConstant(interfaceNames[i]);
+        }
+    }
+
+    /**
+     * Adds a public constructor calling the no-argument constructor of the superclass.
+     */
+    void addDefaultConstructor() {
+        int superConstructor = methodConstant(superName, "<init>", "()V");
+
+        byte[] code = {
+                (byte) ALOAD_0,
+                (byte) INVOKESPECIAL, (byte) (superConstructor >> 8), (byte) superConstructor,
+                (byte) RETURN
+        };
+
+        addMethod(ACC_PUBLIC, "<init>", "()V", null, code, 1, 1, new String[0]);
+    }
+
+    /**
+     * Sets the generic signature of the class, for generic stubs.
+     */
+    void setSignature(String signature) {
+        this.signature = signature;
+    }
+
+    /**
+     * Adds a method returning the default value of its return type, as specified by the JLS
+     * (0, false, null...), or nothing for void methods.
+     *
+     * @param methodSignature the generic signature of the method, null if it is not generic
+     * @param exceptionNames the internal names of the declared exceptions, may be empty
+     */
+    void addDefaultReturnMethod(int methodAccess, String name, String descriptor, String methodSignature, String... exceptionNames) {
+        char returnType = descriptor.charAt(descriptor.indexOf(')') + 1);
+        byte[] code;
+
+        switch (returnType) {
+            case 'V':
+                code = new byte[] { (byte) RETURN };
+                break;
+            case 'Z':
+            case 'B':
+            case 'C':
+            case 'S':
+            case 'I':
+                code = new byte[] { (byte) ICONST_0, (byte) IRETURN };
+                break;
+            case 'J':
+                code = new byte[] { (byte) LCONST_0, (byte) LRETURN };
+                break;
+            case 'F':
+                code = new byte[] { (byte) FCONST_0, (byte) FRETURN };
+                break;
+            case 'D':
+                code = new byte[] { (byte) DCONST_0, (byte) DRETURN };
+                break;
+            default:
+                // Objects and arrays
+                code = new byte[] { (byte) ACONST_NULL, (byte) ARETURN };
+                break;
+        }
+
+        // A long or a double takes two slots on the stack, and so do their parameters
+        addMethod(methodAccess, name, descriptor, methodSignature, code, 2, 1 + getParameterSlots(descriptor), exceptionNames);
+    }
+
+    byte[] toByteArray() {
+        // The constants of the class attributes have to be in the pool before it is written
+        int signatureName = signature != null ? utf8Constant("Signature") : 0;
+        int signatureValue = signature != null ? utf8Constant(signature) : 0;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(version);
+
+            out.writeShort(constantCount);
+            constantPool.writeTo(out);
+
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+
+            out.writeShort(interfaces.length);
+            for (int anInterface : interfaces) {
+                out.writeShort(anInterface);
+            }
+
+            // No field
+            out.writeShort(0);
+
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+
+            if (signature != null) {
+                out.writeShort(1);
+                out.writeShort(signatureName);
+                out.writeInt(2);
+                out.writeShort(signatureValue);
+            }
+            else {
+                out.writeShort(0);
+            }
+        }
+        catch (IOException ioe) {
+            // A ByteArrayOutputStream does not throw IOExceptions
+            throw new IllegalStateException(ioe);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private void addMethod(int methodAccess, String name, String descriptor, String methodSignature, byte[] code,
+            int maxStack, int maxLocals, String[] exceptionNames) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeShort(methodAccess);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            out.writeShort(1 + (exceptionNames.length > 0 ? 1 : 0) + (methodSignature != null ? 1 : 0));
+
+            // The Code attribute: no exception table, no attribute of its own
+            out.writeShort(utf8Constant("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            // The Exceptions attribute, so that the throws clause is seen by compilers
+            if (exceptionNames.length > 0) {
+                out.writeShort(utf8Constant("Exceptions"));
+                out.writeInt(2 + 2 * exceptionNames.length);
+                out.writeShort(exceptionNames.length);
+
+                for (String exceptionName : exceptionNames) {
+                    out.writeShort(classConstant(exceptionName));
+                }
+            }
+
+            if (methodSignature != null) {
+                writeSignature(out, methodSignature);
+            }
+        }
+        catch (IOException ioe) {
+            // A ByteArrayOutputStream does not throw IOExceptions
+            throw new IllegalStateException(ioe);
+        }
+
+        methods.add(bytes.toByteArray());
+    }
+
+    private void writeSignature(DataOutputStream out, String signatureValue) throws IOException {
+        out.writeShort(utf8Constant("Signature"));
+        out.writeInt(2);
+        out.writeShort(utf8Constant(signatureValue));
+    }
+
+    /**
+     * @return the number of local variable slots taken by the parameters of a method
+     */
+    static int getParameterSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+
+            if (c == 'J' || c == 'D') {
+                slots += 2;
+                i++;
+            }
+            else {
+                slots++;
+
+                // Arrays take one slot whatever their component
+                while (descriptor.charAt(i) == '[') {
+                    i++;
+                }
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                i++;
+            }
+        }
+
+        return slots;
+    }
+
+    private int utf8Constant(String value) {
+        Integer index = constants.get("U" + value);
+
+        if (index == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            try {
+                out.writeByte(CONSTANT_UTF8);
+                // writeUTF uses the "modified UTF-8" of class files
+                out.writeUTF(value);
+            }
+            catch (IOException ioe) {
+                throw new IllegalStateException(ioe);
+            }
+
+            index = addConstant("U" + value, bytes.toByteArray());
+        }
+
+        return index;
+    }
+
+    private int classConstant(String internalName) {
+        Integer index = constants.get("C" + internalName);
+
+        if (index == null) {
+            int name = utf8Constant(internalName);
+            index = addConstant("C" + internalName, new byte[] { CONSTANT_CLASS, (byte) (name >> 8), (byte) name });
+        }
+
+        return index;
+    }
+
+    private int methodConstant(String owner, String name, String descriptor) {
+        String key = "M" + owner + '.' + name + descriptor;
+        Integer index = constants.get(key);
+
+        if (index == null) {
+            int ownerClass = classConstant(owner);
+            int nameIndex = utf8Constant(name);
+            int descriptorIndex = utf8Constant(descriptor);
+            int nameAndType = addConstant("N" + name + descriptor, new byte[] { CONSTANT_NAME_AND_TYPE,
+                    (byte) (nameIndex >> 8), (byte) nameIndex, (byte) (descriptorIndex >> 8), (byte) descriptorIndex });
+
+            index = addConstant(key, new byte[] { CONSTANT_METHODREF,
+                    (byte) (ownerClass >> 8), (byte) ownerClass, (byte) (nameAndType >> 8), (byte) nameAndType });
+        }
+
+        return index;
+    }
+
+    private int addConstant(String key, byte[] entry) {
+        int index = constantCount++;
+
+        constantPool.write(entry, 0, entry.length);
+        constants.put(key, index);
+
+        return index;
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.test.autostub;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.processing.Messager;
+import javax.tools.Diagnostic.Kind;
+
+/**
+ * Debug messages of the processor, reported as notes through the Messager when the
+ * generatestub.debug option is set.
+ *
+ * Messages are given as a format and its arguments, and only formatted when debugging is
+ * on: a disabled debug() costs a field read. Arguments which are costly to compute should
+ * still be guarded with isEnabled().
+ *
+ * The Messager may only be used from the compiler thread: messages sent from another thread
+ * (the render pool) are kept until flush() is called.
+ */
+class Diagnostics {
+
+    private static final String PREFIX = "GenerateStub: ";
+
+    private final Messager messager;
+
+    private final boolean enabled;
+
+    private final Thread compilerThread;
+
+    private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+
+    Diagnostics(Messager messager, boolean enabled) {
+        this.messager = messager;
+        this.enabled = enabled;
+        this.compilerThread = Thread.currentThread();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    // One method per number of arguments: varargs would allocate an array on every call,
+    // enabled or not.
+
+    void debug(String message) {
+        if (enabled) {
+            report(message);
+        }
+    }
+
+    void debug(String format, Object argument) {
+        if (enabled) {
+            report(String.format(format, argument));
+        }
+    }
+
+    void debug(String format, Object argument1, Object argument2) {
+        if (enabled) {
+            report(String.format(format, argument1, argument2));
+        }
+    }
+
+    void debug(String format, Object argument1, Object argument2, Object argument3) {
+        if (enabled) {
+            report(String.format(format, argument1, argument2, argument3));
+        }
+    }
+
+    /**
+     * Reports the messages sent from other threads. Must be called from the compiler thread.
+     */
+    void flush() {
+        String message;
+
+        while ((message = pending.poll()) != null) {
+            messager.printMessage(Kind.NOTE, PREFIX + message);
+        }
+    }
+
+    private void report(String message) {
+        if (Thread.currentThread() == compilerThread) {
+            flush();
+            messager.printMessage(Kind.NOTE, PREFIX + message);
+        }
+        else {
+            pending.add(message);
+        }
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The shared empty values returned by stubs with StubDefaults.EMPTY, by declared type.
+ *
+ * Every value is created once: either by the JDK (Collections.emptyList()...) or by the stub,
+ * in a static final field. Nothing is allocated when a stub method is called, but for
+ * futures: a CompletableFuture can be completed again (obtrudeValue()...) by whoever gets
+ * it, so each call returns a new one. A CompletionStage cannot, and is shared.
+ *
+ * An instance collects the static members needed by the values of a single stub, and the
+ * names they declare, which must not be the ones of members of the stubbed type.
+ */
+class EmptyValues {
+
+    // The erasure of a return type -> the expression returned, inferred from the return
+    // type by javac (java.util.List<Foo> gets java.util.Collections.emptyList())
+    private static final Map<String, String> EXPRESSIONS = new HashMap<String, String>();
+
+    // Futures can be completed again by whoever gets them (obtrudeValue()...): each call
+    // gets its own
+    static final String COMPLETED_FUTURE = "java.util.concurrent.CompletableFuture.completedFuture(null)";
+
+    // The completed stage is shared through a static field of the stub, and cast to the
+    // type argument of the method by a helper
+    static final String COMPLETED_STAGE = "stubCompletedStage()";
+
+    private static final Map<String, String> MEMBERS = new HashMap<String, String>();
+
+    // The expression of a member -> the names of the fields, then of the methods (without
+    // parameters) it declares
+    private static final Map<String, List<String>> MEMBER_FIELDS = new HashMap<String, List<String>>();
+
+    private static final Map<String, List<String>> MEMBER_METHODS = new HashMap<String, List<String>>();
+
+    static {
+        EXPRESSIONS.put("java.lang.Iterable", "java.util.Collections.emptyList()");
+        EXPRESSIONS.put("java.util.Collection", "java.util.Collections.emptyList()");
+        EXPRESSIONS.put("java.util.List", "java.util.Collections.emptyList()");
+        EXPRESSIONS.put("java.util.Set", "java.util.Collections.emptySet()");
+        EXPRESSIONS.put("java.util.SortedSet", "java.util.Collections.emptySortedSet()");
+        EXPRESSIONS.put("java.util.NavigableSet", "java.util.Collections.emptyNavigableSet()");
+        EXPRESSIONS.put("java.util.Map", "java.util.Collections.emptyMap()");
+        EXPRESSIONS.put("java.util.SortedMap", "java.util.Collections.emptySortedMap()");
+        EXPRESSIONS.put("java.util.NavigableMap", "java.util.Collections.emptyNavigableMap()");
+        EXPRESSIONS.put("java.util.Iterator", "java.util.Collections.emptyIterator()");
+        EXPRESSIONS.put("java.util.ListIterator", "java.util.Collections.emptyListIterator()");
+        EXPRESSIONS.put("java.util.Enumeration", "java.util.Collections.emptyEnumeration()");
+        EXPRESSIONS.put("java.util.Optional", "java.util.Optional.empty()");
+        EXPRESSIONS.put("java.util.OptionalInt", "java.util.OptionalInt.empty()");
+        EXPRESSIONS.put("java.util.OptionalLong", "java.util.OptionalLong.empty()");
+        EXPRESSIONS.put("java.util.OptionalDouble", "java.util.OptionalDouble.empty()");
+        EXPRESSIONS.put("java.lang.String", "\"\"");
+        EXPRESSIONS.put("java.lang.CharSequence", "\"\"");
+        EXPRESSIONS.put("java.util.concurrent.Future", COMPLETED_FUTURE);
+        EXPRESSIONS.put("java.util.concurrent.CompletableFuture", COMPLETED_FUTURE);
+        EXPRESSIONS.put("java.util.concurrent.CompletionStage", COMPLETED_STAGE);
+
+        MEMBERS.put(COMPLETED_STAGE,
+                "    private static final java.util.concurrent.CompletionStage<Object> COMPLETED_STAGE =\n"
+                + "            java.util.concurrent.CompletableFuture.completedStage(null);\n"
+                + "\n"
+                + "    @SuppressWarnings(\"unchecked\")\n"
+                + "    private static <T> java.util.concurrent.CompletionStage<T> stubCompletedStage() {\n"
+                + "        return (java.util.concurrent.CompletionStage<T>) (java.util.concurrent.CompletionStage<?>) COMPLETED_STAGE;\n"
+                + "    }\n");
+        MEMBER_FIELDS.put(COMPLETED_STAGE, Arrays.asList("COMPLETED_STAGE"));
+        MEMBER_METHODS.put(COMPLETED_STAGE, Arrays.asList("stubCompletedStage"));
+    }
+
+    // The static members needed by the values of the stub, in the order they were first
+    // needed, and the names of the empty arrays by array type
+    private final Map<String, String> members = new LinkedHashMap<String, String>();
+
+    private final Map<String, String> arrayConstants = new HashMap<String, String>();
+
+    private final Set<String> fieldNames = new TreeSet<String>();
+
+    private final Set<String> methodNames = new TreeSet<String>();
+
+    /**
+     * @param erasure the qualified name of the erasure of a return type
+     * @return the empty value returned for the type, or null if it has none
+     */
+    String getExpression(String erasure) {
+        String expression = EXPRESSIONS.get(erasure);
+
+        // Completed stages are shared through a field of the stub
+        if (expression != null && MEMBERS.containsKey(expression)) {
+            members.put(expression, MEMBERS.get(expression));
+            fieldNames.addAll(MEMBER_FIELDS.get(expression));
+            methodNames.addAll(MEMBER_METHODS.get(expression));
+        }
+
+        return expression;
+    }
+
+    /**
+     * @param arrayType the source of an array type whose elements are neither generic nor
+     * type variables, like java.lang.String[][]
+     * @return the name of the static field holding its empty array, like EMPTY_STRING_ARRAY_ARRAY
+     */
+    String getArrayConstant(String arrayType) {
+        String constant = arrayConstants.get(arrayType);
+
+        if (constant == null) {
+            // Two types may have the same simple name (com.a.Foo and com.b.Foo)
+            String name = getArrayConstantName(arrayType);
+            constant = name;
+
+            for (int i = 2; arrayConstants.containsValue(constant); i++) {
+                constant = name + "_" + i;
+            }
+
+            arrayConstants.put(arrayType, constant);
+            members.put(arrayType, getArrayMember(arrayType, constant));
+            fieldNames.add(constant);
+        }
+
+        return constant;
+    }
+
+    /**
+     * @return the members needed by the values given so far
+     */
+    List<String> getMembers() {
+        return new ArrayList<String>(members.values());
+    }
+
+    /**
+     * @return the names of the static fields declared by the members, sorted
+     */
+    Set<String> getFieldNames() {
+        return Collections.unmodifiableSet(fieldNames);
+    }
+
+    /**
+     * @return the names of the static methods declared by the members, none of which has
+     * parameters, sorted
+     */
+    Set<String> getMethodNames() {
+        return Collections.unmodifiableSet(methodNames);
+    }
+
+    private static String getArrayConstantName(String arrayType) {
+        String componentType = arrayType.substring(0, arrayType.indexOf('['));
+        String simpleName = componentType.substring(componentType.lastIndexOf('.') + 1);
+        StringBuilder name = new StringBuilder("EMPTY_").append(simpleName.toUpperCase());
+
+        for (int i = arrayType.indexOf('['); i >= 0; i = arrayType.indexOf('[', i + 1)) {
+            name.append("_ARRAY");
+        }
+
+        return name.toString();
+    }
+
+    /**
+     * @return the declaration of the static field holding an empty array
+     */
+    private static String getArrayMember(String arrayType, String constant) {
+        int firstDimension = arrayType.indexOf("[]");
+
+        return "    private static final " + arrayType + " " + constant + " = new "
+                + arrayType.substring(0, firstDimension) + "[0]" + arrayType.substring(firstDimension + 2) + ";\n";
+    }
+
+}
@@ -9,11 +9,45 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.SOURCE)
 public @interface GenerateStub {
 
-    // By default, the annotation processor implements a stub for the annotated class
+    // By default, the annotation processor implements a stub for the annotated class.
+    // Otherwise, each String is the fully qualified name of a type to stub, the name of a
+    // package (every interface of the package), or a pattern on the simple names of the
+    // interfaces of a package, where * matches anything: "com.acme.api.*Service"
     String[] toStub() default {};
     // By default, the prefix used is "Stub"
     String prefix() default "Stub";
     // By default, no suffix is used
     String suffix() default "";
+    // By default, stubs do not record anything. When true, they count the calls of each
+    // of their methods in an InvocationLog, returned by their invocationLog() method, and
+    // get a <method>Calls() accessor per method name.
+    boolean recordCalls() default false;
+    // By default, arguments are not kept. Otherwise, how many of the last calls are kept
+    // with their arguments by the InvocationLog (implies recordCalls)
+    int captureArguments() default 0;
+    // By default, methods returning objects return null. With StubDefaults.EMPTY, they
+    // return shared empty values instead: empty collections, Optional.empty(), completed
+    // futures, zero-length arrays...
+    StubDefaults defaults() default StubDefaults.NULL;
+    // By default, stubs are classes which can be extended. When true, they are final, and
+    // have a shared INSTANCE (and an instance() method when they are generic).
+    boolean singleton() default false;
+    // By default, stubs answer at once. Otherwise, each String gives the latency of the calls
+    // of a method, drawn from a distribution, "<method>=<distribution>", or of the methods
+    // without their own, "<distribution>": "findUser=lognormal:10ms,50ms", "fixed:2ms".
+    // Distributions are fixed:<duration>, uniform:<min>,<max>, lognormal:<median>,<p99>
+    // and percentiles:<resource> (see Latency).
+    String[] latency() default {};
+    // By default, each target gets its own stub. Otherwise, the simple name of a single stub,
+    // in the package of the annotated type, implementing every target at once: fewer classes
+    // to load. Targets have to be interfaces which are not generic; methods with the same
+    // signature are implemented once, and methods which cannot be (different return types,
+    // same erasure, unrelated defaults) are reported as errors. Prefix and suffix are not used.
+    String composite() default "";
+    // By default, stubs return default values. Otherwise, the file (or resource of the class
+    // path) of the responses recorded by a ReplayRecorder: each method returns what the real
+    // implementation returned for the same arguments, read from the mapped file, and its
+    // default value for calls which were not recorded.
+    String replay() default "";
 
 }
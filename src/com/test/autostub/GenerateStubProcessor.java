@@ -1,15 +1,34 @@
 package com.test.autostub;
 import java.io.BufferedWriter;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
@@ -20,553 +39,1876 @@ import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.type.WildcardType;
 import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+import com.test.autostub.StubLedger.StubRequest;
+import com.test.autostub.StubModel.MethodModel;
 
 @SupportedAnnotationTypes("com.test.autostub.GenerateStub")
 public class GenerateStubProcessor extends AbstractProcessor {
 
-    private static final String COMMA_AND_SPACE= ", ";
+    // Name of the processor option used to choose the incremental category reported to
+    // Gradle: "aggregating" (the default) or "isolating".
+    static final String OPTION_INCREMENTAL = "generatestub.incremental";
 
-    private static boolean DEBUG_PRINT = false;
+    // Name of the processor option rendering the stubs of a round in parallel: a number of
+    // threads, or "auto" for one per core. Stubs are rendered on the compiler thread without it.
+    static final String OPTION_PARALLELISM = "generatestub.parallelism";
 
-    public static boolean isDEBUG_PRINT() {
-        return DEBUG_PRINT;
-    }
+    // Name of the processor option choosing what is written for a stub: "source" (the
+    // default), or "class" to write class files directly, without javac compiling them.
+    static final String OPTION_EMIT = "generatestub.emit";
+
+    static final String EMIT_CLASS = "class";
+
+    // Name of the processor option reporting what the processor does as compiler notes
+    static final String OPTION_DEBUG = "generatestub.debug";
+
+    // Name of the processor option writing the metrics of the compilation as JSON in
+    // METRICS_RESOURCE, under the class output, and summarizing them as a compiler note.
+    static final String OPTION_METRICS = "generatestub.metrics";
+
+    static final String METRICS_RESOURCE = "META-INF/generatestub/metrics.json";
+
+    // Name of the processor option sharing rendered stubs with the other compilations of
+    // the JVM (see SharedStubCache): how many stubs are kept, SHARED_CACHE_DEFAULT when
+    // given without a value. Only the stubs of types from class files are shared.
+    static final String OPTION_SHARED_CACHE = "generatestub.sharedCache";
+
+    static final int SHARED_CACHE_DEFAULT = 10000;
+
+    private static final String GRADLE_ISOLATING = "org.gradle.annotation.processing.isolating";
+
+    private static final String GRADLE_AGGREGATING = "org.gradle.annotation.processing.aggregating";
+
+    private static final String DEFAULT_PREFIX = "Stub";
+
+    // Remembers what was generated or is still waiting, from one round to the next
+    private final StubLedger ledger = new StubLedger();
+
+    // Type names rendered during the current round, shared by every Generator
+    private final TypeNameCache typeNames = new TypeNameCache();
+
+    // The method tables of the types seen in the current round, shared by every Generator
+    private HierarchyResolver hierarchy = null;
+
+    // Only created when stubs are written as class files, see OPTION_EMIT
+    private BinaryNames binaryNames = null;
+
+    // The targets looked up in the current round, found or not
+    private TargetResolver targets = null;
 
-    private String prefix = "Stub";
+    // Turns StubModels into source, from any thread
+    private final StubRenderer renderer = new StubRenderer();
 
-    private String suffix = "";
+    // Turns StubModels into class files, from any thread
+    private final StubClassEmitter classEmitter = new StubClassEmitter();
+
+    // Only created when stubs are rendered in parallel, see OPTION_PARALLELISM
+    private ForkJoinPool renderPool = null;
+
+    // Only given by the StubDaemon, which keeps the rendered stubs between its compilations
+    private final SignatureCache signatureCache;
+
+    // Only used with OPTION_SHARED_CACHE, and counted for this compilation, from any thread
+    private SharedStubCache sharedCache = null;
+
+    private boolean sharedCacheDisabled = false;
+
+    private final AtomicLong sharedCacheHits = new AtomicLong();
+
+    private final AtomicLong sharedCacheMisses = new AtomicLong();
+
+    // The top-level types compiled from sources, in this round or a previous one. The other
+    // types come from class files.
+    private final Set<String> sourceTypes = new HashSet<String>();
+
+    // Debug messages, free when OPTION_DEBUG is not set
+    private Diagnostics diagnostics = null;
+
+    // Always collected, only reported with OPTION_METRICS
+    private final ProcessorMetrics metrics = new ProcessorMetrics();
+
+    // The stubs written so far, by stubbed type, for StubRegistry
+    private final StubIndex stubIndex = new StubIndex();
+
+    // What the stubs depend on, only recorded for the StubDaemon
+    private final StubDependencies dependencies;
 
     public GenerateStubProcessor() {
         super();
+        this.signatureCache = null;
+        this.dependencies = null;
+    }
+
+    /**
+     * A processor for a compilation of the StubDaemon, which keeps the rendered stubs and
+     * their dependencies from one compilation to the next.
+     */
+    GenerateStubProcessor(SignatureCache signatureCache, StubDependencies dependencies) {
+        super();
+        this.signatureCache = signatureCache;
+        this.dependencies = dependencies;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        // The processor is registered as "dynamic" in META-INF/gradle/incremental.annotation.processors,
+        // so Gradle asks us which category we belong to once we are initialized.
+        //  - A stub for the annotated type only depends on that type: we are isolating.
+        //  - A stub listed in toStub() depends on another type, which may change without
+        //    the annotated element changing: we have to be aggregating.
+        // Since we cannot know in advance which form is used, the safe choice is aggregating,
+        // unless the build explicitly promises that only self-stubs are generated.
+        String incrementalCategory = isIsolating() ? GRADLE_ISOLATING : GRADLE_AGGREGATING;
+
+        Set<String> options = new HashSet<String>();
+        options.add(OPTION_INCREMENTAL);
+        options.add(OPTION_PARALLELISM);
+        options.add(OPTION_EMIT);
+        options.add(OPTION_DEBUG);
+        options.add(OPTION_METRICS);
+        options.add(OPTION_SHARED_CACHE);
+        options.add(incrementalCategory);
+
+        return Collections.unmodifiableSet(options);
+    }
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+
+        diagnostics = new Diagnostics(processingEnv.getMessager(), isFlagSet(OPTION_DEBUG));
+    }
+
+    /**
+     * @return true if a boolean option is given, without a value or with any value but "false"
+     */
+    private boolean isFlagSet(String option) {
+        return processingEnv.getOptions().containsKey(option)
+                && !"false".equals(processingEnv.getOptions().get(option));
+    }
+
+    boolean isIsolating() {
+        return processingEnv != null
+                && "isolating".equals(processingEnv.getOptions().get(OPTION_INCREMENTAL));
     }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        metrics.startRound();
 
         // To be honest, this method was made just so that I could compile without a warning
         // telling me that annotations was not used.
         // -Wall -Werror is the way to go.
         printAllAnnotations(annotations);
 
+        // The method tables, the targets and the type names hold elements, which must not be
+        // used from one round to the next
+        getHierarchy().clear();
+        getTargets().clear();
+        typeNames.clear();
+
+        for (Element rootElement : roundEnv.getRootElements()) {
+            if (rootElement instanceof TypeElement) {
+                sourceTypes.add(((TypeElement) rootElement).getQualifiedName().toString());
+            }
+        }
+
         // Here, we are given a list of Element which were annotated by one of the annotations
         // contained in the annotations Set. As defined in the class annotation
         // @SupportedAnnotationTypes, we only have one annotation to process here, hence why we
         // do not bother to check by which annotation each element is annotated.
         for (Element annotatedElement : roundEnv.getElementsAnnotatedWith(GenerateStub.class)) {
             GenerateStub generateStub = annotatedElement.getAnnotation(GenerateStub.class);
-            Printer.debugPrint("Annotation @GenerateStub found on the element: " + annotatedElement.getSimpleName());
+            diagnostics.debug("Annotation @GenerateStub found on the element: %s", annotatedElement);
 
-            // If the user has specified some prefix and/or suffix for the generated classes,
-            // we take them into account. Otherwise, we just prefix the class name with "Stub"
-            // and we do not add anything at the end of the class name.
-            if (generateStub.prefix() != null && generateStub.prefix().length() > 0) {
-                prefix = generateStub.prefix();
+            // The options are read once for all the stubs of the annotation. An invalid
+            // latency is reported on the annotation, which gets no stub.
+            StubOptions options;
+
+            try {
+                options = StubOptions.of(generateStub);
             }
-            if (generateStub.suffix() != null && generateStub.suffix().length() > 0) {
-                suffix = generateStub.suffix();
+            catch (IllegalArgumentException iae) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, iae.getMessage(), annotatedElement);
+                continue;
             }
 
-            // TODO: extract all annotation parameters here and modify
-            // the generating methods to take them into account
-
+            // If the user has specified some prefix and/or suffix for the generated classes,
+            // we take them into account. Otherwise, we just prefix the class name with "Stub"
+            // and we do not add anything at the end of the class name. Both only hold for
+            // this annotation: the next element starts from the defaults again.
+            String prefix = generateStub.prefix() != null && generateStub.prefix().length() > 0
+                    ? generateStub.prefix() : DEFAULT_PREFIX;
+            String suffix = generateStub.suffix() != null ? generateStub.suffix() : "";
 
             // The @GenerateStub annotation takes an array of String as an parameter. Those
-            // Strings contains the fully qualified name of an interface to generate a stub for.
-            // However, if no argument is given, then the stub will extend or implement the annotated
-            // class or interface.
+            // Strings contains the fully qualified name of an interface to generate a stub for,
+            // the name of a package, or a pattern (com.acme.api.*Service) matching interfaces
+            // of a package. However, if no argument is given, then the stub will extend or
+            // implement the annotated class or interface.
             String[] toStub = generateStub.toStub();
 
+            if (dependencies != null) {
+                recordTargets(annotatedElement, toStub);
+            }
+
+            // A composite stub implements every target at once, under the name it is given
+            if (!generateStub.composite().trim().isEmpty()) {
+                requestComposite(annotatedElement, toStub, generateStub.composite().trim(), options);
+                continue;
+            }
+
             if (toStub == null || isInvalidParameterArray(toStub)) {
-                Printer.debugPrint("Generating a stub for the annotated element: " + annotatedElement.getSimpleName());
-                generateStubForElement(annotatedElement);
+                diagnostics.debug("Generating a stub for the annotated element: %s", annotatedElement);
+                requestStub(annotatedElement, ((TypeElement) annotatedElement).getQualifiedName().toString(), prefix, suffix,
+                        options);
             }
             else {
                 // For each string given as an argument
                 for (String interfaceFullName : toStub) {
                     // If the string is a potential class or interface, we try to generate a stub for it
                     if (!isEmptyOrNullString(interfaceFullName)) {
-                        Printer.debugPrint("Generating a stub for the element: " + interfaceFullName);
-                        generateStubForInterface(interfaceFullName);
+                        String target = interfaceFullName.trim();
+
+                        if (getTargets().isBulkTarget(target)) {
+                            requestStubs(annotatedElement, target, prefix, suffix, options);
+                        }
+                        else {
+                            diagnostics.debug("Generating a stub for the element: %s", target);
+                            requestStub(annotatedElement, target, prefix, suffix, options);
+                        }
                     }
                     else {
-                        Printer.debugPrint("Parameter was not a correct one: the String is empty or only contains whitespace characters.");
+                        diagnostics.debug("Parameter was not a correct one: the String is empty or only contains whitespace characters.");
                     }
                 }
             }
 
         }
 
+        // Everything requested so far (in this round or in a previous one) is generated now,
+        // unless it depends on types which do not exist yet. Those may be generated by another
+        // processor, so we wait for the next round, and give up only once processing is over.
+        generatePendingStubs(roundEnv.processingOver());
+
+        metrics.endRound();
+
+        if (roundEnv.processingOver()) {
+            if (renderPool != null) {
+                renderPool.shutdown();
+                renderPool = null;
+            }
+
+            if (signatureCache != null) {
+                long lookups = signatureCache.getHits() + signatureCache.getMisses();
+                processingEnv.getMessager().printMessage(Kind.NOTE, "GenerateStub signature cache: "
+                        + signatureCache.getHits() + " hits, " + signatureCache.getMisses() + " misses"
+                        + (lookups > 0 ? " (" + (100 * signatureCache.getHits() / lookups) + "% hit rate)" : ""));
+            }
+
+            if (sharedCache != null) {
+                processingEnv.getMessager().printMessage(Kind.NOTE, "GenerateStub shared cache: "
+                        + sharedCacheHits.get() + " hits, " + sharedCacheMisses.get() + " misses, "
+                        + sharedCache.size() + " stubs kept in the JVM");
+            }
+
+            diagnostics.debug("Method tables: %s built, %s reused", getHierarchy().getWalks(), getHierarchy().getReuses());
+            diagnostics.debug("Type name cache: %s hits, %s misses", typeNames.getHits(), typeNames.getMisses());
+
+            // The StubDaemon only compiles some of the annotated types, and writes the index
+            // of all of them itself
+            if (!isIsolating() && !stubIndex.isEmpty() && dependencies == null) {
+                writeIndex();
+            }
+
+            if (isFlagSet(OPTION_METRICS)) {
+                reportMetrics();
+            }
+        }
+
         return true;
     }
 
-    private boolean isEmptyOrNullString(String interfaceFullName) {
-        Printer.debugPrint("interfaceFullName IS NULL: " + (interfaceFullName != null));
-        return interfaceFullName == null || interfaceFullName.trim().length() <= 0;
+    private void reportMetrics() {
+        if (signatureCache != null) {
+            metrics.setCacheCounters(signatureCache.getHits(), signatureCache.getMisses());
+        }
+        metrics.setSharedCacheCounters(sharedCacheHits.get(), sharedCacheMisses.get());
+        metrics.setMethodTableCounters(getHierarchy().getWalks(), getHierarchy().getReuses());
+        metrics.setTypeNameCounters(typeNames.getHits(), typeNames.getMisses());
+
+        processingEnv.getMessager().printMessage(Kind.NOTE, metrics.toSummary());
+
+        if (isIsolating()) {
+            // An isolating processor must give exactly one originating element per file,
+            // and the report originates from every one of them.
+            processingEnv.getMessager().printMessage(Kind.NOTE, "GenerateStub: " + METRICS_RESOURCE
+                    + " is not written while " + OPTION_INCREMENTAL + "=isolating");
+            return;
+        }
+
+        writeResource(METRICS_RESOURCE, metrics.toJson());
     }
 
-    private boolean isInvalidParameterArray(String[] toStub) {
-        Printer.debugPrint("PARAMETER ARRAY LENGTH: " + toStub.length);
-        return toStub.length == 0 || (toStub.length == 1 && isEmptyOrNullString(toStub[0]));
+    private void writeIndex() {
+        // The index originates from every annotated type, which all still exist by now
+        List<Element> originatingElements = new ArrayList<Element>();
+
+        for (String annotatedName : stubIndex.getAnnotatedNames()) {
+            TypeElement annotatedElement = getTargets().getTypeElement(annotatedName);
+
+            if (annotatedElement != null) {
+                originatingElements.add(annotatedElement);
+            }
+        }
+
+        writeResource(StubRegistry.INDEX_RESOURCE, stubIndex.toResource(),
+                originatingElements.toArray(new Element[originatingElements.size()]));
+        // Every stub of the compilation, whatever the round it was written in
+        writeResource(StubIndex.CLASS_LIST_RESOURCE, stubIndex.toClassList(),
+                originatingElements.toArray(new Element[originatingElements.size()]));
     }
 
-    private void generateStubForInterface(String interfaceFullName) {
-        // Here, we get the Element representing the interface to implement as a stub
-        // from the processing environment.
-        Element element = processingEnv.getElementUtils().getTypeElement(interfaceFullName);
+    private void writeResource(String name, String content, Element... originatingElements) {
+        try {
+            FileObject resource = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", name, originatingElements);
+            Writer writer = resource.openWriter();
 
-        if (element == null) {
-            // If element is null, that mean the given class could not be found in the
-            // processing environment. We then throw a warning and do not do anything
-            // else.
-            processingEnv.getMessager().printMessage(Kind.WARNING, "Could not generate stub for interface " + interfaceFullName + ": class/interface not found");
+            try {
+                writer.write(content);
+            }
+            finally {
+                writer.close();
+            }
         }
-        else {
-            generateStubForElement(element);
+        catch (IOException ioe) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "Could not write " + name + ": " + ioe);
         }
     }
 
-    private void generateStubForElement(Element element) {
-        // We instantiate a Generator and give him a processing environment
-        Generator generator = new Generator(processingEnv, prefix, suffix);
+    private void requestStub(Element annotatedElement, String targetName, String prefix, String suffix, StubOptions options) {
+        // Only classes and interfaces can be annotated, so the annotated element is a TypeElement
+        String annotatedName = ((TypeElement) getTopLevelType(annotatedElement)).getQualifiedName().toString();
+        StubRequest request = new StubRequest(annotatedName, targetName, getStubName(targetName, prefix, suffix), prefix, suffix,
+                options);
 
-        // ...and we use it to generate the stub
-        generator.generateStubClass(element);
+        request(request, annotatedElement);
     }
 
-    void printDebug(Element element) {
+    private void request(StubRequest request, Element annotatedElement) {
+        if (ledger.request(request)) {
+            return;
+        }
+
+        // The stub is generated from the first request: the options of this one are lost,
+        // which is only silent when they are the same
+        StubRequest first = ledger.getRequest(request.getStubName());
+
+        if (first != null && !first.getOptions().equals(request.getOptions())) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "Stub " + request.getStubName() + " is requested by "
+                    + first.getAnnotatedName() + " (" + first.getOptions() + ") and by " + request.getAnnotatedName()
+                    + " (" + request.getOptions() + "): it is generated with the options of " + first.getAnnotatedName(),
+                    annotatedElement);
+        }
+        else {
+            diagnostics.debug("Stub %s was already requested, ignoring it", request.getStubName());
+        }
+    }
 
-        TypeElement classElement = (TypeElement) element;
+    /**
+     * Records what an annotation lists in toStub(), for the StubDaemon to process it again
+     * when a type it names, or matches, is added or changed: even the targets which give no
+     * stub (yet).
+     */
+    private void recordTargets(Element annotatedElement, String[] toStub) {
+        Set<String> targets = new TreeSet<String>();
 
-        String qualifiedName = classElement.getQualifiedName().toString();
+        if (toStub == null || isInvalidParameterArray(toStub)) {
+            targets.add(((TypeElement) annotatedElement).getQualifiedName().toString());
+        }
+        else {
+            for (String target : toStub) {
+                if (!isEmptyOrNullString(target)) {
+                    targets.add(target.trim());
+                }
+            }
+        }
 
-        Printer.debugPrint("QUALIFIED NAME: " + qualifiedName);
+        dependencies.addTargets(((TypeElement) getTopLevelType(annotatedElement)).getQualifiedName().toString(), targets);
+    }
 
-        String packageName = qualifiedName.substring(0, qualifiedName.lastIndexOf("."));
+    private void requestStubs(Element annotatedElement, String target, String prefix, String suffix, StubOptions options) {
+        // The whole package is listed once, whatever the number of patterns and interfaces
+        List<TypeElement> interfaces = getTargets().getInterfaces(target);
 
-        Printer.debugPrint("PACKAGE NAME: " + packageName);
+        if (interfaces.isEmpty()) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "Could not generate stubs for " + target
+                    + ": no interface matches", annotatedElement);
+            return;
+        }
 
-        String fileName = packageName + ".Stub" + classElement.getSimpleName();
+        diagnostics.debug("Generating stubs for the %s interfaces matching %s", interfaces.size(), target);
 
-        Printer.debugPrint("FILE NAME: " + fileName);
+        for (TypeElement anInterface : interfaces) {
+            requestStub(annotatedElement, anInterface.getQualifiedName().toString(), prefix, suffix, options);
+        }
     }
 
-    void printAllAnnotations(Set<? extends TypeElement> annotations) {
-        for (Object object : annotations) {
-            TypeElement annotation = (TypeElement) object;
-            Printer.debugPrint("Annotation " + annotation.getQualifiedName() + " will be processed");
+    private void requestComposite(Element annotatedElement, String[] toStub, String simpleName, StubOptions options) {
+        if (!SourceVersion.isIdentifier(simpleName) || SourceVersion.isKeyword(simpleName)) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Invalid composite stub name " + simpleName
+                    + ": expected a simple class name", annotatedElement);
+            return;
         }
 
-    }
+        // The targets are listed in the order of toStub, each one once
+        Set<String> targetNames = new LinkedHashSet<String>();
 
-    private class Generator {
+        if (toStub == null || isInvalidParameterArray(toStub)) {
+            targetNames.add(((TypeElement) annotatedElement).getQualifiedName().toString());
+        }
+        else {
+            for (String interfaceFullName : toStub) {
+                if (isEmptyOrNullString(interfaceFullName)) {
+                    continue;
+                }
 
-        private static final String THROWS_KEYWORD = "throws";
-        ProcessingEnvironment processingEnv = null;
+                String target = interfaceFullName.trim();
 
-        private String prefix = "Stub";
+                if (!getTargets().isBulkTarget(target)) {
+                    targetNames.add(target);
+                    continue;
+                }
 
-        private String suffix = "";
+                List<TypeElement> interfaces = getTargets().getInterfaces(target);
 
-        public Generator(ProcessingEnvironment processingEnvironment, String prefix, String suffix) {
-            this.processingEnv = processingEnvironment;
-            this.prefix = prefix;
-            this.suffix = suffix;
+                if (interfaces.isEmpty()) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "Could not generate stubs for " + target
+                            + ": no interface matches", annotatedElement);
+                }
+
+                for (TypeElement anInterface : interfaces) {
+                    targetNames.add(anInterface.getQualifiedName().toString());
+                }
+            }
         }
 
-        public String getMethodAsString(Element enclosed) {
-            String methodAsString = null;
-
-            // Safety checks :
-            //  - If the element is null (should not happen), then
-            //    we return null.
-            //  - If the element is anything other than a method
-            //    (that may happen if extending a class), then
-            //    we just ignore it and return null.
-            //  - Else, we go on with the generation.
-            if (enclosed  != null && enclosed.getKind() == ElementKind.METHOD) {
-                ExecutableType type = (ExecutableType) enclosed.asType();
-                methodAsString = "";
-
-                // So as to have unique names for our argument, I adopted a clever
-                // naming convention : arg(i), where i is the position of the
-                // argument in the method's signature.
-                int nbArg = 0;
-
-                // The method's modifiers. For example,
-                // public static final
-                Set<Modifier> modifiers = enclosed.getModifiers();
-
-                for (Modifier modifier : modifiers) {
-                    // Note that as we are providing IMPLEMENTATIONS of methods,
-                    // we have to filter out the ABSTRACT modifier.
-                    if (modifier.equals(Modifier.ABSTRACT)) {
-                        continue;
-                    }
+        if (targetNames.isEmpty()) {
+            return;
+        }
 
-                    // Also, since a interface is used to communicate with classes
-                    // from the outside, we ignore the PROTECTED and PRIVATE modifiers
-                    if (modifier.equals(Modifier.PROTECTED) || modifier.equals(Modifier.PRIVATE)) {
-                        return null;
-                    }
+        String annotatedName = ((TypeElement) getTopLevelType(annotatedElement)).getQualifiedName().toString();
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(annotatedElement);
+        String stubName = packageElement.isUnnamed() ? simpleName : packageElement.getQualifiedName() + "." + simpleName;
+        StubRequest request = new StubRequest(annotatedName, new ArrayList<String>(targetNames), stubName, options);
 
-                    methodAsString += modifier.toString() + " ";
-                }
+        diagnostics.debug("Generating composite stub %s for %s", stubName, targetNames);
 
-                // The return type of the method
-                methodAsString += getTypeMirrorName(type.getReturnType()) + " ";
+        request(request, annotatedElement);
+    }
 
-                // The name of the method, as well as the opening bracket for parameters
-                methodAsString += enclosed.getSimpleName() + "(";
+    private TargetResolver getTargets() {
+        if (targets == null) {
+            targets = new TargetResolver(processingEnv.getElementUtils());
+        }
 
-                // The arguments of the method
-                for (TypeMirror typeMirror : type.getParameterTypes()) {
+        return targets;
+    }
 
-                    // One of many ways to hand-write a comma-separated array/list/whatever
-                    if (nbArg > 0) {
-                        methodAsString += COMMA_AND_SPACE;
-                    }
+    private BinaryNames getBinaryNames() {
+        if (binaryNames == null) {
+            binaryNames = new BinaryNames(processingEnv.getElementUtils(), processingEnv.getTypeUtils());
+        }
 
-                    methodAsString += getTypeMirrorName(typeMirror) + " arg" + nbArg++;
-                }
+        return binaryNames;
+    }
+
+    private HierarchyResolver getHierarchy() {
+        if (hierarchy == null) {
+            hierarchy = new HierarchyResolver(processingEnv.getElementUtils(), processingEnv.getTypeUtils());
+        }
 
-                // The closing bracket for the parameters
-                methodAsString += ") ";
+        return hierarchy;
+    }
 
-                String thrownExceptions = getThrownExceptionsAsString(type);
+    private void generatePendingStubs(boolean lastRound) {
+        // The stubs of the round are first snapshot on this thread, and written afterwards
+        List<PreparedStub> preparedStubs = new ArrayList<PreparedStub>();
 
-                if (thrownExceptions != null) {
-                    methodAsString += thrownExceptions;
-                }
+        for (StubRequest request : ledger.drainPending()) {
+            // Here, we get the Elements representing the interfaces to implement as a stub
+            // from the processing environment (a single one, unless the stub is composite).
+            // Targets matched by a package or a pattern were already found, in this round
+            List<TypeElement> elements = new ArrayList<TypeElement>(request.getTargetNames().size());
+            String missingTarget = null;
+            boolean unresolved = false;
 
-                // The opening curly bracket for the method's bod
-                methodAsString += " {\n";
+            for (String targetName : request.getTargetNames()) {
+                TypeElement element = getTargets().getTypeElement(targetName);
 
-                // If the method is returning something else than VOID, we should
-                // fake the returned value too. Else, the compiler will get angry
-                // at us when it will compile our class.
-                if (!type.getReturnType().getKind().equals(TypeKind.VOID)) {
-                    methodAsString += "    return ";
-                    methodAsString += getDefaultValueForTypeKind(type.getReturnType().getKind());
-                    methodAsString += ";\n";
+                if (element == null) {
+                    missingTarget = targetName;
+                }
+                else {
+                    unresolved |= hasUnresolvedTypes(element);
+                    elements.add(element);
                 }
+            }
 
-                // The closing curly bracket for the method's body
-                methodAsString += "}\n";
+            TypeElement annotatedElement = getTargets().getTypeElement(request.getAnnotatedName());
 
-                Printer.debugPrint(methodAsString);
+            if (missingTarget != null || unresolved) {
+                if (!lastRound) {
+                    diagnostics.debug("Stub %s depends on unresolved types, deferring it", request.getStubName());
+                    metrics.stubDeferred();
+                    ledger.defer(request);
+                }
+                else if (missingTarget != null) {
+                    // If element is null, that mean the given class could not be found in the
+                    // processing environment. We then throw a warning and do not do anything
+                    // else.
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "Could not generate stub for interface " + missingTarget + ": class/interface not found");
+                }
+                else {
+                    // Nobody generated the missing types: we still write the stub, and the
+                    // compiler will report what is missing.
+                    prepareStub(preparedStubs, annotatedElement, elements, request);
+                }
+            }
+            else {
+                prepareStub(preparedStubs, annotatedElement, elements, request);
             }
-
-            return methodAsString;
         }
 
-        public String getThrownExceptionsAsString(ExecutableType type) {
-            String thrownExceptionsAsString = null;
+        writeStubs(preparedStubs);
 
-            if (type.getThrownTypes() != null && type.getThrownTypes().size() > 0) {
-                // The keyword is "throws"
-                thrownExceptionsAsString = THROWS_KEYWORD;
+        // What the render pool had to say
+        diagnostics.flush();
+    }
 
-                for (TypeMirror thrownException : type.getThrownTypes()) {
-                    String exceptionQualifiedName = getTypeMirrorName(thrownException);
+    boolean hasUnresolvedTypes(TypeElement element) {
+        // A type which cannot be resolved yet is modeled with the ERROR kind. Rendering it now
+        // would write the literal "ERROR" in the stub. Supertypes are checked as well, as
+        // their methods are stubbed too.
+        if (containsErrorType(element.getSuperclass())) {
+            return true;
+        }
+        for (TypeMirror superInterface : element.getInterfaces()) {
+            if (containsErrorType(superInterface)) {
+                return true;
+            }
+        }
+        for (ExecutableElement method : getHierarchy().getMethodTable(element)) {
+            ExecutableType type = (ExecutableType) method.asType();
 
-                    if (thrownExceptionsAsString.length() != THROWS_KEYWORD.length()) {
-                        thrownExceptionsAsString += ", " + exceptionQualifiedName;
-                    }
-                    else {
-                        thrownExceptionsAsString += " " + exceptionQualifiedName;
-                    }
+            if (containsErrorType(type.getReturnType())) {
+                return true;
+            }
+            for (TypeMirror typeMirror : type.getParameterTypes()) {
+                if (containsErrorType(typeMirror)) {
+                    return true;
+                }
+            }
+            for (TypeMirror typeMirror : type.getThrownTypes()) {
+                if (containsErrorType(typeMirror)) {
+                    return true;
                 }
             }
+        }
 
-            return thrownExceptionsAsString;
+        return false;
+    }
+
+    private boolean containsErrorType(TypeMirror typeMirror) {
+        switch (typeMirror.getKind()) {
+            case ERROR:
+                return true;
+            case ARRAY:
+                return containsErrorType(((ArrayType) typeMirror).getComponentType());
+            case WILDCARD:
+                WildcardType wildcardType = (WildcardType) typeMirror;
+                return (wildcardType.getExtendsBound() != null && containsErrorType(wildcardType.getExtendsBound()))
+                        || (wildcardType.getSuperBound() != null && containsErrorType(wildcardType.getSuperBound()));
+            case DECLARED:
+                for (TypeMirror typeArgument : ((DeclaredType) typeMirror).getTypeArguments()) {
+                    if (containsErrorType(typeArgument)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return false;
         }
+    }
 
-        public String getTypeMirrorName(TypeMirror typeMirror) {
-            // All quotes in comment are from docs.oracle.com/javase/7/docs/api/javax/lang/model/type/*
-            String name = typeMirror.getKind().toString();
+    /**
+     * @return the default value of a kind of type, as source: 0, false, null...
+     */
+    static String getDefaultValueForTypeKind(TypeKind typeKind) {
+        String result = null;
+
+        // Those values are taken directly from the Java Language Specification.
+        // See docs.oracle.com/javase/specs/jls/se7/html/jls-4.html#jls-4.12.5
+        switch(typeKind) {
+            case BYTE:
+                result = "(byte)0";
+                break;
+            case SHORT:
+                result = "(short)0";
+                break;
+            case INT:
+                result = "0";
+                break;
+            case LONG:
+                result = "0L";
+                break;
+            case FLOAT:
+                result = "0.0f";
+                break;
+            case DOUBLE:
+                result = "0.0d";
+                break;
+            case CHAR:
+                // Escaped, so that the source holds the escape and not a NUL character
+                result = "'\\u0000'";
+                break;
+            case BOOLEAN:
+                result = "false";
+                break;
+            default:
+                result = "null";
+                break;
+        }
 
-            switch (typeMirror.getKind()) {
-                case DECLARED:
-                    // This could be any class: String, Integer, or even a user-defined one.
-                    DeclaredType declaredType = ((DeclaredType) typeMirror);
-                    name = getFullyQualifiedName(declaredType.asElement());
+        return result;
+    }
 
-                    String typeArguments = getTypeArguments(declaredType);
+    static String getStubName(String targetName, String prefix, String suffix) {
+        // Here, we are building the fully qualified name of our new class which will
+        // implement the specified interface.
+        int lastDot = targetName.lastIndexOf(".");
 
-                    if (typeArguments != null) {
-                        name += typeArguments;
-                    }
+        if (lastDot < 0) {
+            return prefix + targetName + suffix;
+        }
 
-                    break;
-                case VOID:
-                    // Void. duh.
-                    name = "void";
-                    break;
-                case INT:
-                    name = "int";
-                    break;
-                case ARRAY:
-                    // A array-type is easy enough to represent: just add [] at the end of the type
-                    name = getTypeMirrorName( ((ArrayType)typeMirror).getComponentType() ) + "[]";
-                    break;
-                case BOOLEAN:
-                    name = "boolean";
-                    break;
-                case BYTE:
-                    name = "byte";
-                    break;
-                case CHAR:
-                    name = "char";
-                    break;
-                case DOUBLE:
-                    name = "double";
-                    break;
-                case ERROR:
-                    // "Represents a class or interface type that cannot be properly modeled."
-                    break;
-                case EXECUTABLE:
-                    break;
-                case FLOAT:
-                    name = "float";
-                    break;
-                case LONG:
-                    name = "long";
-                    break;
-                case NONE:
-                    break;
-                case NULL:
-                    // "Represents the null type. This is the type of the expression null."
-                    break;
-                case OTHER:
-                    break;
-                case PACKAGE:
-                    break;
-                case SHORT:
-                    name = "short";
-                    break;
-                case TYPEVAR:
-                    // "Represents a type variable. A type variable may be explicitly declared
-                    // by a type parameter of a type, method, or constructor.
-                    // A type variable may also be declared implicitly, as by the capture conversion
-                    // of a wildcard type argument (see chapter 5 of The Java™ Language Specification)."
-                    break;
-                case WILDCARD:
-                    // "Represents a wildcard type argument. Examples include:
-                    // ?
-                    // ? extends Number
-                    // ? super T"
-                    name = "?";
-                    WildcardType wildcardType = (WildcardType) typeMirror;
-
-                    if (wildcardType.getExtendsBound() != null) {
-                        name += " extends " + getTypeMirrorName(wildcardType.getExtendsBound());
-                    }
-                    else {
-                        if (wildcardType.getSuperBound() != null) {
-                            name += " super " + getTypeMirrorName(wildcardType.getSuperBound());
-                        }
-                    }
+        return targetName.substring(0, lastDot) + "." + prefix + targetName.substring(lastDot + 1) + suffix;
+    }
+
+    private boolean isEmptyOrNullString(String interfaceFullName) {
+        return interfaceFullName == null || interfaceFullName.trim().length() <= 0;
+    }
+
+    private boolean isInvalidParameterArray(String[] toStub) {
+        return toStub.length == 0 || (toStub.length == 1 && isEmptyOrNullString(toStub[0]));
+    }
 
-                    break;
-                default:
-                    break;
+    private void prepareStub(List<PreparedStub> preparedStubs, Element annotatedElement, List<TypeElement> elements,
+            StubRequest request) {
+        for (TypeElement element : elements) {
+            if (isIsolating() && !getTopLevelType(element).equals(getTopLevelType(annotatedElement))) {
+                // An isolating processor may only depend on the annotated type: the stub will not
+                // be regenerated when the target changes on its own.
+                processingEnv.getMessager().printMessage(Kind.WARNING, "Stub for " + element.getQualifiedName()
+                        + " depends on another type than the annotated one, it will not be refreshed by"
+                        + " incremental builds while " + OPTION_INCREMENTAL + "=isolating", annotatedElement);
             }
+        }
+
+        // The ledger makes sure a stub is never written twice, whoever asked for it
+        if (!ledger.markGenerated(request.getStubName())) {
+            return;
+        }
+
+        // We instantiate a Generator and give him a processing environment
+        // Only plain stubs can be written as class files, the others are written as sources
+        boolean emitClass = isEmittingClasses() && request.getOptions().isPlain() && !request.isComposite();
 
-            return name;
+        if (isEmittingClasses() && !emitClass) {
+            diagnostics.debug("Stub %s is not a plain stub, it is written as a source", request.getStubName());
         }
 
-        public String getTypeArguments(DeclaredType declaredType) {
-            String result = null;
-            List<? extends TypeMirror> typeArguments = declaredType.getTypeArguments();
+        Generator generator = new Generator(processingEnv, typeNames, getHierarchy(),
+                emitClass ? getBinaryNames() : null, request.getPrefix(), request.getSuffix(), request.getOptions());
 
-            // If the type has at least one type argument, process the list
-            if (typeArguments != null && declaredType.getTypeArguments().size() > 0) {
-                result = "<";
-                boolean moreThanOneType = false;
+        // ...and we use it to take a snapshot of what the stub needs
+        StubModel model = request.isComposite()
+                ? generator.createCompositeModel(elements, request.getStubName(), annotatedElement)
+                : generator.createModel(elements.get(0));
 
-                for (Object object : typeArguments) {
-                    // We get the type name's as a String ...
-                    TypeMirror typeMirror = (TypeMirror) object;
-                    String typeName = getTypeMirrorName(typeMirror);
+        if (model != null && checkMemberNames(model, generator.getEmptyValues(), elements, annotatedElement)
+                && checkLatencyMethods(model, annotatedElement)) {
+            List<String> targetBinaryNames = new ArrayList<String>(elements.size());
 
-                    // ... and add it
-                    if (moreThanOneType) {
-                        // One of many ways to hand-write a comma-separated array/list/whatever
-                        result = result.concat(COMMA_AND_SPACE);
-                    }
-                    else {
-                        moreThanOneType = true;
-                    }
+            for (TypeElement element : elements) {
+                targetBinaryNames.add(processingEnv.getElementUtils().getBinaryName(element).toString());
+            }
+
+            preparedStubs.add(new PreparedStub(model, getOriginatingElements(annotatedElement, elements),
+                    targetBinaryNames, request.getAnnotatedName(), isFromClassFiles(elements)));
 
-                    result += typeName;
+            if (dependencies != null) {
+                Set<String> types = new TreeSet<String>();
+
+                for (TypeElement element : elements) {
+                    addDependencies(element, types);
                 }
 
-                result += ">";
+                dependencies.add(model.getQualifiedName(), targetBinaryNames, request.getAnnotatedName(), types);
             }
+        }
+    }
 
-            return result;
+    /**
+     * Reports the members a stub declares for itself which clash with the members it
+     * inherits from its targets: the INSTANCE of a singleton, and the fields and helpers of
+     * its empty values. A method of a target with the name of a helper, and no parameters,
+     * could not be implemented, and a field would be hidden by the one of the stub.
+     *
+     * @return false if a member clashes, in which case the stub must not be written
+     */
+    private boolean checkMemberNames(StubModel model, EmptyValues emptyValues, List<TypeElement> elements,
+            Element annotatedElement) {
+        Set<String> fieldNames = new TreeSet<String>(emptyValues.getFieldNames());
+
+        if (model.getOptions().isSingleton()) {
+            fieldNames.add(StubRenderer.INSTANCE_FIELD);
         }
 
-        public String getDefaultValueForTypeKind(TypeKind typeKind) {
-            String result = null;
+        boolean valid = true;
 
-            // Those values are taken directly from the Java Language Specification.
-            // See docs.oracle.com/javase/specs/jls/se7/html/jls-4.html#jls-4.12.5
-            switch(typeKind) {
-                case BYTE:
-                    result = "(byte)0";
-                    break;
-                case SHORT:
-                    result = "(short)0";
-                    break;
-                case INT:
-                    result = "0";
-                    break;
-                case LONG:
-                    result = "0L";
-                    break;
-                case FLOAT:
-                    result = "0.0f";
-                    break;
-                case DOUBLE:
-                    result = "0.0d";
-                    break;
-                case CHAR:
-                    result = "'\u0000'";
-                    break;
-                case BOOLEAN:
-                    result = "false";
-                    break;
-                default:
-                    result = "null";
-                    break;
-            }
+        for (TypeElement element : elements) {
+            for (Element member : processingEnv.getElementUtils().getAllMembers(element)) {
+                String name = member.getSimpleName().toString();
+                Set<Modifier> modifiers = member.getModifiers();
 
-            return result;
+                // Private members are not inherited, nor are the static methods of interfaces
+                if (modifiers.contains(Modifier.PRIVATE)) {
+                    continue;
+                }
+
+                if (member.getKind() == ElementKind.FIELD && fieldNames.contains(name)) {
+                    processingEnv.getMessager().printMessage(Kind.ERROR, "Stub " + model.getQualifiedName()
+                            + " cannot declare its field " + name + ": " + element.getQualifiedName()
+                            + " has a field with this name", annotatedElement);
+                    valid = false;
+                }
+                else if (member.getKind() == ElementKind.METHOD && emptyValues.getMethodNames().contains(name)
+                        && ((ExecutableElement) member).getParameters().isEmpty()
+                        && !(modifiers.contains(Modifier.STATIC) && member.getEnclosingElement().getKind().isInterface())) {
+                    processingEnv.getMessager().printMessage(Kind.ERROR, "Stub " + model.getQualifiedName()
+                            + " cannot declare its method " + name + "(): " + element.getQualifiedName()
+                            + " has a method with this signature", annotatedElement);
+                    valid = false;
+                }
+            }
         }
 
-        public String getClassInitializer(Element element) {
-            String initializer = "";
+        return valid;
+    }
 
-            TypeElement classElement = (TypeElement) element;
-            PackageElement packageElement =
-                    (PackageElement) classElement.getEnclosingElement();
+    /**
+     * Reports the latencies given for methods the stub does not have: a name misspelled
+     * would otherwise leave the calls it was meant for without delay.
+     *
+     * @return false if a latency matches no method, in which case the stub must not be written
+     */
+    private boolean checkLatencyMethods(StubModel model, Element annotatedElement) {
+        Set<String> names = new HashSet<String>();
+
+        for (MethodModel method : model.getMethods()) {
+            names.add(method.getName());
+        }
 
-            // If the user has specified some prefix and/or suffix for the generated classes,
-            // we take them into account. Otherwise, we just pefix the class name with "Stub"
-            // and we do not add anything at the end of the class name.
-            // Here, we generate the package name for the file ...
-            initializer += "package " +  packageElement.getQualifiedName() + ";\n\n";
-            // ... and the declaration of our class
-            initializer += "public class " + prefix + element.getSimpleName() + suffix + " ";
+        List<String> targetNames = model.getTargetNames();
+        String targets = targetNames.size() == 1 ? targetNames.get(0) : targetNames.toString();
+        boolean valid = true;
 
-            // Interfaces are IMPLEMENTED ...
-            if (ElementKind.INTERFACE.equals(element.getKind())) {
-                initializer += "implements ";
+        for (String name : model.getOptions().getLatency().keySet()) {
+            if (!name.equals(StubOptions.ALL_METHODS) && !names.contains(name)) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "Stub " + model.getQualifiedName() + " has a latency for "
+                        + name + ", which is not a stubbed method of " + targets, annotatedElement);
+                valid = false;
             }
-            // ... while classes are EXTENDED
-            if (ElementKind.CLASS.equals(element.getKind())) {
-                initializer += "extends ";
+        }
+
+        return valid;
+    }
+
+    /**
+     * @return true if none of the types is compiled from sources: they were all read from
+     * class files, which do not change under a build
+     */
+    private boolean isFromClassFiles(List<TypeElement> elements) {
+        for (TypeElement element : elements) {
+            if (sourceTypes.contains(((TypeElement) getTopLevelType(element)).getQualifiedName().toString())) {
+                return false;
             }
+        }
 
-            // The fully qualified name of the elment we are writing a stub for
-            initializer += getFullyQualifiedName(element);
+        return true;
+    }
 
-            initializer += " {\n\n";
+    /**
+     * Adds the top-level types of a type and of all its supertypes (and the names of the
+     * nested ones, which are walked once).
+     */
+    private void addDependencies(TypeElement element, Set<String> types) {
+        if (!types.add(element.getQualifiedName().toString())) {
+            return;
+        }
 
-            Printer.debugPrint(initializer);
+        types.add(((TypeElement) getTopLevelType(element)).getQualifiedName().toString());
 
-            return initializer;
+        for (TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(element.asType())) {
+            if (supertype.getKind() == TypeKind.DECLARED) {
+                addDependencies((TypeElement) ((DeclaredType) supertype).asElement(), types);
+            }
         }
+    }
 
-        public String getFullyQualifiedName(Element element) {
-            String name = "";
+    private void writeStubs(List<PreparedStub> preparedStubs) {
+        if (!isEmittingClasses()) {
+            writeStubs(preparedStubs, new SourceOutput(signatureCache, getSharedCache()));
+            return;
+        }
 
-           if (element != null) {
-               name = processingEnv.getElementUtils().getPackageOf(element).getQualifiedName() + "." + element.getSimpleName();
-           }
+        // Stubs modeled for class files have their internal names
+        List<PreparedStub> classStubs = new ArrayList<PreparedStub>(preparedStubs.size());
+        List<PreparedStub> sourceStubs = new ArrayList<PreparedStub>();
 
-            return name;
+        for (PreparedStub preparedStub : preparedStubs) {
+            if (preparedStub.getModel().getInternalName() != null) {
+                classStubs.add(preparedStub);
+            }
+            else {
+                sourceStubs.add(preparedStub);
+            }
         }
 
-        public String getEndOfClassSequence() {
-            String endingSequence = "\n}\n";
+        writeStubs(classStubs, new ClassOutput());
+        writeStubs(sourceStubs, new SourceOutput(signatureCache, getSharedCache()));
+    }
+
+    private <T> void writeStubs(List<PreparedStub> preparedStubs, final StubOutput<T> output) {
+        if (getRenderPool() == null || preparedStubs.size() < 2) {
+            // Serial mode: each stub is rendered when it is written
+            for (PreparedStub preparedStub : preparedStubs) {
+                writeStub(output, preparedStub, null);
+            }
+            return;
+        }
 
-            Printer.debugPrint(endingSequence);
+        // Parallel mode: the stubs are rendered on the pool, as StubModels do not need
+        // the javac model anymore...
+        List<Future<T>> renderedStubs = new ArrayList<Future<T>>(preparedStubs.size());
 
-            return endingSequence;
+        for (final PreparedStub preparedStub : preparedStubs) {
+            renderedStubs.add(getRenderPool().submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return output.render(preparedStub);
+                }
+            }));
         }
 
-        void generateStubClass(Element element) {
-            // The try...catch block is here to prevent any IOException from
-            // interfering with the compiling process
+        // ...but the Filer is not thread-safe either, so they are written from this thread,
+        // in the order the stubs were requested, which keeps the build deterministic.
+        for (int i = 0; i < preparedStubs.size(); i++) {
             try {
-                // We only want to be able to process class or interfaces.
-                // Else, the behaviour of the processor is undefined.
-                if (element.getKind() == ElementKind.CLASS || element.getKind() == ElementKind.INTERFACE) {
-                    // This will print different version of the name of the class/interface
-                    printDebug(element);
-
-                    TypeElement classElement = (TypeElement) element;
+                writeStub(output, preparedStubs.get(i), renderedStubs.get(i).get());
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                processingEnv.getMessager().printMessage(Kind.ERROR, "Interrupted while rendering stub "
+                        + preparedStubs.get(i).getModel().getQualifiedName());
+                return;
+            }
+            catch (ExecutionException ee) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "Could not render stub "
+                        + preparedStubs.get(i).getModel().getQualifiedName() + ": " + ee.getCause());
+            }
+        }
+    }
 
-                    // Here, we are building the fully qualified name of our new class which will
-                    // implement the specified interface.
+    private <T> void writeStub(StubOutput<T> output, PreparedStub preparedStub, T rendered) {
+        // The try...catch block is here to prevent any IOException from
+        // interfering with the compiling process
+        try {
+            long bytes = output.write(preparedStub, rendered);
+            metrics.stubWritten(preparedStub.getModel(), bytes);
+
+            // Isolating builds cannot have a single index for every stub: each stubbed type
+            // gets its own entry, which only originates from the stub's own type
+            for (String targetBinaryName : preparedStub.getTargetBinaryNames()) {
+                if (stubIndex.add(targetBinaryName, preparedStub.getModel().getQualifiedName(), preparedStub.getAnnotatedName())
+                        && isIsolating()) {
+                    writeResource(StubRegistry.TARGET_RESOURCE_DIRECTORY + targetBinaryName,
+                            preparedStub.getModel().getQualifiedName() + "\n", preparedStub.getOriginatingElements());
+                }
+            }
+            diagnostics.debug("Created new file: %s", preparedStub.getModel().getQualifiedName());
+        }
+        catch(IOException ioe) {
+            // Here is hoping this will never happen ...
+            diagnostics.debug("Error while writing new file: %s", ioe);
+        }
+    }
 
-                    String qualifiedName = classElement.getQualifiedName().toString();
-                    String fileName = qualifiedName.substring(0, qualifiedName.lastIndexOf(".")) + "." + prefix + classElement.getSimpleName() + suffix;
+    /**
+     * How stubs are written: as sources or as class files.
+     */
+    private interface StubOutput<T> {
+
+        /**
+         * Renders a stub in memory. Called from any thread.
+         */
+        T render(PreparedStub preparedStub);
+
+        /**
+         * Writes a stub through the Filer. Called from the compiler thread.
+         *
+         * @param rendered what render() returned, or null if the stub was not rendered yet
+         * @return the number of bytes written
+         */
+        long write(PreparedStub preparedStub, T rendered) throws IOException;
+    }
 
-                    // We create a new source file in which we will write our newly (not yet) generated class
-                    JavaFileObject jfo = processingEnv.getFiler().createSourceFile(fileName);
-                    Printer.debugPrint("CREATED NEW FILE: " + fileName);
+    private class SourceOutput implements StubOutput<String> {
 
-                    // We need to write in a file -> BufferedWriter
-                    BufferedWriter bw = new BufferedWriter(jfo.openWriter());
+        // null unless the StubDaemon keeps stubs between its compilations
+        private final SignatureCache cache;
 
-                    // We first write the class initializer (the class name and the opening curly brace)
-                    bw.append(getClassInitializer(element));
+        // null if stubs are not shared with the other compilations of the JVM
+        private final SharedStubCache sharedCache;
 
-                    // We then iterate over everything contained in this class, and try to
-                    // write a stub method for it.
-                    for (Element enclosedElement : classElement.getEnclosedElements()) {
-                        String methodAsString = getMethodAsString(enclosedElement);
+        SourceOutput(SignatureCache cache, SharedStubCache sharedCache) {
+            this.cache = cache;
+            this.sharedCache = sharedCache;
+        }
 
-                        // If the element is anything other than a method, null will be returned
-                        if (methodAsString != null) {
-                            bw.append(methodAsString);
-                        }
+        /**
+         * @return the source of the stub: from the caches if its signatures did not change,
+         * freshly rendered (and then cached) otherwise
+         */
+        @Override
+        public String render(PreparedStub preparedStub) {
+            StubModel model = preparedStub.getModel();
+            SharedStubCache shared = preparedStub.isFromClassFiles() ? sharedCache : null;
+
+            if (cache == null && shared == null) {
+                return renderer.render(model);
+            }
 
-                    }
+            // The shared cache holds the stubs of every compilation of the JVM: it is looked up first
+            String fingerprint = SignatureCache.fingerprint(model);
 
-                    // Finally, we write the closing curly brace of the class's body
-                    bw.append(getEndOfClassSequence());
+            if (shared != null) {
+                String source = shared.get(fingerprint);
+                (source != null ? sharedCacheHits : sharedCacheMisses).incrementAndGet();
 
-                    // To be safe, we flush the BufferedWriter, and then close it
-                    bw.flush();
-                    bw.close();
+                if (source != null) {
+                    return source;
                 }
-                else {
-                    // If the processor ends up here, it means the annotation was used on something
-                    // other than a class or an interface. We log it, for debugging purposes only.
-                    Printer.debugPrint("DEBUG: found element " + element.getSimpleName() + " of type " + element.getKind());
+            }
+
+            String source = cache != null ? cache.get(fingerprint) : null;
+
+            if (source == null) {
+                source = renderer.render(model);
+
+                if (cache != null) {
+                    cache.put(fingerprint, source);
                 }
             }
-            catch(IOException ioe) {
-                // Here is hoping this will never happen ...
-                Printer.debugPrint("Error while writing new file: " + ioe);
+
+            if (shared != null) {
+                shared.put(fingerprint, source);
             }
+
+            return source;
         }
 
-    }
+        @Override
+        public long write(PreparedStub preparedStub, String source) throws IOException {
+            StubModel model = preparedStub.getModel();
 
-    private static class Printer {
-        static void debugPrint(String... strings) {
-            if (isDEBUG_PRINT()) {
-                for (String string : strings) {
-                    System.out.print(string);
-                }
-                System.out.println();
+            if (source == null && (cache != null || (sharedCache != null && preparedStub.isFromClassFiles()))) {
+                source = render(preparedStub);
+            }
+
+            // We create a new source file in which we will write our newly (not yet) generated class
+            // The originating elements are what lets incremental builds skip the stubs
+            // of types which did not change.
+            JavaFileObject jfo = processingEnv.getFiler().createSourceFile(model.getQualifiedName(), preparedStub.getOriginatingElements());
+
+            // We need to write in a file -> BufferedWriter, and we count what goes through it
+            CountingWriter counter = new CountingWriter(jfo.openWriter());
+            BufferedWriter bw = new BufferedWriter(counter);
+
+            if (source != null) {
+                bw.write(source);
             }
+            else {
+                // Nothing was rendered beforehand: the stub is written token by token in the
+                // writer, without building a String for a method or for the whole class.
+                renderer.render(model, bw);
+            }
+
+            // To be safe, we flush the BufferedWriter, and then close it
+            bw.flush();
+            bw.close();
+
+            return counter.getBytes();
+        }
+    }
+
+    private class ClassOutput implements StubOutput<byte[]> {
+
+        @Override
+        public byte[] render(PreparedStub preparedStub) {
+            return classEmitter.emit(preparedStub.getModel());
+        }
+
+        @Override
+        public long write(PreparedStub preparedStub, byte[] classFile) throws IOException {
+            StubModel model = preparedStub.getModel();
+
+            if (classFile == null) {
+                classFile = render(preparedStub);
+            }
+
+            // The class file goes straight to the output: javac will neither parse it, nor
+            // start another round for it
+            JavaFileObject jfo = processingEnv.getFiler().createClassFile(model.getQualifiedName(), preparedStub.getOriginatingElements());
+            OutputStream out = jfo.openOutputStream();
+
+            try {
+                out.write(classFile);
+            }
+            finally {
+                out.close();
+            }
+
+            return classFile.length;
+        }
+    }
+
+    /**
+     * Counts the bytes of what is written through it, once encoded in UTF-8 (the encoding
+     * of generated sources, unless told otherwise).
+     */
+    private static class CountingWriter extends FilterWriter {
+
+        private long bytes = 0;
+
+        CountingWriter(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            count((char) c);
+            super.write(c);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                count(chars[i]);
+            }
+            super.write(chars, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                count(string.charAt(i));
+            }
+            super.write(string, offset, length);
+        }
+
+        private void count(char c) {
+            // A surrogate pair is 4 bytes, 2 for each of its halves
+            if (c < 0x80) {
+                bytes += 1;
+            }
+            else if (c < 0x800 || Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+            else {
+                bytes += 3;
+            }
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+
+    boolean isEmittingClasses() {
+        return processingEnv != null && EMIT_CLASS.equals(processingEnv.getOptions().get(OPTION_EMIT));
+    }
+
+    /**
+     * @return the cache of rendered stubs shared by the compilations of the JVM, or null if
+     * this compilation does not use it
+     */
+    private SharedStubCache getSharedCache() {
+        if (sharedCache == null && !sharedCacheDisabled) {
+            if (!isFlagSet(OPTION_SHARED_CACHE)) {
+                sharedCacheDisabled = true;
+                return null;
+            }
+
+            // javac gives no value for -Ageneratestub.sharedCache alone
+            String capacity = processingEnv.getOptions().get(OPTION_SHARED_CACHE);
+            int stubs = SHARED_CACHE_DEFAULT;
+
+            try {
+                if (capacity != null && !capacity.trim().isEmpty()) {
+                    stubs = Integer.parseInt(capacity.trim());
+                }
+            }
+            catch (NumberFormatException nfe) {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "Ignoring " + OPTION_SHARED_CACHE + "=" + capacity
+                        + ": expected a number of stubs");
+            }
+
+            if (stubs <= 0) {
+                sharedCacheDisabled = true;
+                return null;
+            }
+
+            sharedCache = SharedStubCache.getInstance(stubs);
+        }
+
+        return sharedCache;
+    }
+
+    /**
+     * @return the pool rendering stubs in parallel, or null if they are rendered on the
+     * compiler thread (the default)
+     */
+    private ForkJoinPool getRenderPool() {
+        if (renderPool == null) {
+            String parallelism = processingEnv.getOptions().get(OPTION_PARALLELISM);
+
+            if (parallelism == null || parallelism.trim().isEmpty()) {
+                return null;
+            }
+
+            int threads;
+
+            if ("auto".equals(parallelism.trim())) {
+                threads = Runtime.getRuntime().availableProcessors();
+            }
+            else {
+                try {
+                    threads = Integer.parseInt(parallelism.trim());
+                }
+                catch (NumberFormatException nfe) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "Ignoring " + OPTION_PARALLELISM + "=" + parallelism
+                            + ": expected a number of threads or \"auto\"");
+                    threads = 1;
+                }
+            }
+
+            if (threads <= 1) {
+                return null;
+            }
+
+            renderPool = new ForkJoinPool(threads);
+        }
+
+        return renderPool;
+    }
+
+    Element[] getOriginatingElements(Element annotatedElement, List<? extends Element> elements) {
+        // Build tools (Gradle, IDEs...) use the originating elements to know which generated
+        // files must be deleted or regenerated when a source file changes. A stub originates
+        // from the annotated type, and from the stubbed types when they are other ones.
+        // Those have to be top-level types, as that is what source files map to.
+        Element annotatedType = getTopLevelType(annotatedElement);
+
+        if (isIsolating()) {
+            // Isolating processors must give exactly one originating element per file
+            return new Element[] { annotatedType };
+        }
+
+        Set<Element> originatingElements = new LinkedHashSet<Element>();
+        originatingElements.add(annotatedType);
+
+        for (Element element : elements) {
+            originatingElements.add(getTopLevelType(element));
+        }
+
+        return originatingElements.toArray(new Element[originatingElements.size()]);
+    }
+
+    Element getTopLevelType(Element element) {
+        Element topLevel = element;
+
+        while (topLevel.getEnclosingElement() != null
+                && topLevel.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+            topLevel = topLevel.getEnclosingElement();
+        }
+
+        return topLevel;
+    }
+
+    void printAllAnnotations(Set<? extends TypeElement> annotations) {
+        for (Object object : annotations) {
+            TypeElement annotation = (TypeElement) object;
+            diagnostics.debug("Annotation %s will be processed", annotation.getQualifiedName());
+        }
+
+    }
+
+    private class Generator {
+
+        ProcessingEnvironment processingEnv = null;
+
+        private final String prefix;
+
+        private final String suffix;
+
+        private final TypeNameCache typeNames;
+
+        private final HierarchyResolver hierarchy;
+
+        // Only given when stubs are written as class files
+        private final BinaryNames binaryNames;
+
+        private final StubOptions options;
+
+        // The empty values of the stub, with StubDefaults.EMPTY
+        private final EmptyValues emptyValues = new EmptyValues();
+
+        public Generator(ProcessingEnvironment processingEnvironment, TypeNameCache typeNames, HierarchyResolver hierarchy,
+                BinaryNames binaryNames, String prefix, String suffix, StubOptions options) {
+            this.processingEnv = processingEnvironment;
+            this.typeNames = typeNames;
+            this.hierarchy = hierarchy;
+            this.binaryNames = binaryNames;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.options = options;
+        }
+
+        EmptyValues getEmptyValues() {
+            return emptyValues;
+        }
+
+        /**
+         * Takes a snapshot of everything the stub of element needs. This walks the javac
+         * model, so it has to be called from the compiler thread; the returned model can
+         * then be rendered anywhere.
+         *
+         * @return null if element is neither a class nor an interface
+         */
+        StubModel createModel(Element element) {
+            // We only want to be able to process class or interfaces.
+            // Else, the behaviour of the processor is undefined.
+            if (element.getKind() != ElementKind.CLASS && element.getKind() != ElementKind.INTERFACE) {
+                // If the processor ends up here, it means the annotation was used on something
+                // other than a class or an interface. We log it, for debugging purposes only.
+                diagnostics.debug("Found element %s of type %s", element.getSimpleName(), element.getKind());
+                return null;
+            }
+
+            TypeElement classElement = (TypeElement) element;
+            PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(classElement);
+
+            // We then iterate over every method of this class, whether it declares it or
+            // inherits it, and try to make a stub method for it. Methods inherited from generic
+            // supertypes are seen from the class, with their type arguments substituted.
+            // They are sorted by signature: javac versions and IDE compilers do not list them
+            // in the same order, and the same target must always give the same bytes.
+            Map<String, ExecutableElement> sortedMethods = new TreeMap<String, ExecutableElement>();
+            Map<ExecutableElement, ExecutableType> methodTypes = new HashMap<ExecutableElement, ExecutableType>();
+
+            for (ExecutableElement method : hierarchy.getMethodTable(classElement)) {
+                ExecutableType type = hierarchy.asMemberOf(classElement, method);
+
+                sortedMethods.put(getSignature(method, type), method);
+                methodTypes.put(method, type);
+            }
+
+            List<MethodModel> methods = new ArrayList<MethodModel>();
+
+            for (ExecutableElement method : sortedMethods.values()) {
+                MethodModel methodModel = createMethodModel(classElement, method, methodTypes.get(method));
+
+                // If the method cannot be stubbed, null will be returned
+                if (methodModel != null) {
+                    methods.add(methodModel);
+                }
+            }
+
+            // If the user has specified some prefix and/or suffix for the generated classes,
+            // we take them into account. Otherwise, we just pefix the class name with "Stub"
+            // and we do not add anything at the end of the class name.
+            // A generic target makes a generic stub, with the same type parameters.
+            String stubSimpleName = prefix + classElement.getSimpleName() + suffix;
+            boolean targetInterface = ElementKind.INTERFACE.equals(classElement.getKind());
+
+            if (binaryNames == null) {
+                return new StubModel(typeNames.getQualifiedName(classElement),
+                        packageElement.getQualifiedName().toString(),
+                        stubSimpleName,
+                        typeNames.getTypeParameters(classElement.getTypeParameters()),
+                        typeNames.getTypeArguments(classElement.getTypeParameters()),
+                        targetInterface,
+                        methods,
+                        emptyValues.getMembers(),
+                        options);
+            }
+
+            // Class files also need the internal names, and the generic signature of the stub
+            String packagePath = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString().replace('.', '/') + "/";
+
+            return new StubModel(typeNames.getQualifiedName(classElement),
+                    packageElement.getQualifiedName().toString(),
+                    stubSimpleName,
+                    typeNames.getTypeParameters(classElement.getTypeParameters()),
+                    typeNames.getTypeArguments(classElement.getTypeParameters()),
+                    targetInterface,
+                    methods,
+                    emptyValues.getMembers(),
+                    options,
+                    packagePath + stubSimpleName,
+                    binaryNames.getInternalName(classElement),
+                    binaryNames.getClassSignature(classElement, targetInterface));
+        }
+
+        /**
+         * Takes a snapshot of a composite stub, implementing every target at once. Methods
+         * with the same signature are implemented once: with the most specific of their
+         * return types, and only throwing what all of them throw. A default method is kept
+         * when it overrides the other methods with its signature. Methods which cannot be
+         * merged are reported as errors on the annotated element.
+         *
+         * @return null if a target cannot be part of a composite stub, or if methods conflict
+         */
+        StubModel createCompositeModel(List<TypeElement> targets, String stubName, Element annotatedElement) {
+            boolean valid = true;
+
+            for (TypeElement target : targets) {
+                if (target.getKind() != ElementKind.INTERFACE || !target.getTypeParameters().isEmpty()) {
+                    reportConflict(stubName, target.getQualifiedName() + " is not an interface, or is generic", annotatedElement);
+                    valid = false;
+                }
+            }
+
+            // A class cannot implement the same generic interface twice, with other arguments
+            Map<Element, DeclaredType> supertypes = new HashMap<Element, DeclaredType>();
+            Map<Element, TypeElement> supertypeTargets = new HashMap<Element, TypeElement>();
+
+            for (TypeElement target : targets) {
+                valid &= addSupertypes(target, (DeclaredType) target.asType(), supertypes, supertypeTargets, stubName,
+                        annotatedElement);
+            }
+
+            if (!valid) {
+                return null;
+            }
+
+            // Signature -> the method implementing it, as seen from the target it was found in,
+            // sorted by signature as in createModel()
+            Map<String, ExecutableElement> sortedMethods = new TreeMap<String, ExecutableElement>();
+            Map<String, ExecutableType> methodTypes = new HashMap<String, ExecutableType>();
+            Map<String, TypeElement> methodTargets = new HashMap<String, TypeElement>();
+
+            // Signature -> what every merged method may throw
+            Map<String, Set<String>> thrownTypes = new HashMap<String, Set<String>>();
+
+            // Signature -> the abstract and default methods having it, to know which defaults
+            // the stub inherits
+            Map<String, List<ExecutableElement>> abstractMethods = new HashMap<String, List<ExecutableElement>>();
+            Map<String, List<ExecutableElement>> defaultMethods = new TreeMap<String, List<ExecutableElement>>();
+
+            // Erasure -> signature: two signatures with the same erasure cannot both be implemented
+            Map<String, String> erasures = new HashMap<String, String>();
+
+            for (TypeElement target : targets) {
+                for (ExecutableElement method : hierarchy.getMethodTable(target)) {
+                    Set<Modifier> modifiers = method.getModifiers();
+
+                    if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE) || isObjectMethod(method)) {
+                        continue;
+                    }
+
+                    ExecutableType type = hierarchy.asMemberOf(target, method);
+                    String signature = getSignature(method, type);
+                    String erasure = getErasure(method, type);
+                    String clash = erasures.get(erasure);
+
+                    if (clash != null && !clash.equals(signature)) {
+                        reportConflict(stubName, describe(clash) + " in " + methodTargets.get(clash) + " and "
+                                + describe(signature) + " in " + target.getQualifiedName() + " have the same erasure", annotatedElement);
+                        valid = false;
+                        continue;
+                    }
+
+                    erasures.put(erasure, signature);
+                    addMethod(modifiers.contains(Modifier.DEFAULT) ? defaultMethods : abstractMethods, signature, method);
+
+                    if (modifiers.contains(Modifier.DEFAULT)) {
+                        continue;
+                    }
+
+                    Set<String> thrown = new LinkedHashSet<String>();
+                    for (TypeMirror thrownType : type.getThrownTypes()) {
+                        thrown.add(typeNames.getName(thrownType));
+                    }
+
+                    ExecutableType existingType = methodTypes.get(signature);
+
+                    if (existingType == null) {
+                        sortedMethods.put(signature, method);
+                        methodTypes.put(signature, type);
+                        methodTargets.put(signature, target);
+                        thrownTypes.put(signature, thrown);
+                        continue;
+                    }
+
+                    // The stub may throw nothing more than any of the methods it implements
+                    thrownTypes.get(signature).retainAll(thrown);
+
+                    if (!typeNames.getTypeParameters(method.getTypeParameters()).equals(
+                            typeNames.getTypeParameters(sortedMethods.get(signature).getTypeParameters()))) {
+                        reportConflict(stubName, describe(signature) + " has different type parameters in " + methodTargets.get(signature)
+                                + " and in " + target.getQualifiedName(), annotatedElement);
+                        valid = false;
+                    }
+                    else if (isReturnTypeSubstitutable(type.getReturnType(), existingType.getReturnType())) {
+                        // The most specific return type is also valid for the other method
+                        if (!processingEnv.getTypeUtils().isSameType(type.getReturnType(), existingType.getReturnType())) {
+                            sortedMethods.put(signature, method);
+                            methodTypes.put(signature, type);
+                            methodTargets.put(signature, target);
+                        }
+                    }
+                    else if (!isReturnTypeSubstitutable(existingType.getReturnType(), type.getReturnType())) {
+                        reportConflict(stubName, describe(signature) + " returns " + typeNames.getName(existingType.getReturnType())
+                                + " in " + methodTargets.get(signature) + " and " + typeNames.getName(type.getReturnType())
+                                + " in " + target.getQualifiedName(), annotatedElement);
+                        valid = false;
+                    }
+                }
+            }
+
+            for (Map.Entry<String, List<ExecutableElement>> entry : defaultMethods.entrySet()) {
+                String signature = entry.getKey();
+                List<ExecutableElement> overridden = new ArrayList<ExecutableElement>(entry.getValue());
+
+                if (abstractMethods.containsKey(signature)) {
+                    overridden.addAll(abstractMethods.get(signature));
+                }
+
+                if (getOverridingDefault(entry.getValue(), overridden) != null) {
+                    // The stub inherits the default, as a stub of its interface alone would
+                    sortedMethods.remove(signature);
+                }
+                else if (!sortedMethods.containsKey(signature) && entry.getValue().size() > 1) {
+                    reportConflict(stubName, describe(signature) + " has unrelated defaults in " + getOwners(entry.getValue()),
+                            annotatedElement);
+                    valid = false;
+                }
+            }
+
+            if (!valid) {
+                return null;
+            }
+
+            List<MethodModel> methods = new ArrayList<MethodModel>();
+
+            for (Map.Entry<String, ExecutableElement> entry : sortedMethods.entrySet()) {
+                MethodModel methodModel = createMethodModel(methodTargets.get(entry.getKey()), entry.getValue(),
+                        methodTypes.get(entry.getKey()));
+
+                if (methodModel == null) {
+                    continue;
+                }
+
+                Set<String> thrown = thrownTypes.get(entry.getKey());
+
+                if (thrown.size() < methodModel.getThrownTypes().size()) {
+                    List<String> allowed = new ArrayList<String>(methodModel.getThrownTypes());
+                    allowed.retainAll(thrown);
+
+                    methodModel = new MethodModel(methodModel.getModifiers(), methodModel.getTypeParameters(),
+                            methodModel.getReturnType(), methodModel.getName(), methodModel.getParameterTypes(), allowed,
+                            methodModel.getDefaultValue(), methodModel.getReplaySignature(), methodModel.getReplayType());
+                }
+
+                methods.add(methodModel);
+            }
+
+            List<String> targetNames = new ArrayList<String>(targets.size());
+            for (TypeElement target : targets) {
+                targetNames.add(typeNames.getQualifiedName(target));
+            }
+
+            return new StubModel(targetNames,
+                    processingEnv.getElementUtils().getPackageOf(annotatedElement).getQualifiedName().toString(),
+                    stubName.substring(stubName.lastIndexOf('.') + 1),
+                    methods,
+                    emptyValues.getMembers(),
+                    options);
+        }
+
+        /**
+         * Adds a type and its supertypes, as inherited by a target.
+         *
+         * @return false if one of them is already inherited with other type arguments
+         */
+        private boolean addSupertypes(TypeElement target, DeclaredType type, Map<Element, DeclaredType> supertypes,
+                Map<Element, TypeElement> supertypeTargets, String stubName, Element annotatedElement) {
+            DeclaredType existing = supertypes.get(type.asElement());
+
+            if (existing != null) {
+                if (processingEnv.getTypeUtils().isSameType(existing, type)) {
+                    return true;
+                }
+
+                reportConflict(stubName, typeNames.getName(existing) + " in " + supertypeTargets.get(type.asElement())
+                        + " and " + typeNames.getName(type) + " in " + target.getQualifiedName() + " cannot both be implemented",
+                        annotatedElement);
+                return false;
+            }
+
+            supertypes.put(type.asElement(), type);
+            supertypeTargets.put(type.asElement(), target);
+
+            boolean valid = true;
+
+            for (TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(type)) {
+                if (supertype.getKind() == TypeKind.DECLARED) {
+                    valid &= addSupertypes(target, (DeclaredType) supertype, supertypes, supertypeTargets, stubName,
+                            annotatedElement);
+                }
+            }
+
+            return valid;
+        }
+
+        private void addMethod(Map<String, List<ExecutableElement>> methods, String signature, ExecutableElement method) {
+            List<ExecutableElement> sameSignature = methods.get(signature);
+
+            if (sameSignature == null) {
+                sameSignature = new ArrayList<ExecutableElement>(1);
+                methods.put(signature, sameSignature);
+            }
+
+            if (!sameSignature.contains(method)) {
+                sameSignature.add(method);
+            }
+        }
+
+        /**
+         * @return the default method whose interface extends the interfaces of all the other
+         * methods, which it then overrides, or null if there is none
+         */
+        private ExecutableElement getOverridingDefault(List<ExecutableElement> defaults, List<ExecutableElement> methods) {
+            for (ExecutableElement candidate : defaults) {
+                boolean overridesAll = true;
+
+                for (ExecutableElement method : methods) {
+                    overridesAll &= processingEnv.getTypeUtils().isSubtype(
+                            processingEnv.getTypeUtils().erasure(candidate.getEnclosingElement().asType()),
+                            processingEnv.getTypeUtils().erasure(method.getEnclosingElement().asType()));
+                }
+
+                if (overridesAll) {
+                    return candidate;
+                }
+            }
+
+            return null;
+        }
+
+        private List<String> getOwners(List<ExecutableElement> methods) {
+            List<String> owners = new ArrayList<String>(methods.size());
+
+            for (ExecutableElement method : methods) {
+                owners.add(((TypeElement) method.getEnclosingElement()).getQualifiedName().toString());
+            }
+
+            return owners;
+        }
+
+        /**
+         * @return true if a method returning returnType may implement one returning
+         * otherReturnType: the same type, or for references, a subtype
+         */
+        private boolean isReturnTypeSubstitutable(TypeMirror returnType, TypeMirror otherReturnType) {
+            if (returnType.getKind().isPrimitive() || returnType.getKind() == TypeKind.VOID
+                    || otherReturnType.getKind().isPrimitive() || otherReturnType.getKind() == TypeKind.VOID) {
+                return processingEnv.getTypeUtils().isSameType(returnType, otherReturnType);
+            }
+
+            return processingEnv.getTypeUtils().isSubtype(returnType, otherReturnType);
+        }
+
+        private void reportConflict(String stubName, String conflict, Element annotatedElement) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Cannot generate composite stub " + stubName + ": "
+                    + conflict, annotatedElement);
+        }
+
+        /**
+         * @return a signature as written in Java: f(int, java.lang.String) for f(int,java.lang.String,)
+         */
+        private String describe(String signature) {
+            // Type arguments are separated by a comma and a space, parameters by a comma only
+            return signature.replace(",)", ")").replaceAll(",(?! )", ", ");
+        }
+
+        private String getErasure(ExecutableElement method, ExecutableType type) {
+            StringBuilder erasure = new StringBuilder(method.getSimpleName()).append('(');
+
+            for (TypeMirror parameterType : type.getParameterTypes()) {
+                erasure.append(typeNames.getName(processingEnv.getTypeUtils().erasure(parameterType))).append(',');
+            }
+
+            return erasure.append(')').toString();
+        }
+
+        /**
+         * @return the erased signature of the declaration of a method, with canonical names:
+         * find(java.lang.Object,int[])
+         */
+        private String getReplaySignature(ExecutableElement method) {
+            StringBuilder signature = new StringBuilder(method.getSimpleName()).append('(');
+            boolean first = true;
+
+            for (TypeMirror parameterType : ((ExecutableType) method.asType()).getParameterTypes()) {
+                signature.append(first ? "" : ",").append(typeNames.getName(processingEnv.getTypeUtils().erasure(parameterType)));
+                first = false;
+            }
+
+            return signature.append(')').toString();
+        }
+
+        private String getSignature(ExecutableElement method, ExecutableType type) {
+            StringBuilder signature = new StringBuilder(method.getSimpleName()).append('(');
+
+            for (TypeMirror parameterType : type.getParameterTypes()) {
+                signature.append(typeNames.getName(parameterType)).append(',');
+            }
+
+            return signature.append(')').toString();
+        }
+
+        /**
+         * @return the model of the stub implementation of a method, or null for methods
+         * which cannot be stubbed
+         */
+        MethodModel createMethodModel(TypeElement classElement, ExecutableElement method, ExecutableType type) {
+            // The method's modifiers. For example,
+            // public static final
+            Set<Modifier> modifiers = method.getModifiers();
+
+            // Since a interface is used to communicate with classes from the outside, we
+            // ignore the methods with PROTECTED and PRIVATE modifiers, unless an abstract
+            // class leaves us no choice. FINAL methods cannot be overridden, and STATIC ones
+            // are not part of the contract of an instance.
+            if ((modifiers.contains(Modifier.PROTECTED) && !modifiers.contains(Modifier.ABSTRACT))
+                    || modifiers.contains(Modifier.PRIVATE)
+                    || modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.STATIC)) {
+                return null;
+            }
+
+            // Interfaces may redeclare the methods of java.lang.Object (like Comparator does
+            // with equals). The stub inherits the real ones, which it must not replace.
+            // The same goes for default methods, which are built on the abstract ones.
+            if (isObjectMethod(method) || modifiers.contains(Modifier.DEFAULT)) {
+                return null;
+            }
+
+            List<String> modifierNames = new ArrayList<String>(modifiers.size());
+
+            // An EnumSet iterates in the order of the constants of Modifier, which is the
+            // canonical order of the JLS (public abstract static final synchronized...),
+            // whatever order the compiler gave them in
+            Set<Modifier> sortedModifiers = EnumSet.noneOf(Modifier.class);
+            sortedModifiers.addAll(modifiers);
+
+            for (Modifier modifier : sortedModifiers) {
+                // Note that as we are providing IMPLEMENTATIONS of methods,
+                // we have to filter out the ABSTRACT modifier. NATIVE cannot be used
+                // on a method with a body either.
+                if (!modifier.equals(Modifier.ABSTRACT) && !modifier.equals(Modifier.NATIVE)) {
+                    modifierNames.add(modifier.toString());
+                }
+            }
+
+            List<String> parameterTypes = new ArrayList<String>(type.getParameterTypes().size());
+            for (TypeMirror typeMirror : type.getParameterTypes()) {
+                parameterTypes.add(typeNames.getName(typeMirror));
+            }
+
+            List<String> thrownTypes = new ArrayList<String>(type.getThrownTypes().size());
+            for (TypeMirror typeMirror : type.getThrownTypes()) {
+                thrownTypes.add(typeNames.getName(typeMirror));
+            }
+
+            // If the method is returning something else than VOID, we should
+            // fake the returned value too. Else, the compiler will get angry
+            // at us when it will compile our class.
+            String defaultValue = null;
+            if (!type.getReturnType().getKind().equals(TypeKind.VOID)) {
+                defaultValue = getDefaultValue(type.getReturnType());
+            }
+
+            if (binaryNames == null) {
+                // Replaying stubs find the responses of a method by the erasure of its
+                // declaration, which is what the ReplayRecorder sees through reflection, and
+                // only accept the ones of its erased return type
+                String replaySignature = null;
+                String replayType = null;
+
+                if (options.getReplay() != null && defaultValue != null) {
+                    replaySignature = getReplaySignature(method);
+                    replayType = typeNames.getName(processingEnv.getTypeUtils().erasure(type.getReturnType()));
+                }
+
+                return new MethodModel(modifierNames, typeNames.getTypeParameters(method.getTypeParameters()),
+                        typeNames.getName(type.getReturnType()), method.getSimpleName().toString(),
+                        parameterTypes, thrownTypes, defaultValue, replaySignature, replayType);
+            }
+
+            // A class file has no bridge method unless we write it. The stub method must be
+            // found with its own erasure, and with the erasures of every method it overrides.
+            Set<String> descriptors = new LinkedHashSet<String>();
+            descriptors.add(binaryNames.getMethodDescriptor(type));
+            descriptors.add(binaryNames.getMethodDescriptor((ExecutableType) method.asType()));
+
+            for (ExecutableElement overridden : hierarchy.getOverriddenMethods(classElement, method)) {
+                descriptors.add(binaryNames.getMethodDescriptor((ExecutableType) overridden.asType()));
+            }
+
+            List<String> thrownInternalNames = new ArrayList<String>(type.getThrownTypes().size());
+            for (TypeMirror typeMirror : type.getThrownTypes()) {
+                thrownInternalNames.add(binaryNames.getThrownInternalName(typeMirror));
+            }
+
+            return new MethodModel(modifierNames, typeNames.getTypeParameters(method.getTypeParameters()),
+                    typeNames.getName(type.getReturnType()), method.getSimpleName().toString(),
+                    parameterTypes, thrownTypes, defaultValue,
+                    new ArrayList<String>(descriptors),
+                    binaryNames.getMethodSignature(method.getTypeParameters(), type),
+                    thrownInternalNames);
+        }
+
+        private boolean isObjectMethod(ExecutableElement method) {
+            if (!method.getEnclosingElement().getKind().isInterface()) {
+                return false;
+            }
+
+            TypeElement object = processingEnv.getElementUtils().getTypeElement("java.lang.Object");
+
+            for (Element objectMember : object.getEnclosedElements()) {
+                if (objectMember.getKind() == ElementKind.METHOD
+                        && objectMember.getModifiers().contains(Modifier.PUBLIC)
+                        && objectMember.getSimpleName().equals(method.getSimpleName())
+                        && processingEnv.getTypeUtils().isSameType(
+                                processingEnv.getTypeUtils().erasure(objectMember.asType()),
+                                processingEnv.getTypeUtils().erasure(method.asType()))) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * @return what the stub of a method returning returnType returns: the default value
+         * of its kind, or with StubDefaults.EMPTY, a shared empty value when it has one
+         */
+        String getDefaultValue(TypeMirror returnType) {
+            if (options.getDefaults() == StubDefaults.NULL || returnType.getKind().isPrimitive()) {
+                return getDefaultValueForTypeKind(returnType.getKind());
+            }
+
+            if (returnType.getKind() == TypeKind.DECLARED) {
+                String erasure = ((TypeElement) ((DeclaredType) returnType).asElement()).getQualifiedName().toString();
+                String expression = emptyValues.getExpression(erasure);
+
+                if (expression != null) {
+                    return expression;
+                }
+            }
+            else if (returnType.getKind() == TypeKind.ARRAY) {
+                // Arrays of type variables or of generic types cannot be created, they stay null
+                TypeMirror componentType = returnType;
+
+                while (componentType.getKind() == TypeKind.ARRAY) {
+                    componentType = ((ArrayType) componentType).getComponentType();
+                }
+
+                String arrayType = typeNames.getName(returnType);
+
+                if ((componentType.getKind().isPrimitive() || componentType.getKind() == TypeKind.DECLARED)
+                        && arrayType.indexOf('<') < 0) {
+                    return emptyValues.getArrayConstant(arrayType);
+                }
+            }
+
+            return getDefaultValueForTypeKind(returnType.getKind());
+        }
+
+    }
+
+    /**
+     * A stub ready to be written: its model, and what it originates from.
+     */
+    private static class PreparedStub {
+
+        private final StubModel model;
+
+        private final Element[] originatingElements;
+
+        // The stubbed types: a single one, unless the stub is a composite one
+        private final List<String> targetBinaryNames;
+
+        private final String annotatedName;
+
+        // Whether every stubbed type was read from a class file, see SharedStubCache
+        private final boolean fromClassFiles;
+
+        PreparedStub(StubModel model, Element[] originatingElements, List<String> targetBinaryNames, String annotatedName,
+                boolean fromClassFiles) {
+            this.model = model;
+            this.originatingElements = originatingElements;
+            this.targetBinaryNames = targetBinaryNames;
+            this.annotatedName = annotatedName;
+            this.fromClassFiles = fromClassFiles;
+        }
+
+        StubModel getModel() {
+            return model;
+        }
+
+        Element[] getOriginatingElements() {
+            return originatingElements;
+        }
+
+        List<String> getTargetBinaryNames() {
+            return targetBinaryNames;
+        }
+
+        String getAnnotatedName() {
+            return annotatedName;
+        }
+
+        boolean isFromClassFiles() {
+            return fromClassFiles;
         }
     }
 
@@ -0,0 +1,221 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Builds the table of the methods of a type: the ones it declares, and the ones it inherits
+ * from its superclasses and superinterfaces, once overridden methods are removed.
+ *
+ * Tables are memoized, and the table of a type is built from the tables of its direct
+ * supertypes: stubbing many interfaces sharing a deep base walks the base only once.
+ * Elements should not be kept from one round to the next, so the tables have to be
+ * cleared at the start of every round.
+ */
+class HierarchyResolver {
+
+    private static final String JAVA_LANG_OBJECT = "java.lang.Object";
+
+    private final Elements elements;
+
+    private final Types types;
+
+    private final Map<TypeElement, List<ExecutableElement>> methodTables = new HashMap<TypeElement, List<ExecutableElement>>();
+
+    private long walks = 0;
+
+    private long reuses = 0;
+
+    HierarchyResolver(Elements elements, Types types) {
+        this.elements = elements;
+        this.types = types;
+    }
+
+    /**
+     * @return every instance method declared in or inherited by type, in a stable order:
+     * declared methods first, then the ones of each supertype in turn. Methods of
+     * java.lang.Object are left out.
+     */
+    List<ExecutableElement> getMethodTable(TypeElement type) {
+        List<ExecutableElement> table = methodTables.get(type);
+
+        if (table != null) {
+            reuses++;
+            return table;
+        }
+
+        walks++;
+
+        List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+
+        // The methods declared by the type itself override everything else...
+        for (Element enclosed : type.getEnclosedElements()) {
+            if (enclosed.getKind() == ElementKind.METHOD && isInstanceMethod(enclosed)) {
+                methods.add((ExecutableElement) enclosed);
+            }
+        }
+
+        // ...and then come the ones of the supertypes, whose tables are reused
+        for (TypeMirror supertype : types.directSupertypes(type.asType())) {
+            if (supertype.getKind() != TypeKind.DECLARED) {
+                // An unresolved supertype has nothing to offer
+                continue;
+            }
+
+            TypeElement superElement = (TypeElement) ((DeclaredType) supertype).asElement();
+
+            if (superElement.getQualifiedName().contentEquals(JAVA_LANG_OBJECT)) {
+                continue;
+            }
+
+            for (ExecutableElement inherited : getMethodTable(superElement)) {
+                if (!isInheritedBy(inherited, type)) {
+                    continue;
+                }
+
+                addInherited(methods, inherited, type);
+            }
+        }
+
+        table = Collections.unmodifiableList(methods);
+        methodTables.put(type, table);
+
+        return table;
+    }
+
+    /**
+     * @return the type of method once seen from type: the type variables of generic
+     * supertypes are replaced by the type arguments type gives them.
+     */
+    ExecutableType asMemberOf(TypeElement type, ExecutableElement method) {
+        return (ExecutableType) types.asMemberOf((DeclaredType) type.asType(), method);
+    }
+
+    /**
+     * @return the methods of the supertypes of type which method overrides, or which it
+     * implements along with its own declaration
+     */
+    List<ExecutableElement> getOverriddenMethods(TypeElement type, ExecutableElement method) {
+        List<ExecutableElement> overridden = new ArrayList<ExecutableElement>();
+        collectOverriddenMethods(type, type, method, overridden, new HashSet<TypeElement>());
+
+        return overridden;
+    }
+
+    private void collectOverriddenMethods(TypeElement type, TypeElement current, ExecutableElement method,
+            List<ExecutableElement> overridden, Set<TypeElement> visited) {
+        for (TypeMirror supertype : types.directSupertypes(current.asType())) {
+            if (supertype.getKind() != TypeKind.DECLARED) {
+                continue;
+            }
+
+            TypeElement superElement = (TypeElement) ((DeclaredType) supertype).asElement();
+
+            if (!visited.add(superElement) || superElement.getQualifiedName().contentEquals(JAVA_LANG_OBJECT)) {
+                continue;
+            }
+
+            // Every declaration of the supertype is in its table, unless overridden in the
+            // supertype itself, in which case the overriding one is found deeper anyway
+            for (ExecutableElement other : getMethodTable(superElement)) {
+                if (!other.equals(method)
+                        && !overridden.contains(other)
+                        && other.getSimpleName().equals(method.getSimpleName())
+                        && other.getParameters().size() == method.getParameters().size()
+                        && (elements.overrides(method, other, type)
+                                || types.isSubsignature(asMemberOf(type, method), asMemberOf(type, other)))) {
+                    overridden.add(other);
+                }
+            }
+
+            collectOverriddenMethods(type, superElement, method, overridden, visited);
+        }
+    }
+
+    /**
+     * Forgets every table: they hold elements of the current round.
+     */
+    void clear() {
+        methodTables.clear();
+    }
+
+    long getWalks() {
+        return walks;
+    }
+
+    long getReuses() {
+        return reuses;
+    }
+
+    private void addInherited(List<ExecutableElement> methods, ExecutableElement inherited, TypeElement type) {
+        for (int i = 0; i < methods.size(); i++) {
+            ExecutableElement method = methods.get(i);
+
+            // The same method, reached through another path of the hierarchy
+            if (method.equals(inherited)) {
+                return;
+            }
+
+            if (!method.getSimpleName().equals(inherited.getSimpleName())
+                    || method.getParameters().size() != inherited.getParameters().size()) {
+                continue;
+            }
+
+            if (elements.overrides(method, inherited, type)) {
+                return;
+            }
+
+            if (elements.overrides(inherited, method, type)) {
+                // Reached the overridden method first, through another supertype
+                methods.set(i, inherited);
+                return;
+            }
+
+            ExecutableType methodType = asMemberOf(type, method);
+            ExecutableType inheritedType = asMemberOf(type, inherited);
+
+            if (types.isSubsignature(methodType, inheritedType) || types.isSubsignature(inheritedType, methodType)) {
+                // Two unrelated supertypes declare the same method: a single implementation
+                // is needed, and it has to return the most specific type.
+                if (types.isSubtype(inheritedType.getReturnType(), methodType.getReturnType())
+                        && !types.isSameType(inheritedType.getReturnType(), methodType.getReturnType())) {
+                    methods.set(i, inherited);
+                }
+                return;
+            }
+        }
+
+        methods.add(inherited);
+    }
+
+    private boolean isInstanceMethod(Element method) {
+        return !method.getModifiers().contains(Modifier.STATIC) && !method.getModifiers().contains(Modifier.PRIVATE);
+    }
+
+    private boolean isInheritedBy(ExecutableElement method, TypeElement type) {
+        // Package-private methods are only inherited within their package
+        if (method.getModifiers().contains(Modifier.PUBLIC) || method.getModifiers().contains(Modifier.PROTECTED)) {
+            return true;
+        }
+
+        return method.getEnclosingElement().getKind().isInterface()
+                || elements.getPackageOf(method).equals(elements.getPackageOf(type));
+    }
+
+}
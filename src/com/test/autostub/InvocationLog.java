@@ -0,0 +1,215 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a recording stub was asked (see GenerateStub.recordCalls()): how many times each of
+ * its methods was called, and, if the stub captures arguments, its last calls.
+ *
+ * Stubs are meant to be called from many threads at once, by load tests for example, so
+ * nothing here takes a lock:
+ *  - each method has its own LongAdder, which spreads concurrent increments over several
+ *    cells instead of making every caller fight over a single counter;
+ *  - captured calls go to a ring buffer, each call taking the next slot. Once the ring is
+ *    full, the oldest calls are overwritten.
+ *
+ * Counting a call never allocates. Capturing one allocates the Invocation, and boxes the
+ * primitive arguments.
+ */
+public final class InvocationLog {
+
+    public static final Object[] NO_ARGUMENTS = new Object[0];
+
+    // The signatures of the methods of the stub (name(int, java.lang.String)), by index
+    private final String[] methods;
+
+    private final LongAdder[] counts;
+
+    // null when no call is captured
+    private final AtomicReferenceArray<Invocation> ring;
+
+    private final int mask;
+
+    // The number of the next captured call
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param methods the signatures of the methods of the stub, the index of a method being
+     * the one given to count() and record()
+     * @param capacity how many calls are kept, rounded up to a power of two, 0 to keep none
+     */
+    public InvocationLog(String[] methods, int capacity) {
+        this.methods = methods.clone();
+        this.counts = new LongAdder[methods.length];
+
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+
+        if (capacity > 0) {
+            // A power of two, so that a slot is found with a mask instead of a division
+            int size = Integer.highestOneBit(Math.min(capacity, 1 << 30));
+            if (size < capacity) {
+                size <<= 1;
+            }
+
+            this.ring = new AtomicReferenceArray<Invocation>(size);
+            this.mask = size - 1;
+        }
+        else {
+            this.ring = null;
+            this.mask = 0;
+        }
+    }
+
+    /**
+     * Counts a call of a method, without capturing it.
+     */
+    public void count(int method) {
+        counts[method].increment();
+    }
+
+    /**
+     * Counts a call of a method, and captures it with its arguments if the log keeps calls.
+     */
+    public void record(int method, Object[] arguments) {
+        counts[method].increment();
+
+        if (ring != null) {
+            long number = sequence.getAndIncrement();
+
+            // Readers only need to see the slot eventually, lazySet saves the full fence
+            ring.lazySet((int) number & mask, new Invocation(number, methods[method], arguments));
+        }
+    }
+
+    /**
+     * @return the signatures of the methods of the stub
+     */
+    public List<String> getMethods() {
+        return Collections.unmodifiableList(Arrays.asList(methods));
+    }
+
+    public long getCount(int method) {
+        return counts[method].sum();
+    }
+
+    /**
+     * @param method the name of a method, counting all its overloads, or its signature as
+     * given by getMethods()
+     */
+    public long getCount(String method) {
+        long count = 0;
+
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].equals(method)
+                    || (methods[i].startsWith(method) && methods[i].charAt(method.length()) == '(')) {
+                count += counts[i].sum();
+            }
+        }
+
+        return count;
+    }
+
+    public long getTotalCount() {
+        long count = 0;
+
+        for (LongAdder adder : counts) {
+            count += adder.sum();
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the captured calls still in the ring, oldest first. Calls made while this runs
+     * may or may not be part of it.
+     */
+    public List<Invocation> getInvocations() {
+        if (ring == null) {
+            return Collections.emptyList();
+        }
+
+        List<Invocation> invocations = new ArrayList<Invocation>(ring.length());
+
+        for (int i = 0; i < ring.length(); i++) {
+            Invocation invocation = ring.get(i);
+
+            if (invocation != null) {
+                invocations.add(invocation);
+            }
+        }
+
+        Collections.sort(invocations, new Comparator<Invocation>() {
+            @Override
+            public int compare(Invocation a, Invocation b) {
+                return Long.compare(a.getSequence(), b.getSequence());
+            }
+        });
+
+        return invocations;
+    }
+
+    /**
+     * Forgets every call. Calls made while this runs may or may not be forgotten.
+     */
+    public void reset() {
+        for (LongAdder adder : counts) {
+            adder.reset();
+        }
+
+        if (ring != null) {
+            for (int i = 0; i < ring.length(); i++) {
+                ring.set(i, null);
+            }
+        }
+    }
+
+    /**
+     * A captured call.
+     */
+    public static final class Invocation {
+
+        private final long sequence;
+
+        private final String method;
+
+        private final Object[] arguments;
+
+        Invocation(long sequence, String method, Object[] arguments) {
+            this.sequence = sequence;
+            this.method = method;
+            this.arguments = arguments;
+        }
+
+        /**
+         * @return the number of the call, among the captured calls of its stub
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return the signature of the method called
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        public Object[] getArguments() {
+            return arguments.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + method + " " + Arrays.toString(arguments);
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+package com.test.autostub;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The latency a stub adds to the calls of a method (see GenerateStub.latency()), drawn
+ * from a distribution:
+ *  - fixed:<duration>                  always the same: fixed:5ms
+ *  - uniform:<min>,<max>               anything between min and max: uniform:1ms,10ms
+ *  - lognormal:<median>,<p99>          a long tail, as most remote calls have:
+ *                                      lognormal:10ms,50ms
+ *  - percentiles:<resource>            measured percentiles, one "<percentile> <duration>"
+ *                                      per line of a resource of the stub's class path
+ *                                      (or of a file), interpolated linearly: "50 8ms",
+ *                                      "99 50ms", "99.9 120ms"
+ * Durations are given in ns, us, ms or s, and may be decimal: 1.5ms.
+ *
+ * A stub creates its latencies once, in static fields, and calls await() at the start of
+ * its methods. Waiting parks the calling thread (LockSupport.parkNanos) rather than
+ * spinning or sleeping, so that a virtual thread releases its carrier while it waits.
+ * Drawing a latency does not allocate, and uses the ThreadLocalRandom of the caller, so
+ * that threads calling a stub at once do not share anything.
+ */
+public final class Latency {
+
+    private static final int FIXED = 0;
+
+    private static final int UNIFORM = 1;
+
+    private static final int LOGNORMAL = 2;
+
+    private static final int PERCENTILES = 3;
+
+    // The quantile of the standard normal distribution at 99%: the p99 of a lognormal
+    // distribution is its median * exp(2.326 * sigma)
+    private static final double Z_99 = 2.3263478740408408;
+
+    private final String spec;
+
+    private final int kind;
+
+    // fixed: the duration; uniform: the bounds; lognormal: log(median) and sigma
+    private final long nanos;
+
+    private final long maxNanos;
+
+    private final double mu;
+
+    private final double sigma;
+
+    // percentiles: the percentiles, in increasing order, and their durations
+    private final double[] percentiles;
+
+    private final long[] percentileNanos;
+
+    private Latency(String spec, int kind, long nanos, long maxNanos, double mu, double sigma, double[] percentiles,
+            long[] percentileNanos) {
+        this.spec = spec;
+        this.kind = kind;
+        this.nanos = nanos;
+        this.maxNanos = maxNanos;
+        this.mu = mu;
+        this.sigma = sigma;
+        this.percentiles = percentiles;
+        this.percentileNanos = percentileNanos;
+    }
+
+    /**
+     * @param stub the stub, whose class loader holds the resources of percentiles
+     * @throws IllegalArgumentException if the spec is not one of the distributions, or if
+     * its percentiles cannot be read
+     */
+    public static Latency parse(String spec, Class<?> stub) {
+        int colon = spec.indexOf(':');
+        String distribution = colon < 0 ? spec : spec.substring(0, colon).trim();
+        String[] arguments = colon < 0 ? new String[0] : spec.substring(colon + 1).split(",");
+
+        if ("fixed".equals(distribution) && arguments.length == 1) {
+            return new Latency(spec, FIXED, parseDuration(arguments[0]), 0, 0, 0, null, null);
+        }
+
+        if ("uniform".equals(distribution) && arguments.length == 2) {
+            long min = parseDuration(arguments[0]);
+            long max = parseDuration(arguments[1]);
+
+            if (max < min) {
+                throw new IllegalArgumentException("Invalid latency " + spec + ": its maximum is below its minimum");
+            }
+
+            return new Latency(spec, UNIFORM, min, max, 0, 0, null, null);
+        }
+
+        if ("lognormal".equals(distribution) && arguments.length == 2) {
+            long median = parseDuration(arguments[0]);
+            long p99 = parseDuration(arguments[1]);
+
+            if (median <= 0 || p99 < median) {
+                throw new IllegalArgumentException("Invalid latency " + spec + ": its median has to be positive, "
+                        + "and at most its p99");
+            }
+
+            return new Latency(spec, LOGNORMAL, 0, 0, Math.log(median), Math.log((double) p99 / median) / Z_99, null, null);
+        }
+
+        if ("percentiles".equals(distribution) && arguments.length == 1 && !arguments[0].trim().isEmpty()) {
+            // The processor only checks the spec: the resource is read by the stub
+            if (stub == null) {
+                return null;
+            }
+
+            Map<Double, Long> table = readPercentiles(spec, arguments[0].trim(), stub);
+            double[] percentiles = new double[table.size()];
+            long[] percentileNanos = new long[table.size()];
+            int i = 0;
+
+            for (Map.Entry<Double, Long> entry : table.entrySet()) {
+                percentiles[i] = entry.getKey();
+                percentileNanos[i++] = entry.getValue();
+            }
+
+            return new Latency(spec, PERCENTILES, 0, 0, 0, 0, percentiles, percentileNanos);
+        }
+
+        throw new IllegalArgumentException("Invalid latency " + spec + ", expected fixed:<duration>, uniform:<min>,<max>, "
+                + "lognormal:<median>,<p99> or percentiles:<resource>");
+    }
+
+    /**
+     * Checks a spec at compile time, without reading the percentiles it may refer to.
+     *
+     * @throws IllegalArgumentException if the spec is invalid
+     */
+    static void check(String spec) {
+        parse(spec, null);
+    }
+
+    /**
+     * @return a duration given with its unit (10ms), in nanoseconds
+     */
+    static long parseDuration(String duration) {
+        String trimmed = duration.trim();
+        int unit = trimmed.length();
+
+        while (unit > 0 && Character.isLetter(trimmed.charAt(unit - 1))) {
+            unit--;
+        }
+
+        long nanosPerUnit;
+
+        switch (trimmed.substring(unit)) {
+            case "ns":
+                nanosPerUnit = 1L;
+                break;
+            case "us":
+                nanosPerUnit = 1000L;
+                break;
+            case "ms":
+                nanosPerUnit = 1000000L;
+                break;
+            case "s":
+                nanosPerUnit = 1000000000L;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid duration " + trimmed + ", expected a number of ns, us, ms or s");
+        }
+
+        try {
+            double value = Double.parseDouble(trimmed.substring(0, unit));
+
+            if (value < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException("Invalid duration " + trimmed + ": it cannot be negative");
+            }
+
+            return Math.round(value * nanosPerUnit);
+        }
+        catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Invalid duration " + trimmed + ", expected a number of ns, us, ms or s");
+        }
+    }
+
+    private static Map<Double, Long> readPercentiles(String spec, String resource, Class<?> stub) {
+        Map<Double, Long> table = new TreeMap<Double, Long>();
+
+        try {
+            InputStream in = stub.getClassLoader() != null ? stub.getClassLoader().getResourceAsStream(resource)
+                    : ClassLoader.getSystemResourceAsStream(resource);
+
+            if (in == null) {
+                Path file = Paths.get(resource);
+
+                if (!Files.isRegularFile(file)) {
+                    throw new IllegalArgumentException("Invalid latency " + spec + ": " + resource
+                            + " is neither a resource nor a file");
+                }
+
+                in = Files.newInputStream(file);
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+
+                    String[] columns = line.split("\\s+");
+                    double percentile = columns.length == 2 ? Double.parseDouble(columns[0]) : -1;
+
+                    if (percentile < 0 || percentile > 100) {
+                        throw new IllegalArgumentException("Invalid latency " + spec + ": " + line
+                                + " is not \"<percentile> <duration>\"");
+                    }
+
+                    table.put(percentile, parseDuration(columns[1]));
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency " + spec + ": " + e, e);
+        }
+
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("Invalid latency " + spec + ": " + resource + " has no percentile");
+        }
+
+        return table;
+    }
+
+    /**
+     * @return a latency drawn from the distribution, in nanoseconds
+     */
+    public long sampleNanos() {
+        switch (kind) {
+            case FIXED:
+                return nanos;
+            case UNIFORM:
+                return nanos == maxNanos ? nanos : ThreadLocalRandom.current().nextLong(nanos, maxNanos + 1);
+            case LOGNORMAL:
+                return Math.round(Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian()));
+            default:
+                return samplePercentiles(ThreadLocalRandom.current().nextDouble() * 100);
+        }
+    }
+
+    private long samplePercentiles(double percentile) {
+        // Below the first percentile, its duration is used, as above the last one
+        if (percentile <= percentiles[0]) {
+            return percentileNanos[0];
+        }
+
+        int last = percentiles.length - 1;
+
+        if (percentile >= percentiles[last]) {
+            return percentileNanos[last];
+        }
+
+        int low = 0;
+        int high = last;
+
+        // percentiles[low] < percentile < percentiles[high]
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+
+            if (percentiles[middle] <= percentile) {
+                low = middle;
+            }
+            else {
+                high = middle;
+            }
+        }
+
+        double fraction = (percentile - percentiles[low]) / (percentiles[high] - percentiles[low]);
+
+        return percentileNanos[low] + Math.round(fraction * (percentileNanos[high] - percentileNanos[low]));
+    }
+
+    /**
+     * Waits for a latency drawn from the distribution.
+     */
+    public void await() {
+        park(sampleNanos());
+    }
+
+    /**
+     * Parks the calling thread for nanos nanoseconds. parkNanos() may return early, so the
+     * thread parks again until the time is up; if it is interrupted, it returns at once,
+     * with its interrupt status set, as a stub method cannot throw InterruptedException.
+     */
+    public static void park(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+
+        do {
+            LockSupport.parkNanos(remaining);
+
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        } while ((remaining = deadline - System.nanoTime()) > 0);
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+}
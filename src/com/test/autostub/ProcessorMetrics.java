@@ -0,0 +1,147 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the processor did during a compilation, and where its time went: the duration of
+ * each round, and how many stubs, methods and bytes it wrote.
+ *
+ * Counters are only updated from the compiler thread. The caches keep their own counters,
+ * which are copied in when the report is made.
+ */
+class ProcessorMetrics {
+
+    private final List<Round> rounds = new ArrayList<Round>();
+
+    private Round currentRound = null;
+
+    private long stubs = 0;
+
+    private long methods = 0;
+
+    private long bytesWritten = 0;
+
+    private long deferred = 0;
+
+    // Copied from the caches at the end of the compilation
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long sharedCacheHits = 0;
+    private long sharedCacheMisses = 0;
+    private long methodTablesBuilt = 0;
+    private long methodTablesReused = 0;
+    private long typeNameHits = 0;
+    private long typeNameMisses = 0;
+
+    void startRound() {
+        currentRound = new Round(rounds.size() + 1, System.nanoTime());
+        rounds.add(currentRound);
+    }
+
+    void endRound() {
+        currentRound.nanos = System.nanoTime() - currentRound.nanos;
+    }
+
+    void stubWritten(StubModel model, long bytes) {
+        stubs++;
+        methods += model.getMethods().size();
+        bytesWritten += bytes;
+        currentRound.stubs++;
+    }
+
+    void stubDeferred() {
+        deferred++;
+        currentRound.deferred++;
+    }
+
+    void setCacheCounters(long hits, long misses) {
+        this.cacheHits = hits;
+        this.cacheMisses = misses;
+    }
+
+    void setSharedCacheCounters(long hits, long misses) {
+        this.sharedCacheHits = hits;
+        this.sharedCacheMisses = misses;
+    }
+
+    void setMethodTableCounters(long built, long reused) {
+        this.methodTablesBuilt = built;
+        this.methodTablesReused = reused;
+    }
+
+    void setTypeNameCounters(long hits, long misses) {
+        this.typeNameHits = hits;
+        this.typeNameMisses = misses;
+    }
+
+    long getTotalNanos() {
+        long total = 0;
+
+        for (Round round : rounds) {
+            total += round.nanos;
+        }
+
+        return total;
+    }
+
+    /**
+     * @return the one-line summary reported as a compiler note
+     */
+    String toSummary() {
+        return "GenerateStub: " + stubs + " stubs (" + methods + " methods, " + bytesWritten + " bytes) written in "
+                + rounds.size() + " rounds, " + (getTotalNanos() / 1000000) + " ms";
+    }
+
+    /**
+     * @return the machine-readable report: a JSON object, with one round per line
+     */
+    String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+
+        json.append("  \"totalNanos\": ").append(getTotalNanos()).append(",\n");
+        json.append("  \"stubs\": ").append(stubs).append(",\n");
+        json.append("  \"methods\": ").append(methods).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten).append(",\n");
+        json.append("  \"deferred\": ").append(deferred).append(",\n");
+        json.append("  \"cacheHits\": ").append(cacheHits).append(",\n");
+        json.append("  \"cacheMisses\": ").append(cacheMisses).append(",\n");
+        json.append("  \"sharedCacheHits\": ").append(sharedCacheHits).append(",\n");
+        json.append("  \"sharedCacheMisses\": ").append(sharedCacheMisses).append(",\n");
+        json.append("  \"methodTablesBuilt\": ").append(methodTablesBuilt).append(",\n");
+        json.append("  \"methodTablesReused\": ").append(methodTablesReused).append(",\n");
+        json.append("  \"typeNameHits\": ").append(typeNameHits).append(",\n");
+        json.append("  \"typeNameMisses\": ").append(typeNameMisses).append(",\n");
+        json.append("  \"rounds\": [");
+
+        for (int i = 0; i < rounds.size(); i++) {
+            Round round = rounds.get(i);
+
+            json.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\"round\": ").append(round.number)
+                    .append(", \"nanos\": ").append(round.nanos)
+                    .append(", \"stubs\": ").append(round.stubs)
+                    .append(", \"deferred\": ").append(round.deferred)
+                    .append('}');
+        }
+
+        return json.append(rounds.isEmpty() ? "]\n" : "\n  ]\n").append("}\n").toString();
+    }
+
+    private static class Round {
+
+        private final int number;
+
+        // The start of the round until it ends, then its duration
+        private long nanos;
+
+        private long stubs = 0;
+
+        private long deferred = 0;
+
+        Round(int number, long start) {
+            this.number = number;
+            this.nanos = start;
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+package com.test.autostub;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Records what real implementations of interfaces return, for replaying stubs to serve the
+ * same responses (see GenerateStub.replay()):
+ *
+ *   ReplayRecorder recorder = new ReplayRecorder();
+ *   UserService users = recorder.record(UserService.class, realUserService);
+ *   ... calls to users ...
+ *   recorder.write(Paths.get("src/test/resources/replay/users.bin"));
+ *
+ * The returned proxy forwards every call, and keeps its return value under the key the stub
+ * computes for the same call (see ReplayStore): the erased signature of the method, and
+ * the hash codes of the arguments. A call made again with the same arguments replaces the
+ * response recorded, and exceptions are thrown as they are, without being recorded.
+ *
+ * Values are encoded as soon as they are returned, so that changing them later does not
+ * change the recording: primitives and their boxes, strings, null, and any Serializable
+ * object. Returning anything else fails the call. The recorder can be shared by any number
+ * of threads, and by several interfaces, as long as their methods do not have the same
+ * signatures.
+ */
+public final class ReplayRecorder {
+
+    // Key -> encoded value, sorted so that the same calls always give the same file
+    private final Map<Long, byte[]> responses = new ConcurrentSkipListMap<Long, byte[]>();
+
+    // Method -> its key seed
+    private final Map<Method, Long> seeds = new ConcurrentHashMap<Method, Long>();
+
+    /**
+     * @return a proxy of the delegate, recording what it returns
+     * @throws IllegalArgumentException if the type is not an interface
+     */
+    public <T> T record(Class<T> type, final T delegate) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface, it cannot be recorded");
+        }
+
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Object result;
+
+                try {
+                    result = method.invoke(delegate, args);
+                }
+                catch (InvocationTargetException ite) {
+                    throw ite.getCause();
+                }
+
+                // The methods of Object, and the void ones, have nothing to replay
+                if (method.getDeclaringClass() != Object.class && method.getReturnType() != void.class) {
+                    responses.put(getKey(method, args), encode(method, result));
+                }
+
+                return result;
+            }
+
+        });
+
+        return type.cast(proxy);
+    }
+
+    /**
+     * @return the number of responses recorded so far
+     */
+    public int size() {
+        return responses.size();
+    }
+
+    private long getKey(Method method, Object[] args) {
+        Long seed = seeds.get(method);
+
+        if (seed == null) {
+            seed = ReplayStore.seed(getSignature(method));
+            seeds.put(method, seed);
+        }
+
+        long key = seed;
+
+        if (args != null) {
+            for (Object arg : args) {
+                key = ReplayStore.hash(key, arg);
+            }
+        }
+
+        return key;
+    }
+
+    /**
+     * @return the erased signature of a method, as the processor writes it:
+     * name(java.lang.String,int[],java.util.Map.Entry)
+     */
+    static String getSignature(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+
+        for (int i = 0; i < method.getParameterTypes().length; i++) {
+            signature.append(i > 0 ? "," : "").append(method.getParameterTypes()[i].getCanonicalName());
+        }
+
+        return signature.append(')').toString();
+    }
+
+    private static byte[] encode(Method method, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        if (value == null) {
+            out.writeByte(ReplayStore.NULL);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(ReplayStore.BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(ReplayStore.BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Character) {
+            out.writeByte(ReplayStore.CHAR);
+            out.writeChar((Character) value);
+        }
+        else if (value instanceof Short) {
+            out.writeByte(ReplayStore.SHORT);
+            out.writeShort((Short) value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(ReplayStore.INT);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(ReplayStore.LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(ReplayStore.FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(ReplayStore.DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof String) {
+            byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(ReplayStore.STRING);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+        else {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+
+            try {
+                ObjectOutputStream objects = new ObjectOutputStream(serialized);
+                objects.writeObject(value);
+                objects.close();
+            }
+            catch (NotSerializableException nse) {
+                throw new IllegalArgumentException("The response of " + method + " cannot be recorded: "
+                        + nse.getMessage() + " is not Serializable", nse);
+            }
+
+            out.writeByte(ReplayStore.OBJECT);
+            out.writeInt(serialized.size());
+            serialized.writeTo(out);
+        }
+
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the slot word of an encoded value which fits in it (see ReplayStore), 0 for
+     * the others
+     */
+    private static long getInlineWord(byte[] value) {
+        int bits;
+
+        switch (value[0]) {
+            case ReplayStore.NULL:
+                bits = 0;
+                break;
+            case ReplayStore.BOOLEAN:
+            case ReplayStore.BYTE:
+                bits = value[1];
+                break;
+            case ReplayStore.CHAR:
+                bits = (char) ((value[1] & 0xff) << 8 | (value[2] & 0xff));
+                break;
+            case ReplayStore.SHORT:
+                bits = (short) ((value[1] & 0xff) << 8 | (value[2] & 0xff));
+                break;
+            case ReplayStore.INT:
+            case ReplayStore.FLOAT:
+                bits = (value[1] & 0xff) << 24 | (value[2] & 0xff) << 16 | (value[3] & 0xff) << 8 | (value[4] & 0xff);
+                break;
+            default:
+                return 0;
+        }
+
+        return Long.MIN_VALUE | (long) (value[0] & 0xff) << ReplayStore.INLINE_TAG_SHIFT | (bits & 0xffffffffL);
+    }
+
+    /**
+     * Writes the responses recorded so far, in the format read by ReplayStore.
+     *
+     * @throws IllegalArgumentException if a response does not fit in a segment of the file
+     */
+    public void write(Path file) throws IOException {
+        // A snapshot, should calls still be recorded
+        long[] keys = new long[responses.size()];
+        byte[][] values = new byte[keys.length][];
+        int count = 0;
+
+        for (Map.Entry<Long, byte[]> response : responses.entrySet()) {
+            if (count == keys.length) {
+                break;
+            }
+
+            keys[count] = response.getKey();
+            values[count++] = response.getValue();
+        }
+
+        // At most half full, so that lookups stop at an empty slot after a few probes
+        int capacity = 16;
+        while (capacity < 2L * count) {
+            capacity <<= 1;
+        }
+
+        // The values are laid out first, a value never spanning two segments. Small ones are
+        // kept in their slot instead.
+        long[] table = new long[capacity * 2];
+        long[] offsets = new long[count];
+        long size = 0;
+
+        for (int i = 0; i < count; i++) {
+            long word = getInlineWord(values[i]);
+
+            if (word == 0) {
+                if (values[i].length > ReplayStore.SEGMENT_SIZE) {
+                    throw new IllegalArgumentException("The response " + Long.toHexString(keys[i]) + " takes "
+                            + values[i].length + " bytes, more than a segment");
+                }
+
+                long segmentEnd = (size | (ReplayStore.SEGMENT_SIZE - 1)) + 1;
+
+                if (size + values[i].length > segmentEnd) {
+                    size = segmentEnd;
+                }
+
+                offsets[i] = size;
+                word = size + 1;
+                size += values[i].length;
+            }
+            else {
+                offsets[i] = -1;
+            }
+
+            int slot = ReplayStore.slot(keys[i], capacity - 1);
+
+            while (table[slot * 2 + 1] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+
+            table[slot * 2] = keys[i];
+            table[slot * 2 + 1] = word;
+        }
+
+        OutputStream stream = Files.newOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+
+        try {
+            out.writeInt(ReplayStore.MAGIC);
+            out.writeInt(ReplayStore.VERSION);
+            out.writeInt(capacity);
+            out.writeInt(count);
+            out.writeLong(ReplayStore.HEADER_SIZE + (long) capacity * ReplayStore.SLOT_SIZE);
+            out.writeLong(size);
+
+            for (long entry : table) {
+                out.writeLong(entry);
+            }
+
+            long position = 0;
+
+            for (int i = 0; i < count; i++) {
+                if (offsets[i] < 0) {
+                    continue;
+                }
+
+                // The padding up to the next segment
+                for (; position < offsets[i]; position++) {
+                    out.writeByte(0);
+                }
+
+                out.write(values[i]);
+                position += values[i].length;
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+}
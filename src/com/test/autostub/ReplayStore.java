@@ -0,0 +1,609 @@
+package com.test.autostub;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Array;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The responses a replaying stub serves (see GenerateStub.replay()), as recorded by a
+ * ReplayRecorder, read from a memory-mapped file.
+ *
+ * Each response is found by a 64-bit key: a seed computed at compile time from the erased
+ * signature of the method, mixed with the hash codes of the arguments of the call. The file
+ * holds an open-addressing table of the keys, then the values:
+ *
+ *   header    magic, version, capacity (a power of two), entries, offset and size of the values
+ *   table     capacity * (long key, long word), the word being 0 for an empty slot
+ *   values    a tag (the type of the value) then its bytes: longs and doubles as they are,
+ *             strings and serialized objects after their length
+ *
+ * Nulls and primitives of at most 32 bits are kept in the word of their slot, with their
+ * tag, so that looking them up touches a single slot; the word of the other values is
+ * their offset in the values + 1.
+ *
+ * Nothing is copied to the heap: the table and the values are read in place from the
+ * mapping, primitives are decoded straight from it, strings are decoded the first time
+ * they are returned, then kept by slot, and objects are deserialized on every call, and
+ * only when they are of the return type of their method. Values are mapped in segments of
+ * at most 1 GiB (a MappedByteBuffer is indexed by an int), a value never spanning two of
+ * them, so that recordings of several gigabytes can be replayed. Lookups read absolute positions and do not touch the state of
+ * the buffers: a store can be used by any number of threads at once.
+ */
+public final class ReplayStore {
+
+    static final int MAGIC = 0x47535250;
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    static final int SLOT_SIZE = 16;
+
+    static final int SEGMENT_SHIFT = 30;
+
+    static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    // The tags of the values: primitives by their descriptor, then null, strings and
+    // serialized objects
+    static final byte BOOLEAN = 'Z';
+
+    static final byte BYTE = 'B';
+
+    static final byte CHAR = 'C';
+
+    static final byte SHORT = 'S';
+
+    static final byte INT = 'I';
+
+    static final byte LONG = 'J';
+
+    static final byte FLOAT = 'F';
+
+    static final byte DOUBLE = 'D';
+
+    static final byte NULL = 'N';
+
+    static final byte STRING = 'T';
+
+    static final byte OBJECT = 'O';
+
+    // The strings decoded are kept by chunks of slots, created on the first string decoded
+    // in them
+    static final int STRING_CHUNK_SHIFT = 12;
+
+    // A slot word below 0 holds its value: the tag in bits 48 to 55, the bits of the value
+    // (at most 32) in the low ones. Above 0, it is the offset of the value + 1.
+    static final int INLINE_TAG_SHIFT = 48;
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final String location;
+
+    private final ByteBuffer table;
+
+    private final int mask;
+
+    private final int entries;
+
+    private final ByteBuffer[] segments;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<String>> strings;
+
+    private ReplayStore(String location, ByteBuffer table, int capacity, int entries, ByteBuffer[] segments) {
+        this.location = location;
+        this.table = table;
+        this.mask = capacity - 1;
+        this.entries = entries;
+        this.segments = segments;
+        this.strings = new AtomicReferenceArray<AtomicReferenceArray<String>>(((capacity - 1) >>> STRING_CHUNK_SHIFT) + 1);
+    }
+
+    /**
+     * @param location a file, or a resource of the class path of the stub. A resource in a
+     * jar cannot be mapped: it is copied to a temporary file first.
+     * @param stub the stub, whose class loader holds the resource
+     * @throws IllegalArgumentException if the responses cannot be found or read
+     */
+    public static ReplayStore open(String location, Class<?> stub) {
+        try {
+            Path file = Paths.get(location);
+
+            if (!Files.isRegularFile(file)) {
+                file = findResource(location, stub);
+            }
+
+            return open(location, file);
+        }
+        catch (IOException ioe) {
+            throw new IllegalArgumentException("Invalid replay " + location + ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    static ReplayStore open(String location, Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        // The mappings stay valid once the channel is closed
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("not a replay file");
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("not a replay file of version " + VERSION);
+            }
+
+            int capacity = header.getInt(8);
+            int entries = header.getInt(12);
+            long valuesOffset = header.getLong(16);
+            long valuesSize = header.getLong(24);
+
+            if (Integer.bitCount(capacity) != 1 || valuesOffset != HEADER_SIZE + (long) capacity * SLOT_SIZE
+                    || valuesOffset + valuesSize > channel.size()) {
+                throw new IOException("truncated or corrupted file");
+            }
+
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) capacity * SLOT_SIZE);
+            ByteBuffer[] segments = new ByteBuffer[(int) ((valuesSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, valuesOffset + start,
+                        Math.min(SEGMENT_SIZE, valuesSize - start));
+            }
+
+            return new ReplayStore(location, table, capacity, entries, segments);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    private static Path findResource(String location, Class<?> stub) throws IOException {
+        URL resource = stub.getClassLoader() != null ? stub.getClassLoader().getResource(location)
+                : ClassLoader.getSystemResource(location);
+
+        if (resource == null) {
+            throw new IOException("no such file or resource");
+        }
+
+        if ("file".equals(resource.getProtocol())) {
+            try {
+                return Paths.get(resource.toURI());
+            }
+            catch (URISyntaxException use) {
+                throw new IOException(use);
+            }
+        }
+
+        Path copy = Files.createTempFile("generatestub-replay", ".bin");
+        copy.toFile().deleteOnExit();
+
+        InputStream in = resource.openStream();
+
+        try {
+            Files.copy(in, copy, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            in.close();
+        }
+
+        return copy;
+    }
+
+    /**
+     * @return the key seed of a method, from its erased signature: name(java.lang.String,int)
+     */
+    public static long seed(String signature) {
+        // FNV-1a, on the chars of the signature
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < signature.length(); i++) {
+            hash = (hash ^ signature.charAt(i)) * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    // Each argument is mixed in by its hash code: a primitive hashes as its box does, so that
+    // the recorder, which only sees boxes, finds the same keys as the stubs
+    public static long hash(long key, boolean value) {
+        return mix(key, Boolean.hashCode(value));
+    }
+
+    public static long hash(long key, byte value) {
+        return mix(key, Byte.hashCode(value));
+    }
+
+    public static long hash(long key, char value) {
+        return mix(key, Character.hashCode(value));
+    }
+
+    public static long hash(long key, short value) {
+        return mix(key, Short.hashCode(value));
+    }
+
+    public static long hash(long key, int value) {
+        return mix(key, Integer.hashCode(value));
+    }
+
+    public static long hash(long key, long value) {
+        return mix(key, Long.hashCode(value));
+    }
+
+    public static long hash(long key, float value) {
+        return mix(key, Float.hashCode(value));
+    }
+
+    public static long hash(long key, double value) {
+        return mix(key, Double.hashCode(value));
+    }
+
+    /**
+     * Mixes an object by a hash code which does not change from one JVM to the next: the
+     * one of its class for most objects (strings, boxes, records, collections of them...),
+     * the name of enum constants and classes, and the elements of arrays. Objects keeping
+     * the identity hash code of Object cannot be replayed.
+     */
+    public static long hash(long key, Object value) {
+        return mix(key, stableHashCode(value));
+    }
+
+    private static int stableHashCode(Object value) {
+        if (value == null) {
+            return 0;
+        }
+
+        if (value instanceof Enum<?>) {
+            return ((Enum<?>) value).name().hashCode();
+        }
+
+        if (value instanceof Class<?>) {
+            return ((Class<?>) value).getName().hashCode();
+        }
+
+        if (value.getClass().isArray()) {
+            int hash = 1;
+
+            for (int i = 0; i < Array.getLength(value); i++) {
+                hash = 31 * hash + stableHashCode(Array.get(value, i));
+            }
+
+            return hash;
+        }
+
+        return value.hashCode();
+    }
+
+    private static long mix(long key, int hashCode) {
+        return Long.rotateLeft((key ^ hashCode) * MULTIPLIER, 29);
+    }
+
+    /**
+     * @return the slot of a key in a table of capacity mask + 1, its hash being spread over
+     * the low bits first (the finalizer of MurmurHash3)
+     */
+    static int slot(long key, int mask) {
+        long hash = key;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+        return (int) (hash ^ (hash >>> 33)) & mask;
+    }
+
+    /**
+     * @return the word of the slot of a key: the value itself, or where it is in the values,
+     * 0 if the key was not recorded
+     */
+    private long find(long key) {
+        return getWord(findSlot(key));
+    }
+
+    /**
+     * @return the slot of a key, or the empty slot where it would be
+     */
+    private int findSlot(long key) {
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            int position = slot * SLOT_SIZE;
+
+            // The table is at most half full: there is always an empty slot to stop at
+            if (table.getLong(position + 8) == 0 || table.getLong(position) == key) {
+                return slot;
+            }
+        }
+    }
+
+    private long getWord(int slot) {
+        return table.getLong(slot * SLOT_SIZE + 8);
+    }
+
+    /**
+     * @return the tag of the value of a slot word
+     */
+    private byte getTag(long word) {
+        return word < 0 ? (byte) (word >>> INLINE_TAG_SHIFT) : segment(word - 1).get(position(word - 1));
+    }
+
+    /**
+     * @return the bits of a value kept in its slot
+     * @throws IllegalStateException if it was recorded with another type
+     */
+    private int getInline(long word, byte tag, long key) {
+        if (word >= 0 || (byte) (word >>> INLINE_TAG_SHIFT) != tag) {
+            throw new IllegalStateException("The response " + Long.toHexString(key) + " of " + location
+                    + " was recorded as " + (char) getTag(word) + ", not " + (char) tag);
+        }
+
+        return (int) word;
+    }
+
+    /**
+     * @return the position of a value kept in the values
+     * @throws IllegalStateException if it was recorded with another type
+     */
+    private long getOffset(long word, byte tag, long key) {
+        if (getTag(word) != tag) {
+            throw new IllegalStateException("The response " + Long.toHexString(key) + " of " + location
+                    + " was recorded as " + (char) getTag(word) + ", not " + (char) tag);
+        }
+
+        return word - 1;
+    }
+
+    private ByteBuffer segment(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)];
+    }
+
+    private static int position(long offset) {
+        return (int) (offset & (SEGMENT_SIZE - 1));
+    }
+
+    public boolean getBoolean(long key, boolean defaultValue) {
+        long word = find(key);
+
+        return word == 0 ? defaultValue : getInline(word, BOOLEAN, key) != 0;
+    }
+
+    public byte getByte(long key, byte defaultValue) {
+        long word = find(key);
+
+        return word == 0 ? defaultValue : (byte) getInline(word, BYTE, key);
+    }
+
+    public char getChar(long key, char defaultValue) {
+        long word = find(key);
+
+        return word == 0 ? defaultValue : (char) getInline(word, CHAR, key);
+    }
+
+    public short getShort(long key, short defaultValue) {
+        long word = find(key);
+
+        return word == 0 ? defaultValue : (short) getInline(word, SHORT, key);
+    }
+
+    public int getInt(long key, int defaultValue) {
+        long word = find(key);
+
+        return word == 0 ? defaultValue : getInline(word, INT, key);
+    }
+
+    public long getLong(long key, long defaultValue) {
+        long word = find(key);
+
+        if (word == 0) {
+            return defaultValue;
+        }
+
+        long offset = getOffset(word, LONG, key);
+
+        return segment(offset).getLong(position(offset) + 1);
+    }
+
+    public float getFloat(long key, float defaultValue) {
+        long word = find(key);
+
+        return word == 0 ? defaultValue : Float.intBitsToFloat(getInline(word, FLOAT, key));
+    }
+
+    public double getDouble(long key, double defaultValue) {
+        long word = find(key);
+
+        if (word == 0) {
+            return defaultValue;
+        }
+
+        long offset = getOffset(word, DOUBLE, key);
+
+        return segment(offset).getDouble(position(offset) + 1);
+    }
+
+    /**
+     * @param type the erased return type of the method: a serialized object of another type
+     * is not deserialized
+     * @return the recorded object, or the default value if the key was not recorded. Strings
+     * are immutable: they are decoded on the first call, then the same instance is returned
+     * to every call. Serialized objects are deserialized again on every call, so that what
+     * a caller does to a response (a list it adds to...) is never seen by the next calls:
+     * each call pays for the deserialization and for a new copy of the object.
+     * @throws IllegalStateException if the object is not of the type
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getObject(long key, Class<?> type, T defaultValue) {
+        int slot = findSlot(key);
+        long word = getWord(slot);
+
+        if (word == 0) {
+            return defaultValue;
+        }
+
+        Object value = word < 0 ? getInlineObject(word) : getObject(slot, word, type, key);
+
+        if (value != null && !type.isInstance(value)) {
+            throw new IllegalStateException("The response " + Long.toHexString(key) + " of " + location
+                    + " is a " + value.getClass().getName() + ", not a " + type.getName());
+        }
+
+        return (T) value;
+    }
+
+    /**
+     * @return the box of a value kept in its slot
+     */
+    private Object getInlineObject(long word) {
+        int bits = (int) word;
+
+        switch (getTag(word)) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return Boolean.valueOf(bits != 0);
+            case BYTE:
+                return Byte.valueOf((byte) bits);
+            case CHAR:
+                return Character.valueOf((char) bits);
+            case SHORT:
+                return Short.valueOf((short) bits);
+            case FLOAT:
+                return Float.valueOf(Float.intBitsToFloat(bits));
+            default:
+                return Integer.valueOf(bits);
+        }
+    }
+
+    /**
+     * @return a value kept in the values: a box, the string of its slot, or a new object
+     */
+    private Object getObject(int slot, long word, Class<?> type, long key) {
+        ByteBuffer segment = segment(word - 1);
+        int position = position(word - 1);
+        byte tag = segment.get(position);
+
+        if (tag == LONG) {
+            return Long.valueOf(segment.getLong(position + 1));
+        }
+
+        if (tag == DOUBLE) {
+            return Double.valueOf(segment.getDouble(position + 1));
+        }
+
+        if (tag != STRING) {
+            return deserialize(getBytes(segment, position), type, key);
+        }
+
+        AtomicReferenceArray<String> chunk = strings.get(slot >>> STRING_CHUNK_SHIFT);
+
+        if (chunk == null) {
+            strings.compareAndSet(slot >>> STRING_CHUNK_SHIFT, null,
+                    new AtomicReferenceArray<String>(Math.min(mask + 1, 1 << STRING_CHUNK_SHIFT)));
+            chunk = strings.get(slot >>> STRING_CHUNK_SHIFT);
+        }
+
+        int index = slot & ((1 << STRING_CHUNK_SHIFT) - 1);
+        String value = chunk.get(index);
+
+        if (value == null) {
+            value = new String(getBytes(segment, position), StandardCharsets.UTF_8);
+
+            // Threads decoding the same string at once all return the first one kept
+            if (!chunk.compareAndSet(index, null, value)) {
+                value = chunk.get(index);
+            }
+        }
+
+        return value;
+    }
+
+    private static byte[] getBytes(ByteBuffer segment, int position) {
+        byte[] bytes = new byte[segment.getInt(position + 1)];
+
+        // A duplicate, so that the position of the shared buffer is never moved
+        ByteBuffer value = segment.duplicate();
+        value.position(position + 5);
+        value.get(bytes);
+
+        return bytes;
+    }
+
+    private Object deserialize(byte[] bytes, Class<?> type, long key) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+
+            try {
+                in.setObjectInputFilter(new ReturnTypeFilter(type));
+
+                return in.readObject();
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("The response " + Long.toHexString(key) + " of " + location
+                    + " cannot be read as a " + type.getName() + ": " + e, e);
+        }
+    }
+
+    /**
+     * @return the number of responses recorded
+     */
+    public int size() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return location;
+    }
+
+    /**
+     * Rejects a serialized response whose class is not the return type of its method, before
+     * anything of it is created: the first class read, the one of the object itself, must be
+     * of the type. What the object holds (including the arrays its readObject creates) is
+     * left to the serial filter of the JVM (jdk.serialFilter), if there is one.
+     */
+    private static final class ReturnTypeFilter implements ObjectInputFilter {
+
+        private final Class<?> type;
+
+        private final ObjectInputFilter serialFilter = ObjectInputFilter.Config.getSerialFilter();
+
+        private boolean rootChecked;
+
+        ReturnTypeFilter(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        public Status checkInput(FilterInfo info) {
+            Class<?> serialClass = info.serialClass();
+
+            if (!rootChecked && serialClass != null) {
+                rootChecked = true;
+
+                // A Class is written as the descriptor of the class it stands for
+                if (!type.isAssignableFrom(serialClass) && !type.isAssignableFrom(Class.class)) {
+                    return Status.REJECTED;
+                }
+            }
+
+            return serialFilter != null ? serialFilter.checkInput(info) : Status.UNDECIDED;
+        }
+
+    }
+
+}
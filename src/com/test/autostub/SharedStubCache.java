@@ -0,0 +1,105 @@
+package com.test.autostub;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rendered stubs shared by every compilation of a JVM (of the class loader of the
+ * processor), see GenerateStubProcessor.OPTION_SHARED_CACHE. Build daemons run many javac
+ * tasks at once with the processor loaded once, and tasks stubbing the same library
+ * interfaces would otherwise render the same sources over and over.
+ *
+ * Only the stubs of types read from class files are kept: the jars of a class path do not
+ * change under the builds, where the sources being compiled are edited all the time. Stubs
+ * are kept under the fingerprint of their model (see SignatureCache), which covers every
+ * signature they depend on, so that a stub is only reused for the same library types.
+ *
+ * The cache is bounded, and keeps the stubs used last. Entries are spread over stripes by
+ * fingerprint, each one an access-ordered map with its own lock (a lookup changes the order
+ * of the map), so that concurrent compilations rarely wait for each other.
+ */
+final class SharedStubCache {
+
+    // A power of two, so that a stripe is found with a mask
+    private static final int STRIPES = 16;
+
+    // Created by the first compilation asking for it, with its capacity
+    private static SharedStubCache instance = null;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private SharedStubCache(int capacity) {
+        // Each stripe keeps its share, at least one stub
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, (capacity + STRIPES - 1) / STRIPES));
+        }
+    }
+
+    /**
+     * @param capacity how many stubs are kept, only used when the cache is created
+     * @return the cache of the JVM
+     */
+    static synchronized SharedStubCache getInstance(int capacity) {
+        if (instance == null) {
+            instance = new SharedStubCache(capacity);
+        }
+
+        return instance;
+    }
+
+    /**
+     * @return the cached source of the stub, or null if it is not (or not anymore) cached
+     */
+    String get(String fingerprint) {
+        Stripe stripe = getStripe(fingerprint);
+
+        synchronized (stripe) {
+            return stripe.get(fingerprint);
+        }
+    }
+
+    void put(String fingerprint, String source) {
+        Stripe stripe = getStripe(fingerprint);
+
+        synchronized (stripe) {
+            stripe.put(fingerprint, source);
+        }
+    }
+
+    /**
+     * @return the number of stubs cached
+     */
+    int size() {
+        int size = 0;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+
+        return size;
+    }
+
+    private Stripe getStripe(String fingerprint) {
+        // Fingerprints are hashes already: their own hash codes are spread enough
+        return stripes[fingerprint.hashCode() & (STRIPES - 1)];
+    }
+
+    private static class Stripe extends LinkedHashMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > capacity;
+        }
+    }
+
+}
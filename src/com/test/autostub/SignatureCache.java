@@ -0,0 +1,158 @@
+package com.test.autostub;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.test.autostub.StubModel.MethodModel;
+
+/**
+ * A cache of rendered stubs kept in memory for as long as the StubDaemon runs.
+ *
+ * Each stub is stored under the fingerprint of its StubModel: every method signature
+ * (modifiers, return, parameter and thrown types, default values), the names coming from
+ * the prefix and suffix of @GenerateStub, and its other options. As the source of a stub
+ * is entirely determined by those, a stub whose fingerprint is in the cache is written as
+ * is, without being rendered again.
+ *
+ * Rendering mostly copies the strings of the model, so a hit only pays off if the
+ * fingerprint costs less than that: it is a hash of the characters of the model, not a
+ * digest of their bytes. Stubs are not kept on disk, as reading them back cost more than
+ * rendering them again.
+ *
+ * Lookups and stores can be made from any thread.
+ */
+class SignatureCache {
+
+    private final ConcurrentMap<String, String> entries = new ConcurrentHashMap<String, String>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @return a stable fingerprint of everything the source of the stub depends on, the
+     * same for every cache
+     */
+    static String fingerprint(StubModel model) {
+        Fingerprint fingerprint = new Fingerprint();
+
+        fingerprint.add(model.getTargetNames());
+        fingerprint.add(model.getPackageName());
+        fingerprint.add(model.getSimpleName());
+        fingerprint.add(model.getTypeParameters());
+        fingerprint.add(model.getTypeArguments());
+        fingerprint.add(model.isTargetInterface() ? 1 : 0);
+        fingerprint.add(model.getOptions().isRecordingCalls() ? 1 : 0);
+        fingerprint.add(model.getOptions().getCaptureArguments());
+        fingerprint.add(model.getOptions().getDefaults().ordinal());
+        fingerprint.add(model.getOptions().isSingleton() ? 1 : 0);
+
+        fingerprint.add(model.getOptions().getLatency().size());
+        for (Map.Entry<String, String> latency : model.getOptions().getLatency().entrySet()) {
+            fingerprint.add(latency.getKey());
+            fingerprint.add(latency.getValue());
+        }
+        fingerprint.add(model.getOptions().getReplay());
+        fingerprint.add(model.getMembers());
+
+        // Every list is counted, so that one cannot be mixed up with the next
+        fingerprint.add(model.getMethods().size());
+        for (MethodModel method : model.getMethods()) {
+            fingerprint.add(method.getModifiers());
+            fingerprint.add(method.getTypeParameters());
+            fingerprint.add(method.getReturnType());
+            fingerprint.add(method.getName());
+            fingerprint.add(method.getParameterTypes());
+            fingerprint.add(method.getThrownTypes());
+            fingerprint.add(method.getDefaultValue());
+            fingerprint.add(method.getReplaySignature());
+            fingerprint.add(method.getReplayType());
+        }
+
+        return fingerprint.toString();
+    }
+
+    /**
+     * @return the cached source of the stub, or null if this fingerprint was never stored
+     */
+    String get(String fingerprint) {
+        String source = entries.get(fingerprint);
+        (source != null ? hits : misses).incrementAndGet();
+
+        return source;
+    }
+
+    void put(String fingerprint, String source) {
+        entries.put(fingerprint, source);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * A 128-bit hash of strings and numbers, fed char by char: two lanes of multiplicative
+     * hashing (FNV-1a, and a rotate-multiply one), each finalized with the mixer of
+     * MurmurHash3. Models are not adversarial input, and 128 bits leave no room for an
+     * accidental collision among the stubs of a JVM.
+     */
+    private static class Fingerprint {
+
+        private long low = 0xCBF29CE484222325L;
+
+        private long high = 0x9E3779B97F4A7C15L;
+
+        void add(List<String> values) {
+            add(values.size());
+
+            for (String value : values) {
+                add(value);
+            }
+        }
+
+        void add(String value) {
+            if (value == null) {
+                // Tells null apart from any string, which starts with its length
+                add(-1);
+                return;
+            }
+
+            int length = value.length();
+            add(length);
+
+            for (int i = 0; i < length; i++) {
+                add(value.charAt(i));
+            }
+        }
+
+        void add(int value) {
+            low = (low ^ value) * 0x100000001B3L;
+            high = Long.rotateLeft(high ^ value, 31) * 0xC2B2AE3D27D4EB4FL;
+        }
+
+        @Override
+        public String toString() {
+            return toHex(mix(low ^ high)) + toHex(mix(high + low));
+        }
+
+        private static long mix(long value) {
+            value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+            value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+
+            return value ^ (value >>> 33);
+        }
+
+        private static String toHex(long value) {
+            String hex = Long.toHexString(value);
+
+            return "0000000000000000".substring(hex.length()) + hex;
+        }
+    }
+
+}
@@ -0,0 +1,700 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the generic signatures (and descriptors) of class files into types which can be
+ * written as source, as signatures, or erased to descriptors, after their type variables
+ * have been substituted: what the Generator gets from javac's TypeMirrors, for stubs made
+ * from class files.
+ *
+ * See the "Signatures" section of the JVM specification (4.7.9.1) for the grammar.
+ */
+class SignatureParser {
+
+    private final String signature;
+
+    private int position = 0;
+
+    private SignatureParser(String signature) {
+        this.signature = signature;
+    }
+
+    /**
+     * @param signature the generic signature of a class
+     */
+    static ClassSignature parseClassSignature(String signature) {
+        SignatureParser parser = new SignatureParser(signature);
+        List<TypeParameter> typeParameters = parser.parseTypeParameters();
+        ClassType superclass = (ClassType) parser.parseType();
+        List<ClassType> interfaces = new ArrayList<ClassType>();
+
+        while (!parser.isAtEnd()) {
+            interfaces.add((ClassType) parser.parseType());
+        }
+
+        return new ClassSignature(typeParameters, superclass, interfaces);
+    }
+
+    /**
+     * @param signature the generic signature, or the descriptor, of a method
+     */
+    static MethodSignature parseMethodSignature(String signature) {
+        SignatureParser parser = new SignatureParser(signature);
+        List<TypeParameter> typeParameters = parser.parseTypeParameters();
+        List<Type> parameters = new ArrayList<Type>();
+
+        parser.expect('(');
+        while (parser.peek() != ')') {
+            parameters.add(parser.parseType());
+        }
+        parser.expect(')');
+
+        Type returnType = parser.parseType();
+        List<Type> thrownTypes = new ArrayList<Type>();
+
+        while (!parser.isAtEnd()) {
+            parser.expect('^');
+            thrownTypes.add(parser.parseType());
+        }
+
+        return new MethodSignature(typeParameters, parameters, returnType, thrownTypes);
+    }
+
+    /**
+     * @return the type of a class without type arguments, from its internal name
+     */
+    static ClassType classType(String internalName) {
+        return new ClassType(internalName, Collections.<Type>emptyList(), null);
+    }
+
+    private List<TypeParameter> parseTypeParameters() {
+        if (isAtEnd() || peek() != '<') {
+            return Collections.emptyList();
+        }
+
+        List<TypeParameter> typeParameters = new ArrayList<TypeParameter>();
+        position++;
+
+        while (peek() != '>') {
+            int colon = signature.indexOf(':', position);
+            String name = signature.substring(position, colon);
+            List<Type> bounds = new ArrayList<Type>();
+            position = colon + 1;
+
+            // The class bound may be empty (<T::Ljava/lang/Comparable<TT;>;>), the
+            // interface bounds each start with a colon
+            boolean classBound = peek() != ':';
+
+            if (classBound) {
+                bounds.add(parseType());
+            }
+
+            while (peek() == ':') {
+                position++;
+                bounds.add(parseType());
+            }
+
+            typeParameters.add(new TypeParameter(name, bounds, classBound));
+        }
+
+        position++;
+        return typeParameters;
+    }
+
+    private Type parseType() {
+        char c = signature.charAt(position++);
+
+        switch (c) {
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'F':
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'Z':
+            case 'V':
+                return PrimitiveType.of(c);
+            case '[':
+                return new ArrayType(parseType());
+            case 'T': {
+                int semicolon = signature.indexOf(';', position);
+                String name = signature.substring(position, semicolon);
+                position = semicolon + 1;
+                return new TypeVariable(name);
+            }
+            case 'L':
+                return parseClassType();
+            default:
+                throw new IllegalArgumentException("Unexpected '" + c + "' at " + (position - 1) + " in " + signature);
+        }
+    }
+
+    private ClassType parseClassType() {
+        ClassType type = new ClassType(readIdentifier(), parseTypeArguments(), null);
+
+        // A member of a generic class: Lcom/acme/Outer<TT;>.Inner<TU;>;
+        while (peek() == '.') {
+            position++;
+            type = new ClassType(readIdentifier(), parseTypeArguments(), type);
+        }
+
+        expect(';');
+        return type;
+    }
+
+    private String readIdentifier() {
+        int start = position;
+
+        while (peek() != '<' && peek() != '.' && peek() != ';') {
+            position++;
+        }
+
+        return signature.substring(start, position);
+    }
+
+    private List<Type> parseTypeArguments() {
+        if (peek() != '<') {
+            return Collections.emptyList();
+        }
+
+        List<Type> typeArguments = new ArrayList<Type>();
+        position++;
+
+        while (peek() != '>') {
+            char c = peek();
+
+            if (c == '*') {
+                position++;
+                typeArguments.add(new WildcardType(c, null));
+            }
+            else if (c == '+' || c == '-') {
+                position++;
+                typeArguments.add(new WildcardType(c, parseType()));
+            }
+            else {
+                typeArguments.add(parseType());
+            }
+        }
+
+        position++;
+        return typeArguments;
+    }
+
+    private char peek() {
+        return signature.charAt(position);
+    }
+
+    private boolean isAtEnd() {
+        return position >= signature.length();
+    }
+
+    private void expect(char c) {
+        if (signature.charAt(position++) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + (position - 1) + " in " + signature);
+        }
+    }
+
+    /**
+     * A type of a signature: primitive, array, class, type variable or wildcard.
+     */
+    abstract static class Type {
+
+        /**
+         * @return the type with its type variables replaced by their arguments; the ones
+         * which are not in arguments are left alone
+         */
+        abstract Type substitute(Map<String, Type> arguments);
+
+        /**
+         * Writes the type as source, with qualified names (java.util.Map.Entry<K, V>).
+         */
+        abstract void appendSource(StringBuilder out);
+
+        /**
+         * Writes the type as a generic signature.
+         */
+        abstract void appendSignature(StringBuilder out);
+
+        /**
+         * Writes the erasure of the type as a descriptor.
+         *
+         * @param bounds the first bound of each type variable in scope
+         */
+        abstract void appendDescriptor(StringBuilder out, Map<String, Type> bounds);
+
+        /**
+         * @return true if the type needs a generic signature: it is or holds a type variable,
+         * or has type arguments
+         */
+        abstract boolean isGeneric();
+
+        String toSource() {
+            StringBuilder out = new StringBuilder();
+            appendSource(out);
+            return out.toString();
+        }
+
+        String toDescriptor(Map<String, Type> bounds) {
+            StringBuilder out = new StringBuilder();
+            appendDescriptor(out, bounds);
+            return out.toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            appendSignature(out);
+            return out.toString();
+        }
+    }
+
+    static final class PrimitiveType extends Type {
+
+        private static final String DESCRIPTORS = "BCDFIJSZV";
+
+        private static final String[] NAMES = { "byte", "char", "double", "float", "int", "long", "short", "boolean", "void" };
+
+        private static final PrimitiveType[] TYPES = new PrimitiveType[DESCRIPTORS.length()];
+
+        static {
+            for (int i = 0; i < TYPES.length; i++) {
+                TYPES[i] = new PrimitiveType(DESCRIPTORS.charAt(i), NAMES[i]);
+            }
+        }
+
+        private final char descriptor;
+
+        private final String name;
+
+        private PrimitiveType(char descriptor, String name) {
+            this.descriptor = descriptor;
+            this.name = name;
+        }
+
+        static PrimitiveType of(char descriptor) {
+            return TYPES[DESCRIPTORS.indexOf(descriptor)];
+        }
+
+        char getDescriptor() {
+            return descriptor;
+        }
+
+        @Override
+        Type substitute(Map<String, Type> arguments) {
+            return this;
+        }
+
+        @Override
+        void appendSource(StringBuilder out) {
+            out.append(name);
+        }
+
+        @Override
+        void appendSignature(StringBuilder out) {
+            out.append(descriptor);
+        }
+
+        @Override
+        void appendDescriptor(StringBuilder out, Map<String, Type> bounds) {
+            out.append(descriptor);
+        }
+
+        @Override
+        boolean isGeneric() {
+            return false;
+        }
+    }
+
+    static final class ArrayType extends Type {
+
+        private final Type componentType;
+
+        ArrayType(Type componentType) {
+            this.componentType = componentType;
+        }
+
+        Type getComponentType() {
+            return componentType;
+        }
+
+        @Override
+        Type substitute(Map<String, Type> arguments) {
+            Type substituted = componentType.substitute(arguments);
+            return substituted == componentType ? this : new ArrayType(substituted);
+        }
+
+        @Override
+        void appendSource(StringBuilder out) {
+            componentType.appendSource(out);
+            out.append("[]");
+        }
+
+        @Override
+        void appendSignature(StringBuilder out) {
+            out.append('[');
+            componentType.appendSignature(out);
+        }
+
+        @Override
+        void appendDescriptor(StringBuilder out, Map<String, Type> bounds) {
+            out.append('[');
+            componentType.appendDescriptor(out, bounds);
+        }
+
+        @Override
+        boolean isGeneric() {
+            return componentType.isGeneric();
+        }
+    }
+
+    static final class ClassType extends Type {
+
+        // The internal name (java/util/Map$Entry), or for a member of a parameterized
+        // class, the simple name of the member (Entry)
+        private final String name;
+
+        private final List<Type> typeArguments;
+
+        // Only set for a member of a parameterized class (Outer<T>.Inner)
+        private final ClassType outer;
+
+        ClassType(String name, List<Type> typeArguments, ClassType outer) {
+            this.name = name;
+            this.typeArguments = typeArguments;
+            this.outer = outer;
+        }
+
+        String getInternalName() {
+            return outer == null ? name : outer.getInternalName() + "$" + name;
+        }
+
+        List<Type> getTypeArguments() {
+            return typeArguments;
+        }
+
+        @Override
+        Type substitute(Map<String, Type> arguments) {
+            if (!isGeneric()) {
+                return this;
+            }
+
+            List<Type> substituted = new ArrayList<Type>(typeArguments.size());
+
+            for (Type typeArgument : typeArguments) {
+                substituted.add(typeArgument.substitute(arguments));
+            }
+
+            return new ClassType(name, substituted, outer == null ? null : (ClassType) outer.substitute(arguments));
+        }
+
+        @Override
+        void appendSource(StringBuilder out) {
+            if (outer != null) {
+                outer.appendSource(out);
+                out.append('.').append(name);
+            }
+            else {
+                // Nested classes are separated by '$' in internal names: the rare class
+                // whose name holds a '$' is not told apart from them
+                out.append(name.replace('/', '.').replace('$', '.'));
+            }
+
+            if (!typeArguments.isEmpty()) {
+                out.append('<');
+
+                for (int i = 0; i < typeArguments.size(); i++) {
+                    if (i > 0) {
+                        out.append(", ");
+                    }
+                    typeArguments.get(i).appendSource(out);
+                }
+
+                out.append('>');
+            }
+        }
+
+        @Override
+        void appendSignature(StringBuilder out) {
+            appendSignatureName(out);
+            out.append(';');
+        }
+
+        private void appendSignatureName(StringBuilder out) {
+            if (outer != null) {
+                outer.appendSignatureName(out);
+                out.append('.').append(name);
+            }
+            else {
+                out.append('L').append(name);
+            }
+
+            if (!typeArguments.isEmpty()) {
+                out.append('<');
+
+                for (Type typeArgument : typeArguments) {
+                    typeArgument.appendSignature(out);
+                }
+
+                out.append('>');
+            }
+        }
+
+        @Override
+        void appendDescriptor(StringBuilder out, Map<String, Type> bounds) {
+            out.append('L').append(getInternalName()).append(';');
+        }
+
+        @Override
+        boolean isGeneric() {
+            return !typeArguments.isEmpty() || (outer != null && outer.isGeneric());
+        }
+    }
+
+    static final class TypeVariable extends Type {
+
+        private final String name;
+
+        TypeVariable(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        @Override
+        Type substitute(Map<String, Type> arguments) {
+            Type argument = arguments.get(name);
+            return argument != null ? argument : this;
+        }
+
+        @Override
+        void appendSource(StringBuilder out) {
+            out.append(name);
+        }
+
+        @Override
+        void appendSignature(StringBuilder out) {
+            out.append('T').append(name).append(';');
+        }
+
+        @Override
+        void appendDescriptor(StringBuilder out, Map<String, Type> bounds) {
+            // A type variable is erased to the erasure of its first bound
+            Type bound = bounds.get(name);
+
+            if (bound == null || bound == this) {
+                out.append("Ljava/lang/Object;");
+            }
+            else {
+                // The bound may use the variable itself (T extends Comparable<T>), which only
+                // matters for its type arguments
+                Map<String, Type> outerBounds = new HashMap<String, Type>(bounds);
+                outerBounds.remove(name);
+                bound.appendDescriptor(out, outerBounds);
+            }
+        }
+
+        @Override
+        boolean isGeneric() {
+            return true;
+        }
+    }
+
+    static final class WildcardType extends Type {
+
+        // '*' for ?, '+' for ? extends bound, '-' for ? super bound
+        private final char kind;
+
+        private final Type bound;
+
+        WildcardType(char kind, Type bound) {
+            this.kind = kind;
+            this.bound = bound;
+        }
+
+        @Override
+        Type substitute(Map<String, Type> arguments) {
+            return bound == null ? this : new WildcardType(kind, bound.substitute(arguments));
+        }
+
+        @Override
+        void appendSource(StringBuilder out) {
+            out.append('?');
+
+            if (bound != null) {
+                out.append(kind == '+' ? " extends " : " super ");
+                bound.appendSource(out);
+            }
+        }
+
+        @Override
+        void appendSignature(StringBuilder out) {
+            out.append(kind);
+
+            if (bound != null) {
+                bound.appendSignature(out);
+            }
+        }
+
+        @Override
+        void appendDescriptor(StringBuilder out, Map<String, Type> bounds) {
+            throw new IllegalStateException("A wildcard has no erasure");
+        }
+
+        @Override
+        boolean isGeneric() {
+            return true;
+        }
+    }
+
+    /**
+     * A type parameter of a class or method, with its bounds (java.lang.Object may be one).
+     */
+    static final class TypeParameter {
+
+        private final String name;
+
+        private final List<Type> bounds;
+
+        // Whether the first bound is a class (or type variable), and not an interface
+        private final boolean classBound;
+
+        TypeParameter(String name, List<Type> bounds, boolean classBound) {
+            this.name = name;
+            this.bounds = bounds;
+            this.classBound = classBound;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        List<Type> getBounds() {
+            return bounds;
+        }
+
+        TypeParameter substitute(Map<String, Type> arguments) {
+            List<Type> substituted = new ArrayList<Type>(bounds.size());
+
+            for (Type bound : bounds) {
+                substituted.add(bound.substitute(arguments));
+            }
+
+            return new TypeParameter(name, substituted, classBound);
+        }
+
+        /**
+         * @return the first bound, which the type parameter is erased to
+         */
+        Type getErasedBound() {
+            return bounds.isEmpty() ? classType("java/lang/Object") : bounds.get(0);
+        }
+
+        void appendSource(StringBuilder out) {
+            out.append(name);
+
+            // Object is the implicit bound, which javac writes in the signature
+            boolean first = true;
+
+            for (Type bound : bounds) {
+                if (bound instanceof ClassType && "java/lang/Object".equals(((ClassType) bound).getInternalName())
+                        && bounds.size() == 1) {
+                    continue;
+                }
+
+                out.append(first ? " extends " : " & ");
+                bound.appendSource(out);
+                first = false;
+            }
+        }
+
+        void appendSignature(StringBuilder out) {
+            out.append(name);
+
+            // Interface bounds come after the class bound, which may be empty:
+            // T::Ljava/lang/Runnable;
+            if (!classBound) {
+                out.append(':');
+            }
+
+            for (Type bound : bounds) {
+                out.append(':');
+                bound.appendSignature(out);
+            }
+        }
+    }
+
+    /**
+     * The type parameters and supertypes of a class.
+     */
+    static final class ClassSignature {
+
+        private final List<TypeParameter> typeParameters;
+
+        private final ClassType superclass;
+
+        private final List<ClassType> interfaces;
+
+        ClassSignature(List<TypeParameter> typeParameters, ClassType superclass, List<ClassType> interfaces) {
+            this.typeParameters = typeParameters;
+            this.superclass = superclass;
+            this.interfaces = interfaces;
+        }
+
+        List<TypeParameter> getTypeParameters() {
+            return typeParameters;
+        }
+
+        ClassType getSuperclass() {
+            return superclass;
+        }
+
+        List<ClassType> getInterfaces() {
+            return interfaces;
+        }
+    }
+
+    /**
+     * The type parameters, parameters, return and thrown types of a method.
+     */
+    static final class MethodSignature {
+
+        private final List<TypeParameter> typeParameters;
+
+        private final List<Type> parameters;
+
+        private final Type returnType;
+
+        private final List<Type> thrownTypes;
+
+        MethodSignature(List<TypeParameter> typeParameters, List<Type> parameters, Type returnType, List<Type> thrownTypes) {
+            this.typeParameters = typeParameters;
+            this.parameters = parameters;
+            this.returnType = returnType;
+            this.thrownTypes = thrownTypes;
+        }
+
+        List<TypeParameter> getTypeParameters() {
+            return typeParameters;
+        }
+
+        List<Type> getParameters() {
+            return parameters;
+        }
+
+        Type getReturnType() {
+            return returnType;
+        }
+
+        List<Type> getThrownTypes() {
+            return thrownTypes;
+        }
+    }
+
+}
@@ -0,0 +1,274 @@
+package com.test.autostub;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a CDS archive of the stubs of the class path, so that JVMs starting with it map
+ * the stubs from the archive instead of loading, parsing and verifying them again:
+ *
+ *   java -cp automaticstubprocessor.jar:tests.jar com.test.autostub.StubArchive build/stubs.jsa
+ *   java -XX:SharedArchiveFile=build/stubs.jsa -cp automaticstubprocessor.jar:tests.jar ...
+ *
+ * The class lists written with the stubs (StubIndex.CLASS_LIST_RESOURCE) are merged with
+ * the one of the JDK, so that the archive still holds the JDK classes the default one
+ * has, and the archive is dumped with the class path of this JVM. It is then checked: a
+ * new JVM loads every stub with the archive, and tells where each one came from.
+ *
+ * CDS only archives classes from jars, and the JVMs using the archive must start with the
+ * same class path (or one it is a prefix of).
+ */
+public class StubArchive {
+
+    private static final String USAGE = "Usage: StubArchive [-nocheck] <archive file>\n"
+            + "  -nocheck                does not check that the stubs are loaded from the archive";
+
+    // Given to the JVM checking the archive, which then loads the stubs
+    private static final String LOAD = "-load";
+
+    // How -Xlog:class+load tells that a class comes from the archive
+    private static final String SHARED_SOURCE = " source: shared objects file";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 1 && LOAD.equals(args[0])) {
+            loadStubs();
+            return;
+        }
+
+        boolean check = true;
+        Path archive = null;
+
+        for (String arg : args) {
+            if ("-nocheck".equals(arg)) {
+                check = false;
+            }
+            else if (!arg.startsWith("-") && archive == null) {
+                archive = Paths.get(arg).toAbsolutePath();
+            }
+            else {
+                System.err.println("Unknown option " + arg);
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+
+        if (archive == null) {
+            System.err.println("No archive file given");
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        System.exit(new StubArchive().run(archive, check));
+    }
+
+    /**
+     * @return the exit code: 0 when the archive was built (and every stub is loaded from
+     * it), 1 otherwise
+     */
+    private int run(Path archive, boolean check) throws IOException, InterruptedException {
+        List<String> stubs = readClassLists();
+
+        if (stubs.isEmpty()) {
+            System.err.println("StubArchive: no " + StubIndex.CLASS_LIST_RESOURCE + " on the class path");
+            return 1;
+        }
+
+        for (String entry : getClassPath()) {
+            if (isNonEmptyDirectory(Paths.get(entry))) {
+                System.err.println("StubArchive: " + entry + " is a directory, CDS only archives classes from jars");
+                return 1;
+            }
+        }
+
+        // The classes of the JDK first, as in its default archive
+        Set<String> classList = new LinkedHashSet<String>();
+        Path jdkClassList = Paths.get(System.getProperty("java.home"), "lib", "classlist");
+
+        if (Files.isRegularFile(jdkClassList)) {
+            classList.addAll(Files.readAllLines(jdkClassList, StandardCharsets.UTF_8));
+        }
+        classList.addAll(stubs);
+
+        Path classListFile = archive.resolveSibling(archive.getFileName() + ".classlist");
+        if (archive.getParent() != null) {
+            Files.createDirectories(archive.getParent());
+        }
+        Files.write(classListFile, classList, StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        Process dump = start("-Xshare:dump", "-XX:SharedClassListFile=" + classListFile, "-XX:SharedArchiveFile=" + archive);
+        String dumpOutput = readFully(dump.getInputStream());
+
+        if (dump.waitFor() != 0) {
+            System.err.print(dumpOutput);
+            System.err.println("StubArchive: the archive could not be dumped");
+            return 1;
+        }
+
+        System.err.println("StubArchive: " + stubs.size() + " stubs archived in " + archive + ", in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        return check ? check(archive, stubs) : 0;
+    }
+
+    /**
+     * Loads the stubs in a JVM using the archive, and in one using the default archive of
+     * the JDK, to compare their times.
+     */
+    private int check(Path archive, List<String> stubs) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process withArchive = start("-XX:SharedArchiveFile=" + archive, "-Xlog:class+load=info", StubArchive.class.getName(), LOAD);
+        String output = readFully(withArchive.getInputStream());
+
+        if (withArchive.waitFor() != 0) {
+            System.err.print(output);
+            System.err.println("StubArchive: the stubs could not be loaded with the archive");
+            return 1;
+        }
+
+        long archiveMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        Process withoutArchive = start(StubArchive.class.getName(), LOAD);
+        readFully(withoutArchive.getInputStream());
+        withoutArchive.waitFor();
+        long defaultMillis = (System.nanoTime() - start) / 1000000;
+
+        // Lines such as "[info][class,load] com.acme.api.StubUserService source: shared objects file"
+        Set<String> shared = new LinkedHashSet<String>();
+
+        for (String line : output.split("\n")) {
+            int end = line.indexOf(SHARED_SOURCE);
+
+            if (end > 0) {
+                shared.add(line.substring(line.lastIndexOf(' ', end - 1) + 1, end).replace('.', '/'));
+            }
+        }
+
+        List<String> notShared = new ArrayList<String>();
+
+        for (String stub : stubs) {
+            if (!shared.contains(stub)) {
+                notShared.add(stub);
+            }
+        }
+
+        System.err.println("StubArchive: " + (stubs.size() - notShared.size()) + " of " + stubs.size()
+                + " stubs loaded from the archive; loading them took " + archiveMillis + " ms with it, "
+                + defaultMillis + " ms without it");
+
+        if (!notShared.isEmpty()) {
+            System.err.println("StubArchive: not loaded from the archive: " + notShared);
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Loads every stub of the class lists, without initializing them.
+     */
+    private static void loadStubs() throws IOException {
+        ClassLoader classLoader = StubArchive.class.getClassLoader();
+
+        for (String stub : readClassLists()) {
+            try {
+                Class.forName(stub.replace('/', '.'), false, classLoader);
+            }
+            catch (ClassNotFoundException | LinkageError e) {
+                System.err.println("StubArchive: " + stub + " cannot be loaded: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the stubs of every class list of the class path, by internal name
+     */
+    private static List<String> readClassLists() throws IOException {
+        Set<String> stubs = new LinkedHashSet<String>();
+        Enumeration<URL> resources = StubArchive.class.getClassLoader().getResources(StubIndex.CLASS_LIST_RESOURCE);
+
+        while (resources.hasMoreElements()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(resources.nextElement().openStream(),
+                    StandardCharsets.UTF_8));
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        stubs.add(line);
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        return new ArrayList<String>(stubs);
+    }
+
+    private static List<String> getClassPath() {
+        return Arrays.asList(System.getProperty("java.class.path").split(Pattern.quote(File.pathSeparator)));
+    }
+
+    private static boolean isNonEmptyDirectory(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return false;
+        }
+
+        DirectoryStream<Path> entries = Files.newDirectoryStream(path);
+
+        try {
+            return entries.iterator().hasNext();
+        }
+        finally {
+            entries.close();
+        }
+    }
+
+    /**
+     * Starts a JVM with the class path of this one.
+     */
+    private static Process start(String... arguments) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.addAll(Arrays.asList(arguments));
+
+        return new ProcessBuilder(command).redirectErrorStream(true).start();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
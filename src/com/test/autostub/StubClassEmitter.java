@@ -0,0 +1,72 @@
+package com.test.autostub;
+import java.util.List;
+
+import com.test.autostub.StubModel.MethodModel;
+
+/**
+ * Writes the class file of a stub from its StubModel, for when stubs are not written as
+ * sources (see GenerateStubProcessor.OPTION_EMIT). The stub is the same class javac would
+ * compile from the source: same name, supertypes, generic signatures and methods.
+ *
+ * Like the StubRenderer, it keeps no state and can be used from several threads.
+ */
+class StubClassEmitter {
+
+    byte[] emit(StubModel model) {
+        ClassFileWriter writer;
+
+        // Interfaces are IMPLEMENTED while classes are EXTENDED
+        if (model.isTargetInterface()) {
+            writer = new ClassFileWriter(ClassFileWriter.JAVA_8_VERSION, ClassFileWriter.ACC_PUBLIC,
+                    model.getInternalName(), "java/lang/Object", model.getTargetInternalName());
+        }
+        else {
+            writer = new ClassFileWriter(ClassFileWriter.JAVA_8_VERSION, ClassFileWriter.ACC_PUBLIC,
+                    model.getInternalName(), model.getTargetInternalName());
+        }
+
+        if (model.getSignature() != null) {
+            writer.setSignature(model.getSignature());
+        }
+
+        writer.addDefaultConstructor();
+
+        for (MethodModel method : model.getMethods()) {
+            int access = getAccess(method.getModifiers());
+            List<String> descriptors = method.getDescriptors();
+            String[] exceptions = method.getThrownInternalNames().toArray(new String[0]);
+
+            // The method itself...
+            writer.addDefaultReturnMethod(access, method.getName(), descriptors.get(0), method.getSignature(), exceptions);
+
+            // ...and, where the erasure of an overridden method differs, the bridges javac
+            // would have added, with the same throws clause. Ours do not need to delegate:
+            // they return the same default.
+            for (int i = 1; i < descriptors.size(); i++) {
+                writer.addDefaultReturnMethod(access | ClassFileWriter.ACC_BRIDGE | ClassFileWriter.ACC_SYNTHETIC,
+                        method.getName(), descriptors.get(i), null, exceptions);
+            }
+        }
+
+        return writer.toByteArray();
+    }
+
+    private int getAccess(List<String> modifiers) {
+        int access = 0;
+
+        for (String modifier : modifiers) {
+            if ("public".equals(modifier)) {
+                access |= ClassFileWriter.ACC_PUBLIC;
+            }
+            else if ("protected".equals(modifier)) {
+                access |= ClassFileWriter.ACC_PROTECTED;
+            }
+            else if ("synchronized".equals(modifier)) {
+                access |= ClassFileWriter.ACC_SYNCHRONIZED;
+            }
+        }
+
+        return access;
+    }
+
+}
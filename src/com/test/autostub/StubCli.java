@@ -0,0 +1,432 @@
+package com.test.autostub;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import com.test.autostub.ClassFileReader.ClassInfo;
+import com.test.autostub.StubModel.MethodModel;
+
+/**
+ * Generates the stubs of every public interface of jars (or class directories), from their
+ * class files, without compiling anything:
+ *
+ *   java -cp automaticstubprocessor.jar com.test.autostub.StubCli -d stubs vendor.jar
+ *
+ * Jars are read through zip file systems. Class files are parsed on a fork-join pool, then
+ * the stubs are modelled, rendered and written on the same pool, each one in its own file.
+ * The stubs are the ones @GenerateStub would have generated, with the same options, and an
+ * index of the stubs is written for StubRegistry.
+ *
+ * Only top-level interfaces are stubbed; sealed interfaces, and interfaces whose
+ * superinterfaces cannot be found (on the inputs, on -cp, or in the JDK), are skipped.
+ */
+public class StubCli {
+
+    private static final String USAGE = "Usage: StubCli [options] <jar or class directory>...\n"
+            + "  -d <directory>          where stubs are written (default: stubs)\n"
+            + "  -emit source|class      writes sources (default) or class files\n"
+            + "  -prefix <prefix>        prefix of the stub names (default: Stub)\n"
+            + "  -suffix <suffix>        suffix of the stub names (default: none)\n"
+            + "  -defaults null|empty    what methods returning objects return (default: null)\n"
+            + "  -singleton              final stubs with a shared INSTANCE\n"
+            + "  -latency [<method>=]<distribution>\n"
+            + "                          the latency of the calls of a method, or of every method\n"
+            + "                          (lognormal:10ms,50ms); may be repeated\n"
+            + "  -include <target>       only stubs the interfaces of a package, or matching a pattern\n"
+            + "                          (com.acme.api.*Service); may be repeated\n"
+            + "  -cp <path>              where the superinterfaces of the interfaces are found\n"
+            + "  -threads <threads>|auto how many threads read and write (default: auto)";
+
+    private Path outputDirectory = Paths.get("stubs");
+
+    private boolean emitClass = false;
+
+    private String prefix = "Stub";
+
+    private String suffix = "";
+
+    private StubDefaults defaults = StubDefaults.NULL;
+
+    private boolean singleton = false;
+
+    private final List<String> latency = new ArrayList<String>();
+
+    private final List<String> includes = new ArrayList<String>();
+
+    private final List<Path> classPath = new ArrayList<Path>();
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final List<Path> inputs = new ArrayList<Path>();
+
+    // The jars opened as file systems, closed once done
+    private final List<FileSystem> fileSystems = new ArrayList<FileSystem>();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        StubCli cli = new StubCli();
+
+        try {
+            cli.parseArguments(args);
+        }
+        catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        System.exit(cli.run());
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (!arg.startsWith("-")) {
+                inputs.add(Paths.get(arg));
+            }
+            else if ("-singleton".equals(arg)) {
+                singleton = true;
+            }
+            else if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            else {
+                String value = args[++i];
+
+                if ("-d".equals(arg)) {
+                    outputDirectory = Paths.get(value);
+                }
+                else if ("-emit".equals(arg)) {
+                    emitClass = GenerateStubProcessor.EMIT_CLASS.equals(value);
+                }
+                else if ("-prefix".equals(arg)) {
+                    prefix = value;
+                }
+                else if ("-suffix".equals(arg)) {
+                    suffix = value;
+                }
+                else if ("-defaults".equals(arg)) {
+                    defaults = StubDefaults.valueOf(value.toUpperCase());
+                }
+                else if ("-latency".equals(arg)) {
+                    latency.add(value);
+                }
+                else if ("-include".equals(arg)) {
+                    includes.add(value);
+                }
+                else if ("-cp".equals(arg)) {
+                    for (String entry : value.split(Pattern.quote(File.pathSeparator))) {
+                        classPath.add(Paths.get(entry));
+                    }
+                }
+                else if ("-threads".equals(arg)) {
+                    threads = "auto".equals(value) ? Runtime.getRuntime().availableProcessors() : Math.max(1, Integer.parseInt(value));
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No jar or class directory given");
+        }
+
+        // Checked at once, rather than by every stub
+        StubOptions.parseLatency(latency.toArray(new String[0]));
+    }
+
+    /**
+     * @return the exit code: 0 when every input could be read and every latency matched a
+     * method, 1 otherwise
+     */
+    private int run() throws IOException, InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+
+        try {
+            long start = System.nanoTime();
+
+            List<Path> classPathRoots = new ArrayList<Path>();
+            for (Path entry : classPath) {
+                classPathRoots.add(open(entry));
+            }
+
+            ClassFileIndex index = new ClassFileIndex(classPathRoots);
+            List<Path> classFiles = new ArrayList<Path>();
+
+            for (Path input : inputs) {
+                collectClassFiles(open(input), classFiles);
+            }
+
+            List<ClassInfo> targets = readClassFiles(pool, classFiles, index);
+            long read = System.nanoTime();
+
+            Set<String> methodNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            List<String[]> stubs = writeStubs(pool, targets, index, methodNames);
+            writeIndex(stubs);
+            long written = System.nanoTime();
+
+            System.err.println("StubCli: " + classFiles.size() + " class files read in " + (read - start) / 1000000 + " ms, "
+                    + stubs.size() + " of " + targets.size() + " interfaces stubbed in " + (written - read) / 1000000
+                    + " ms, on " + threads + " threads");
+
+            // A misspelled name would leave the calls it was meant for without delay
+            Map<String, String> specs = StubOptions.parseLatency(latency.toArray(new String[0]));
+            Set<String> unknownNames = new TreeSet<String>(specs.keySet());
+            unknownNames.remove(StubOptions.ALL_METHODS);
+            unknownNames.removeAll(methodNames);
+
+            for (String name : unknownNames) {
+                System.err.println("StubCli: the latency of " + name + " matches no method of the stubbed interfaces");
+            }
+
+            return unknownNames.isEmpty() ? 0 : 1;
+        }
+        catch (IOException ioe) {
+            System.err.println("StubCli: " + ioe);
+            return 1;
+        }
+        finally {
+            pool.shutdown();
+
+            for (FileSystem fileSystem : fileSystems) {
+                fileSystem.close();
+            }
+        }
+    }
+
+    /**
+     * @return the root of a class directory, or of the file system of a jar
+     */
+    private Path open(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            return path;
+        }
+
+        FileSystem fileSystem = FileSystems.newFileSystem(path, (ClassLoader) null);
+        fileSystems.add(fileSystem);
+
+        return fileSystem.getPath("/");
+    }
+
+    private void collectClassFiles(final Path root, final List<Path> classFiles) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                // The versioned classes of multi-release jars are not the ones of the jar
+                return root.relativize(directory).toString().equals("META-INF") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String name = file.getFileName().toString();
+
+                if (name.endsWith(".class") && !name.equals("module-info.class") && !name.equals("package-info.class")) {
+                    classFiles.add(file);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Parses the class files in parallel, and adds them to the index.
+     *
+     * @return the interfaces to stub, in the order of their names
+     */
+    private List<ClassInfo> readClassFiles(ForkJoinPool pool, List<Path> classFiles, final ClassFileIndex index)
+            throws IOException, InterruptedException {
+        List<Callable<ClassInfo>> tasks = new ArrayList<Callable<ClassInfo>>(classFiles.size());
+
+        for (final Path classFile : classFiles) {
+            tasks.add(new Callable<ClassInfo>() {
+                @Override
+                public ClassInfo call() throws IOException {
+                    try {
+                        ClassInfo classInfo = new ClassFileReader(Files.readAllBytes(classFile)).read();
+                        index.add(classInfo);
+                        return classInfo;
+                    }
+                    catch (IllegalArgumentException iae) {
+                        System.err.println("StubCli: skipping " + classFile + ": " + iae.getMessage());
+                        return null;
+                    }
+                }
+            });
+        }
+
+        List<ClassInfo> targets = new ArrayList<ClassInfo>();
+
+        for (ClassInfo classInfo : invokeAll(pool, tasks)) {
+            if (classInfo != null && isStubbable(classInfo) && isIncluded(classInfo.getName())) {
+                targets.add(classInfo);
+            }
+        }
+
+        Collections.sort(targets, new Comparator<ClassInfo>() {
+            @Override
+            public int compare(ClassInfo a, ClassInfo b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        return targets;
+    }
+
+    private boolean isStubbable(ClassInfo classInfo) {
+        String simpleName = classInfo.getName().substring(classInfo.getName().lastIndexOf('/') + 1);
+
+        return classInfo.isInterface() && classInfo.isPublic() && !classInfo.isSealed()
+                && (classInfo.getAccess() & ClassFileReader.ACC_SYNTHETIC) == 0
+                && simpleName.indexOf('$') < 0;
+    }
+
+    /**
+     * @return true if no -include is given, or if the interface is in one of their packages
+     * and matches its pattern
+     */
+    private boolean isIncluded(String internalName) {
+        if (includes.isEmpty()) {
+            return true;
+        }
+
+        String name = internalName.replace('/', '.');
+        int lastDot = name.lastIndexOf('.');
+        String packageName = lastDot < 0 ? "" : name.substring(0, lastDot);
+
+        for (String include : includes) {
+            if (include.equals(packageName)) {
+                return true;
+            }
+
+            int includeDot = include.lastIndexOf('.');
+
+            if (include.indexOf(TargetResolver.WILDCARD) >= 0 && includeDot >= 0
+                    && include.substring(0, includeDot).equals(packageName)
+                    && TargetResolver.toPattern(include.substring(includeDot + 1)).matcher(name.substring(lastDot + 1)).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Models, renders and writes the stubs in parallel.
+     *
+     * @param methodNames filled with the names of the methods of the stubs
+     * @return the stubbed interfaces and their stubs (binary names), in the order of names
+     */
+    private List<String[]> writeStubs(ForkJoinPool pool, List<ClassInfo> targets, ClassFileIndex index,
+            final Set<String> methodNames) throws IOException, InterruptedException {
+        StubOptions options = new StubOptions(false, 0, defaults, singleton, StubOptions.parseLatency(latency.toArray(new String[0])), null);
+        // As with the processor, only plain stubs can be written as class files
+        final boolean classes = emitClass && options.isPlain();
+        final ClassFileGenerator generator = new ClassFileGenerator(index, prefix, suffix, options, classes);
+        final StubRenderer renderer = new StubRenderer();
+        final StubClassEmitter classEmitter = new StubClassEmitter();
+        List<Callable<String[]>> tasks = new ArrayList<Callable<String[]>>(targets.size());
+
+        for (final ClassInfo target : targets) {
+            tasks.add(new Callable<String[]>() {
+                @Override
+                public String[] call() throws IOException {
+                    StubModel model;
+
+                    try {
+                        model = generator.createModel(target);
+                    }
+                    catch (IllegalArgumentException iae) {
+                        System.err.println("StubCli: skipping " + target.getName().replace('/', '.') + ": " + iae.getMessage());
+                        return null;
+                    }
+
+                    for (MethodModel method : model.getMethods()) {
+                        methodNames.add(method.getName());
+                    }
+
+                    Path file = outputDirectory.resolve(model.getQualifiedName().replace('.', '/') + (classes ? ".class" : ".java"));
+                    Files.createDirectories(file.getParent());
+
+                    if (classes) {
+                        Files.write(file, classEmitter.emit(model));
+                    }
+                    else {
+                        Files.write(file, renderer.render(model).getBytes(StandardCharsets.UTF_8));
+                    }
+
+                    return new String[] { target.getName().replace('/', '.'), model.getQualifiedName() };
+                }
+            });
+        }
+
+        List<String[]> stubs = new ArrayList<String[]>();
+
+        for (String[] stub : invokeAll(pool, tasks)) {
+            if (stub != null) {
+                stubs.add(stub);
+            }
+        }
+
+        return stubs;
+    }
+
+    private void writeIndex(List<String[]> stubs) throws IOException {
+        if (stubs.isEmpty()) {
+            return;
+        }
+
+        StubIndex stubIndex = new StubIndex();
+
+        for (String[] stub : stubs) {
+            stubIndex.add(stub[0], stub[1], stub[0]);
+        }
+
+        Path file = outputDirectory.resolve(StubRegistry.INDEX_RESOURCE);
+        Files.createDirectories(file.getParent());
+        Files.write(file, stubIndex.toResource().getBytes(StandardCharsets.UTF_8));
+        Files.write(outputDirectory.resolve(StubIndex.CLASS_LIST_RESOURCE), stubIndex.toClassList().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException, InterruptedException {
+        List<T> results = new ArrayList<T>(tasks.size());
+
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            }
+            catch (ExecutionException ee) {
+                if (ee.getCause() instanceof IOException) {
+                    throw (IOException) ee.getCause();
+                }
+
+                throw new IllegalStateException(ee.getCause());
+            }
+        }
+
+        return results;
+    }
+
+}
@@ -0,0 +1,443 @@
+package com.test.autostub;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Keeps the stubs of source trees up to date while they are edited:
+ *
+ *   java -cp automaticstubprocessor.jar com.test.autostub.StubDaemon -s build/stubs src/main/java
+ *
+ * The source roots are watched (WatchService), and when a file changes, only the
+ * annotated types whose stubs may change are processed again: the ones in the changed
+ * files, and the ones stubbing a changed type or one of its subtypes, or a package in
+ * which a type was added or deleted. Stubs which are not generated anymore are deleted,
+ * and the index and the class list of the stubs are written again.
+ *
+ * A JavacTask cannot be run twice, so each refresh runs a new -proc:only task, but the
+ * JVM stays warm (the compiler and the processor are already loaded and compiled), the
+ * file manager is shared (jars on the class path are opened once), and so are an
+ * in-memory SignatureCache and the StubDependencies of every stub written so far.
+ */
+public class StubDaemon {
+
+    private static final String USAGE = "Usage: StubDaemon [options] <source root>...\n"
+            + "  -s <directory>          where stubs are written\n"
+            + "  -d <directory>          where class stubs and the index are written (default: -s)\n"
+            + "  -cp <path>              the class path of the sources\n"
+            + "  -A<option>=<value>      an option of the processor (-Ageneratestub.emit=class)\n"
+            + "  -once                   generates the stubs, then exits";
+
+    // Changes closer than this are handled at once: editors often write a file in
+    // several steps
+    private static final long DEBOUNCE_MILLIS = 20;
+
+    private Path sourceOutput = null;
+
+    private Path classOutput = null;
+
+    private final List<File> classPath = new ArrayList<File>();
+
+    private final List<String> processorOptions = new ArrayList<String>();
+
+    private boolean once = false;
+
+    private final List<Path> roots = new ArrayList<Path>();
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+    private StandardJavaFileManager fileManager;
+
+    private final SignatureCache signatureCache = new SignatureCache();
+
+    private final StubDependencies dependencies = new StubDependencies();
+
+    private WatchService watchService;
+
+    // Watched directory of each key
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        StubDaemon daemon = new StubDaemon();
+
+        try {
+            daemon.parseArguments(args);
+        }
+        catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        System.exit(daemon.run());
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (!arg.startsWith("-")) {
+                roots.add(Paths.get(arg).toAbsolutePath().normalize());
+            }
+            else if (arg.startsWith("-A")) {
+                processorOptions.add(arg);
+            }
+            else if ("-once".equals(arg)) {
+                once = true;
+            }
+            else if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            else {
+                String value = args[++i];
+
+                if ("-s".equals(arg)) {
+                    sourceOutput = Paths.get(value);
+                }
+                else if ("-d".equals(arg)) {
+                    classOutput = Paths.get(value);
+                }
+                else if ("-cp".equals(arg)) {
+                    for (String entry : value.split(Pattern.quote(File.pathSeparator))) {
+                        classPath.add(new File(entry));
+                    }
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+        }
+
+        if (sourceOutput == null) {
+            throw new IllegalArgumentException("No directory given for the stubs (-s)");
+        }
+
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("No source root given");
+        }
+
+        if (classOutput == null) {
+            classOutput = sourceOutput;
+        }
+    }
+
+    /**
+     * @return the exit code: 0 when stubs could be generated, 1 otherwise
+     */
+    private int run() throws IOException, InterruptedException {
+        if (compiler == null) {
+            System.err.println("StubDaemon: no compiler found, a JDK is needed");
+            return 1;
+        }
+
+        Files.createDirectories(sourceOutput);
+        Files.createDirectories(classOutput);
+
+        fileManager = compiler.getStandardFileManager(null, Locale.ROOT, StandardCharsets.UTF_8);
+        List<File> sourcePath = new ArrayList<File>();
+        for (Path root : roots) {
+            sourcePath.add(root.toFile());
+        }
+        // Sources may use the stubs, which are not all generated again
+        sourcePath.add(sourceOutput.toFile());
+        fileManager.setLocation(StandardLocation.SOURCE_PATH, sourcePath);
+        fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singletonList(sourceOutput.toFile()));
+        fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(classOutput.toFile()));
+        if (!classPath.isEmpty()) {
+            fileManager.setLocation(StandardLocation.CLASS_PATH, classPath);
+        }
+
+        try {
+            if (!once) {
+                watchService = FileSystems.getDefault().newWatchService();
+            }
+
+            // Everything is generated once, the later refreshes only handle changes
+            Set<String> annotatedNames = new TreeSet<String>();
+
+            for (Path root : roots) {
+                for (Path file : register(root)) {
+                    addAnnotatedName(file, annotatedNames);
+                }
+            }
+
+            boolean generated = refresh(annotatedNames);
+
+            if (once) {
+                return generated ? 0 : 1;
+            }
+
+            System.err.println("StubDaemon: watching " + directories.size() + " directories");
+            watch();
+
+            return 0;
+        }
+        finally {
+            if (watchService != null) {
+                watchService.close();
+            }
+            fileManager.close();
+        }
+    }
+
+    /**
+     * Watches a directory and the directories under it.
+     *
+     * @return the sources found under it
+     */
+    private List<Path> register(Path directory) throws IOException {
+        final List<Path> sources = new ArrayList<Path>();
+
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (watchService != null) {
+                    directories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (file.getFileName().toString().endsWith(".java")) {
+                    sources.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+
+        return sources;
+    }
+
+    private void watch() throws IOException, InterruptedException {
+        while (true) {
+            WatchKey key = watchService.take();
+            Set<String> changedTypes = new TreeSet<String>();
+            Set<String> changedPackages = new TreeSet<String>();
+            Set<String> annotatedNames = new TreeSet<String>();
+
+            // Waits for the changes to settle
+            while (key != null) {
+                handleEvents(key, changedTypes, changedPackages, annotatedNames);
+                key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            if (changedTypes.isEmpty() && changedPackages.isEmpty() && annotatedNames.isEmpty()) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            annotatedNames.addAll(dependencies.getAnnotatedNames(changedTypes, changedPackages));
+
+            boolean success = refresh(annotatedNames);
+
+            System.err.println("StubDaemon: " + annotatedNames.size() + " annotated types refreshed in "
+                    + (System.nanoTime() - start) / 1000000 + " ms" + (success ? "" : ", with errors")
+                    + ", after changes to " + changedTypes);
+        }
+    }
+
+    private void handleEvents(WatchKey key, Set<String> changedTypes, Set<String> changedPackages, Set<String> annotatedNames)
+            throws IOException {
+        Path directory = directories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost: every annotated type is processed again
+                for (Path root : roots) {
+                    for (Path file : register(root)) {
+                        addAnnotatedName(file, annotatedNames);
+                    }
+                }
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                for (Path file : register(path)) {
+                    changedTypes.add(getTypeName(file));
+                    changedPackages.add(getPackageName(file));
+                    addAnnotatedName(file, annotatedNames);
+                }
+            }
+            else if (path.getFileName().toString().endsWith(".java") && getRoot(path) != null) {
+                changedTypes.add(getTypeName(path));
+
+                if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+                    changedPackages.add(getPackageName(path));
+                }
+
+                addAnnotatedName(path, annotatedNames);
+            }
+        }
+
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Adds the type of a source if it may be annotated with @GenerateStub.
+     */
+    private void addAnnotatedName(Path file, Set<String> annotatedNames) {
+        try {
+            if (Files.isRegularFile(file)
+                    && new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains(GenerateStub.class.getSimpleName())) {
+                annotatedNames.add(getTypeName(file));
+            }
+        }
+        catch (IOException ioe) {
+            // The file may be deleted while it is read, the deletion is another event
+        }
+    }
+
+    /**
+     * Processes annotated types again, then deletes the stubs they do not generate anymore
+     * and writes the index of every stub.
+     *
+     * @return false if the compiler reported an error
+     */
+    private boolean refresh(Set<String> annotatedNames) throws IOException {
+        List<File> sources = new ArrayList<File>();
+        Set<String> staleStubs = new TreeSet<String>();
+
+        for (String annotatedName : annotatedNames) {
+            staleStubs.addAll(dependencies.removeAnnotated(annotatedName));
+            File source = getSource(annotatedName);
+
+            if (source != null) {
+                sources.add(source);
+            }
+        }
+
+        boolean success = true;
+
+        if (!sources.isEmpty()) {
+            List<String> options = new ArrayList<String>();
+            options.add("-proc:only");
+            options.add("-implicit:none");
+            options.add("-Xlint:none");
+            options.addAll(processorOptions);
+
+            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+            CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+                    fileManager.getJavaFileObjectsFromFiles(sources));
+            task.setProcessors(Collections.singletonList(new GenerateStubProcessor(signatureCache, dependencies)));
+
+            success = task.call();
+
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (diagnostic.getKind() != Diagnostic.Kind.NOTE) {
+                    System.err.println(diagnostic);
+                }
+            }
+        }
+
+        for (String annotatedName : annotatedNames) {
+            staleStubs.removeAll(dependencies.getStubs(annotatedName));
+        }
+
+        for (String stub : staleStubs) {
+            String path = stub.replace('.', File.separatorChar);
+            Files.deleteIfExists(sourceOutput.resolve(path + ".java"));
+            Files.deleteIfExists(classOutput.resolve(path + ".class"));
+        }
+
+        writeIndex();
+
+        return success;
+    }
+
+    private void writeIndex() throws IOException {
+        Path index = classOutput.resolve(StubRegistry.INDEX_RESOURCE);
+        Path classList = classOutput.resolve(StubIndex.CLASS_LIST_RESOURCE);
+
+        if (dependencies.size() == 0) {
+            Files.deleteIfExists(index);
+            Files.deleteIfExists(classList);
+            return;
+        }
+
+        StubIndex stubIndex = dependencies.toIndex();
+
+        Files.createDirectories(index.getParent());
+        Files.write(index, stubIndex.toResource().getBytes(StandardCharsets.UTF_8));
+        Files.write(classList, stubIndex.toClassList().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the source of a top-level type, or null if it was deleted
+     */
+    private File getSource(String typeName) {
+        for (Path root : roots) {
+            Path source = root.resolve(typeName.replace('.', File.separatorChar) + ".java");
+
+            if (Files.isRegularFile(source)) {
+                return source.toFile();
+            }
+        }
+
+        return null;
+    }
+
+    private Path getRoot(Path path) {
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                return root;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the qualified name of the top-level type of a source, from its path
+     */
+    private String getTypeName(Path source) {
+        String relative = getRoot(source).relativize(source).toString();
+
+        return relative.substring(0, relative.length() - ".java".length()).replace(File.separatorChar, '.');
+    }
+
+    private String getPackageName(Path source) {
+        String typeName = getTypeName(source);
+        int lastDot = typeName.lastIndexOf('.');
+
+        return lastDot < 0 ? "" : typeName.substring(0, lastDot);
+    }
+
+}
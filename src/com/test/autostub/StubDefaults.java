@@ -0,0 +1,17 @@
+package com.test.autostub;
+
+/**
+ * What the methods of a stub return, when they do not return a primitive (which always get
+ * their default value: 0, false...).
+ */
+public enum StubDefaults {
+
+    // null, whatever the type
+    NULL,
+
+    // A shared, immutable empty value for the common types (empty collections, maps and
+    // iterators, Optional.empty(), completed futures, "" and zero-length arrays), null for
+    // the others. The stub allocates nothing when called.
+    EMPTY
+
+}
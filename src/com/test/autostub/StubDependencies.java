@@ -0,0 +1,178 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * What the stubs written so far depend on, for the StubDaemon to know which annotated
+ * types have to be processed again when sources change: the annotated type asking for
+ * each stub, and the top-level types its methods come from (the stubbed type and all its
+ * supertypes). The targets each annotated type lists in toStub() are kept as they are
+ * written, whether they gave stubs or not: a type added later may be matched by a package
+ * or a pattern, or be a target which could not be found yet.
+ *
+ * Only names are kept, as the elements of a compilation are useless in the next one. Not
+ * thread-safe: the processor records stubs from the compiler thread, and the daemon reads
+ * them between compilations.
+ */
+class StubDependencies {
+
+    // Qualified name of a stub -> its annotated type, top-level
+    private final Map<String, String> annotatedNames = new HashMap<String, String>();
+
+    // Qualified name of a stub -> binary names of the stubbed types
+    private final Map<String, List<String>> targetNames = new HashMap<String, List<String>>();
+
+    // Qualified name of a stub -> the top-level types it depends on
+    private final Map<String, Set<String>> types = new HashMap<String, Set<String>>();
+
+    // Annotated type, top-level -> the entries of the toStub() of its annotations: names of
+    // types, of packages, and patterns
+    private final Map<String, Set<String>> requestedTargets = new HashMap<String, Set<String>>();
+
+    void add(String stubName, List<String> targetBinaryNames, String annotatedName, Collection<String> dependencies) {
+        annotatedNames.put(stubName, annotatedName);
+        targetNames.put(stubName, targetBinaryNames);
+        types.put(stubName, new TreeSet<String>(dependencies));
+    }
+
+    /**
+     * Records the targets an annotated type asks for, before they are resolved.
+     *
+     * @param targets the entries of toStub(), or the name of the annotated element when it
+     * stubs itself
+     */
+    void addTargets(String annotatedName, Collection<String> targets) {
+        Set<String> requested = requestedTargets.get(annotatedName);
+
+        if (requested == null) {
+            requested = new TreeSet<String>();
+            requestedTargets.put(annotatedName, requested);
+        }
+
+        requested.addAll(targets);
+    }
+
+    /**
+     * Forgets the stubs of an annotated type, before it is processed again.
+     *
+     * @return the qualified names of its stubs
+     */
+    List<String> removeAnnotated(String annotatedName) {
+        List<String> stubs = getStubs(annotatedName);
+
+        for (String stub : stubs) {
+            annotatedNames.remove(stub);
+            targetNames.remove(stub);
+            types.remove(stub);
+        }
+
+        requestedTargets.remove(annotatedName);
+
+        return stubs;
+    }
+
+    /**
+     * @return the qualified names of the stubs asked for by an annotated type
+     */
+    List<String> getStubs(String annotatedName) {
+        List<String> stubs = new ArrayList<String>();
+
+        for (Map.Entry<String, String> entry : annotatedNames.entrySet()) {
+            if (entry.getValue().equals(annotatedName)) {
+                stubs.add(entry.getKey());
+            }
+        }
+
+        return stubs;
+    }
+
+    /**
+     * @param changedTypes top-level types which changed, or were added or deleted
+     * @param changedPackages packages where types were added or deleted, which may be
+     * matched by the package targets of annotations
+     * @return the annotated types whose stubs may change, in the order of names: the ones
+     * with a stub depending on a changed type, and the ones listing a target which a changed
+     * type is, holds or matches
+     */
+    Set<String> getAnnotatedNames(Collection<String> changedTypes, Collection<String> changedPackages) {
+        Set<String> result = new TreeSet<String>();
+
+        for (Map.Entry<String, Set<String>> entry : types.entrySet()) {
+            for (String changedType : changedTypes) {
+                if (entry.getValue().contains(changedType)) {
+                    result.add(annotatedNames.get(entry.getKey()));
+                }
+            }
+        }
+
+        for (Map.Entry<String, Set<String>> entry : requestedTargets.entrySet()) {
+            for (String target : entry.getValue()) {
+                if (changedPackages.contains(target) || isMatched(target, changedTypes)) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return true if a target of toStub() may name one of the types: the type itself or a
+     * type it holds, its package, or a pattern its simple name matches
+     */
+    private static boolean isMatched(String target, Collection<String> changedTypes) {
+        int lastDot = target.lastIndexOf('.');
+        String packageName = lastDot < 0 ? "" : target.substring(0, lastDot);
+        Pattern pattern = target.indexOf(TargetResolver.WILDCARD) >= 0
+                ? TargetResolver.toPattern(target.substring(lastDot + 1)) : null;
+
+        for (String changedType : changedTypes) {
+            if (pattern != null) {
+                if (getPackageName(changedType).equals(packageName)
+                        && pattern.matcher(changedType.substring(changedType.lastIndexOf('.') + 1)).matches()) {
+                    return true;
+                }
+            }
+            else if (target.equals(changedType) || target.startsWith(changedType + ".")
+                    || target.equals(getPackageName(changedType))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the index of every stub known, as a compilation processing every annotated
+     * type at once would have written it
+     */
+    StubIndex toIndex() {
+        StubIndex index = new StubIndex();
+
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(annotatedNames).entrySet()) {
+            for (String targetName : targetNames.get(entry.getKey())) {
+                index.add(targetName, entry.getKey(), entry.getValue());
+            }
+        }
+
+        return index;
+    }
+
+    int size() {
+        return annotatedNames.size();
+    }
+
+    private static String getPackageName(String qualifiedName) {
+        int lastDot = qualifiedName.lastIndexOf('.');
+
+        return lastDot < 0 ? "" : qualifiedName.substring(0, lastDot);
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The stubs written during a compilation, by stubbed type, to be written as the index
+ * StubRegistry reads at runtime (see StubRegistry.INDEX_RESOURCE), and as the class list
+ * from which StubArchive builds a CDS archive.
+ *
+ * Only names are kept, elements should not be carried from one round to the next.
+ */
+class StubIndex {
+
+    // Every stub, one internal name per line, in the format of -XX:SharedClassListFile
+    static final String CLASS_LIST_RESOURCE = "META-INF/generatestub/stubs.classlist";
+
+    // Binary name of the stubbed type -> binary names of its stubs, sorted so that the
+    // index does not depend on the order of the rounds
+    private final Map<String, List<String>> stubs = new TreeMap<String, List<String>>();
+
+    // Qualified names of the annotated types, the originating elements of the index
+    private final List<String> annotatedNames = new ArrayList<String>();
+
+    /**
+     * @return true if this is the first stub of the type
+     */
+    boolean add(String targetBinaryName, String stubBinaryName, String annotatedName) {
+        List<String> targetStubs = stubs.get(targetBinaryName);
+        boolean first = targetStubs == null;
+
+        if (first) {
+            targetStubs = new ArrayList<String>(1);
+            stubs.put(targetBinaryName, targetStubs);
+        }
+
+        if (!targetStubs.contains(stubBinaryName)) {
+            targetStubs.add(stubBinaryName);
+            Collections.sort(targetStubs);
+        }
+
+        if (!annotatedNames.contains(annotatedName)) {
+            annotatedNames.add(annotatedName);
+        }
+
+        return first;
+    }
+
+    boolean isEmpty() {
+        return stubs.isEmpty();
+    }
+
+    Map<String, List<String>> getStubs() {
+        return Collections.unmodifiableMap(stubs);
+    }
+
+    List<String> getAnnotatedNames() {
+        return Collections.unmodifiableList(annotatedNames);
+    }
+
+    /**
+     * @return the index, one "stubbed type=stub" line per stub
+     */
+    String toResource() {
+        StringBuilder resource = new StringBuilder("# Generated by GenerateStub: stubbed type=stub\n");
+
+        for (Map.Entry<String, List<String>> entry : stubs.entrySet()) {
+            for (String stub : entry.getValue()) {
+                resource.append(entry.getKey()).append('=').append(stub).append('\n');
+            }
+        }
+
+        return resource.toString();
+    }
+
+    /**
+     * @return the class list, one stub per line (com/acme/api/StubUserService), each one
+     * once, in the order of their names
+     */
+    String toClassList() {
+        Set<String> classes = new TreeSet<String>();
+
+        for (List<String> targetStubs : stubs.values()) {
+            for (String stub : targetStubs) {
+                classes.add(stub.replace('.', '/'));
+            }
+        }
+
+        StringBuilder classList = new StringBuilder("# Generated by GenerateStub: the stubs, for -XX:SharedClassListFile\n");
+
+        for (String className : classes) {
+            classList.append(className).append('\n');
+        }
+
+        return classList.toString();
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the stubs requested and generated by the processor, across all the rounds
+ * of a compilation.
+ *
+ * A stub is identified by the fully qualified name of the class we generate. Asking twice for
+ * the same stub (for example when two classes list the same interface in toStub()) is a no-op,
+ * instead of a second Filer.createSourceFile() call which would fail. The first request is
+ * the one the stub is generated from, see getRequest().
+ *
+ * Requests are kept by name rather than by Element: elements should not be carried from one
+ * round to the next, so they are looked up again each time we try to generate them.
+ */
+class StubLedger {
+
+    // Names of the stub classes already written by the Filer
+    private final Set<String> generatedStubs = new HashSet<String>();
+
+    // The first request made for each stub, generated or not yet
+    private final Map<String, StubRequest> requests = new HashMap<String, StubRequest>();
+
+    // Requests which could not be generated yet, in the order they were made. The key is the
+    // name of the stub class, so that a stub requested twice is only queued once.
+    private final Map<String, StubRequest> pendingRequests = new LinkedHashMap<String, StubRequest>();
+
+    /**
+     * Queues a stub to be generated.
+     *
+     * @return false if this stub was already generated or queued
+     */
+    boolean request(StubRequest request) {
+        if (generatedStubs.contains(request.getStubName()) || requests.containsKey(request.getStubName())) {
+            return false;
+        }
+
+        requests.put(request.getStubName(), request);
+        pendingRequests.put(request.getStubName(), request);
+
+        return true;
+    }
+
+    /**
+     * Removes and returns every pending request. The ones which still cannot be generated
+     * have to be given back with defer().
+     */
+    List<StubRequest> drainPending() {
+        List<StubRequest> requests = new ArrayList<StubRequest>(pendingRequests.values());
+        pendingRequests.clear();
+
+        return requests;
+    }
+
+    /**
+     * Puts a request back in the queue, to be tried again in the next round.
+     */
+    void defer(StubRequest request) {
+        pendingRequests.put(request.getStubName(), request);
+    }
+
+    /**
+     * Records that a stub was written.
+     *
+     * @return false if this stub had already been written, in which case it must not be written again
+     */
+    boolean markGenerated(String stubName) {
+        return generatedStubs.add(stubName);
+    }
+
+    /**
+     * @return the request a stub is generated from (the first one made for it), or null if
+     * it was never requested
+     */
+    StubRequest getRequest(String stubName) {
+        return requests.get(stubName);
+    }
+
+    /**
+     * A stub to generate: the type to stub (or the interfaces of a composite stub), the
+     * element which asked for it, and how the stub class must be named.
+     */
+    static class StubRequest {
+
+        // Qualified name of the annotated element (used as an originating element)
+        private final String annotatedName;
+
+        // Qualified names of the classes or interfaces to stub: a single one, unless the stub
+        // is a composite one
+        private final List<String> targetNames;
+
+        private final boolean composite;
+
+        // Qualified name of the generated stub class
+        private final String stubName;
+
+        private final String prefix;
+
+        private final String suffix;
+
+        private final StubOptions options;
+
+        StubRequest(String annotatedName, String targetName, String stubName, String prefix, String suffix,
+                StubOptions options) {
+            this(annotatedName, Collections.singletonList(targetName), false, stubName, prefix, suffix, options);
+        }
+
+        /**
+         * A composite stub, implementing every target at once (see GenerateStub.composite()).
+         */
+        StubRequest(String annotatedName, List<String> targetNames, String stubName, StubOptions options) {
+            this(annotatedName, targetNames, true, stubName, "", "", options);
+        }
+
+        private StubRequest(String annotatedName, List<String> targetNames, boolean composite, String stubName,
+                String prefix, String suffix, StubOptions options) {
+            this.annotatedName = annotatedName;
+            this.targetNames = Collections.unmodifiableList(new ArrayList<String>(targetNames));
+            this.composite = composite;
+            this.stubName = stubName;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.options = options;
+        }
+
+        String getAnnotatedName() {
+            return annotatedName;
+        }
+
+        List<String> getTargetNames() {
+            return targetNames;
+        }
+
+        boolean isComposite() {
+            return composite;
+        }
+
+        String getStubName() {
+            return stubName;
+        }
+
+        String getPrefix() {
+            return prefix;
+        }
+
+        String getSuffix() {
+            return suffix;
+        }
+
+        StubOptions getOptions() {
+            return options;
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+package com.test.autostub;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of everything needed to write a stub class.
+ *
+ * The javac model (Elements, TypeMirrors...) can only be used from the compiler thread.
+ * Once a target has been turned into a StubModel, which only holds Strings, its source can
+ * be rendered from any thread.
+ */
+class StubModel {
+
+    // Qualified names of the classes or interfaces we are writing a stub for: a single one,
+    // unless the stub is a composite one (see GenerateStub.composite())
+    private final List<String> targetNames;
+
+    // Package of the stub, empty for the default package
+    private final String packageName;
+
+    // Simple name of the stub class: prefix + target's simple name + suffix
+    private final String simpleName;
+
+    // The type parameters of a generic target, as declared on the stub (<T extends Number>),
+    // empty otherwise
+    private final String typeParameters;
+
+    // The same type parameters, given as arguments to the target (<T>), empty otherwise
+    private final String typeArguments;
+
+    // Interfaces are IMPLEMENTED while classes are EXTENDED
+    private final boolean targetInterface;
+
+    private final List<MethodModel> methods;
+
+    // The static members the default values of the methods need (the empty arrays of
+    // StubDefaults.EMPTY...), as written in the stub
+    private final List<String> members;
+
+    // What the stub does besides returning defaults
+    private final StubOptions options;
+
+    // Only known when the stub is written as a class file: the internal names of the stub and
+    // of its target (com/acme/StubFoo), and the generic signature of the stub (or null)
+    private final String internalName;
+
+    private final String targetInternalName;
+
+    private final String signature;
+
+    StubModel(String targetName, String packageName, String simpleName, String typeParameters, String typeArguments,
+            boolean targetInterface, List<MethodModel> methods, List<String> members, StubOptions options) {
+        this(targetName, packageName, simpleName, typeParameters, typeArguments, targetInterface, methods, members, options,
+                null, null, null);
+    }
+
+    StubModel(String targetName, String packageName, String simpleName, String typeParameters, String typeArguments,
+            boolean targetInterface, List<MethodModel> methods, List<String> members, StubOptions options,
+            String internalName, String targetInternalName, String signature) {
+        this(Collections.singletonList(targetName), packageName, simpleName, typeParameters, typeArguments, targetInterface,
+                methods, members, options, internalName, targetInternalName, signature);
+    }
+
+    /**
+     * A composite stub, implementing several interfaces which are not generic.
+     */
+    StubModel(List<String> targetNames, String packageName, String simpleName, List<MethodModel> methods,
+            List<String> members, StubOptions options) {
+        this(targetNames, packageName, simpleName, "", "", true, methods, members, options, null, null, null);
+    }
+
+    private StubModel(List<String> targetNames, String packageName, String simpleName, String typeParameters,
+            String typeArguments, boolean targetInterface, List<MethodModel> methods, List<String> members,
+            StubOptions options, String internalName, String targetInternalName, String signature) {
+        this.targetNames = Collections.unmodifiableList(targetNames);
+        this.packageName = packageName;
+        this.simpleName = simpleName;
+        this.typeParameters = typeParameters;
+        this.typeArguments = typeArguments;
+        this.targetInterface = targetInterface;
+        this.methods = Collections.unmodifiableList(methods);
+        this.members = Collections.unmodifiableList(members);
+        this.options = options;
+        this.internalName = internalName;
+        this.targetInternalName = targetInternalName;
+        this.signature = signature;
+    }
+
+    List<String> getTargetNames() {
+        return targetNames;
+    }
+
+    String getPackageName() {
+        return packageName;
+    }
+
+    String getSimpleName() {
+        return simpleName;
+    }
+
+    String getQualifiedName() {
+        return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    }
+
+    String getTypeParameters() {
+        return typeParameters;
+    }
+
+    String getTypeArguments() {
+        return typeArguments;
+    }
+
+    boolean isTargetInterface() {
+        return targetInterface;
+    }
+
+    List<MethodModel> getMethods() {
+        return methods;
+    }
+
+    List<String> getMembers() {
+        return members;
+    }
+
+    StubOptions getOptions() {
+        return options;
+    }
+
+    String getInternalName() {
+        return internalName;
+    }
+
+    String getTargetInternalName() {
+        return targetInternalName;
+    }
+
+    String getSignature() {
+        return signature;
+    }
+
+    /**
+     * One method of the stub, with every type already rendered as source.
+     */
+    static class MethodModel {
+
+        // Modifiers as written in the stub (ABSTRACT is already filtered out)
+        private final List<String> modifiers;
+
+        // The type parameters of a generic method (<E extends Exception>), empty otherwise
+        private final String typeParameters;
+
+        private final String returnType;
+
+        private final String name;
+
+        private final List<String> parameterTypes;
+
+        private final List<String> thrownTypes;
+
+        // The value returned by the stub, null for void methods
+        private final String defaultValue;
+
+        // Only known when the stub replays responses: the erased signature of the method, the
+        // seed of its keys (see ReplayStore), and its erased return type, which the responses
+        // are checked against
+        private final String replaySignature;
+
+        private final String replayType;
+
+        // Only known when the stub is written as a class file: the descriptors the method must
+        // be implemented with (the first one, then the erasures of the methods it overrides),
+        // its generic signature (or null), and the internal names of its thrown types
+        private final List<String> descriptors;
+
+        private final String signature;
+
+        private final List<String> thrownInternalNames;
+
+        MethodModel(List<String> modifiers, String typeParameters, String returnType, String name,
+                List<String> parameterTypes, List<String> thrownTypes, String defaultValue) {
+            this(modifiers, typeParameters, returnType, name, parameterTypes, thrownTypes, defaultValue, null, null);
+        }
+
+        MethodModel(List<String> modifiers, String typeParameters, String returnType, String name,
+                List<String> parameterTypes, List<String> thrownTypes, String defaultValue, String replaySignature,
+                String replayType) {
+            this(modifiers, typeParameters, returnType, name, parameterTypes, thrownTypes, defaultValue, replaySignature,
+                    replayType, Collections.<String>emptyList(), null, Collections.<String>emptyList());
+        }
+
+        MethodModel(List<String> modifiers, String typeParameters, String returnType, String name,
+                List<String> parameterTypes, List<String> thrownTypes, String defaultValue,
+                List<String> descriptors, String signature, List<String> thrownInternalNames) {
+            this(modifiers, typeParameters, returnType, name, parameterTypes, thrownTypes, defaultValue, null, null,
+                    descriptors, signature, thrownInternalNames);
+        }
+
+        private MethodModel(List<String> modifiers, String typeParameters, String returnType, String name,
+                List<String> parameterTypes, List<String> thrownTypes, String defaultValue, String replaySignature,
+                String replayType, List<String> descriptors, String signature, List<String> thrownInternalNames) {
+            this.modifiers = Collections.unmodifiableList(modifiers);
+            this.typeParameters = typeParameters;
+            this.returnType = returnType;
+            this.name = name;
+            this.parameterTypes = Collections.unmodifiableList(parameterTypes);
+            this.thrownTypes = Collections.unmodifiableList(thrownTypes);
+            this.defaultValue = defaultValue;
+            this.replaySignature = replaySignature;
+            this.replayType = replayType;
+            this.descriptors = Collections.unmodifiableList(descriptors);
+            this.signature = signature;
+            this.thrownInternalNames = Collections.unmodifiableList(thrownInternalNames);
+        }
+
+        List<String> getModifiers() {
+            return modifiers;
+        }
+
+        String getTypeParameters() {
+            return typeParameters;
+        }
+
+        String getReturnType() {
+            return returnType;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        List<String> getThrownTypes() {
+            return thrownTypes;
+        }
+
+        String getDefaultValue() {
+            return defaultValue;
+        }
+
+        String getReplaySignature() {
+            return replaySignature;
+        }
+
+        String getReplayType() {
+            return replayType;
+        }
+
+        List<String> getDescriptors() {
+            return descriptors;
+        }
+
+        String getSignature() {
+            return signature;
+        }
+
+        List<String> getThrownInternalNames() {
+            return thrownInternalNames;
+        }
+    }
+
+}
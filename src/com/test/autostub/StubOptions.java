@@ -0,0 +1,178 @@
+package com.test.autostub;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * How the stubs of a @GenerateStub annotation behave: what they return, and what they do
+ * besides. Read once from the annotation, then carried by the requests and models of its
+ * stubs.
+ */
+class StubOptions {
+
+    // Plain stubs: no recording, null defaults, no singleton, no latency, no replay
+    static final StubOptions DEFAULTS = new StubOptions(false, 0, StubDefaults.NULL, false,
+            Collections.<String, String>emptyMap(), null);
+
+    // The method name of the latency of the methods without their own
+    static final String ALL_METHODS = "*";
+
+    // Whether the stub counts the calls of each of its methods
+    private final boolean recordCalls;
+
+    // How many of the last calls are kept with their arguments, 0 to keep none
+    private final int captureArguments;
+
+    // What the methods returning objects return
+    private final StubDefaults defaults;
+
+    // Whether the stub is a final class with a shared INSTANCE
+    private final boolean singleton;
+
+    // Method name (or ALL_METHODS) -> the Latency spec of its calls, in the order of names
+    private final Map<String, String> latency;
+
+    // The file or resource of the responses the stub replays, null if it does not replay any
+    private final String replay;
+
+    StubOptions(boolean recordCalls, int captureArguments, StubDefaults defaults, boolean singleton,
+            Map<String, String> latency, String replay) {
+        this.recordCalls = recordCalls;
+        this.captureArguments = captureArguments;
+        this.defaults = defaults;
+        this.singleton = singleton;
+        this.latency = Collections.unmodifiableMap(new TreeMap<String, String>(latency));
+        this.replay = replay;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a latency is invalid
+     */
+    static StubOptions of(GenerateStub generateStub) {
+        // Capturing arguments implies recording the calls
+        int captureArguments = Math.max(0, generateStub.captureArguments());
+        boolean recordCalls = generateStub.recordCalls() || captureArguments > 0;
+        Map<String, String> latency = parseLatency(generateStub.latency());
+        String replay = generateStub.replay().trim().isEmpty() ? null : generateStub.replay().trim();
+
+        if (!recordCalls && generateStub.defaults() == StubDefaults.NULL && !generateStub.singleton() && latency.isEmpty()
+                && replay == null) {
+            return DEFAULTS;
+        }
+
+        return new StubOptions(recordCalls, captureArguments, generateStub.defaults(), generateStub.singleton(), latency,
+                replay);
+    }
+
+    /**
+     * @param latency "<method>=<spec>" or "<spec>" (for every method) entries
+     * @return method name -> spec, every spec being checked
+     * @throws IllegalArgumentException if a spec is invalid, or a method given twice
+     */
+    static Map<String, String> parseLatency(String[] latency) {
+        Map<String, String> specs = new TreeMap<String, String>();
+
+        for (String entry : latency) {
+            int equals = entry.indexOf('=');
+            String method = equals < 0 ? ALL_METHODS : entry.substring(0, equals).trim();
+            String spec = entry.substring(equals + 1).trim();
+
+            Latency.check(spec);
+
+            if (specs.put(method, spec) != null) {
+                throw new IllegalArgumentException("Invalid latency " + entry + ": " + method + " already has one");
+            }
+        }
+
+        return specs;
+    }
+
+    boolean isRecordingCalls() {
+        return recordCalls;
+    }
+
+    int getCaptureArguments() {
+        return captureArguments;
+    }
+
+    StubDefaults getDefaults() {
+        return defaults;
+    }
+
+    boolean isSingleton() {
+        return singleton;
+    }
+
+    Map<String, String> getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the Latency spec of the calls of a method, or null if they have none
+     */
+    String getLatency(String method) {
+        String spec = latency.get(method);
+
+        return spec != null ? spec : latency.get(ALL_METHODS);
+    }
+
+    String getReplay() {
+        return replay;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof StubOptions)) {
+            return false;
+        }
+
+        StubOptions other = (StubOptions) object;
+
+        return recordCalls == other.recordCalls && captureArguments == other.captureArguments && defaults == other.defaults
+                && singleton == other.singleton && latency.equals(other.latency) && Objects.equals(replay, other.replay);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(recordCalls, captureArguments, defaults, singleton, latency, replay);
+    }
+
+    /**
+     * @return the options, as they are written in the annotation (the default ones left out)
+     */
+    @Override
+    public String toString() {
+        StringBuilder options = new StringBuilder();
+
+        if (recordCalls) {
+            options.append(", recordCalls = true");
+        }
+        if (captureArguments > 0) {
+            options.append(", captureArguments = ").append(captureArguments);
+        }
+        if (defaults != StubDefaults.NULL) {
+            options.append(", defaults = ").append(defaults);
+        }
+        if (singleton) {
+            options.append(", singleton = true");
+        }
+        if (!latency.isEmpty()) {
+            options.append(", latency = ").append(latency);
+        }
+        if (replay != null) {
+            options.append(", replay = ").append(replay);
+        }
+
+        return options.length() == 0 ? "default options" : options.substring(2);
+    }
+
+    /**
+     * @return true if the stub can be written as a class file by the StubClassEmitter,
+     * which only writes plain stubs
+     */
+    boolean isPlain() {
+        return !recordCalls && defaults == StubDefaults.NULL && !singleton && latency.isEmpty() && replay == null;
+    }
+
+}
@@ -0,0 +1,287 @@
+package com.test.autostub;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Finds the stubs generated for a type, through the index written by the processor, instead
+ * of guessing their names.
+ *
+ * Each jar (or class output) holding generated stubs has an index, INDEX_RESOURCE, mapping
+ * the stubbed types to their stubs. The indexes of a class loader are read once, the first
+ * time one of its types is asked for; the constructor of the stub of a type is then cached
+ * with the type, in a ClassValue. After the first call, create() is a cache lookup and a
+ * constructor call, without reflection.
+ *
+ * When a type has several stubs (with different prefixes or suffixes), the first one in
+ * the order of their names is used.
+ *
+ * Stubs are first looked up through the class loader of the type (the system class loader
+ * for the types of the JDK). A stub of a JDK or library type may be packaged where that
+ * class loader cannot see it, in a test or child class loader: the context class loader of
+ * the calling thread is then tried as well, its stubs being cached by class loader.
+ */
+public final class StubRegistry {
+
+    // The index of the stubs, one "stubbed type=stub" line per stub, with binary names
+    static final String INDEX_RESOURCE = "META-INF/generatestub/stubs.index";
+
+    // Written instead of the index by isolating builds, one file per stubbed type holding
+    // the name of its stub, as a single file cannot originate from several types there
+    static final String TARGET_RESOURCE_DIRECTORY = "META-INF/generatestub/stubs/";
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    // The indexes already read, by class loader
+    private static final Map<ClassLoader, Map<String, String>> INDEXES = new WeakHashMap<ClassLoader, Map<String, String>>();
+
+    // The stubs found through the class loader of each type
+    private static final ClassValue<Stub> STUBS = new ClassValue<Stub>() {
+        @Override
+        protected Stub computeValue(Class<?> type) {
+            return findStub(type, getClassLoader(type));
+        }
+    };
+
+    // The constructor of each stub class, kept with the class itself
+    private static final ClassValue<Stub> STUB_CLASSES = new ClassValue<Stub>() {
+        @Override
+        protected Stub computeValue(Class<?> stubClass) {
+            try {
+                MethodHandle constructor = MethodHandles.publicLookup()
+                        .findConstructor(stubClass, MethodType.methodType(void.class))
+                        .asType(CONSTRUCTOR_TYPE);
+
+                return new Stub(stubClass, constructor, null);
+            }
+            catch (ReflectiveOperationException e) {
+                return new Stub(null, null, "the stub " + stubClass.getName() + " cannot be created: " + e);
+            }
+        }
+    };
+
+    // The stubs found through context class loaders: class loader -> stubbed type -> a weak
+    // reference to the Stub, or the Stub telling why there is none. A found Stub is held by
+    // its stub class (see STUB_CLASSES), so that nothing here keeps a class loader alive.
+    private static final Map<ClassLoader, Map<String, Object>> CONTEXT_STUBS = new WeakHashMap<ClassLoader, Map<String, Object>>();
+
+    private StubRegistry() {
+    }
+
+    /**
+     * @return a new instance of the stub generated for type
+     * @throws IllegalArgumentException if no stub was generated for type
+     */
+    public static <T> T create(Class<T> type) {
+        MethodHandle constructor = getStub(type).getConstructor(type);
+
+        try {
+            return type.cast((Object) constructor.invokeExact());
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            // Stub constructors do not throw checked exceptions, unless the stubbed class does
+            throw new IllegalStateException("Could not create the stub of " + type.getName(), t);
+        }
+    }
+
+    /**
+     * @return the class of the stub generated for type
+     * @throws IllegalArgumentException if no stub was generated for type
+     */
+    public static <T> Class<? extends T> getStubClass(Class<T> type) {
+        return getStub(type).getStubClass(type).asSubclass(type);
+    }
+
+    /**
+     * @return true if a stub was generated for type
+     */
+    public static boolean hasStub(Class<?> type) {
+        return getStub(type).failure == null;
+    }
+
+    private static ClassLoader getClassLoader(Class<?> type) {
+        return type.getClassLoader() != null ? type.getClassLoader() : ClassLoader.getSystemClassLoader();
+    }
+
+    private static Stub getStub(Class<?> type) {
+        Stub stub = STUBS.get(type);
+        ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+
+        if (stub.failure == null || contextLoader == null || contextLoader == getClassLoader(type)) {
+            return stub;
+        }
+
+        Stub contextStub = getContextStub(type, contextLoader);
+
+        return contextStub.failure == null ? contextStub : stub;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Stub getContextStub(Class<?> type, ClassLoader contextLoader) {
+        synchronized (CONTEXT_STUBS) {
+            Map<String, Object> stubs = CONTEXT_STUBS.get(contextLoader);
+
+            if (stubs == null) {
+                stubs = new HashMap<String, Object>();
+                CONTEXT_STUBS.put(contextLoader, stubs);
+            }
+
+            Object cached = stubs.get(type.getName());
+            Stub stub = cached instanceof WeakReference ? ((WeakReference<Stub>) cached).get() : (Stub) cached;
+
+            // Another type of the same name, from another class loader, may have been looked
+            // up first: its stub is not the one of this type
+            if (stub == null || (stub.failure == null && !type.isAssignableFrom(stub.stubClass))) {
+                stub = findStub(type, contextLoader);
+                stubs.put(type.getName(), stub.failure == null ? new WeakReference<Stub>(stub) : stub);
+            }
+
+            return stub;
+        }
+    }
+
+    private static Stub findStub(Class<?> type, ClassLoader classLoader) {
+        try {
+            String stubName = getIndex(classLoader).get(type.getName());
+
+            if (stubName == null) {
+                stubName = readTargetResource(classLoader, type.getName());
+            }
+
+            if (stubName == null) {
+                return new Stub(null, null, "no stub was generated for " + type.getName());
+            }
+
+            Class<?> stubClass = Class.forName(stubName, true, classLoader);
+
+            if (!type.isAssignableFrom(stubClass)) {
+                return new Stub(null, null, "the stub " + stubName + " of " + classLoader + " does not stub the "
+                        + type.getName() + " of " + getClassLoader(type));
+            }
+
+            return STUB_CLASSES.get(stubClass);
+        }
+        catch (IOException | ReflectiveOperationException e) {
+            return new Stub(null, null, "the stub of " + type.getName() + " cannot be loaded: " + e);
+        }
+    }
+
+    private static Map<String, String> getIndex(ClassLoader classLoader) throws IOException {
+        synchronized (INDEXES) {
+            Map<String, String> index = INDEXES.get(classLoader);
+
+            if (index == null) {
+                index = readIndexes(classLoader);
+                INDEXES.put(classLoader, index);
+            }
+
+            return index;
+        }
+    }
+
+    private static Map<String, String> readIndexes(ClassLoader classLoader) throws IOException {
+        Map<String, String> index = new HashMap<String, String>();
+        Enumeration<URL> resources = classLoader.getResources(INDEX_RESOURCE);
+
+        while (resources.hasMoreElements()) {
+            BufferedReader reader = open(resources.nextElement().openStream());
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    int equals = line.indexOf('=');
+
+                    if (line.startsWith("#") || equals < 0) {
+                        continue;
+                    }
+
+                    // The first stub of a type wins: the first jar on the class path, then
+                    // the first name in the index
+                    String target = line.substring(0, equals).trim();
+
+                    if (!index.containsKey(target)) {
+                        index.put(target, line.substring(equals + 1).trim());
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        return index.isEmpty() ? Collections.<String, String>emptyMap() : index;
+    }
+
+    private static String readTargetResource(ClassLoader classLoader, String targetName) throws IOException {
+        InputStream in = classLoader.getResourceAsStream(TARGET_RESOURCE_DIRECTORY + targetName);
+
+        if (in == null) {
+            return null;
+        }
+
+        BufferedReader reader = open(in);
+
+        try {
+            String line = reader.readLine();
+            return line != null && !line.trim().isEmpty() ? line.trim() : null;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static BufferedReader open(InputStream in) {
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The stub of a type, or why there is none.
+     */
+    private static final class Stub {
+
+        private final Class<?> stubClass;
+
+        private final MethodHandle constructor;
+
+        private final String failure;
+
+        Stub(Class<?> stubClass, MethodHandle constructor, String failure) {
+            this.stubClass = stubClass;
+            this.constructor = constructor;
+            this.failure = failure;
+        }
+
+        Class<?> getStubClass(Class<?> type) {
+            check(type);
+            return stubClass;
+        }
+
+        MethodHandle getConstructor(Class<?> type) {
+            check(type);
+            return constructor;
+        }
+
+        private void check(Class<?> type) {
+            if (failure != null) {
+                throw new IllegalArgumentException("Cannot create a stub of " + type.getName() + ": " + failure);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,475 @@
+package com.test.autostub;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.test.autostub.StubModel.MethodModel;
+
+/**
+ * Writes the source of a stub from its StubModel.
+ *
+ * The renderer does not touch the javac model and keeps no state, so the same instance can
+ * render several stubs at the same time from different threads. Everything is appended token
+ * by token into the given Appendable: either the Filer's writer, or a buffer.
+ *
+ * The same model always gives the same bytes, so that build caches can reuse what is
+ * compiled from a stub: members are indented by four spaces, each one followed by an
+ * empty line, and nothing depends on what the method declares (no extra space without a
+ * throws clause...).
+ */
+class StubRenderer {
+
+    private static final String COMMA_AND_SPACE = ", ";
+
+    private static final String THROWS_KEYWORD = "throws";
+
+    private static final String INVOCATION_LOG = "com.test.autostub.InvocationLog";
+
+    // The members added to recording stubs
+    private static final String RECORDED_METHODS_FIELD = "RECORDED_METHODS";
+
+    private static final String INVOCATIONS_FIELD = "invocations";
+
+    private static final String INVOCATION_LOG_ACCESSOR = "invocationLog";
+
+    private static final String CALLS_ACCESSOR_SUFFIX = "Calls";
+
+    // The members added to singleton stubs
+    static final String INSTANCE_FIELD = "INSTANCE";
+
+    private static final String INSTANCE_ACCESSOR = "instance";
+
+    // The members added to stubs with latencies: LATENCY for the methods without their own,
+    // LATENCY_<method> for the others
+    private static final String LATENCY = "com.test.autostub.Latency";
+
+    private static final String LATENCY_FIELD = "LATENCY";
+
+    // The members added to replaying stubs, and the local holding the key of a call
+    private static final String REPLAY_STORE = "com.test.autostub.ReplayStore";
+
+    private static final String REPLAY_FIELD = "REPLAY";
+
+    private static final String REPLAY_KEY = "replayKey";
+
+    void render(StubModel model, Appendable out) throws IOException {
+        // We first write the class initializer (the class name and the opening curly brace)
+        writeClassInitializer(model, out);
+
+        // We then write a stub for every method
+        for (int i = 0; i < model.getMethods().size(); i++) {
+            writeMethod(model, i, out);
+        }
+
+        // Recording stubs can be asked what they recorded
+        if (model.getOptions().isRecordingCalls()) {
+            writeRecordingAccessors(model, out);
+        }
+
+        // Finally, we write the closing curly brace of the class's body
+        out.append("}\n");
+    }
+
+    /**
+     * Renders a whole stub in memory, for when it cannot be written straight to the Filer.
+     */
+    String render(StubModel model) {
+        // Roughly what a method takes, so that the buffer is not grown over and over
+        StringBuilder builder = new StringBuilder(256 + 128 * model.getMethods().size());
+
+        try {
+            render(model, builder);
+        }
+        catch (IOException ioe) {
+            // A StringBuilder does not throw IOExceptions
+            throw new IllegalStateException(ioe);
+        }
+
+        return builder.toString();
+    }
+
+    void writeClassInitializer(StubModel model, Appendable out) throws IOException {
+        // Here, we generate the package name for the file ...
+        if (!model.getPackageName().isEmpty()) {
+            out.append("package ").append(model.getPackageName()).append(";\n\n");
+        }
+        // ... and the declaration of our class. Singletons are final, so that calls through
+        // them are easy to devirtualize.
+        out.append(model.getOptions().isSingleton() ? "public final class " : "public class ").append(model.getSimpleName()).append(model.getTypeParameters()).append(' ');
+
+        // Interfaces are IMPLEMENTED while classes are EXTENDED
+        out.append(model.isTargetInterface() ? "implements " : "extends ");
+
+        // The fully qualified name of the element we are writing a stub for, with the type
+        // parameters of the stub as type arguments if it is generic. A composite stub
+        // implements several interfaces, none of them generic.
+        for (int i = 0; i < model.getTargetNames().size(); i++) {
+            out.append(i > 0 ? COMMA_AND_SPACE : "").append(model.getTargetNames().get(i));
+        }
+        out.append(model.getTypeArguments());
+
+        out.append(" {\n\n");
+
+        // The empty values shared by the methods
+        for (String member : model.getMembers()) {
+            out.append(member).append('\n');
+        }
+
+        if (model.getOptions().isRecordingCalls()) {
+            writeRecordingFields(model, out);
+        }
+
+        if (!model.getOptions().getLatency().isEmpty()) {
+            writeLatencyFields(model, out);
+        }
+
+        if (model.getOptions().getReplay() != null) {
+            out.append("    private static final ").append(REPLAY_STORE).append(' ').append(REPLAY_FIELD).append(" =\n");
+            out.append("            ").append(REPLAY_STORE).append(".open(");
+            writeStringLiteral(model.getOptions().getReplay(), out);
+            out.append(", ").append(model.getSimpleName()).append(".class);\n\n");
+        }
+
+        // Static fields are initialized in the order they are declared: the instance is
+        // created last, once everything its constructor uses (RECORDED_METHODS...) is set
+        if (model.getOptions().isSingleton()) {
+            writeSingletonMembers(model, out);
+        }
+    }
+
+    void writeSingletonMembers(StubModel model, Appendable out) throws IOException {
+        if (model.getTypeParameters().isEmpty()) {
+            out.append("    public static final ").append(model.getSimpleName()).append(' ').append(INSTANCE_FIELD)
+                    .append(" = new ").append(model.getSimpleName()).append("();\n\n");
+            return;
+        }
+
+        // A generic stub has a single instance for every type argument, as it does not use
+        // them: instance() gives it the type arguments of the caller
+        out.append("    public static final ").append(model.getSimpleName()).append(getWildcards(model)).append(' ')
+                .append(INSTANCE_FIELD).append(" = new ").append(model.getSimpleName()).append("<>();\n\n");
+
+        // A static instance() cannot sit next to an instance method with the same signature
+        for (MethodModel method : model.getMethods()) {
+            if (method.getName().equals(INSTANCE_ACCESSOR) && method.getParameterTypes().isEmpty()) {
+                return;
+            }
+        }
+
+        out.append("    @SuppressWarnings(\"unchecked\")\n");
+        out.append("    public static ").append(model.getTypeParameters()).append(' ')
+                .append(model.getSimpleName()).append(model.getTypeArguments()).append(' ').append(INSTANCE_ACCESSOR).append("() {\n");
+        out.append("        return (").append(model.getSimpleName()).append(model.getTypeArguments()).append(") ")
+                .append(INSTANCE_FIELD).append(";\n");
+        out.append("    }\n\n");
+    }
+
+    /**
+     * @return the type arguments of the stub as wildcards: <?, ?> for <K, V>
+     */
+    private static String getWildcards(StubModel model) {
+        StringBuilder wildcards = new StringBuilder("<?");
+
+        // The type arguments are the names of the type parameters, separated by commas
+        for (int i = model.getTypeArguments().indexOf(','); i >= 0; i = model.getTypeArguments().indexOf(',', i + 1)) {
+            wildcards.append(", ?");
+        }
+
+        return wildcards.append('>').toString();
+    }
+
+    void writeRecordingFields(StubModel model, Appendable out) throws IOException {
+        // The signatures of the methods, in the order of their indexes in the log
+        out.append("    private static final String[] ").append(RECORDED_METHODS_FIELD).append(" = {\n");
+
+        for (MethodModel method : model.getMethods()) {
+            out.append("        \"");
+            writeSignature(method, out);
+            out.append("\",\n");
+        }
+
+        out.append("    };\n\n");
+
+        out.append("    private final ").append(INVOCATION_LOG).append(' ').append(INVOCATIONS_FIELD)
+                .append(" = new ").append(INVOCATION_LOG).append('(').append(RECORDED_METHODS_FIELD).append(", ")
+                .append(Integer.toString(model.getOptions().getCaptureArguments())).append(");\n\n");
+    }
+
+    void writeLatencyFields(StubModel model, Appendable out) throws IOException {
+        // Only the latencies of the methods of the stub are created, once per name
+        Set<String> fields = new LinkedHashSet<String>();
+        boolean shared = false;
+
+        for (MethodModel method : model.getMethods()) {
+            if (model.getOptions().getLatency().containsKey(method.getName())) {
+                fields.add(method.getName());
+            }
+            else {
+                shared |= model.getOptions().getLatency(method.getName()) != null;
+            }
+        }
+
+        if (shared) {
+            writeLatencyField(model, LATENCY_FIELD, model.getOptions().getLatency().get(StubOptions.ALL_METHODS), out);
+        }
+
+        for (String name : fields) {
+            writeLatencyField(model, getLatencyField(name), model.getOptions().getLatency().get(name), out);
+        }
+    }
+
+    private void writeLatencyField(StubModel model, String field, String spec, Appendable out) throws IOException {
+        out.append("    private static final ").append(LATENCY).append(' ').append(field).append(" =\n");
+        out.append("            ").append(LATENCY).append(".parse(");
+        writeStringLiteral(spec, out);
+        out.append(", ").append(model.getSimpleName()).append(".class);\n\n");
+    }
+
+    private static void writeStringLiteral(String value, Appendable out) throws IOException {
+        out.append('"');
+
+        // A path may hold backslashes
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            out.append(c == '\\' || c == '"' ? "\\" : "").append(c);
+        }
+
+        out.append('"');
+    }
+
+    /**
+     * @return the field holding the latency of a method, or null if it has none
+     */
+    private static String getLatencyField(StubModel model, MethodModel method) {
+        if (model.getOptions().getLatency().containsKey(method.getName())) {
+            return getLatencyField(method.getName());
+        }
+
+        return model.getOptions().getLatency(method.getName()) != null ? LATENCY_FIELD : null;
+    }
+
+    private static String getLatencyField(String method) {
+        return LATENCY_FIELD + "_" + method;
+    }
+
+    void writeRecordingAccessors(StubModel model, Appendable out) throws IOException {
+        // An accessor must not replace a method of the stub: the ones which would are skipped
+        Set<String> names = new HashSet<String>();
+
+        for (MethodModel method : model.getMethods()) {
+            if (method.getParameterTypes().isEmpty()) {
+                names.add(method.getName());
+            }
+        }
+
+        if (names.add(INVOCATION_LOG_ACCESSOR)) {
+            out.append("    public ").append(INVOCATION_LOG).append(' ').append(INVOCATION_LOG_ACCESSOR).append("() {\n");
+            out.append("        return ").append(INVOCATIONS_FIELD).append(";\n");
+            out.append("    }\n\n");
+        }
+
+        // One accessor per method name, counting the calls of all its overloads
+        Map<String, List<Integer>> overloads = new LinkedHashMap<String, List<Integer>>();
+
+        for (int i = 0; i < model.getMethods().size(); i++) {
+            String name = model.getMethods().get(i).getName();
+            List<Integer> indexes = overloads.get(name);
+
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                overloads.put(name, indexes);
+            }
+            indexes.add(i);
+        }
+
+        for (Map.Entry<String, List<Integer>> overload : overloads.entrySet()) {
+            String accessor = overload.getKey() + CALLS_ACCESSOR_SUFFIX;
+
+            if (!names.add(accessor)) {
+                continue;
+            }
+
+            out.append("    public long ").append(accessor).append("() {\n");
+            out.append("        return ");
+
+            boolean first = true;
+
+            for (Integer index : overload.getValue()) {
+                out.append(first ? "" : " + ").append(INVOCATIONS_FIELD).append(".getCount(")
+                        .append(index.toString()).append(')');
+                first = false;
+            }
+
+            out.append(";\n");
+            out.append("    }\n\n");
+        }
+    }
+
+    /**
+     * Writes the return of a replaying method: its key, from the seed of its signature and
+     * its arguments, then the recorded response, or the default value. Objects are read
+     * with the class of the erased return type, which the response must be of.
+     */
+    void writeReplay(MethodModel method, Appendable out) throws IOException {
+        out.append("        long ").append(REPLAY_KEY).append(" = 0x")
+                .append(Long.toHexString(ReplayStore.seed(method.getReplaySignature()))).append("L;\n");
+
+        for (int i = 0; i < method.getParameterTypes().size(); i++) {
+            out.append("        ").append(REPLAY_KEY).append(" = ").append(REPLAY_STORE).append(".hash(").append(REPLAY_KEY)
+                    .append(", arg").append(Integer.toString(i)).append(");\n");
+        }
+
+        String getter = getReplayGetter(method.getReturnType());
+        out.append("        return ").append(REPLAY_FIELD).append('.').append(getter).append('(').append(REPLAY_KEY);
+
+        if (getter.equals("getObject")) {
+            out.append(COMMA_AND_SPACE).append(method.getReplayType()).append(".class");
+        }
+
+        out.append(COMMA_AND_SPACE).append(method.getDefaultValue()).append(");\n");
+    }
+
+    /**
+     * @return the method of the ReplayStore decoding a return type: primitives straight from
+     * the mapping, everything else as an object
+     */
+    private static String getReplayGetter(String returnType) {
+        switch (returnType) {
+            case "boolean":
+                return "getBoolean";
+            case "byte":
+                return "getByte";
+            case "char":
+                return "getChar";
+            case "short":
+                return "getShort";
+            case "int":
+                return "getInt";
+            case "long":
+                return "getLong";
+            case "float":
+                return "getFloat";
+            case "double":
+                return "getDouble";
+            default:
+                return "getObject";
+        }
+    }
+
+    private void writeSignature(MethodModel method, Appendable out) throws IOException {
+        out.append(method.getName()).append('(');
+
+        boolean first = true;
+
+        for (String parameterType : method.getParameterTypes()) {
+            out.append(first ? "" : COMMA_AND_SPACE).append(parameterType);
+            first = false;
+        }
+
+        out.append(')');
+    }
+
+    void writeMethod(StubModel model, int index, Appendable out) throws IOException {
+        MethodModel method = model.getMethods().get(index);
+
+        out.append("    ");
+
+        // The method's modifiers. For example,
+        // public static final
+        for (String modifier : method.getModifiers()) {
+            out.append(modifier).append(' ');
+        }
+
+        // The type parameters of a generic method
+        if (!method.getTypeParameters().isEmpty()) {
+            out.append(method.getTypeParameters()).append(' ');
+        }
+
+        // The return type of the method
+        out.append(method.getReturnType()).append(' ');
+
+        // The name of the method, as well as the opening bracket for parameters
+        out.append(method.getName()).append('(');
+
+        // So as to have unique names for our argument, I adopted a clever
+        // naming convention : arg(i), where i is the position of the
+        // argument in the method's signature.
+        int nbArg = 0;
+
+        for (String parameterType : method.getParameterTypes()) {
+            // One of many ways to hand-write a comma-separated array/list/whatever
+            if (nbArg > 0) {
+                out.append(COMMA_AND_SPACE);
+            }
+
+            out.append(parameterType).append(" arg").append(Integer.toString(nbArg++));
+        }
+
+        // The closing bracket for the parameters
+        out.append(')');
+
+        if (!method.getThrownTypes().isEmpty()) {
+            out.append(' ').append(THROWS_KEYWORD);
+
+            boolean first = true;
+
+            for (String thrownType : method.getThrownTypes()) {
+                out.append(first ? " " : COMMA_AND_SPACE).append(thrownType);
+                first = false;
+            }
+        }
+
+        // The opening curly bracket for the method's body
+        out.append(" {\n");
+
+        // Recording stubs count the call first. Only capturing stubs need the arguments,
+        // the others do not box anything.
+        if (model.getOptions().getCaptureArguments() > 0) {
+            out.append("        ").append(INVOCATIONS_FIELD).append(".record(").append(Integer.toString(index)).append(", ");
+
+            if (method.getParameterTypes().isEmpty()) {
+                out.append(INVOCATION_LOG).append(".NO_ARGUMENTS");
+            }
+            else {
+                out.append("new Object[] { ");
+
+                for (int i = 0; i < method.getParameterTypes().size(); i++) {
+                    out.append(i > 0 ? COMMA_AND_SPACE : "").append("arg").append(Integer.toString(i));
+                }
+
+                out.append(" }");
+            }
+
+            out.append(");\n");
+        }
+        else if (model.getOptions().isRecordingCalls()) {
+            out.append("        ").append(INVOCATIONS_FIELD).append(".count(").append(Integer.toString(index)).append(");\n");
+        }
+
+        // Then waits, the call being counted while it waits
+        String latencyField = getLatencyField(model, method);
+
+        if (latencyField != null) {
+            out.append("        ").append(latencyField).append(".await();\n");
+        }
+
+        // If the method is returning something else than VOID, we should
+        // fake the returned value too. Else, the compiler will get angry
+        // at us when it will compile our class.
+        if (method.getReplaySignature() != null) {
+            writeReplay(method, out);
+        }
+        else if (method.getDefaultValue() != null) {
+            out.append("        return ").append(method.getDefaultValue()).append(";\n");
+        }
+
+        // The closing curly bracket for the method's body
+        out.append("    }\n\n");
+    }
+
+}
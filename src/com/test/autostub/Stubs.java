@@ -0,0 +1,143 @@
+package com.test.autostub;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Creates stubs at runtime, for the interfaces which cannot be annotated with
+ * {@link GenerateStub} (the ones coming from a third-party jar, for example).
+ *
+ * The stubs behave like the generated ones: every abstract method returns the default value
+ * of its return type (0, false, null...), and default methods are inherited. Unlike a
+ * java.lang.reflect.Proxy, a stub is a real class implementing the interface, defined as a
+ * hidden class: calls are plain virtual calls, without boxing nor InvocationHandler.
+ *
+ * The class of a stub is defined once per interface, the first time it is asked for.
+ */
+public final class Stubs {
+
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    private static final ClassValue<MethodHandle> CONSTRUCTORS = new ClassValue<MethodHandle>() {
+        @Override
+        protected MethodHandle computeValue(Class<?> type) {
+            return defineStubClass(type);
+        }
+    };
+
+    private Stubs() {
+    }
+
+    /**
+     * @return a new stub implementing the given interface
+     * @throws IllegalArgumentException if type is not an interface, or cannot be implemented
+     * from here
+     */
+    public static <T> T create(Class<T> type) {
+        if (!type.isInterface()) {
+            throw new IllegalArgumentException(type.getName() + " is not an interface");
+        }
+
+        try {
+            return type.cast((Object) CONSTRUCTORS.get(type).invokeExact());
+        }
+        catch (RuntimeException | Error e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            // The constructor of a stub only calls Object's
+            throw new IllegalStateException("Could not create a stub for " + type.getName(), t);
+        }
+    }
+
+    private static MethodHandle defineStubClass(Class<?> type) {
+        MethodHandles.Lookup lookup = getLookup(type);
+
+        // The stub has to be defined in the package of the lookup class
+        String packageName = lookup.lookupClass().getPackageName();
+        String simpleName = type.getName().substring(type.getName().lastIndexOf('.') + 1).replace('$', '_');
+        String internalName = (packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/") + "Stub" + simpleName;
+
+        ClassFileWriter writer = new ClassFileWriter(ClassFileWriter.JAVA_8_VERSION,
+                ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SYNTHETIC,
+                internalName, "java/lang/Object", type.getName().replace('.', '/'));
+
+        writer.addDefaultConstructor();
+
+        // getMethods() gives the methods of the superinterfaces too. The same method may be
+        // found several times through them, with the same descriptor: it is only written once.
+        // Covariant overrides have other descriptors, and each one needs its implementation.
+        Set<String> written = new HashSet<String>();
+
+        for (Method method : type.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+                continue;
+            }
+
+            String descriptor = MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+
+            if (written.add(method.getName() + descriptor)) {
+                writer.addDefaultReturnMethod(ClassFileWriter.ACC_PUBLIC, method.getName(), descriptor, null);
+            }
+        }
+
+        try {
+            Class<?> stubClass = lookup.defineHiddenClass(writer.toByteArray(), true).lookupClass();
+
+            return lookup.findConstructor(stubClass, MethodType.methodType(void.class)).asType(CONSTRUCTOR_TYPE);
+        }
+        catch (IllegalAccessException | NoSuchMethodException e) {
+            throw new IllegalArgumentException("Could not define a stub for " + type.getName(), e);
+        }
+    }
+
+    private static MethodHandles.Lookup getLookup(Class<?> type) {
+        // Best case: the stub is defined next to the interface, by the same class loader. That
+        // works for non-public interfaces as well. It needs a full privilege access to the
+        // package of the interface, which we get when it is in the same module as this class.
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+
+            if (lookup.hasFullPrivilegeAccess()) {
+                return lookup;
+            }
+        }
+        catch (IllegalAccessException iae) {
+            // The package is not open to us (java.util, for example)
+        }
+
+        // Otherwise, the stub is defined next to this class: the interface has to be public,
+        // and visible from our class loader.
+        if (!Modifier.isPublic(type.getModifiers()) || !isVisible(type)) {
+            throw new IllegalArgumentException("Cannot implement " + type.getName() + " from " + Stubs.class.getName());
+        }
+
+        return MethodHandles.lookup();
+    }
+
+    private static boolean isVisible(Class<?> type) {
+        try {
+            return Class.forName(type.getName(), false, Stubs.class.getClassLoader()) == type;
+        }
+        catch (ClassNotFoundException cnfe) {
+            return false;
+        }
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        // Interfaces may redeclare the methods of java.lang.Object (like Comparator does
+        // with equals). The stub inherits the real ones, which it must not replace.
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        }
+        catch (NoSuchMethodException nsme) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.test.autostub;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+
+/**
+ * Resolves the targets listed in toStub(): fully qualified names of types, package names,
+ * and glob patterns on the simple names of the types of a package (com.acme.api.*Service).
+ *
+ * Lookups are cached for the current round, unknown names included: a target requested by
+ * several annotations, or a package matched by several patterns, is only looked up once, and
+ * the interfaces of a package are listed in a single pass over its enclosed elements.
+ * Generated types may appear in the next round, so the caches have to be cleared at the
+ * start of every round.
+ */
+class TargetResolver {
+
+    static final char WILDCARD = '*';
+
+    // Marks unknown names in the caches, which cannot hold null
+    private static final Object MISSING = new Object();
+
+    private final Elements elements;
+
+    // Type name -> TypeElement, or MISSING
+    private final Map<String, Object> types = new HashMap<String, Object>();
+
+    // Package name -> the interfaces of the package, or MISSING
+    private final Map<String, Object> packages = new HashMap<String, Object>();
+
+    private final Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+
+    TargetResolver(Elements elements) {
+        this.elements = elements;
+    }
+
+    /**
+     * @return true if target has to be expanded with getInterfaces(), rather than stubbed
+     * as a single type: a glob pattern, or the name of a package which is not a type
+     */
+    boolean isBulkTarget(String target) {
+        if (target.indexOf(WILDCARD) >= 0) {
+            return true;
+        }
+
+        return getTypeElement(target) == null && getPackageInterfaces(target) != null;
+    }
+
+    /**
+     * @return the interfaces matched by a bulk target, in the order of their package. Empty
+     * if none matches, or if the package does not exist.
+     */
+    List<TypeElement> getInterfaces(String target) {
+        String packageName;
+        String namePattern;
+
+        if (target.indexOf(WILDCARD) >= 0) {
+            int lastDot = target.lastIndexOf('.');
+            packageName = lastDot < 0 ? "" : target.substring(0, lastDot);
+            namePattern = target.substring(lastDot + 1);
+        }
+        else {
+            packageName = target;
+            namePattern = String.valueOf(WILDCARD);
+        }
+
+        List<TypeElement> interfaces = getPackageInterfaces(packageName);
+
+        if (interfaces == null) {
+            return Collections.emptyList();
+        }
+
+        if (namePattern.equals(String.valueOf(WILDCARD))) {
+            return interfaces;
+        }
+
+        Pattern pattern = getPattern(namePattern);
+        List<TypeElement> matching = new ArrayList<TypeElement>();
+
+        for (TypeElement anInterface : interfaces) {
+            if (pattern.matcher(anInterface.getSimpleName()).matches()) {
+                matching.add(anInterface);
+            }
+        }
+
+        return matching;
+    }
+
+    /**
+     * @return the type with this canonical name, or null if there is none (yet)
+     */
+    TypeElement getTypeElement(String name) {
+        Object type = types.get(name);
+
+        if (type == null) {
+            type = elements.getTypeElement(name);
+            types.put(name, type != null ? type : MISSING);
+        }
+
+        return type != MISSING ? (TypeElement) type : null;
+    }
+
+    /**
+     * Forgets every lookup: they hold elements of the current round.
+     */
+    void clear() {
+        types.clear();
+        packages.clear();
+    }
+
+    /**
+     * @return the top-level interfaces of a package, or null if there is no such package
+     */
+    @SuppressWarnings("unchecked")
+    private List<TypeElement> getPackageInterfaces(String packageName) {
+        Object interfaces = packages.get(packageName);
+
+        if (interfaces == null) {
+            PackageElement packageElement = elements.getPackageElement(packageName);
+
+            if (packageElement == null) {
+                interfaces = MISSING;
+            }
+            else {
+                List<TypeElement> found = new ArrayList<TypeElement>();
+
+                for (Element enclosed : packageElement.getEnclosedElements()) {
+                    // Annotation types have their own kind, and are left out
+                    if (enclosed.getKind() == ElementKind.INTERFACE) {
+                        TypeElement anInterface = (TypeElement) enclosed;
+
+                        found.add(anInterface);
+                        // Stubbing them will look them up again
+                        types.put(anInterface.getQualifiedName().toString(), anInterface);
+                    }
+                }
+
+                interfaces = Collections.unmodifiableList(found);
+            }
+
+            packages.put(packageName, interfaces);
+        }
+
+        return interfaces != MISSING ? (List<TypeElement>) interfaces : null;
+    }
+
+    private Pattern getPattern(String namePattern) {
+        Pattern pattern = patterns.get(namePattern);
+
+        if (pattern == null) {
+            pattern = toPattern(namePattern);
+            patterns.put(namePattern, pattern);
+        }
+
+        return pattern;
+    }
+
+    /**
+     * @return the regular expression matching the simple names matched by a glob pattern
+     */
+    static Pattern toPattern(String namePattern) {
+        // Only the wildcard is special, the rest of the pattern is matched as is
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int wildcard;
+
+        while ((wildcard = namePattern.indexOf(WILDCARD, start)) >= 0) {
+            regex.append(Pattern.quote(namePattern.substring(start, wildcard))).append(".*");
+            start = wildcard + 1;
+        }
+        regex.append(Pattern.quote(namePattern.substring(start)));
+
+        return Pattern.compile(regex.toString());
+    }
+
+}
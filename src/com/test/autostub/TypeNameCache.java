@@ -0,0 +1,283 @@
+package com.test.autostub;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.QualifiedNameable;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+
+/**
+ * Renders types the way they are written in a stub, and remembers what it rendered during
+ * the current round.
+ *
+ * The same types (String, List&lt;String&gt;, the domain classes...) show up in almost every
+ * signature of every stub, so a single cache is shared by all the Generators of a processor.
+ * It is not thread-safe: it is only used on the javac thread.
+ *
+ * Elements and type mirrors must not be used from one round to the next, so the cache is
+ * cleared at the start of each round, like the HierarchyResolver. Only the rendered names
+ * are kept for the whole compilation, to be shared by the names of the next rounds.
+ */
+class TypeNameCache {
+
+    private static final String COMMA_AND_SPACE = ", ";
+
+    // Declared elements to their fully qualified name
+    private final Map<Element, String> qualifiedNames = new HashMap<Element, String>();
+
+    // Type mirrors to their rendered name. The compiler reuses the same instance for the
+    // same type in many places, but does not implement equals(), hence the identity.
+    private final Map<TypeMirror, String> renderedTypes = new IdentityHashMap<TypeMirror, String>();
+
+    // So that a type rendered from different mirrors (List<String> in two signatures) is
+    // only kept once in memory
+    private final Map<String, String> internedNames = new HashMap<String, String>();
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * @return the name of the type, as it must be written in a source file
+     */
+    String getName(TypeMirror typeMirror) {
+        // All quotes in comment are from docs.oracle.com/javase/7/docs/api/javax/lang/model/type/*
+        switch (typeMirror.getKind()) {
+            case VOID:
+                // Void. duh.
+                return "void";
+            case INT:
+                return "int";
+            case BOOLEAN:
+                return "boolean";
+            case BYTE:
+                return "byte";
+            case CHAR:
+                return "char";
+            case DOUBLE:
+                return "double";
+            case FLOAT:
+                return "float";
+            case LONG:
+                return "long";
+            case SHORT:
+                return "short";
+            case DECLARED:
+                // This could be any class: String, Integer, or even a user-defined one.
+                // Without type arguments, the name of the element is all we need.
+                DeclaredType declaredType = (DeclaredType) typeMirror;
+
+                if (declaredType.getTypeArguments().isEmpty()) {
+                    return getQualifiedName(declaredType.asElement());
+                }
+
+                return getRenderedName(typeMirror);
+            case TYPEVAR:
+                // "Represents a type variable. A type variable may be explicitly declared
+                // by a type parameter of a type, method, or constructor.
+                // A type variable may also be declared implicitly, as by the capture conversion
+                // of a wildcard type argument (see chapter 5 of The Java™ Language Specification)."
+                // The stub declares the same type parameters, so the name is all we need.
+                return getQualifiedName(((TypeVariable) typeMirror).asElement());
+            case ARRAY:
+            case WILDCARD:
+                return getRenderedName(typeMirror);
+            // ERROR: "Represents a class or interface type that cannot be properly modeled."
+            // NULL: "Represents the null type. This is the type of the expression null."
+            // For those, as well as EXECUTABLE, NONE, OTHER and PACKAGE, we use the kind.
+            default:
+                return typeMirror.getKind().toString();
+        }
+    }
+
+    /**
+     * @return the fully qualified name of a class or interface. Nested types are written
+     * with the name of their enclosing type (com.acme.Outer.Inner).
+     */
+    String getQualifiedName(Element element) {
+        String name = qualifiedNames.get(element);
+
+        if (name != null) {
+            hits++;
+            return name;
+        }
+
+        misses++;
+
+        if (element instanceof QualifiedNameable) {
+            name = intern(((QualifiedNameable) element).getQualifiedName().toString());
+        }
+        else {
+            name = intern(element.getSimpleName().toString());
+        }
+
+        qualifiedNames.put(element, name);
+
+        return name;
+    }
+
+    private String getRenderedName(TypeMirror typeMirror) {
+        String name = renderedTypes.get(typeMirror);
+
+        if (name != null) {
+            hits++;
+            return name;
+        }
+
+        misses++;
+
+        StringBuilder builder = new StringBuilder();
+        render(builder, typeMirror);
+        name = intern(builder.toString());
+
+        renderedTypes.put(typeMirror, name);
+
+        return name;
+    }
+
+    private void render(StringBuilder builder, TypeMirror typeMirror) {
+        switch (typeMirror.getKind()) {
+            case DECLARED:
+                DeclaredType declaredType = (DeclaredType) typeMirror;
+                builder.append(getQualifiedName(declaredType.asElement()));
+                renderTypeArguments(builder, declaredType.getTypeArguments());
+                break;
+            case ARRAY:
+                // A array-type is easy enough to represent: just add [] at the end of the type
+                builder.append(getName(((ArrayType) typeMirror).getComponentType())).append("[]");
+                break;
+            case WILDCARD:
+                // "Represents a wildcard type argument. Examples include:
+                // ?
+                // ? extends Number
+                // ? super T"
+                builder.append('?');
+                WildcardType wildcardType = (WildcardType) typeMirror;
+
+                if (wildcardType.getExtendsBound() != null) {
+                    builder.append(" extends ").append(getName(wildcardType.getExtendsBound()));
+                }
+                else {
+                    if (wildcardType.getSuperBound() != null) {
+                        builder.append(" super ").append(getName(wildcardType.getSuperBound()));
+                    }
+                }
+                break;
+            default:
+                builder.append(getName(typeMirror));
+                break;
+        }
+    }
+
+    private void renderTypeArguments(StringBuilder builder, List<? extends TypeMirror> typeArguments) {
+        // If the type has at least one type argument, process the list
+        if (typeArguments != null && typeArguments.size() > 0) {
+            builder.append('<');
+            boolean moreThanOneType = false;
+
+            for (TypeMirror typeMirror : typeArguments) {
+                // One of many ways to hand-write a comma-separated array/list/whatever
+                if (moreThanOneType) {
+                    builder.append(COMMA_AND_SPACE);
+                }
+                else {
+                    moreThanOneType = true;
+                }
+
+                builder.append(getName(typeMirror));
+            }
+
+            builder.append('>');
+        }
+    }
+
+    /**
+     * @return the declaration of type parameters, as written after the name of a generic
+     * class or method (&lt;K, V extends java.lang.Comparable&lt;V&gt;&gt;), or an empty String
+     */
+    String getTypeParameters(List<? extends TypeParameterElement> typeParameters) {
+        if (typeParameters.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder builder = new StringBuilder("<");
+
+        for (TypeParameterElement typeParameter : typeParameters) {
+            if (builder.length() > 1) {
+                builder.append(COMMA_AND_SPACE);
+            }
+
+            builder.append(typeParameter.getSimpleName());
+
+            // Object is the implicit bound, no need to write it
+            String separator = " extends ";
+
+            for (TypeMirror bound : typeParameter.getBounds()) {
+                String boundName = getName(bound);
+
+                if (!"java.lang.Object".equals(boundName)) {
+                    builder.append(separator).append(boundName);
+                    separator = " & ";
+                }
+            }
+        }
+
+        return intern(builder.append('>').toString());
+    }
+
+    /**
+     * @return the type parameters, given as type arguments (&lt;K, V&gt;), or an empty String
+     */
+    String getTypeArguments(List<? extends TypeParameterElement> typeParameters) {
+        if (typeParameters.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder builder = new StringBuilder("<");
+
+        for (TypeParameterElement typeParameter : typeParameters) {
+            if (builder.length() > 1) {
+                builder.append(COMMA_AND_SPACE);
+            }
+
+            builder.append(typeParameter.getSimpleName());
+        }
+
+        return intern(builder.append('>').toString());
+    }
+
+    /**
+     * Forgets the elements and type mirrors: they belong to the current round.
+     */
+    void clear() {
+        qualifiedNames.clear();
+        renderedTypes.clear();
+    }
+
+    private String intern(String name) {
+        String interned = internedNames.get(name);
+
+        if (interned == null) {
+            internedNames.put(name, name);
+            interned = name;
+        }
+
+        return interned;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.test.autostub;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The few checks the tests need, failing with an AssertionError.
+ */
+final class Assertions {
+
+    private Assertions() {
+    }
+
+    static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void assertEquals(Object expected, Object actual, String message) {
+        boolean equal = expected instanceof Object[] && actual instanceof Object[]
+                ? Arrays.deepEquals((Object[]) expected, (Object[]) actual)
+                : expected == null ? actual == null : expected.equals(actual);
+
+        if (!equal) {
+            throw new AssertionError(message + ": expected " + toString(expected) + ", got " + toString(actual));
+        }
+    }
+
+    static void assertBytesEqual(byte[] expected, byte[] actual, String message) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError(message + ": the bytes differ\n--- expected\n" + toString(expected)
+                    + "\n--- got\n" + toString(actual));
+        }
+    }
+
+    private static String toString(Object value) {
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, StandardCharsets.UTF_8);
+        }
+
+        return value instanceof Object[] ? Arrays.deepToString((Object[]) value) : String.valueOf(value);
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertBytesEqual;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The same inputs compiled under different conditions must give the same stubs, byte for
+ * byte, so that build caches get hits on what is compiled from them: members declared in
+ * another order (and modifiers written in another order), stubs rendered on the compiler
+ * thread or in parallel, and builds made again. Both the sources and the emitted class
+ * files are compared.
+ */
+public class ByteStabilityTest {
+
+    private static final String[] SERVICE_MEMBERS = {
+        "String name(int id);",
+        "java.util.List<String> names(java.util.Map<String, ? extends Number> filter) throws java.io.IOException;",
+        "long count();",
+        "void save(String name, int[] ids) throws IllegalStateException, java.io.IOException;",
+        "<T extends Comparable<T>> T max(java.util.Collection<? extends T> values);",
+        "String name(long id);",
+        "default int size() { return 0; }",
+        "char initial();",
+    };
+
+    private static final String[] REPOSITORY_MEMBERS = {
+        "V get(K key);",
+        "void put(K key, V value);",
+        "java.util.Optional<V> find(K key);",
+        "boolean remove(K key) throws java.io.IOException;",
+    };
+
+    // The same modifiers, written in two orders
+    private static final String[][] BASE_MEMBERS = {
+        { "public abstract String describe();", "abstract public String describe();" },
+        { "protected abstract int weight(double factor);", "abstract protected int weight(double factor);" },
+        { "public abstract java.util.Set<String> tags();", "abstract public java.util.Set<String> tags();" },
+    };
+
+    private static final List<String> STUBS = Arrays.asList("app.StubService", "app.StubRepository", "app.StubBase");
+
+    public void testDeclarationOrderDoesNotChangeStubs() {
+        for (String emit : new String[] { "source", "class" }) {
+            List<byte[]> expected = getStubs(compile(0, false, "-Ageneratestub.emit=" + emit), emit);
+
+            for (int seed = 1; seed <= 5; seed++) {
+                assertStubsEqual(expected, getStubs(compile(seed, seed % 2 == 0, "-Ageneratestub.emit=" + emit), emit),
+                        "members shuffled with seed " + seed + ", emit=" + emit);
+            }
+        }
+    }
+
+    public void testParallelRenderingDoesNotChangeStubs() {
+        for (String emit : new String[] { "source", "class" }) {
+            TestCompilation serial = compile(0, false, "-Ageneratestub.emit=" + emit);
+            TestCompilation parallel = compile(0, false, "-Ageneratestub.emit=" + emit, "-Ageneratestub.parallelism=4");
+
+            assertStubsEqual(getStubs(serial, emit), getStubs(parallel, emit), "stubs rendered in parallel, emit=" + emit);
+            assertEquals(serial.getGeneratedSources(), parallel.getGeneratedSources(), "order of the generated sources");
+        }
+    }
+
+    public void testRepeatedBuildsGiveTheSameStubs() {
+        List<byte[]> first = getStubs(compile(3, true), "source");
+
+        for (int build = 0; build < 3; build++) {
+            assertStubsEqual(first, getStubs(compile(3, true), "source"), "build " + (build + 2));
+        }
+    }
+
+    /**
+     * Compiles the inputs, their members being shuffled (and their modifiers reordered)
+     * unless the seed is 0.
+     */
+    private static TestCompilation compile(long seed, boolean reorderModifiers, String... options) {
+        Random random = new Random(seed);
+
+        List<String> baseMembers = new ArrayList<String>();
+        for (String[] member : BASE_MEMBERS) {
+            baseMembers.add(member[reorderModifiers ? 1 : 0]);
+        }
+
+        return new TestCompilation(options)
+                .source("app.Service", declare("public interface Service", SERVICE_MEMBERS, seed, random))
+                .source("app.Repository", declare("public interface Repository<K, V extends java.io.Serializable>",
+                        REPOSITORY_MEMBERS, seed, random))
+                .source("app.Base", declare("public abstract class Base", baseMembers.toArray(new String[0]), seed, random))
+                .source("app.Holder", "package app;\n"
+                        + "@com.test.autostub.GenerateStub(toStub = { \"app.Service\", \"app.Repository\", \"app.Base\" })\n"
+                        + "class Holder {\n"
+                        + "}\n")
+                .compile();
+    }
+
+    private static String declare(String declaration, String[] members, long seed, Random random) {
+        List<String> shuffled = new ArrayList<String>(Arrays.asList(members));
+
+        if (seed != 0) {
+            Collections.shuffle(shuffled, random);
+        }
+
+        StringBuilder source = new StringBuilder("package app;\n").append(declaration).append(" {\n");
+
+        for (String member : shuffled) {
+            source.append("    ").append(member).append('\n');
+        }
+
+        return source.append("}\n").toString();
+    }
+
+    /**
+     * @return the sources of the stubs, or their class files when they are emitted
+     */
+    private static List<byte[]> getStubs(TestCompilation compilation, String emit) {
+        List<byte[]> stubs = new ArrayList<byte[]>();
+
+        for (String stubName : STUBS) {
+            byte[] stub = "class".equals(emit) ? compilation.getClassFile(stubName) : compilation.getGeneratedSource(stubName);
+
+            assertTrue(stub != null, stubName + " is written, emit=" + emit);
+            stubs.add(stub);
+        }
+
+        return stubs;
+    }
+
+    private static void assertStubsEqual(List<byte[]> expected, List<byte[]> actual, String message) {
+        for (int i = 0; i < STUBS.size(); i++) {
+            assertBytesEqual(expected.get(i), actual.get(i), STUBS.get(i) + ", " + message);
+        }
+    }
+
+}
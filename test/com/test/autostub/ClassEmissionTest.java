@@ -0,0 +1,171 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The class files written with generatestub.emit=class against what javac compiles from
+ * the sources written by default: the same inputs are compiled both ways, and each stub is
+ * loaded from both outputs (and so verified, every class being verified under make test)
+ * and compared through reflection: its modifiers and supertypes, the signatures, modifiers
+ * and throws clauses of its methods and bridges, and what each method returns.
+ */
+public class ClassEmissionTest {
+
+    private static final String[][] SOURCES = {
+        { "com.acme.api.Base", "package com.acme.api;\n"
+                + "public interface Base<T> {\n"
+                + "    T get(int index) throws java.io.IOException;\n"
+                + "    void put(T value);\n"
+                + "    java.util.List<T> all();\n"
+                + "}\n" },
+        { "com.acme.api.Named", "package com.acme.api;\n"
+                + "public interface Named {\n"
+                + "    CharSequence name();\n"
+                + "    java.util.List<String> all();\n"
+                + "}\n" },
+        { "com.acme.api.Repo", "package com.acme.api;\n"
+                + "public interface Repo<K extends Comparable<K>, V> extends Base<V> {\n"
+                + "    V byKey(K key);\n"
+                + "    String name();\n"
+                + "    <R extends Number & Comparable<R>> R[] range(R from, java.util.Map<? super K, ? extends R> bounds);\n"
+                + "    class Nested { }\n"
+                + "}\n" },
+        { "com.acme.api.UserService", "package com.acme.api;\n"
+                + "public interface UserService extends Base<String>, Named {\n"
+                + "    long count();\n"
+                + "    boolean exists(String name, int[] ids) throws IllegalStateException, java.io.IOException;\n"
+                + "    java.util.Map<String, ? extends Number> stats();\n"
+                + "    String[] names();\n"
+                + "    char initial();\n"
+                + "    byte level(short a, float b, double c);\n"
+                + "    Repo.Nested nested();\n"
+                + "    default double ratio() { return 1.0; }\n"
+                + "    static UserService none() { return null; }\n"
+                + "}\n" },
+        { "com.acme.api.AbstractBase", "package com.acme.api;\n"
+                + "public abstract class AbstractBase<T> implements Named {\n"
+                + "    public abstract T make();\n"
+                + "    protected abstract void hidden();\n"
+                + "    public final int fixed() { return 1; }\n"
+                + "    public String describe() { return \"x\"; }\n"
+                + "    abstract int pkg();\n"
+                + "}\n" },
+        { "com.acme.api.Concrete", "package com.acme.api;\n"
+                + "@com.test.autostub.GenerateStub\n"
+                + "public abstract class Concrete extends AbstractBase<Integer> {\n"
+                + "    public abstract String name();\n"
+                + "}\n" },
+        { "app.Holder", "package app;\n"
+                + "@com.test.autostub.GenerateStub(toStub = { \"com.acme.api.Repo\", \"com.acme.api.UserService\", \"com.acme.api.Named\" })\n"
+                + "class Holder {\n"
+                + "}\n" },
+    };
+
+    public void testEmittedStubsMatchCompiledStubs() throws Exception {
+        assertTrue(ManagementFactory.getRuntimeMXBean().getInputArguments().contains("-Xverify:all"),
+                "the checks run with -Xverify:all (see make test)");
+
+        TestCompilation sourceMode = compile();
+        TestCompilation classMode = compile("-Ageneratestub.emit=class");
+
+        List<String> stubNames = sourceMode.getGeneratedSources();
+        assertEquals(Arrays.asList("com.acme.api.StubConcrete", "com.acme.api.StubRepo", "com.acme.api.StubUserService",
+                "com.acme.api.StubNamed"), stubNames, "stubs written as sources");
+        assertEquals(Collections.emptyList(), classMode.getGeneratedSources(), "sources written in class mode");
+
+        ClassLoader sourceLoader = sourceMode.newClassLoader();
+        ClassLoader classLoader = classMode.newClassLoader();
+
+        for (String stubName : stubNames) {
+            assertTrue(classMode.getClassFile(stubName) != null, stubName + " is emitted as a class file");
+
+            // Initializing the class links it, verifying its bytecode
+            Class<?> compiled = Class.forName(stubName, true, sourceLoader);
+            Class<?> emitted = Class.forName(stubName, true, classLoader);
+
+            assertEquals(describe(compiled), describe(emitted), stubName);
+            assertEquals(call(compiled), call(emitted), "what the methods of " + stubName + " return");
+        }
+    }
+
+    private static TestCompilation compile(String... options) {
+        TestCompilation compilation = new TestCompilation(options);
+
+        for (String[] source : SOURCES) {
+            compilation.source(source[0], source[1]);
+        }
+
+        return compilation.compile();
+    }
+
+    /**
+     * @return what reflection tells of a class, one line per member, sorted
+     */
+    private static List<String> describe(Class<?> type) {
+        List<String> lines = new ArrayList<String>();
+
+        lines.add("class " + Modifier.toString(type.getModifiers()) + " " + type.getName()
+                + " extends " + type.getGenericSuperclass().getTypeName()
+                + " implements " + Arrays.toString(type.getGenericInterfaces())
+                + " " + Arrays.toString(type.getTypeParameters()));
+
+        for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+            lines.add(constructor.toGenericString());
+        }
+
+        List<String> methods = new ArrayList<String>();
+
+        for (Method method : type.getDeclaredMethods()) {
+            methods.add(method.toGenericString() + (method.isBridge() ? " bridge" : "") + (method.isSynthetic() ? " synthetic" : "")
+                    + " erased " + method + " modifiers " + method.getModifiers());
+        }
+
+        Collections.sort(methods);
+        lines.addAll(methods);
+
+        return lines;
+    }
+
+    /**
+     * @return what each method returns when called with default arguments, by method
+     */
+    private static Map<String, Object> call(Class<?> type) throws Exception {
+        Object stub = type.getDeclaredConstructor().newInstance();
+        Map<String, Object> results = new TreeMap<String, Object>();
+
+        for (Method method : type.getDeclaredMethods()) {
+            Object[] arguments = new Object[method.getParameterCount()];
+
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = getDefaultValue(method.getParameterTypes()[i]);
+            }
+
+            method.setAccessible(true);
+            results.put(method.toString(), method.invoke(stub, arguments));
+        }
+
+        return results;
+    }
+
+    private static Object getDefaultValue(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return null;
+        }
+
+        // The zero of any primitive type, boxed
+        return Array.get(Array.newInstance(type, 1), 0);
+    }
+
+}
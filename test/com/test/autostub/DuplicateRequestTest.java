@@ -0,0 +1,57 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+
+/**
+ * Two annotations asking for the same stub: it is generated once, from the first one, and
+ * the second one is reported when its options are lost.
+ */
+public class DuplicateRequestTest {
+
+    private static final String API = "package lib;\n"
+            + "public interface Api {\n"
+            + "    String name(int id);\n"
+            + "}\n";
+
+    public void testDifferentOptionsAreReported() {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", API)
+                .source("app.First", holder("First", "recordCalls = true"))
+                .source("app.Second", holder("Second", "singleton = true"))
+                .compile();
+
+        assertEquals(Collections.singletonList("lib.StubApi"), compilation.getGeneratedSources(), "generated sources");
+        assertTrue(new String(compilation.getGeneratedSource("lib.StubApi"), StandardCharsets.UTF_8).contains("invocationLog()"),
+                "the stub has the options of the first annotation");
+
+        List<String> warnings = compilation.getMessages(Diagnostic.Kind.WARNING);
+        assertEquals(1, warnings.size(), "warnings " + warnings);
+        assertTrue(warnings.get(0).contains("app.First (recordCalls = true)") && warnings.get(0).contains("app.Second (singleton = true)"),
+                "the warning names both annotated types and their options: " + warnings.get(0));
+    }
+
+    public void testSameOptionsAreNotReported() {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", API)
+                .source("app.First", holder("First", "recordCalls = true"))
+                .source("app.Second", holder("Second", "recordCalls = true"))
+                .compile();
+
+        assertEquals(Collections.singletonList("lib.StubApi"), compilation.getGeneratedSources(), "generated sources");
+        assertEquals(Collections.emptyList(), compilation.getMessages(Diagnostic.Kind.WARNING), "warnings");
+    }
+
+    private static String holder(String name, String options) {
+        return "package app;\n"
+                + "@com.test.autostub.GenerateStub(toStub = \"lib.Api\", " + options + ")\n"
+                + "class " + name + " {\n"
+                + "}\n";
+    }
+
+}
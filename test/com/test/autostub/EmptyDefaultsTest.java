@@ -0,0 +1,85 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.tools.Diagnostic;
+
+/**
+ * Stubs with StubDefaults.EMPTY: the values they share cannot be changed by a caller, and
+ * the members they declare for them must not clash with the ones of the stubbed type.
+ */
+public class EmptyDefaultsTest {
+
+    public void testFuturesCannotBeChangedForOtherCalls() throws Exception {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", "package lib;\n"
+                        + "public interface Api {\n"
+                        + "    java.util.concurrent.CompletableFuture<String> load(int id);\n"
+                        + "    java.util.concurrent.Future<String> submit();\n"
+                        + "    java.util.concurrent.CompletionStage<String> stage();\n"
+                        + "}\n")
+                .source("app.Holder", holder("lib.Api", ""))
+                .compile();
+
+        Object stub = Class.forName("lib.StubApi", true, compilation.newClassLoader()).getDeclaredConstructor().newInstance();
+
+        CompletableFuture<?> future = (CompletableFuture<?>) stub.getClass().getMethod("load", int.class).invoke(stub, 1);
+        future.obtrudeException(new IllegalStateException());
+        CompletableFuture<?> next = (CompletableFuture<?>) stub.getClass().getMethod("load", int.class).invoke(stub, 2);
+
+        assertTrue(future != next, "each call gets its own future");
+        assertTrue(next.isDone() && !next.isCompletedExceptionally(), "a future completed again is not seen by the next calls");
+
+        CompletionStage<?> stage = (CompletionStage<?>) stub.getClass().getMethod("stage").invoke(stub);
+        assertTrue(stage == stub.getClass().getMethod("stage").invoke(stub), "the completed stage is shared");
+
+        try {
+            ((CompletableFuture<?>) stage).obtrudeValue(null);
+            throw new AssertionError("the shared stage can be completed again");
+        }
+        catch (ClassCastException | UnsupportedOperationException e) {
+            // The stage is not a CompletableFuture which can be completed again
+        }
+    }
+
+    public void testClashesWithTheStubbedTypeAreReported() {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", "package lib;\n"
+                        + "public interface Api {\n"
+                        + "    String INSTANCE = \"x\";\n"
+                        + "    java.util.concurrent.CompletionStage<String> stubCompletedStage();\n"
+                        + "}\n")
+                .source("app.Holder", holder("lib.Api", ", singleton = true"))
+                .compileWithErrors();
+
+        List<String> errors = compilation.getMessages(Diagnostic.Kind.ERROR);
+        assertEquals(2, errors.size(), "errors " + errors);
+        assertTrue(errors.toString().contains("field INSTANCE") && errors.toString().contains("method stubCompletedStage()"),
+                "both clashes are reported: " + errors);
+        assertEquals(null, compilation.getGeneratedSource("lib.StubApi"), "source of a stub with clashes");
+    }
+
+    public void testOverloadsOfHelpersDoNotClash() {
+        new TestCompilation()
+                .source("lib.Api", "package lib;\n"
+                        + "public interface Api {\n"
+                        + "    java.util.concurrent.CompletionStage<String> stubCompletedStage(int id);\n"
+                        + "    static String INSTANCE() { return \"\"; }\n"
+                        + "}\n")
+                .source("app.Holder", holder("lib.Api", ", singleton = true"))
+                .compile();
+    }
+
+    private static String holder(String target, String options) {
+        return "package app;\n"
+                + "@com.test.autostub.GenerateStub(toStub = \"" + target + "\", defaults = com.test.autostub.StubDefaults.EMPTY"
+                + options + ")\n"
+                + "class Holder {\n"
+                + "}\n";
+    }
+
+}
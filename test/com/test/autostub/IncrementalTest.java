@@ -0,0 +1,99 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.tools.Diagnostic;
+
+/**
+ * What incremental builds rely on: each stub originates from the types it was made from,
+ * and compiling an edited annotated type again only regenerates its own stubs.
+ *
+ * The second compilation is what Gradle does for an isolating processor: only the edited
+ * source is compiled, against the classes of the previous build.
+ */
+public class IncrementalTest {
+
+    private static final String USERS = "package app;\n"
+            + "@com.test.autostub.GenerateStub\n"
+            + "public interface Users {\n"
+            + "    String name(int id);\n"
+            + "}\n";
+
+    private static final String EDITED_USERS = "package app;\n"
+            + "@com.test.autostub.GenerateStub\n"
+            + "public interface Users {\n"
+            + "    String name(int id);\n"
+            + "    int count();\n"
+            + "}\n";
+
+    private static final String ORDERS = "package app;\n"
+            + "@com.test.autostub.GenerateStub\n"
+            + "public interface Orders {\n"
+            + "    long total(String customer);\n"
+            + "}\n";
+
+    private static final String HOLDER = "package app;\n"
+            + "@com.test.autostub.GenerateStub(toStub = \"lib.Api\")\n"
+            + "class Holder {\n"
+            + "}\n";
+
+    private static final String API = "package lib;\n"
+            + "public interface Api {\n"
+            + "    Object call(String name);\n"
+            + "}\n";
+
+    public void testStubsOriginateFromAnnotatedAndStubbedTypes() {
+        TestCompilation compilation = compileAll();
+
+        assertEquals(Arrays.asList("app.StubUsers", "app.StubOrders", "lib.StubApi"), compilation.getGeneratedSources(),
+                "generated sources");
+        assertEquals(Collections.singletonList("app.Users"), compilation.getOriginatingElements("app.StubUsers"),
+                "originating elements of a self-stub");
+        assertEquals(Collections.singletonList("app.Orders"), compilation.getOriginatingElements("app.StubOrders"),
+                "originating elements of a self-stub");
+        // Aggregating: the stub changes with the annotated type and with the stubbed one
+        assertEquals(Arrays.asList("app.Holder", "lib.Api"), compilation.getOriginatingElements("lib.StubApi"),
+                "originating elements of a stub listed in toStub");
+    }
+
+    public void testIsolatingStubsHaveASingleOriginatingElement() {
+        TestCompilation compilation = compileAll("-Ageneratestub.incremental=isolating");
+
+        assertEquals(Collections.singletonList("app.Holder"), compilation.getOriginatingElements("lib.StubApi"),
+                "originating elements of an isolating stub");
+        assertTrue(compilation.getMessages(Diagnostic.Kind.WARNING).toString().contains("lib.Api"),
+                "a warning about the stub depending on another type");
+    }
+
+    public void testEditingAnAnnotatedTypeOnlyRegeneratesItsStubs() throws Exception {
+        Path previousBuild = compileAll("-Ageneratestub.incremental=isolating").writeClasses();
+
+        TestCompilation compilation = new TestCompilation("-Ageneratestub.incremental=isolating")
+                .classPath(previousBuild)
+                .source("app.Users", EDITED_USERS)
+                .compile();
+
+        assertEquals(Collections.singletonList("app.StubUsers"), compilation.getGeneratedSources(), "regenerated sources");
+        assertEquals(Collections.singletonList("app.Users"), compilation.getOriginatingElements("app.StubUsers"),
+                "originating elements of the regenerated stub");
+        assertTrue(new String(compilation.getGeneratedSource("app.StubUsers"), StandardCharsets.UTF_8).contains("int count()"),
+                "the regenerated stub has the new method");
+        assertTrue(compilation.getClassNames().containsAll(Arrays.asList("app.Users", "app.StubUsers"))
+                && !compilation.getClassNames().contains("app.StubOrders"), "only the edited type and its stub are compiled");
+    }
+
+    private static TestCompilation compileAll(String... options) {
+        return new TestCompilation(options)
+                .source("app.Users", USERS)
+                .source("app.Orders", ORDERS)
+                .source("app.Holder", HOLDER)
+                .source("lib.Api", API)
+                .compile();
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+
+/**
+ * Latencies given by method name: a name which is not a method of the stub is an error,
+ * rather than calls left without delay.
+ */
+public class LatencyTest {
+
+    private static final String API = "package lib;\n"
+            + "public interface Api {\n"
+            + "    int size();\n"
+            + "    String name(int id);\n"
+            + "    default boolean isEmpty() { return size() == 0; }\n"
+            + "}\n";
+
+    public void testUnknownMethodIsReported() {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", API)
+                .source("app.Holder", holder("\"sizee=fixed:50ms\", \"isEmpty=fixed:1ms\", \"size=fixed:1ms\""))
+                .compileWithErrors();
+
+        List<String> errors = compilation.getMessages(Diagnostic.Kind.ERROR);
+        assertEquals(2, errors.size(), "errors " + errors);
+        assertTrue(errors.get(0).contains("latency for isEmpty") && errors.get(1).contains("latency for sizee"),
+                "the names which are not stubbed methods are reported: " + errors);
+        assertEquals(null, compilation.getGeneratedSource("lib.StubApi"), "source of a stub with unknown latencies");
+    }
+
+    public void testKnownMethodsAndDefaultLatencyAreAccepted() {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", API)
+                .source("app.Holder", holder("\"fixed:0ms\", \"size=fixed:1ms\", \"name=uniform:0ms,1ms\""))
+                .compile();
+
+        assertEquals(Collections.singletonList("lib.StubApi"), compilation.getGeneratedSources(), "generated sources");
+    }
+
+    private static String holder(String latency) {
+        return "package app;\n"
+                + "@com.test.autostub.GenerateStub(toStub = \"lib.Api\", latency = { " + latency + " })\n"
+                + "class Holder {\n"
+                + "}\n";
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.io.InvalidClassException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A replaying stub serving what a ReplayRecorder recorded: the responses are read with the
+ * return type of their method, which a serialized object must be of. Strings are decoded
+ * once, objects on every call, so that no call sees what another one did to its response.
+ */
+public class ReplayTest {
+
+    @SuppressWarnings("unchecked")
+    public void testResponsesAreCheckedAgainstTheReturnType() throws Exception {
+        Path replay = Files.createTempFile("generatestub-replay", ".bin");
+        replay.toFile().deleteOnExit();
+
+        // lib.Recorded has the signatures of lib.Api, with Object returns: what it records
+        // is found by the stub, whatever its type
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", "package lib;\n"
+                        + "public interface Api {\n"
+                        + "    java.util.List<String> names(int id);\n"
+                        + "    String label(int id);\n"
+                        + "    Number score(String name);\n"
+                        + "    <T extends java.io.Serializable> T find(String key);\n"
+                        + "}\n")
+                .source("lib.Recorded", "package lib;\n"
+                        + "public interface Recorded {\n"
+                        + "    Object names(int id);\n"
+                        + "    Object label(int id);\n"
+                        + "    Object score(String name);\n"
+                        + "}\n")
+                .source("app.Holder", "package app;\n"
+                        + "@com.test.autostub.GenerateStub(toStub = \"lib.Api\", replay = \"" + replay + "\")\n"
+                        + "class Holder {\n"
+                        + "}\n")
+                .compile();
+
+        String source = new String(compilation.getGeneratedSource("lib.StubApi"), StandardCharsets.UTF_8);
+        assertTrue(source.contains("java.util.List.class") && source.contains("java.io.Serializable.class"),
+                "objects are read with the erased return type:\n" + source);
+
+        ClassLoader loader = compilation.newClassLoader();
+        record(loader.loadClass("lib.Recorded"), replay);
+
+        Object stub = Class.forName("lib.StubApi", true, loader).getDeclaredConstructor().newInstance();
+        Method names = stub.getClass().getMethod("names", int.class);
+        Method label = stub.getClass().getMethod("label", int.class);
+
+        Object first = names.invoke(stub, 1);
+        assertEquals(Arrays.asList("a", "b"), first, "recorded list");
+        ((List<String>) first).add("c");
+        assertEquals(Arrays.asList("a", "b"), names.invoke(stub, 1), "recorded list, once a response was modified");
+        assertTrue(label.invoke(stub, 1) == label.invoke(stub, 1), "the string is decoded once");
+        assertEquals("one", label.invoke(stub, 1), "recorded string");
+        assertEquals(3, stub.getClass().getMethod("score", String.class).invoke(stub, "x"), "recorded number");
+        assertEquals(null, names.invoke(stub, 3), "default value of a call which was not recorded");
+        assertEquals(null, stub.getClass().getMethod("find", String.class).invoke(stub, "x"),
+                "default value of a method returning a type variable");
+
+        try {
+            names.invoke(stub, 2);
+            throw new AssertionError("a Date is returned as a List");
+        }
+        catch (InvocationTargetException ite) {
+            assertTrue(ite.getCause() instanceof IllegalStateException
+                    && ite.getCause().getCause() instanceof InvalidClassException,
+                    "the Date is rejected before it is deserialized: " + ite.getCause());
+        }
+    }
+
+    /**
+     * Records the responses of lib.Recorded in a replay file.
+     */
+    private static void record(Class<?> recorded, Path replay) throws Exception {
+        Object delegate = Proxy.newProxyInstance(recorded.getClassLoader(), new Class<?>[] { recorded },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("names")) {
+                            return (Integer) args[0] == 1 ? new ArrayList<String>(Arrays.asList("a", "b")) : new Date(0);
+                        }
+
+                        return method.getName().equals("label") ? "one" : (Object) 3;
+                    }
+
+                });
+
+        ReplayRecorder recorder = new ReplayRecorder();
+        Object proxy = recordAs(recorder, recorded, delegate);
+
+        recorded.getMethod("names", int.class).invoke(proxy, 1);
+        recorded.getMethod("names", int.class).invoke(proxy, 2);
+        recorded.getMethod("label", int.class).invoke(proxy, 1);
+        recorded.getMethod("score", String.class).invoke(proxy, "x");
+
+        recorder.write(replay);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T recordAs(ReplayRecorder recorder, Class<T> type, Object delegate) {
+        return recorder.record(type, (T) delegate);
+    }
+
+}
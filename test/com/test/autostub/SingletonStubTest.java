@@ -0,0 +1,60 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+
+/**
+ * Singleton stubs with the other options: the shared INSTANCE is created when the stub class
+ * is initialized, and must find every static field it uses already set.
+ */
+public class SingletonStubTest {
+
+    private static final String API = "package lib;\n"
+            + "public interface Api {\n"
+            + "    String name(int id);\n"
+            + "    java.util.List<String> all();\n"
+            + "}\n";
+
+    public void testRecordingSingletonIsInitialized() throws Exception {
+        Object stub = getInstance("recordCalls = true, singleton = true");
+
+        stub.getClass().getMethod("name", int.class).invoke(stub, 1);
+        stub.getClass().getMethod("name", int.class).invoke(stub, 2);
+
+        assertEquals(2L, stub.getClass().getMethod("nameCalls").invoke(stub), "calls counted by the singleton");
+        assertTrue(Modifier.isFinal(stub.getClass().getModifiers()), "a singleton stub is final");
+    }
+
+    public void testCapturingSingletonWithEmptyDefaultsAndLatencyIsInitialized() throws Exception {
+        Object stub = getInstance("captureArguments = 4, defaults = com.test.autostub.StubDefaults.EMPTY, singleton = true,"
+                + " latency = \"fixed:0ms\"");
+
+        Object all = stub.getClass().getMethod("all").invoke(stub);
+        InvocationLog log = (InvocationLog) stub.getClass().getMethod("invocationLog").invoke(stub);
+
+        assertEquals(Collections.emptyList(), all, "the empty default of the singleton");
+        assertEquals(1L, log.getTotalCount(), "calls counted by the singleton");
+        assertEquals(1, log.getInvocations().size(), "calls captured by the singleton");
+    }
+
+    /**
+     * @return the INSTANCE of the stub of lib.Api generated with the given options
+     */
+    private static Object getInstance(String options) throws Exception {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", API)
+                .source("app.Holder", "package app;\n"
+                        + "@com.test.autostub.GenerateStub(toStub = \"lib.Api\", " + options + ")\n"
+                        + "class Holder {\n"
+                        + "}\n")
+                .compile();
+
+        // Reading the field initializes the class
+        Class<?> stubClass = Class.forName("lib.StubApi", true, compilation.newClassLoader());
+
+        return stubClass.getField("INSTANCE").get(null);
+    }
+
+}
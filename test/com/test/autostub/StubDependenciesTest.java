@@ -0,0 +1,62 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What the StubDaemon processes again when types are added or changed: the annotated types
+ * whose toStub() names, holds or matches them, whether they gave stubs before or not.
+ */
+public class StubDependenciesTest {
+
+    public void testAddedTypesAreMatchedAgainstTheTargetsOfAnnotations() {
+        StubDependencies dependencies = new StubDependencies();
+
+        new TestCompilation()
+                .processor(new GenerateStubProcessor(new SignatureCache(), dependencies))
+                .source("q.Other", "package q;\n"
+                        + "public interface Other {\n"
+                        + "    int size();\n"
+                        + "}\n")
+                .source("app.P", holder("P", "\"q.*Service\""))
+                .source("app.R", holder("R", "\"q.Other\""))
+                .source("app.S", holder("S", "\"q.Missing\""))
+                .source("app.T", holder("T", "\"r\""))
+                .compile();
+
+        assertEquals(Collections.singletonList("q.StubOther"), dependencies.getStubs("app.R"), "stubs of R");
+        assertEquals(Collections.emptyList(), dependencies.getStubs("app.P"), "stubs of P");
+
+        assertEquals(names("app.P"), changed("q.FooService", dependencies), "refreshed when q.FooService is added");
+        assertEquals(names(), changed("q.Foo", dependencies), "refreshed when q.Foo is added");
+        assertEquals(names("app.S"), changed("q.Missing", dependencies), "refreshed when the missing target is added");
+        assertEquals(names("app.R"), changed("q.Other", dependencies), "refreshed when q.Other changes");
+        assertEquals(names("app.T"), changed("r.Api", dependencies), "refreshed when a type is added to package r");
+
+        // A refreshed annotated type forgets what it listed, until it is processed again
+        dependencies.removeAnnotated("app.P");
+        assertEquals(names(), changed("q.FooService", dependencies), "refreshed once P is forgotten");
+    }
+
+    private static Set<String> changed(String type, StubDependencies dependencies) {
+        Collection<String> packages = Collections.singletonList(type.substring(0, type.lastIndexOf('.')));
+
+        return dependencies.getAnnotatedNames(Collections.singletonList(type), packages);
+    }
+
+    private static Set<String> names(String... names) {
+        return new TreeSet<String>(Arrays.asList(names));
+    }
+
+    private static String holder(String name, String toStub) {
+        return "package app;\n"
+                + "@com.test.autostub.GenerateStub(toStub = " + toStub + ")\n"
+                + "class " + name + " {\n"
+                + "}\n";
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.test.autostub;
+import static com.test.autostub.Assertions.assertEquals;
+import static com.test.autostub.Assertions.assertTrue;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * StubRegistry with a stub packaged apart from the type it stubs: the interface is loaded
+ * by a class loader which cannot see the stub, as a library jar would be, and the stub and
+ * its index by a child class loader, as test classes would be.
+ */
+public class StubRegistryTest {
+
+    public void testStubOfAChildClassLoaderIsFoundThroughTheContextClassLoader() throws Exception {
+        TestCompilation compilation = new TestCompilation()
+                .source("lib.Api", "package lib;\n"
+                        + "public interface Api {\n"
+                        + "    String name(int id);\n"
+                        + "}\n")
+                .source("app.Holder", "package app;\n"
+                        + "@com.test.autostub.GenerateStub(toStub = \"lib.Api\")\n"
+                        + "class Holder {\n"
+                        + "}\n")
+                .compile();
+
+        Path library = Files.createTempDirectory("generatestub-library");
+        write(library, "lib/Api.class", compilation.getClassFile("lib.Api"));
+
+        Path tests = Files.createTempDirectory("generatestub-tests");
+        write(tests, "lib/StubApi.class", compilation.getClassFile("lib.StubApi"));
+        write(tests, StubRegistry.INDEX_RESOURCE, compilation.getResource(StubRegistry.INDEX_RESOURCE));
+
+        URLClassLoader libraryLoader = new URLClassLoader(new URL[] { library.toUri().toURL() },
+                StubRegistryTest.class.getClassLoader());
+        URLClassLoader testLoader = new URLClassLoader(new URL[] { tests.toUri().toURL() }, libraryLoader);
+        Class<?> api = libraryLoader.loadClass("lib.Api");
+
+        assertTrue(!StubRegistry.hasStub(api), "no stub is found while the context class loader cannot see it");
+
+        ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(testLoader);
+
+        try {
+            assertTrue(StubRegistry.hasStub(api), "the stub is found through the context class loader");
+            assertEquals(testLoader, StubRegistry.getStubClass(api).getClassLoader(), "class loader of the stub");
+            assertTrue(api.isInstance(StubRegistry.create(api)), "the stub is created");
+        }
+        finally {
+            Thread.currentThread().setContextClassLoader(contextLoader);
+        }
+
+        // What is found through a context class loader is not kept for the others
+        assertTrue(!StubRegistry.hasStub(api), "no stub is found once the context class loader is restored");
+    }
+
+    private static void write(Path directory, String name, byte[] content) throws Exception {
+        Path file = directory.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+    }
+
+}
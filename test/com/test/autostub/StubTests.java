@@ -0,0 +1,58 @@
+package com.test.autostub;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Runs the checks of the processor: every public test*() method of the classes below, each
+ * one on a new instance. The inputs are compiled in memory, see TestCompilation.
+ *
+ * Started by make test, which exits with an error when a check fails.
+ */
+public class StubTests {
+
+    private static final Class<?>[] TESTS = {
+        IncrementalTest.class,
+        ClassEmissionTest.class,
+        DuplicateRequestTest.class,
+        StubRegistryTest.class,
+        SingletonStubTest.class,
+        ByteStabilityTest.class,
+        ReplayTest.class,
+        EmptyDefaultsTest.class,
+        LatencyTest.class,
+        StubDependenciesTest.class,
+    };
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        int count = 0;
+
+        for (Class<?> test : TESTS) {
+            for (Method method : test.getMethods()) {
+                if (!method.getName().startsWith("test") || Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+
+                count++;
+
+                try {
+                    method.invoke(test.getDeclaredConstructor().newInstance());
+                    System.out.println("ok      " + test.getSimpleName() + "." + method.getName());
+                }
+                catch (InvocationTargetException ite) {
+                    failures++;
+                    System.out.println("FAILED  " + test.getSimpleName() + "." + method.getName());
+                    ite.getCause().printStackTrace(System.out);
+                }
+            }
+        }
+
+        System.out.println(count + " checks, " + failures + " failed");
+
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+}
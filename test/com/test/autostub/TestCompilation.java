@@ -0,0 +1,341 @@
+package com.test.autostub;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import com.test.autostub.bench.InMemoryFileManager;
+
+/**
+ * Compiles sources in memory with a GenerateStubProcessor, the way a build would, and keeps
+ * what came out of it: the generated sources and class files, the diagnostics, and the
+ * originating elements each file was created with.
+ *
+ * The processor and the classes of the tests are found on the class path of the JVM. The
+ * class path given to javac can be extended with the classes of a previous compilation,
+ * to compile only some of the sources again.
+ */
+class TestCompilation {
+
+    private final List<String> options = new ArrayList<String>(Arrays.asList("-Xlint:-options"));
+
+    private final List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+
+    // Name of each file the processor created -> the qualified names of its originating elements
+    private final Map<String, List<String>> originatingElements = new LinkedHashMap<String, List<String>>();
+
+    private InMemoryFileManager fileManager = null;
+
+    private GenerateStubProcessor processor = new GenerateStubProcessor();
+
+    /**
+     * @param options given to javac as they are: -Ageneratestub.emit=class...
+     */
+    TestCompilation(String... options) {
+        this.options.addAll(Arrays.asList(options));
+    }
+
+    TestCompilation source(String className, String content) {
+        sources.add(InMemoryFileManager.source(className, content));
+        return this;
+    }
+
+    /**
+     * Runs another processor than a new GenerateStubProcessor: the one of a StubDaemon
+     * compilation, for example.
+     */
+    TestCompilation processor(GenerateStubProcessor processor) {
+        this.processor = processor;
+        return this;
+    }
+
+    /**
+     * Adds classes in front of the class path of the JVM, as build tools do with the output
+     * of the previous build.
+     */
+    TestCompilation classPath(Path directory) {
+        options.add("-cp");
+        options.add(directory + File.pathSeparator + System.getProperty("java.class.path"));
+        return this;
+    }
+
+    /**
+     * @throws AssertionError if the compilation fails
+     */
+    TestCompilation compile() {
+        if (!run()) {
+            throw new AssertionError("Compilation failed: " + getMessages(Diagnostic.Kind.ERROR));
+        }
+
+        return this;
+    }
+
+    /**
+     * Compiles inputs which must be rejected: the errors are then read with getMessages().
+     *
+     * @throws AssertionError if the compilation succeeds
+     */
+    TestCompilation compileWithErrors() {
+        if (run()) {
+            throw new AssertionError("Compilation succeeded");
+        }
+
+        return this;
+    }
+
+    private boolean run() {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        fileManager = new InMemoryFileManager(compiler.getStandardFileManager(diagnostics, Locale.ROOT, null));
+
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, sources);
+        task.setProcessors(Collections.singletonList(new RecordingProcessor(processor)));
+
+        return task.call();
+    }
+
+    /**
+     * @return the binary names of the sources the processor generated, in the order they
+     * were written
+     */
+    List<String> getGeneratedSources() {
+        return fileManager.getOutputNames(StandardLocation.SOURCE_OUTPUT, Kind.SOURCE);
+    }
+
+    /**
+     * @return the source generated for a stub, or null if there is none
+     */
+    byte[] getGeneratedSource(String className) {
+        return fileManager.getOutput(StandardLocation.SOURCE_OUTPUT, className, Kind.SOURCE);
+    }
+
+    /**
+     * @return the binary names of the classes written, compiled or emitted by the processor
+     */
+    List<String> getClassNames() {
+        return fileManager.getOutputNames(StandardLocation.CLASS_OUTPUT, Kind.CLASS);
+    }
+
+    byte[] getClassFile(String className) {
+        return fileManager.getOutput(StandardLocation.CLASS_OUTPUT, className, Kind.CLASS);
+    }
+
+    /**
+     * @return a resource the processor wrote in the class output, or null if it did not
+     */
+    byte[] getResource(String relativeName) {
+        return fileManager.getOutput(StandardLocation.CLASS_OUTPUT, relativeName, Kind.OTHER);
+    }
+
+    /**
+     * @return the qualified names of the originating elements of a file created by the
+     * processor, or null if it did not create it
+     */
+    List<String> getOriginatingElements(String name) {
+        return originatingElements.get(name);
+    }
+
+    /**
+     * @return the messages of a kind reported during the compilation
+     */
+    List<String> getMessages(Diagnostic.Kind kind) {
+        List<String> messages = new ArrayList<String>();
+
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == kind) {
+                messages.add(diagnostic.getMessage(Locale.ROOT));
+            }
+        }
+
+        return messages;
+    }
+
+    /**
+     * Writes the class files in a new temporary directory, to be given to classPath().
+     */
+    Path writeClasses() throws IOException {
+        Path directory = Files.createTempDirectory("generatestub-test");
+
+        for (String className : getClassNames()) {
+            Path file = directory.resolve(className.replace('.', '/') + Kind.CLASS.extension);
+            Files.createDirectories(file.getParent());
+            Files.write(file, getClassFile(className));
+        }
+
+        return directory;
+    }
+
+    /**
+     * @return a class loader defining the compiled classes, on top of the classes of the
+     * tests (and the runtime classes of the processor)
+     */
+    ClassLoader newClassLoader() {
+        return new ClassLoader(TestCompilation.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                byte[] classFile = getClassFile(name);
+
+                if (classFile == null) {
+                    throw new ClassNotFoundException(name);
+                }
+
+                return defineClass(name, classFile, 0, classFile.length);
+            }
+        };
+    }
+
+    private void record(CharSequence name, Element[] elements) {
+        List<String> names = new ArrayList<String>();
+
+        for (Element element : elements) {
+            names.add(element instanceof TypeElement ? ((TypeElement) element).getQualifiedName().toString() : element.toString());
+        }
+
+        originatingElements.put(name.toString(), names);
+    }
+
+    /**
+     * Hands the processor a Filer recording the originating elements of each file, as build
+     * tools such as Gradle do.
+     */
+    private class RecordingProcessor implements Processor {
+
+        private final Processor processor;
+
+        RecordingProcessor(Processor processor) {
+            this.processor = processor;
+        }
+
+        @Override
+        public void init(final ProcessingEnvironment processingEnv) {
+            final Filer filer = new Filer() {
+
+                @Override
+                public JavaFileObject createSourceFile(CharSequence name, Element... elements) throws IOException {
+                    record(name, elements);
+                    return processingEnv.getFiler().createSourceFile(name, elements);
+                }
+
+                @Override
+                public JavaFileObject createClassFile(CharSequence name, Element... elements) throws IOException {
+                    record(name, elements);
+                    return processingEnv.getFiler().createClassFile(name, elements);
+                }
+
+                @Override
+                public FileObject createResource(Location location, CharSequence pkg, CharSequence relativeName,
+                        Element... elements) throws IOException {
+                    record(relativeName, elements);
+                    return processingEnv.getFiler().createResource(location, pkg, relativeName, elements);
+                }
+
+                @Override
+                public FileObject getResource(Location location, CharSequence pkg, CharSequence relativeName)
+                        throws IOException {
+                    return processingEnv.getFiler().getResource(location, pkg, relativeName);
+                }
+
+            };
+
+            processor.init(new ProcessingEnvironment() {
+
+                @Override
+                public Map<String, String> getOptions() {
+                    return processingEnv.getOptions();
+                }
+
+                @Override
+                public Messager getMessager() {
+                    return processingEnv.getMessager();
+                }
+
+                @Override
+                public Filer getFiler() {
+                    return filer;
+                }
+
+                @Override
+                public Elements getElementUtils() {
+                    return processingEnv.getElementUtils();
+                }
+
+                @Override
+                public Types getTypeUtils() {
+                    return processingEnv.getTypeUtils();
+                }
+
+                @Override
+                public SourceVersion getSourceVersion() {
+                    return processingEnv.getSourceVersion();
+                }
+
+                @Override
+                public Locale getLocale() {
+                    return processingEnv.getLocale();
+                }
+
+            });
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            return processor.process(annotations, roundEnv);
+        }
+
+        @Override
+        public Set<String> getSupportedOptions() {
+            return processor.getSupportedOptions();
+        }
+
+        @Override
+        public Set<String> getSupportedAnnotationTypes() {
+            return processor.getSupportedAnnotationTypes();
+        }
+
+        // GenerateStubProcessor does not declare any, which javac reports as a warning on
+        // every compilation: the checks only see the warnings of the processor
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation,
+                ExecutableElement member, String userText) {
+            return processor.getCompletions(element, annotation, member, userText);
+        }
+    }
+
+}